@@ -42,6 +42,7 @@ import fr.pasteque.client.data.Data;
 import fr.pasteque.client.drivers.POSDeviceManager;
 import fr.pasteque.client.drivers.utils.DeviceManagerEvent;
 import fr.pasteque.client.models.*;
+import fr.pasteque.client.sync.Outbox;
 import fr.pasteque.client.activities.TrackedActivity;
 import fr.pasteque.client.utils.Error;
 import fr.pasteque.client.widgets.StocksAdapter;
@@ -63,7 +64,7 @@ public class CloseCash extends POSConnectedTrackedActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.close_cash);
         // Compute stocks with receipts
-        Map<String, Stock> stocks = Data.Stock.stocks;
+        Map<String, Stock> stocks = Data.Stock.getStocks();
         Map<String, Stock> updStocks = new HashMap<String, Stock>();
         for (Receipt r : Data.Receipt.getReceipts(this)) {
             Ticket t = r.getTicket();
@@ -244,6 +245,22 @@ public class CloseCash extends POSConnectedTrackedActivity {
             // Call activities for result for checks and return on closeCash() then
             return;
         }
+        // Closed first, so that the outbox starts nothing new
+        Data.Cash.currentCash(this).closeNow();
+        Data.Cash.dirty = true;
+        // Receipts in flight must be counted as sent, not archived again
+        Outbox.whenIdle(new Runnable() {
+            @Override
+            public void run() {
+                archiveCash();
+            }
+        });
+    }
+
+    /**
+     * Archive the closed cash, start a new one and print
+     */
+    private void archiveCash() {
         try {
             this.closeCashAction();
         } catch (IOException e) {
@@ -293,8 +310,6 @@ public class CloseCash extends POSConnectedTrackedActivity {
     }
 
     private void closeCashAction() throws IOException {
-        Data.Cash.currentCash(this).closeNow();
-        Data.Cash.dirty = true;
         // Archive and create a new cash
         CashArchive.archiveCurrent();
         Data.Cash.clear(this);
@@ -46,7 +46,7 @@ import fr.pasteque.client.utils.*;
 import fr.pasteque.client.utils.file.ExternalFile;
 import fr.pasteque.client.utils.file.InternalFile;
 
-import static org.apache.commons.io.IOUtils.copy;
+import static org.apache.commons.io.IOUtils.closeQuietly;
 
 //Deprecation concerns the PreferenceFragment
 @SuppressWarnings("deprecation")
@@ -64,6 +64,9 @@ public class Configure extends PreferenceActivity
     public static final int MANUAL_SYNC_MODE = 0;
     public static final int AUTO_SYNC_MODE = 1;
 
+    public static final String JSON_STORAGE = "json";
+    public static final String SQLITE_STORAGE = "sqlite";
+
     public static final String ERROR = "Error";
 
     /* Default values
@@ -79,6 +82,7 @@ public class Configure extends PreferenceActivity
     private static final int DEFAULT_PRINTER_CONNECT_TRY = 3;
     private static final boolean DEFAULT_SSL = true;
     private static final boolean DEFAULT_DISCOUNT = true;
+    private static final String DEFAULT_STORAGE = JSON_STORAGE;
     private static String LABEL_STATUS = "status";
 
     private ListPreference printerDrivers;
@@ -333,6 +337,12 @@ public class Configure extends PreferenceActivity
         return getPref("sync_mode", MANUAL_SYNC_MODE);
     }
 
+    /** @return JSON_STORAGE or SQLITE_STORAGE */
+    public static String getCustomersStorage(Context ctx) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        return prefs.getString("customers_storage", DEFAULT_STORAGE);
+    }
+
     private static String getPref(String option, String defaultValue) {
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(Pasteque.getAppContext());
         if (sharedPreferences == null) {
@@ -487,10 +497,17 @@ public class Configure extends PreferenceActivity
         Data.export(AbstractJsonDataSavable.getDirectory());
         try {
             File file = new InternalFile(CashArchive.getDir(), fr.pasteque.client.utils.file.File.DIRECTORY);
-            String[] list = file.list();
+            String[] list = file.list(fr.pasteque.client.utils.file.File.CURRENT_GENERATIONS);
             for (String filename : list) {
-                copy(new FileInputStream(new InternalFile(CashArchive.getDir(), filename)),
-                        new FileOutputStream(new ExternalFile(CashArchive.getDir(), filename)));
+                // Exported as plain JSON, chunks are uncompressed
+                ExternalFile external = new ExternalFile(CashArchive.getDir(), filename);
+                Writer writer = external.openWriter();
+                try {
+                    CashArchive.export(filename, writer);
+                    external.commit(writer);
+                } finally {
+                    closeQuietly(writer);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
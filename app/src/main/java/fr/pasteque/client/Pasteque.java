@@ -2,11 +2,18 @@ package fr.pasteque.client;
 
 import android.app.Application;
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.widget.Toast;
+import fr.pasteque.client.data.Data;
+import fr.pasteque.client.data.DataSavable.interfaces.DataSavable;
+import fr.pasteque.client.data.DataSaver;
 import fr.pasteque.client.drivers.DefaultDeviceManager;
 import fr.pasteque.client.utils.PastequeConfiguration;
+import fr.pasteque.client.utils.URLTextGetter;
 
+import java.io.IOError;
 import java.util.ArrayList;
 
 /**
@@ -21,6 +28,31 @@ public class Pasteque extends Application {
     public void onCreate() {
         super.onCreate();
         Pasteque.context = getApplicationContext();
+        URLTextGetter.setRequestListener(new URLTextGetter.RequestListener() {
+            @Override
+            public void onRequestDone(String url, int status, long bytes, long millis) {
+                // GET parameters hold the credentials
+                // (Log is Pasteque.Log in this class)
+                int query = url.indexOf('?');
+                android.util.Log.d("Pasteque/HTTP", status + " "
+                        + (query == -1 ? url : url.substring(0, query)) + " "
+                        + bytes + "B in " + millis + "ms");
+            }
+        });
+        final Handler uiHandler = new Handler(Looper.getMainLooper());
+        Data.getSaver().setErrorListener(new DataSaver.ErrorListener() {
+            @Override
+            public void onSaveFailed(DataSavable data, IOError e) {
+                if (data == Data.Session) {
+                    uiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            Pasteque.Toast.show(R.string.err_save_session);
+                        }
+                    });
+                }
+            }
+        });
     }
 
     public static Context getAppContext() {
@@ -34,6 +34,7 @@ import fr.pasteque.client.data.Data;
 import fr.pasteque.client.drivers.POSDeviceManager;
 import fr.pasteque.client.drivers.utils.DeviceManagerEvent;
 import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.models.ReceiptSummary;
 import fr.pasteque.client.utils.Error;
 import fr.pasteque.client.widgets.ReceiptsAdapter;
 
@@ -53,7 +54,7 @@ public class ReceiptSelect extends POSConnectedTrackedActivity
         // Set views
         setContentView(R.layout.receipt_select);
         this.list = (ListView) this.findViewById(R.id.receipts_list);
-        this.list.setAdapter(new ReceiptsAdapter(Data.Receipt.getReceipts(this)));
+        this.list.setAdapter(new ReceiptsAdapter(Data.Receipt));
         this.list.setOnItemClickListener(this);
         // Init printer connection
     }
@@ -66,7 +67,18 @@ public class ReceiptSelect extends POSConnectedTrackedActivity
     @Override
     public void onItemClick(AdapterView parent, View v,
                             int position, long id) {
-        final Receipt receipt = Data.Receipt.getReceipts(this).get(position);
+        // Only the summaries are in memory, read the receipt being opened
+        final Receipt receipt;
+        try {
+            receipt = Data.Receipt.getReceipt((ReceiptSummary) parent.getItemAtPosition(position));
+        } catch (IOError e) {
+            Log.e(LOG_TAG, "Unable to read receipt", e);
+            return;
+        }
+        if (receipt == null) {
+            this.refreshList();
+            return;
+        }
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
         String label = this.getString(R.string.ticket_label,
                 receipt.getTicket().getTicketId());
@@ -92,7 +104,7 @@ public class ReceiptSelect extends POSConnectedTrackedActivity
 
     private void refreshList() {
         if (Data.Receipt.hasReceipts()) {
-            ReceiptSelect.this.list.setAdapter(new ReceiptsAdapter(Data.Receipt.getReceipts(this)));
+            ReceiptSelect.this.list.setAdapter(new ReceiptsAdapter(Data.Receipt));
         } else {
             ReceiptSelect.this.finish();
         }
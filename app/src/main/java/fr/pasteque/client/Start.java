@@ -40,6 +40,7 @@ import android.widget.Toast;
 
 import fr.pasteque.client.data.*;
 import fr.pasteque.client.models.*;
+import fr.pasteque.client.sync.Outbox;
 import fr.pasteque.client.sync.SendProcess;
 import fr.pasteque.client.sync.SyncSend;
 import fr.pasteque.client.sync.SyncUpdate;
@@ -73,6 +74,7 @@ public class Start extends TrackedActivity implements Handler.Callback {
             Error.showError(R.string.err_load_error, this);
         }
         Data.Session.newSessionIfEmpty();
+        Outbox.start(this);
         this.button = this.findViewById(R.id.connectButton);
         this.button.setOnClickListener(new ConnectClickListener());
         this.logins = (GridView) this.findViewById(R.id.loginGrid);
@@ -100,10 +102,17 @@ public class Start extends TrackedActivity implements Handler.Callback {
     @Override
     public void onResume() {
         super.onResume();
+        Outbox.setListener(new Handler(this));
         this.invalidateOptionsMenu();
         this.updateStatus();
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        Outbox.setListener(null);
+    }
+
     @Override
     public void onBackPressed() {
         if (Configure.isAccount(this)) {
@@ -134,6 +143,12 @@ public class Start extends TrackedActivity implements Handler.Callback {
             result += bullet + getString(R.string.status_demo) + separator;
         if (Data.hasCashOpened(this)) {
             result += bullet + this.getText(R.string.status_has_local_data) + separator;
+            int pending = Outbox.getPendingReceipts(this);
+            if (pending > 0) {
+                result += bullet + this.getResources().getQuantityString(
+                        R.plurals.status_pending_receipts, pending, pending)
+                        + separator;
+            }
         }
         int count = CashArchive.getArchiveCount(this);
         if (count > 0) {
@@ -431,6 +446,9 @@ public class Start extends TrackedActivity implements Handler.Callback {
     @Override
     public boolean handleMessage(Message m) {
         switch (m.what) {
+            case Outbox.PROGRESSED:
+                this.updateStatus();
+                break;
             case SyncUpdate.SYNC_DONE:
                 Data.dataUpdated();
                 this.updateStatus();
@@ -465,9 +483,9 @@ public class Start extends TrackedActivity implements Handler.Callback {
                 this.updateStatus();
                 Data.TicketId.notifyDataJustSent();
                 this.invalidateOptionsMenu();
-                if (Data.Customer.resolvedIds.size() > 0) {
+                if (Data.Customer.getResolvedIds().size() > 0) {
                     // Clearing temp id on sync success
-                    Data.Customer.resolvedIds.clear();
+                    Data.Customer.getResolvedIds().clear();
                     try {
                         Data.Customer.save(this);
                         Log.i(LOG_TAG, "Sync Done: Local ids are cleared");
@@ -22,22 +22,20 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
-import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.*;
 
-import java.io.IOError;
 
 import fr.pasteque.client.data.Data;
 import fr.pasteque.client.models.Place;
 import fr.pasteque.client.models.Ticket;
 import fr.pasteque.client.models.Session;
 import fr.pasteque.client.models.User;
+import fr.pasteque.client.sync.SharedTicketFeed;
 import fr.pasteque.client.sync.TicketUpdater;
 import fr.pasteque.client.activities.TrackedActivity;
-import fr.pasteque.client.utils.Error;
 import fr.pasteque.client.widgets.ProgressPopup;
 import fr.pasteque.client.widgets.RestaurantTicketsAdapter;
 import fr.pasteque.client.widgets.SessionTicketsAdapter;
@@ -68,21 +66,19 @@ public class TicketSelect extends TrackedActivity implements
         case Configure.RESTAURANT_MODE:
             setContentView(R.layout.ticket_select_restaurant);
             this.list = (ListView) this.findViewById(R.id.tickets_list);
-            RestaurantTicketsAdapter adapter = new RestaurantTicketsAdapter(Data.Place.floors);
+            RestaurantTicketsAdapter adapter = new RestaurantTicketsAdapter(Data.Place.getFloors());
             ((ExpandableListView) this.list).setAdapter(adapter);
             ((ExpandableListView) this.list).setOnChildClickListener(this);
-            this.updateSharedTicket();
             break;
         }
 
     }
 
+    /** Follow the changes of shared tickets while the floors are shown */
     private void updateSharedTicket() {
         if (Configure.getSyncMode(this) == Configure.AUTO_SYNC_MODE) {
-            new TicketUpdater().execute(this,
-                    new DataHandler(Configure.getTicketsMode(this), null),
-                    TicketUpdater.TICKETSERVICE_UPDATE
-                            | TicketUpdater.TICKETSERVICE_ALL);
+            SharedTicketFeed.start(this,
+                    new DataHandler(Configure.getTicketsMode(this), null));
         }
     }
 
@@ -98,7 +94,7 @@ public class TicketSelect extends TrackedActivity implements
             for (int i = 0; i < adapt.getGroupCount(); i++) {
                 expanded[i] = exlist.isGroupExpanded(i);
             }
-            exlist.setAdapter(new RestaurantTicketsAdapter(Data.Place.floors));
+            exlist.setAdapter(new RestaurantTicketsAdapter(Data.Place.getFloors()));
             for (int i = 0; i < adapt.getGroupCount(); i++) {
                 if (expanded[i]) {
                     exlist.expandGroup(i);
@@ -106,9 +102,16 @@ public class TicketSelect extends TrackedActivity implements
                     exlist.collapseGroup(i);
                 }
             }
+            this.updateSharedTicket();
         }
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        SharedTicketFeed.stop();
+    }
+
     public void refreshList() {
         this.list.invalidateViews();
     }
@@ -227,12 +230,7 @@ public class TicketSelect extends TrackedActivity implements
             break;
         case MENU_NEW_TICKET:
             Data.Session.currentSession(this).newTicket();
-            try {
-                Data.Session.save(this);
-            } catch (IOError ioe) {
-                Log.e(LOG_TAG, "Unable to save session", ioe);
-                Error.showError(R.string.err_save_session, this);
-            }
+            Data.Session.saveLater(this);
             this.setResult(Activity.RESULT_OK);
             this.finish();
             break;
@@ -264,6 +262,7 @@ public class TicketSelect extends TrackedActivity implements
             switch (msg.what) {
             case TicketUpdater.TICKETSERVICE_UPDATE
                     | TicketUpdater.TICKETSERVICE_ALL:
+            case SharedTicketFeed.CHANGED:
                 TicketSelect.this.refreshList();
                 break;
             case TicketUpdater.TICKETSERVICE_UPDATE
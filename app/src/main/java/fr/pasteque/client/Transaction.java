@@ -36,6 +36,7 @@ import fr.pasteque.client.fragments.CustomerSelectDialog;
 import fr.pasteque.client.fragments.ManualInputDialog;
 import fr.pasteque.client.fragments.PaymentFragment;
 import fr.pasteque.client.fragments.ProductScaleDialog;
+import fr.pasteque.client.sync.Outbox;
 import fr.pasteque.client.fragments.TicketFragment;
 import fr.pasteque.client.fragments.ViewPageFragment;
 import fr.pasteque.client.models.*;
@@ -207,14 +208,11 @@ public class Transaction extends POSConnectedTrackedActivity
     }
 
     private Ticket getTicketFromTicketId(String ticketId) throws NotFoundException {
-        List<Receipt> list = Data.Receipt.getReceipts(Pasteque.getAppContext());
-        for (Receipt receipt : list) {
-            Ticket ticket = receipt.getTicket();
-            if (ticket.getId().equals(ticketId)) {
-                return ticket;
-            }
+        Receipt receipt = Data.Receipt.findByTicketId(ticketId);
+        if (receipt == null) {
+            throw new NotFoundException();
         }
-        throw new NotFoundException();
+        return receipt.getTicket();
     }
 
     @Override
@@ -336,6 +334,8 @@ public class Transaction extends POSConnectedTrackedActivity
 
     @Override
     public Receipt onPfSaveReceipt(ArrayList<Payment> p) {
+        // Pending session changes must be on disk before the receipt
+        Data.flushSaves();
         TicketFragment t = getTicketFragment();
         Ticket ticketData = t.getTicketData();
         ticketData.setTicketId(String.valueOf(Data.TicketId.newTicketId()));
@@ -346,10 +346,13 @@ public class Transaction extends POSConnectedTrackedActivity
         if (Configure.getDiscount(mContext)) {
             r.setDiscount(Data.Discount.getADiscount());
         }
-        Data.Receipt.addReceipt(r);
         Data.TicketId.ticketClosed(mContext);
         try {
-            Data.Receipt.save(mContext);
+            Data.Receipt.appendReceipt(mContext, r);
+            Outbox.wake();
+            Data.awaitLoaded(Data.ProductSales);
+            Data.ProductSales.addReceipt(r);
+            Data.ProductSales.saveLater(mContext);
         } catch (IOError e) {
             Log.e(LOG_TAG, "Unable to save receipts", e);
             Error.showError(R.string.err_save_receipts, this);
@@ -406,17 +409,12 @@ public class Transaction extends POSConnectedTrackedActivity
             updatePaymentFragment(tFrag, null);
         }
         disposeTicketFragment(tFrag);
-        try {
-            Data.Session.save(mContext);
-        } catch (IOError ioe) {
-            Log.e(LOG_TAG, "Unable to save session", ioe);
-            Error.showError(R.string.err_save_session, this);
-        }
+        Data.Session.saveLater(mContext);
     }
 
     @Override
     public void onCustomerCreated(Customer customer) {
-        if (Data.Customer.customers.size() == 1 && getActionBar() != null) {
+        if (Data.Customer.getCustomers().size() == 1 && getActionBar() != null) {
             invalidateOptionsMenu();
         }
         onCustomerPicked(customer);
@@ -539,7 +537,7 @@ public class Transaction extends POSConnectedTrackedActivity
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.ab_ticket_input, menu);
 
-        if (Data.Customer.customers.size() == 0) {
+        if (Data.Customer.getCustomers().size() == 0) {
             menu.findItem(R.id.ab_menu_customer_list).setEnabled(false);
         }
         User cashier = Data.Session.currentSession(mContext).getUser();
@@ -748,11 +746,10 @@ public class Transaction extends POSConnectedTrackedActivity
         }
 
         // Is it a customer card ?
-        for (Customer c : Data.Customer.customers) {
-            if (code.equals(c.getCard())) {
-                onCustomerPicked(c);
-                return;
-            }
+        Customer customer = Data.Customer.findByCard(code);
+        if (customer != null) {
+            onCustomerPicked(customer);
+            return;
         }
         // Is it a product ?
         Catalog cat = Data.Catalog.catalog(mContext);
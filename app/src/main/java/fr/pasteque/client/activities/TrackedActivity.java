@@ -21,6 +21,7 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
+import fr.pasteque.client.data.Data;
 import fr.pasteque.client.utils.Error;
 
 public class TrackedActivity extends FragmentActivity {
@@ -64,6 +65,7 @@ public class TrackedActivity extends FragmentActivity {
     public void onPause() {
         super.onPause();
         this.inFront = false;
+        Data.flushSaves();
     }
 
     public boolean isFront() {
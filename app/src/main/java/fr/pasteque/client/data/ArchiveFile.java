@@ -0,0 +1,349 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import fr.pasteque.client.models.Cash;
+import fr.pasteque.client.models.Receipt;
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StreamCorruptedException;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cash archive file, receipts are stored in gzipped chunks
+ * that can be read one at a time.
+ *
+ * Layout, all integers big endian:
+ * <pre>
+ * header   magic, version, chunk count, first unsent chunk, cash length
+ * index    chunk length, receipt count and CRC32 for each chunk
+ * cash     gzipped JSON of the cash
+ * chunks   gzipped JSON array of receipts each
+ * </pre>
+ * The first unsent chunk is updated in place as chunks are sent.
+ * A chunk is checked against its CRC32 when read.
+ */
+public class ArchiveFile {
+
+    static final int MAGIC = 0x50514152; // PQAR
+    static final int VERSION = 2;
+    private static final int HEADER_SIZE = 5 * 4;
+    private static final int FIRST_UNSENT_POS = 3 * 4;
+    private static final int INDEX_ENTRY_SIZE = 3 * 4;
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final Type RECEIPTS_TYPE = new TypeToken<List<Receipt>>() {}.getType();
+
+    private final File file;
+    private final int[] chunkLengths;
+    private final int[] chunkReceipts;
+    private final int[] chunkCrcs;
+    private final long[] chunkPositions;
+    private int firstUnsent;
+    private Cash cash;
+
+    private ArchiveFile(File file, DataInputStream in) throws IOException {
+        this.file = file;
+        if (in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("Not an archive file");
+        }
+        if (in.readInt() != VERSION) {
+            throw new StreamCorruptedException("Unsupported archive version");
+        }
+        int chunkCount = in.readInt();
+        this.firstUnsent = in.readInt();
+        int cashLength = in.readInt();
+        if (chunkCount < 0 || cashLength < 0) {
+            throw new StreamCorruptedException("Corrupted archive header");
+        }
+        this.chunkLengths = new int[chunkCount];
+        this.chunkReceipts = new int[chunkCount];
+        this.chunkCrcs = new int[chunkCount];
+        this.chunkPositions = new long[chunkCount];
+        long position = HEADER_SIZE + (long) INDEX_ENTRY_SIZE * chunkCount + cashLength;
+        for (int i = 0; i < chunkCount; i++) {
+            this.chunkLengths[i] = in.readInt();
+            this.chunkReceipts[i] = in.readInt();
+            this.chunkCrcs[i] = in.readInt();
+            this.chunkPositions[i] = position;
+            position += this.chunkLengths[i];
+        }
+        if (position != file.length()) {
+            throw new StreamCorruptedException("Archive size mismatch");
+        }
+        byte[] cashBytes = new byte[cashLength];
+        in.readFully(cashBytes);
+        this.cash = (Cash) read(cashBytes, Cash.class);
+    }
+
+    /** @return true if the file starts like a chunked archive */
+    public static boolean isArchive(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return file.length() >= HEADER_SIZE && in.readInt() == MAGIC;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Read the header, index and cash of an archive.
+     * Receipts are read by chunk with {@link #readChunk(int)}.
+     */
+    public static ArchiveFile open(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return new ArchiveFile(file, in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write an archive to a temporary sibling of file,
+     * then rename it over file once synced.
+     */
+    public static void write(File file, Cash cash, List<Receipt> receipts,
+                             int chunkSize) throws IOException {
+        int chunkCount = (receipts.size() + chunkSize - 1) / chunkSize;
+        File tmp = tmpFile(file);
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            byte[] cashBytes = compress(cash, Cash.class);
+            int[] lengths = new int[chunkCount];
+            int[] counts = new int[chunkCount];
+            int[] crcs = new int[chunkCount];
+            out.seek(HEADER_SIZE + (long) INDEX_ENTRY_SIZE * chunkCount);
+            out.write(cashBytes);
+            for (int i = 0; i < chunkCount; i++) {
+                List<Receipt> chunk = receipts.subList(i * chunkSize,
+                        Math.min(receipts.size(), (i + 1) * chunkSize));
+                byte[] bytes = compress(chunk, RECEIPTS_TYPE);
+                out.write(bytes);
+                lengths[i] = bytes.length;
+                counts[i] = chunk.size();
+                crcs[i] = crc(bytes);
+            }
+            writeHeader(out, 0, cashBytes.length, lengths, counts, crcs);
+            out.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeQuietly(out);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+        rename(tmp, file);
+    }
+
+    public Cash getCash() {
+        return this.cash;
+    }
+
+    public int getChunkCount() {
+        return this.chunkLengths.length;
+    }
+
+    /** @return index of the first chunk not sent yet */
+    public int getFirstUnsentChunk() {
+        return this.firstUnsent;
+    }
+
+    /** @return number of receipts in chunks not sent yet */
+    public int getUnsentReceiptCount() {
+        int count = 0;
+        for (int i = this.firstUnsent; i < this.chunkReceipts.length; i++) {
+            count += this.chunkReceipts[i];
+        }
+        return count;
+    }
+
+    /**
+     * Read the receipts of one chunk only.
+     * @throws StreamCorruptedException if the chunk does not match its CRC
+     */
+    public List<Receipt> readChunk(int index) throws IOException {
+        byte[] bytes = new byte[this.chunkLengths[index]];
+        RandomAccessFile in = new RandomAccessFile(this.file, "r");
+        try {
+            in.seek(this.chunkPositions[index]);
+            in.readFully(bytes);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        if (crc(bytes) != this.chunkCrcs[index]) {
+            throw new StreamCorruptedException("Checksum mismatch for chunk " + index);
+        }
+        //noinspection unchecked
+        return (List<Receipt>) read(bytes, RECEIPTS_TYPE);
+    }
+
+    /** Record that every chunk up to index is sent, in place */
+    public void markSent(int index) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(this.file, "rw");
+        try {
+            out.seek(FIRST_UNSENT_POS);
+            out.writeInt(index + 1);
+            out.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        this.firstUnsent = index + 1;
+    }
+
+    /** Replace the cash, chunks are copied as is */
+    public void updateCash(Cash cash) throws IOException {
+        byte[] cashBytes = compress(cash, Cash.class);
+        File tmp = tmpFile(this.file);
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        RandomAccessFile in = null;
+        try {
+            out.setLength(0);
+            writeHeader(out, this.firstUnsent, cashBytes.length,
+                    this.chunkLengths, this.chunkReceipts, this.chunkCrcs);
+            out.write(cashBytes);
+            if (this.chunkPositions.length > 0) {
+                in = new RandomAccessFile(this.file, "r");
+                in.seek(this.chunkPositions[0]);
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            out.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeQuietly(out);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        out.close();
+        rename(tmp, this.file);
+        long position = HEADER_SIZE + (long) INDEX_ENTRY_SIZE * this.chunkLengths.length
+                + cashBytes.length;
+        for (int i = 0; i < this.chunkPositions.length; i++) {
+            this.chunkPositions[i] = position;
+            position += this.chunkLengths[i];
+        }
+        this.cash = cash;
+    }
+
+    /**
+     * Write the unsent content as the plain JSON [cash, receipts] array,
+     * one chunk at a time.
+     */
+    public void exportJson(Writer out) throws IOException {
+        Gson gson = DataGson.get();
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        gson.toJson(this.cash, Cash.class, writer);
+        writer.beginArray();
+        for (int i = this.firstUnsent; i < this.getChunkCount(); i++) {
+            for (Receipt r : this.readChunk(i)) {
+                gson.toJson(r, Receipt.class, writer);
+            }
+        }
+        writer.endArray();
+        writer.endArray();
+        writer.flush();
+    }
+
+    private static void writeHeader(RandomAccessFile out, int firstUnsent, int cashLength,
+                                    int[] lengths, int[] counts, int[] crcs)
+            throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(
+                HEADER_SIZE + INDEX_ENTRY_SIZE * lengths.length);
+        DataOutputStream data = new DataOutputStream(header);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(lengths.length);
+        data.writeInt(firstUnsent);
+        data.writeInt(cashLength);
+        for (int i = 0; i < lengths.length; i++) {
+            data.writeInt(lengths[i]);
+            data.writeInt(counts[i]);
+            data.writeInt(crcs[i]);
+        }
+        out.seek(0);
+        out.write(header.toByteArray());
+    }
+
+    private static byte[] compress(Object obj, Type type) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer out = new OutputStreamWriter(new GZIPOutputStream(bytes), Charsets.UTF_8);
+        JsonWriter writer = new JsonWriter(out);
+        DataGson.get().toJson(obj, type, writer);
+        writer.close();
+        return bytes.toByteArray();
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    private static Object read(byte[] bytes, Type type) throws IOException {
+        Reader in = new InputStreamReader(new GZIPInputStream(
+                new ByteArrayInputStream(bytes)), Charsets.UTF_8);
+        try {
+            return DataGson.get().fromJson(new JsonReader(in), type);
+        } catch (JsonParseException e) {
+            throw new StreamCorruptedException(e.getMessage());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static File tmpFile(File file) {
+        return new File(file.getParentFile(), file.getName() + TEMPORARY_SUFFIX);
+    }
+
+    private static void rename(File tmp, File file) throws IOException {
+        if (!tmp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("Could not rename to " + file.getName());
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package fr.pasteque.client.data;
 
 import android.content.Context;
+import android.util.Log;
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
 import fr.pasteque.client.Pasteque;
@@ -29,18 +30,21 @@ import fr.pasteque.client.utils.exception.loadArchiveException;
 import fr.pasteque.client.utils.file.File;
 import fr.pasteque.client.utils.file.InternalFile;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.io.Writer;
 import java.util.List;
 
 /**
- * Stores finalized tickets
+ * Stores finalized tickets, see ArchiveFile for the file layout
  */
 public class CashArchive {
 
     private static final String ARCHIVESDIR = "archives";
     private static final String FILENAME = "tickets.data";
     private static String LOG_TAG = "Pasteque/CashArchive";
+    /** Number of receipts by chunk, and by upload */
+    public static final int CHUNK_SIZE = 10;
 
     /**
      * Create an unique stable id from cash without id.
@@ -51,25 +55,15 @@ public class CashArchive {
     }
 
     protected static void saveArchive(Cash cash, List<Receipt> receipts) throws SaveArchiveException {
-        File file = getFile(cash);
-        JsonArray jsonArray = getJson(cash, receipts);
         try {
-            file.write(jsonArray.toString());
-        } catch (FileNotFoundException e) {
+            ArchiveFile.write(getFile(cash), cash, receipts, CHUNK_SIZE);
+        } catch (IOException e) {
             throw new SaveArchiveException(e);
         }
     }
 
-    private static JsonArray getJson(Cash cash, List<Receipt> receipts) {
-        Gson gson = getGson();
-        JsonParser parser = new JsonParser();
-        JsonArray jsonArray = new JsonArray();
-        jsonArray.add(parser.parse(gson.toJson(cash)));
-        jsonArray.add(parser.parse(gson.toJson(receipts)));
-        return jsonArray;
-    }
-
-    private static Object[] getObjects(File file) throws FileNotFoundException {
+    /** Read a whole archive written as a single JSON array */
+    private static Object[] getLegacyObjects(File file) throws IOException {
         Gson gson = getGson();
         JsonParser parser = new JsonParser();
         Object[] result = new Object[2];
@@ -80,15 +74,39 @@ public class CashArchive {
         return result;
     }
 
+    /** Open an archive, converting it first if it is a single JSON array */
+    @SuppressWarnings("unchecked")
+    private static ArchiveFile open(File file) throws IOException {
+        if (!ArchiveFile.isArchive(file)) {
+            Log.i(LOG_TAG, "Converting archive " + file.getName() + " to chunks");
+            Object[] objs;
+            try {
+                objs = getLegacyObjects(file);
+            } catch (JsonParseException | IllegalStateException e) {
+                throw new StreamCorruptedException(e.getMessage());
+            }
+            ArchiveFile.write(file, (Cash) objs[0], (List<Receipt>) objs[1], CHUNK_SIZE);
+        }
+        return ArchiveFile.open(file);
+    }
+
     private static Gson getGson() {
-        return new GsonBuilder().serializeNulls().create();
+        return DataGson.get();
     }
 
+    /**
+     * Archive the current cash, with the receipts the outbox did not
+     * send yet. Call it once the outbox is idle, see Outbox.whenIdle,
+     * or receipts in flight would be sent again with the archive.
+     */
     public static boolean archiveCurrent()
             throws IOException {
         Context ctx = Pasteque.getAppContext();
+        Cash cash = Data.Cash.currentCash(ctx);
+        List<Receipt> receipts = Data.Receipt.getReceipts(ctx,
+                Data.Outbox.getSentReceipts(cash), Integer.MAX_VALUE);
         try {
-            saveArchive(Data.Cash.currentCash(ctx), Data.Receipt.getReceipts(ctx));
+            saveArchive(cash, receipts);
         } catch (SaveArchiveException e) {
             e.printStackTrace();
             return false;
@@ -102,7 +120,7 @@ public class CashArchive {
 
     public static int getArchiveCount(Context ctx) {
         java.io.File dir = ctx.getDir(ARCHIVESDIR, Context.MODE_PRIVATE);
-        return dir.list().length;
+        return dir.list(File.CURRENT_GENERATIONS).length;
     }
 
     public static boolean deleteArchive(Context ctx, Cash c) {
@@ -110,24 +128,23 @@ public class CashArchive {
         return archive.exists() && archive.delete();
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    public static synchronized void updateArchive(Cash cash,
-                                                  List<Receipt> receipts) throws IOException, SaveArchiveException {
-        saveArchive(cash, receipts);
-    }
-
     /**
-     * Load archive. Cash is array[0], List<Receipt> array[1].
+     * Open an archive. Cash is read right away,
+     * receipts are read chunk by chunk.
      */
-    public static Object[] loadAnArchive() throws loadArchiveException {
+    public static ArchiveFile openAnArchive() throws loadArchiveException {
         try {
-            File file = new InternalFile(ARCHIVESDIR, getAFileArchive());
-            return getObjects(file);
-        } catch (NoArchiveException | FileNotFoundException e) {
+            return open(new InternalFile(ARCHIVESDIR, getAFileArchive()));
+        } catch (NoArchiveException | IOException e) {
             throw new loadArchiveException();
         }
     }
 
+    /** Write the content of an archive as plain JSON */
+    public static void export(String filename, Writer out) throws IOException {
+        open(new InternalFile(ARCHIVESDIR, filename)).exportJson(out);
+    }
+
     public static boolean hasArchives(Context ctx) {
         return getArchiveCount(ctx) > 0;
     }
@@ -143,7 +160,8 @@ public class CashArchive {
     }
 
     public static String getAFileArchive() throws NoArchiveException {
-        String[] file = Pasteque.getAppContext().getDir(ARCHIVESDIR, Context.MODE_PRIVATE).list();
+        String[] file = Pasteque.getAppContext().getDir(ARCHIVESDIR, Context.MODE_PRIVATE)
+                .list(File.CURRENT_GENERATIONS);
         if (file.length > 0) {
             return file[0];
         } else {
@@ -0,0 +1,313 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data;
+
+import fr.pasteque.client.models.Catalog;
+import fr.pasteque.client.models.Category;
+import fr.pasteque.client.models.Product;
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary catalog file.
+ *
+ * Layout, all integers big endian:
+ * <pre>
+ * header       magic, version, string count, category count,
+ *              product count, member count, barcode count, id index capacity
+ * strings      int offsets[string count + 1] then UTF-8 bytes
+ * categories   CATEGORY_RECORD_SIZE bytes each, parents before children
+ * members      int product index for each category membership
+ * products     PRODUCT_RECORD_SIZE bytes each
+ * id index     open addressing table of product indexes, hashed on id
+ * barcodes     product indexes sorted by barcode
+ * </pre>
+ * Strings are referenced by their index in the string table, -1 for null.
+ */
+public class CatalogFile {
+
+    static final int MAGIC = 0x50514354; // PQCT
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8 * 4;
+    static final int NONE = -1;
+
+    // Category record: id, label, parent, first member, member count, flags
+    static final int CATEGORY_RECORD_SIZE = 6 * 4;
+    static final int CAT_ID = 0;
+    static final int CAT_LABEL = 4;
+    static final int CAT_PARENT = 8;
+    static final int CAT_FIRST_MEMBER = 12;
+    static final int CAT_MEMBER_COUNT = 16;
+    static final int CAT_FLAGS = 20;
+
+    // Product record: id, label, barcode, tax id, price, tax rate, discount rate, flags, padding
+    static final int PRODUCT_RECORD_SIZE = 4 * 4 + 3 * 8 + 2 * 4;
+    static final int PRD_ID = 0;
+    static final int PRD_LABEL = 4;
+    static final int PRD_BARCODE = 8;
+    static final int PRD_TAX_ID = 12;
+    static final int PRD_PRICE = 16;
+    static final int PRD_TAX_RATE = 24;
+    static final int PRD_DISCOUNT_RATE = 32;
+    static final int PRD_FLAGS = 40;
+
+    static final int FLAG_HAS_IMAGE = 1;
+    static final int FLAG_SCALED = 2;
+    static final int FLAG_DISCOUNT_ENABLED = 4;
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * Map a catalog file. Products are read from the file when requested.
+     * @throws java.io.FileNotFoundException if the file does not exist
+     * @throws StreamCorruptedException if the file is not a valid catalog
+     */
+    public static MappedCatalog open(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedCatalog(buffer);
+        } finally {
+            // The mapping stays valid once the channel is closed
+            IOUtils.closeQuietly(fis);
+        }
+    }
+
+    /**
+     * Write the catalog to a temporary sibling of file,
+     * then rename it over file once synced.
+     */
+    public static void write(Catalog catalog, File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + TEMPORARY_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            new Writer(catalog).write(out);
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeQuietly(fos);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw e;
+        }
+        fos.close();
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not rename to " + file.getName());
+        }
+    }
+
+    static int hash(String s) {
+        int h = s.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    static int idIndexCapacity(int productCount) {
+        int capacity = 16;
+        while (capacity < productCount * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /** Flatten a catalog into the binary layout */
+    private static class Writer {
+
+        private final Catalog catalog;
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final List<Category> categories = new ArrayList<>();
+        private final List<Integer> parents = new ArrayList<>();
+        private final Map<String, Integer> productIndexes = new HashMap<>();
+        private final List<Product> products = new ArrayList<>();
+
+        private Writer(Catalog catalog) {
+            this.catalog = catalog;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            for (Category root : this.catalog.getRootCategories()) {
+                this.addCategory(root, NONE);
+            }
+            // Category products first, then products only reachable by id
+            List<int[]> members = new ArrayList<>();
+            int memberCount = 0;
+            for (Category c : this.categories) {
+                List<Product> catProducts = this.catalog.getProducts(c);
+                int[] indexes = new int[catProducts == null ? 0 : catProducts.size()];
+                for (int i = 0; i < indexes.length; i++) {
+                    indexes[i] = this.addProduct(catProducts.get(i));
+                }
+                members.add(indexes);
+                memberCount += indexes.length;
+            }
+            for (Product p : this.catalog.getAllProducts()) {
+                this.addProduct(p);
+            }
+            List<Integer> barcodes = this.sortedBarcodes();
+            int capacity = idIndexCapacity(this.products.size());
+            // Register every string before writing the table
+            for (Category c : this.categories) {
+                this.string(c.getId());
+                this.string(c.getLabel());
+            }
+            for (Product p : this.products) {
+                this.string(p.getId());
+                this.string(p.getLabel());
+                this.string(p.getBarcode());
+                this.string(p.getTaxId());
+            }
+            // Header
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(this.strings.size());
+            out.writeInt(this.categories.size());
+            out.writeInt(this.products.size());
+            out.writeInt(memberCount);
+            out.writeInt(barcodes.size());
+            out.writeInt(capacity);
+            // Strings
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            out.writeInt(0);
+            for (String s : this.strings.keySet()) {
+                byte[] bytes = s.getBytes(Charsets.UTF_8);
+                data.write(bytes, 0, bytes.length);
+                out.writeInt(data.size());
+            }
+            data.writeTo(out);
+            // Categories
+            int firstMember = 0;
+            for (int i = 0; i < this.categories.size(); i++) {
+                Category c = this.categories.get(i);
+                out.writeInt(this.string(c.getId()));
+                out.writeInt(this.string(c.getLabel()));
+                out.writeInt(this.parents.get(i));
+                out.writeInt(firstMember);
+                out.writeInt(members.get(i).length);
+                out.writeInt(c.hasImage() ? FLAG_HAS_IMAGE : 0);
+                firstMember += members.get(i).length;
+            }
+            // Members
+            for (int[] indexes : members) {
+                for (int index : indexes) {
+                    out.writeInt(index);
+                }
+            }
+            // Products
+            for (Product p : this.products) {
+                out.writeInt(this.string(p.getId()));
+                out.writeInt(this.string(p.getLabel()));
+                out.writeInt(this.string(p.getBarcode()));
+                out.writeInt(this.string(p.getTaxId()));
+                out.writeDouble(p.getPrice(null));
+                out.writeDouble(p.getTaxRate());
+                out.writeDouble(p.getDiscountRate());
+                int flags = (p.hasImage() ? FLAG_HAS_IMAGE : 0)
+                        | (p.isScaled() ? FLAG_SCALED : 0)
+                        | (p.isDiscountRateEnabled() ? FLAG_DISCOUNT_ENABLED : 0);
+                out.writeInt(flags);
+                out.writeInt(0);
+            }
+            // Id index
+            int[] slots = new int[capacity];
+            java.util.Arrays.fill(slots, NONE);
+            for (int i = 0; i < this.products.size(); i++) {
+                int slot = hash(this.products.get(i).getId()) & (capacity - 1);
+                while (slots[slot] != NONE) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                slots[slot] = i;
+            }
+            for (int slot : slots) {
+                out.writeInt(slot);
+            }
+            // Barcodes
+            for (int index : barcodes) {
+                out.writeInt(index);
+            }
+        }
+
+        private void addCategory(Category c, int parent) {
+            int index = this.categories.size();
+            this.categories.add(c);
+            this.parents.add(parent);
+            for (Category sub : c.getSubcategories()) {
+                this.addCategory(sub, index);
+            }
+        }
+
+        private int addProduct(Product p) {
+            Integer index = this.productIndexes.get(p.getId());
+            if (index == null) {
+                index = this.products.size();
+                this.products.add(p);
+                this.productIndexes.put(p.getId(), index);
+            }
+            return index;
+        }
+
+        /** @return indexes of the products the catalog resolves barcodes to */
+        private List<Integer> sortedBarcodes() {
+            List<Integer> result = new ArrayList<>();
+            for (int i = 0; i < this.products.size(); i++) {
+                Product p = this.products.get(i);
+                if (p.getBarcode() != null
+                        && p.equals(this.catalog.getProductByBarcode(p.getBarcode()))) {
+                    result.add(i);
+                }
+            }
+            Collections.sort(result, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    return products.get(lhs).getBarcode().compareTo(products.get(rhs).getBarcode());
+                }
+            });
+            return result;
+        }
+
+        private int string(String s) {
+            if (s == null) {
+                return NONE;
+            }
+            Integer index = this.strings.get(s);
+            if (index == null) {
+                index = this.strings.size();
+                this.strings.put(s, index);
+            }
+            return index;
+        }
+    }
+}
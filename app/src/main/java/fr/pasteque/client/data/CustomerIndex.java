@@ -0,0 +1,182 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data;
+
+import fr.pasteque.client.models.Customer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lookup index of customers by card and by name or phone.
+ * <p>Each customer has a search key made of its first and last names
+ * folded like product labels, and the digits of its phone. A filter
+ * matches the customers whose key contains the folded query. Queries
+ * of at least three characters only check the customers having every
+ * trigram of the query, shorter ones check every key.
+ */
+public class CustomerIndex {
+
+    private static final int GRAM = 3;
+    /** Characters ignored in a phone number query */
+    private static final String PHONE_SEPARATORS = " .-/+()";
+
+    private final List<Customer> customers = new ArrayList<>();
+    private final List<String> keys = new ArrayList<>();
+    private final Map<String, Customer> cards = new HashMap<>();
+    /** Positions of the customers by trigram, the first int is the count */
+    private final Map<Long, int[]> grams = new HashMap<>();
+
+    public CustomerIndex() {
+    }
+
+    public CustomerIndex(Collection<Customer> customers) {
+        for (Customer c : customers) {
+            this.add(c);
+        }
+    }
+
+    /** Index a customer after the ones already indexed */
+    public synchronized void add(Customer c) {
+        if (c == null) {
+            return;
+        }
+        int position = this.customers.size();
+        String key = key(c);
+        this.customers.add(c);
+        this.keys.add(key);
+        String card = c.getCard();
+        if (card != null && !card.isEmpty() && !this.cards.containsKey(card)) {
+            // The first one listed wins
+            this.cards.put(card, c);
+        }
+        for (int i = 0; i + GRAM <= key.length(); i++) {
+            Long gram = gram(key, i);
+            int[] list = this.grams.get(gram);
+            if (list == null) {
+                list = new int[4];
+            } else if (list[list[0]] == position) {
+                // Repeated in the key
+                continue;
+            } else if (list[0] + 1 == list.length) {
+                list = Arrays.copyOf(list, list.length * 2);
+            }
+            list[0]++;
+            list[list[0]] = position;
+            this.grams.put(gram, list);
+        }
+    }
+
+    /** @return the first customer with this card, null if none */
+    public synchronized Customer findByCard(String card) {
+        return card == null ? null : this.cards.get(card);
+    }
+
+    /**
+     * Find the customers whose first name, last name or phone
+     * contains the query, ignoring case and accents. A query made of
+     * digits and separators is matched against the phone digits only.
+     * @return matching customers, in the order they were added
+     */
+    public synchronized List<Customer> filter(String query) {
+        String q = phoneDigits(query);
+        if (q == null) {
+            q = ProductIndex.fold(query.trim());
+        }
+        List<Customer> result = new ArrayList<>();
+        if (q.length() < GRAM) {
+            for (int i = 0; i < this.keys.size(); i++) {
+                if (this.keys.get(i).contains(q)) {
+                    result.add(this.customers.get(i));
+                }
+            }
+            return result;
+        }
+        // Check the customers of the rarest trigram
+        int[] candidates = null;
+        for (int i = 0; i + GRAM <= q.length(); i++) {
+            int[] list = this.grams.get(gram(q, i));
+            if (list == null) {
+                return result;
+            }
+            if (candidates == null || list[0] < candidates[0]) {
+                candidates = list;
+            }
+        }
+        for (int i = 1; i <= candidates[0]; i++) {
+            int position = candidates[i];
+            if (this.keys.get(position).contains(q)) {
+                result.add(this.customers.get(position));
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return this.customers.size();
+    }
+
+    /** @return the folded names then the digits of the phone */
+    static String key(Customer c) {
+        StringBuilder key = new StringBuilder();
+        if (c.getFirstName() != null) {
+            key.append(ProductIndex.fold(c.getFirstName()));
+        }
+        key.append(' ');
+        if (c.getLastName() != null) {
+            key.append(ProductIndex.fold(c.getLastName()));
+        }
+        String phone = c.getPhone1();
+        if (phone != null) {
+            key.append('\n');
+            for (int i = 0; i < phone.length(); i++) {
+                char ch = phone.charAt(i);
+                if (ch >= '0' && ch <= '9') {
+                    key.append(ch);
+                }
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the digits of a query written like a phone number,
+     * null if it holds anything else than digits and separators
+     */
+    static String phoneDigits(String query) {
+        StringBuilder digits = new StringBuilder();
+        for (int i = 0; i < query.length(); i++) {
+            char ch = query.charAt(i);
+            if (ch >= '0' && ch <= '9') {
+                digits.append(ch);
+            } else if (PHONE_SEPARATORS.indexOf(ch) == -1) {
+                return null;
+            }
+        }
+        return digits.length() == 0 ? null : digits.toString();
+    }
+
+    private static Long gram(String s, int start) {
+        return ((long) s.charAt(start) << 32) | ((long) s.charAt(start + 1) << 16)
+                | s.charAt(start + 2);
+    }
+}
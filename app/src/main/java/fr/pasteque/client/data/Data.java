@@ -18,15 +18,11 @@
 package fr.pasteque.client.data;
 
 import android.content.Context;
-import android.util.Log;
 import fr.pasteque.client.CloseCash;
 import fr.pasteque.client.Configure;
 import fr.pasteque.client.data.DataSavable.*;
 import fr.pasteque.client.data.DataSavable.interfaces.DataSavable;
-import fr.pasteque.client.utils.exception.DataCorruptedException;
-import fr.pasteque.client.utils.file.ExternalFile;
 
-import java.io.IOError;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -35,8 +31,6 @@ import java.util.List;
  */
 public class Data {
 
-    private static final String LOG_TAG = "Pasteque/Data";
-
     public static CatalogData Catalog = new CatalogData();
     public static CashData Cash = new CashData();
     public static CashRegisterData CashRegister = new CashRegisterData();
@@ -44,18 +38,24 @@ public class Data {
     public static CrashData Crash = new CrashData();
     public static CustomerData Customer = new CustomerData();
     public static DiscountData Discount = new DiscountData();
+    public static ImageCacheData ImageCache = new ImageCacheData();
     public static LoginData Login = new LoginData();
+    public static OutboxData Outbox = new OutboxData();
     public static PaymentModeData PaymentMode = new PaymentModeData();
     public static PlaceData Place = new PlaceData();
+    public static ProductSalesData ProductSales = new ProductSalesData();
     public static ReceiptData Receipt = new ReceiptData();
     public static SessionData Session = new SessionData();
     public static TariffAreaData TariffArea = new TariffAreaData();
     public static UserData User = new UserData();
     public static StockData Stock = new StockData();
+    public static SyncMarkData SyncMark = new SyncMarkData();
     public static TaxData Tax = new TaxData();
     public static TicketIdData TicketId = new TicketIdData();
 
-    private static boolean loadedSuccesfully = true;
+    private static volatile boolean loadedSuccesfully = true;
+    private static volatile DataLoader loader;
+    private static final DataSaver saver = new DataSaver();
 
     private static List<DataSavable> getDataToLoad() {
         ArrayList<DataSavable> list = new ArrayList<>();
@@ -66,12 +66,16 @@ public class Data {
         list.add(Crash);
         list.add(Customer);
         list.add(Discount);
+        list.add(ImageCache);
         list.add(Login);
+        list.add(Outbox);
         list.add(PaymentMode);
         list.add(Place);
+        list.add(ProductSales);
         list.add(Receipt);
         list.add(Session);
         list.add(Stock);
+        list.add(SyncMark);
         list.add(TariffArea);
         list.add(User);
         list.add(TicketId);
@@ -79,38 +83,78 @@ public class Data {
         return list;
     }
 
+    /**
+     * Stores that are not needed to show the first screen.
+     * They are loaded in background and on first access.
+     */
+    private static boolean isLazy(DataSavable data) {
+        return data == Crash || data == Customer || data == Place
+                || data == ProductSales || data == Stock;
+    }
+
+    /**
+     * Load every store concurrently and wait for the ones needed at startup.
+     * No store reads another one while loading, so none declares dependencies.
+     */
     public static boolean loadAll(Context ctx) {
-        Data.loadedSuccesfully = true;
-        List<DataSavable> list = getDataToLoad();
-        for (DataSavable data: list) {
-            try {
-                data.load(ctx);
-                Log.i(LOG_TAG, "Correctly loaded: " + data.getClass().getName());
-            } catch (DataCorruptedException e) {
-                if (data.onLoadingFailed(e)) {
-                    Data.loadedSuccesfully = false;
-                }
-                Log.d(LOG_TAG, "Warning: " + data.getClass().getName());
-                Log.d(LOG_TAG, e.inspectError());
-            } catch (IOError e) {
-                if (data.onLoadingError(e)) {
-                    Data.loadedSuccesfully = false;
-                }
-                Log.e(LOG_TAG, "Fatal IO Error: " + data.getClass().getName(), e);
-            }
+        DataLoader loader = new DataLoader(ctx);
+        for (DataSavable data : getDataToLoad()) {
+            loader.add(data, isLazy(data));
         }
+        Data.loader = loader;
+        Data.loadedSuccesfully = loader.start();
         return Data.loadedSuccesfully;
     }
 
+    /**
+     * Wait until the store is loaded by loadAll,
+     * load it now if it was not started yet.
+     */
+    public static void awaitLoaded(DataSavable data) {
+        DataLoader loader = Data.loader;
+        if (loader != null) {
+            loader.await(data);
+        }
+    }
+
     public static boolean loadingSuccessfull() {
-        return Data.loadedSuccesfully;
+        DataLoader loader = Data.loader;
+        return Data.loadedSuccesfully
+                && (loader == null || loader.lazyLoadingSuccessfull());
     }
 
     public static void dataUpdated() {
+        DataLoader loader = Data.loader;
+        if (loader != null) {
+            // Stale lazy loads must not run after fresh data is in place
+            loader.awaitAll();
+            Data.loader = null;
+        }
         Data.loadedSuccesfully = true;
     }
 
+    /**
+     * Save the store in background, along with the other changes
+     * made within DataSaver delay.
+     */
+    public static void saveLater(Context ctx, DataSavable data) {
+        saver.saveLater(ctx, data);
+    }
+
+    /** Write now stores waiting to be saved in background */
+    public static void flushSaves() {
+        saver.flush();
+    }
+
+    public static DataSaver getSaver() {
+        return saver;
+    }
+
     public static boolean dataLoaded(Context ctx) {
+        awaitLoaded(Data.User);
+        awaitLoaded(Data.Catalog);
+        awaitLoaded(Data.PaymentMode);
+        awaitLoaded(Data.Cash);
         return Data.User.users(ctx) != null && Data.User.users(ctx).size() > 0
                 && Data.Catalog.catalog(ctx) != null
                 && Data.Catalog.catalog(ctx).getRootCategories().size() > 0
@@ -121,7 +165,7 @@ public class Data {
     }
 
     public static boolean hasCashOpened(Context ctx) {
-        return (Data.Receipt.getReceipts(ctx).size() > 0)
+        return Data.Receipt.hasReceipts()
                 || Data.Cash.dirty;
     }
 
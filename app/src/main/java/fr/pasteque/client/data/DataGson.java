@@ -0,0 +1,88 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import fr.pasteque.client.models.Cash;
+import fr.pasteque.client.models.Customer;
+import fr.pasteque.client.models.Payment;
+import fr.pasteque.client.models.Product;
+import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.models.Session;
+import fr.pasteque.client.models.Ticket;
+import fr.pasteque.client.models.TicketLine;
+
+/**
+ * Gson instance shared by the local stores.
+ * Gson is thread-safe and caches its adapters, so it is built once.
+ * Output is compact, the hot models use hand-written adapters.
+ */
+public class DataGson {
+
+    private static final Gson gson = newBuilder().create();
+
+    static {
+        // Resolve the adapters once instead of on first save
+        for (Class<?> c : new Class<?>[] {Receipt.class, Session.class, Cash.class}) {
+            gson.getAdapter(c);
+        }
+    }
+
+    public static Gson get() {
+        return gson;
+    }
+
+    public static GsonBuilder newBuilder() {
+        return new GsonBuilder()
+                .serializeNulls()
+                .disableHtmlEscaping()
+                .enableComplexMapKeySerialization()
+                .registerTypeAdapterFactory(new ModelAdapterFactory());
+    }
+
+    /** Adapters for the exact model classes, subclasses keep reflection */
+    private static class ModelAdapterFactory implements TypeAdapterFactory {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            Class<? super T> raw = type.getRawType();
+            TypeAdapter<?> adapter;
+            if (raw == Receipt.class) {
+                adapter = new Receipt.GsonAdapter(gson);
+            } else if (raw == Ticket.class) {
+                adapter = new Ticket.GsonAdapter(gson);
+            } else if (raw == TicketLine.class) {
+                adapter = new TicketLine.GsonAdapter(gson);
+            } else if (raw == Product.class) {
+                adapter = new Product.GsonAdapter();
+            } else if (raw == Payment.class) {
+                adapter = new Payment.GsonAdapter(gson);
+            } else if (raw == Customer.class) {
+                adapter = new Customer.GsonAdapter();
+            } else {
+                return null;
+            }
+            return (TypeAdapter<T>) adapter;
+        }
+    }
+}
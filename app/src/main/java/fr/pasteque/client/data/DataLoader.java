@@ -0,0 +1,210 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data;
+
+import android.content.Context;
+import android.util.Log;
+import fr.pasteque.client.data.DataSavable.interfaces.DataSavable;
+import fr.pasteque.client.utils.exception.DataCorruptedException;
+
+import java.io.IOError;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads DataSavable stores concurrently on a bounded pool.
+ * Eager stores are waited for by {@link #start()}. Lazy stores are queued
+ * after them and loaded either by the pool or by the first
+ * {@link #await(DataSavable)}, whichever comes first.
+ */
+public class DataLoader {
+
+    private static final String LOG_TAG = "Pasteque/DataLoader";
+    private static final int POOL_SIZE = Math.max(2,
+            Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /** Store loaded by the thread, to let it save while loading */
+    private static final ThreadLocal<DataSavable> loading = new ThreadLocal<>();
+
+    private final Context ctx;
+    private final List<FutureTask<Boolean>> eager = new ArrayList<>();
+    private final List<FutureTask<Boolean>> lazy = new ArrayList<>();
+    private final Map<DataSavable, FutureTask<Boolean>> tasks = new ConcurrentHashMap<>();
+    private final Map<DataSavable, Long> timings = new ConcurrentHashMap<>();
+    private volatile boolean lazySuccess = true;
+
+    public DataLoader(Context ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * Register a store to load.
+     * @param data the store
+     * @param lazy <code>true</code> to not wait for it in start()
+     * @param dependencies stores that must be loaded before this one
+     */
+    public void add(final DataSavable data, final boolean lazy,
+                    final DataSavable... dependencies) {
+        FutureTask<Boolean> task = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                for (DataSavable dependency : dependencies) {
+                    DataLoader.this.await(dependency);
+                }
+                boolean success = DataLoader.this.load(data);
+                if (lazy && !success) {
+                    DataLoader.this.lazySuccess = false;
+                }
+                return success;
+            }
+        });
+        this.tasks.put(data, task);
+        if (lazy) {
+            this.lazy.add(task);
+        } else {
+            this.eager.add(task);
+        }
+    }
+
+    /**
+     * Start loading every store and wait for the eager ones.
+     * @return <code>false</code> if an eager store asks the user to update data
+     */
+    public boolean start() {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DataLoader");
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        });
+        for (FutureTask<Boolean> task : this.eager) {
+            executor.execute(task);
+        }
+        for (FutureTask<Boolean> task : this.lazy) {
+            executor.execute(task);
+        }
+        // Already queued tasks still run, threads stop once the queue is empty
+        executor.shutdown();
+        boolean success = true;
+        for (FutureTask<Boolean> task : this.eager) {
+            success &= get(task);
+        }
+        Log.i(LOG_TAG, "Eager stores loaded in " + millis(start) + "ms");
+        return success;
+    }
+
+    /**
+     * Wait until a store is loaded. A lazy store that is still queued
+     * is loaded right away on the calling thread.
+     */
+    public void await(DataSavable data) {
+        if (loading.get() == data) {
+            // The store is saving from its own load, do not wait for ourselves
+            return;
+        }
+        FutureTask<Boolean> task = this.tasks.get(data);
+        if (task == null) {
+            return;
+        }
+        // No-op if the pool already started or finished it
+        task.run();
+        get(task);
+    }
+
+    /** Wait until every store is loaded */
+    public void awaitAll() {
+        for (DataSavable data : this.tasks.keySet()) {
+            this.await(data);
+        }
+    }
+
+    /** @return <code>false</code> if a lazy store asked the user to update data */
+    public boolean lazyLoadingSuccessfull() {
+        return this.lazySuccess;
+    }
+
+    /** @return load time in milliseconds of each finished store */
+    public Map<DataSavable, Long> getTimings() {
+        return this.timings;
+    }
+
+    private boolean load(DataSavable data) {
+        long start = System.nanoTime();
+        String name = data.getClass().getName();
+        // Restored after, a lazy store may be loaded from another one's load
+        DataSavable previous = loading.get();
+        loading.set(data);
+        try {
+            data.load(this.ctx);
+            Log.i(LOG_TAG, "Correctly loaded: " + name);
+            return true;
+        } catch (DataCorruptedException e) {
+            Log.d(LOG_TAG, "Warning: " + name);
+            Log.d(LOG_TAG, e.inspectError());
+            return !data.onLoadingFailed(e);
+        } catch (IOError e) {
+            Log.e(LOG_TAG, "Fatal IO Error: " + name, e);
+            return !data.onLoadingError(e);
+        } finally {
+            loading.set(previous);
+            long time = millis(start);
+            this.timings.put(data, time);
+            Log.i(LOG_TAG, name + " loaded in " + time + "ms");
+        }
+    }
+
+    private static boolean get(FutureTask<Boolean> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static long millis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+}
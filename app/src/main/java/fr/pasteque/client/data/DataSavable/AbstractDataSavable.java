@@ -1,6 +1,7 @@
 package fr.pasteque.client.data.DataSavable;
 
 import android.content.Context;
+import fr.pasteque.client.data.Data;
 import fr.pasteque.client.data.DataSavable.interfaces.DataSavable;
 import fr.pasteque.client.utils.exception.DataCorruptedException;
 
@@ -43,6 +44,16 @@ public abstract class AbstractDataSavable implements DataSavable {
      */
     abstract protected void recoverObjects(List<Object> objs) throws DataCorruptedException;
 
+    /**
+     * Mark the store as modified. It is written in background,
+     * once for every change made in a short delay.
+     * Use Data.flushSaves() to write it right away.
+     * @param ctx the application's context
+     */
+    public void saveLater(Context ctx) {
+        Data.saveLater(ctx, this);
+    }
+
     /**
      * This function has been created for a simple load without errors, still it call printStackStrace()
      * Protected because it is not a good practice
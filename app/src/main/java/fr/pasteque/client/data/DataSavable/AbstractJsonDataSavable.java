@@ -3,14 +3,23 @@ package fr.pasteque.client.data.DataSavable;
 import android.content.Context;
 import android.util.Log;
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import fr.pasteque.client.Pasteque;
+import fr.pasteque.client.data.Data;
+import fr.pasteque.client.data.DataGson;
+import fr.pasteque.client.data.DataSaver;
 import fr.pasteque.client.utils.file.ExternalFile;
 import fr.pasteque.client.utils.file.File;
 import fr.pasteque.client.utils.exception.DataCorruptedException;
 import fr.pasteque.client.utils.file.InternalFile;
+import org.apache.commons.io.IOUtils;
 
 import java.io.FileNotFoundException;
 import java.io.IOError;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.List;
@@ -19,19 +28,94 @@ import java.util.List;
  * Created by nsvir on 05/10/15.
  * n.svirchevsky@gmail.com
  */
-public abstract class AbstractJsonDataSavable extends AbstractDataSavable {
+public abstract class AbstractJsonDataSavable extends AbstractDataSavable
+        implements DataSaver.SnapshotSavable {
 
     private static final String TAG_LOG = "pasteque/json_data";
     private static final String JSON_DIRECTORY = "json";
     protected File file = new InternalFile(JSON_DIRECTORY, getFileName());
+    /** Held while writing, not to hold the store while a snapshot is written */
+    private final Object writeLock = new Object();
+    /** Number of states taken, to never write an older state over a newer one */
+    private long stateCount;
+    private long writtenState;
+
+    /** Content of the file, taken under the lock of the store */
+    private static class Snapshot {
+        final long state;
+        final String json;
+
+        Snapshot(long state, String json) {
+            this.state = state;
+            this.json = json;
+        }
+    }
 
     protected void setFile(File file) {
         this.file = file;
     }
 
     @Override
-    public void save(Context ctx) throws IOError {
-        this.save(ctx, getObjectList(), this.file);
+    public synchronized void save(Context ctx) throws IOError {
+        // Do not let a pending background load overwrite what is saved
+        Data.awaitLoaded(this);
+        long state = ++this.stateCount;
+        synchronized (this.writeLock) {
+            if (this.save(ctx, getObjectList(), this.file)) {
+                this.onSaved(ctx);
+            }
+            this.writtenState = state;
+        }
+    }
+
+    /**
+     * Called once save wrote the file, still holding the store
+     * and no snapshot being written.
+     */
+    protected void onSaved(Context ctx) {
+    }
+
+    /** @return the content of the file, written by saveSnapshot */
+    @Override
+    public synchronized Object takeSnapshot() {
+        Data.awaitLoaded(this);
+        StringWriter out = new StringWriter();
+        try {
+            this.writeJson(getObjectList(), out);
+        } catch (JsonIOException | IOException e) {
+            throw new IOError(e);
+        }
+        return new Snapshot(++this.stateCount, out.toString());
+    }
+
+    @Override
+    public void saveSnapshot(Context ctx, Object snapshot) throws IOError {
+        Snapshot s = (Snapshot) snapshot;
+        synchronized (this.writeLock) {
+            if (s.state < this.writtenState) {
+                // Saved meanwhile
+                return;
+            }
+            this.writeSnapshot(s.json);
+            this.writtenState = s.state;
+        }
+    }
+
+    private void writeSnapshot(String snapshot) {
+        Writer out = null;
+        try {
+            out = this.file.openWriter();
+            out.write(snapshot);
+            out.flush();
+            this.file.commit(out);
+            out = null;
+        } catch (IOException | UnsupportedOperationException e) {
+            throw new IOError(e);
+        } finally {
+            if (out != null) {
+                this.file.abort(out);
+            }
+        }
     }
 
     public static String getDirectory() {
@@ -44,21 +128,23 @@ public abstract class AbstractJsonDataSavable extends AbstractDataSavable {
         List<Type> classes = getClassList();
         List<Object> result = new ArrayList<>();
         Gson gson = getGson();
-        JsonParser parser = new JsonParser();
-        String stringFile = null;
+        JsonReader reader = null;
         try {
-            stringFile = file.read();
-            JsonElement tradeElement = parser.parse(stringFile);
-            JsonArray array = tradeElement.getAsJsonArray();
+            // Map each slot of the top-level array straight to its type,
+            // without building an intermediate String or JsonElement tree
+            reader = new JsonReader(file.openReader());
+            reader.beginArray();
             for (int i = 0; i < objectsNumber; i++) {
-                Object objectToAdd = gson.fromJson(gson.toJson(array.get(i)), classes.get(i));
+                Object objectToAdd = gson.fromJson(reader, classes.get(i));
                 result.add(i, objectToAdd);
             }
-        } catch (JsonSyntaxException | FileNotFoundException | IllegalStateException e) {
-            throw newException(e, stringFile);
+        } catch (JsonParseException | IOException | IllegalStateException e) {
+            throw newException(e);
+        } finally {
+            IOUtils.closeQuietly(reader);
         }
         if (result.size() != getObjectList().size()) {
-            throw newException(null, stringFile);
+            throw newException(null);
         }
         this.recoverObjects(result);
     }
@@ -68,14 +154,6 @@ public abstract class AbstractJsonDataSavable extends AbstractDataSavable {
         this.save(Pasteque.getAppContext(), getObjectList(), new ExternalFile(dir, getFileName()));
     }
 
-    private DataCorruptedException newException(Throwable e, String stringFile) {
-        return new DataCorruptedException(e, DataCorruptedException.Action.LOADING)
-                .addFileName(getFileName())
-                .addObjectList(getObjectList())
-                .addFileContent(stringFile);
-    }
-
-
     protected DataCorruptedException newException(Throwable e) {
         return new DataCorruptedException(e, DataCorruptedException.Action.LOADING)
                 .addFileName(getFileName())
@@ -100,29 +178,56 @@ public abstract class AbstractJsonDataSavable extends AbstractDataSavable {
         return false;
     }
 
-    protected void save(Context ctx, List<Object> objs, File file) {
-        JsonArray array = new JsonArray();
-        JsonParser parser = new JsonParser();
-        for (Object obj : objs) {
-            try {
-                JsonElement object = parser.parse(getGson().toJson(obj));
-                array.add(object);
-            } catch (UnsupportedOperationException e) {
-                throw new IOError(e);
-            }
+    /**
+     * Write the objects to file.
+     * @return <code>true</code> if the file was written,
+     * <code>false</code> if it could not be opened.
+     */
+    protected boolean save(Context ctx, List<Object> objs, File file) {
+        synchronized (this.writeLock) {
+            return this.write(objs, file);
         }
+    }
+
+    private boolean write(List<Object> objs, File file) {
+        Writer out = null;
         try {
-            file.write(array.toString());
+            out = file.openWriter();
+            this.writeJson(objs, out);
+            file.commit(out);
+            out = null;
+            return true;
         } catch (FileNotFoundException e) {
-            Log.e(TAG_LOG, "JsonDataSavable::save error",e);
+            Log.e(TAG_LOG, "JsonDataSavable::save error", e);
+            return false;
+        } catch (JsonIOException | UnsupportedOperationException e) {
+            throw new IOError(e);
+        } catch (IOException e) {
+            throw new IOError(e);
+        } finally {
+            if (out != null) {
+                file.abort(out);
+            }
+        }
+    }
+
+    private void writeJson(List<Object> objs, Writer out) throws IOException {
+        Gson gson = getGson();
+        // Same compact layout as JsonArray.toString(), written object by object
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        for (Object obj : objs) {
+            if (obj == null) {
+                writer.nullValue();
+            } else {
+                gson.toJson(obj, obj.getClass(), writer);
+            }
         }
+        writer.endArray();
+        writer.flush();
     }
 
     protected Gson getGson() {
-        return new GsonBuilder()
-                .setPrettyPrinting()
-                .serializeNulls()
-                .enableComplexMapKeySerialization()
-                .create();
+        return DataGson.get();
     }
 }
@@ -18,19 +18,56 @@
 package fr.pasteque.client.data.DataSavable;
 
 import fr.pasteque.client.Pasteque;
+import fr.pasteque.client.data.CatalogFile;
+import fr.pasteque.client.data.Data;
+import fr.pasteque.client.data.MappedCatalog;
+import fr.pasteque.client.data.ProductIndex;
 import fr.pasteque.client.models.Catalog;
+import fr.pasteque.client.models.Product;
+import fr.pasteque.client.utils.exception.DataCorruptedException;
+import fr.pasteque.client.utils.file.InternalFile;
 
 import android.content.Context;
-
-import java.lang.reflect.Type;
+import android.util.Log;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
 import java.util.ArrayList;
 import java.util.List;
 
-public class CatalogData extends AbstractObjectDataSavable {
-
-    private static final String FILENAME = "catalog.json";
+/**
+ * Stores the catalog in a binary {@link CatalogFile}.
+ * The loaded catalog is mapped from the file and read-only.
+ * The search index of product labels is stored next to it.
+ */
+public class CatalogData extends AbstractDataSavable {
+
+    private static final String LOG_TAG = "Pasteque/CatalogData";
+    private static final String DIRECTORY = "catalog";
+    private static final String FILENAME = "catalog.bin";
+    /** Java serialized catalog written by previous versions */
+    private static final String LEGACY_FILENAME = "catalog.json";
+    private static final String SEARCH_FILENAME = "search.bin";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
 
     private Catalog catalog;
+    /** Sales counts version applied to the search index, -1 if none */
+    private int salesVersion = -1;
+    protected java.io.File file = new InternalFile(DIRECTORY, FILENAME);
+
+    protected void setFile(java.io.File file) {
+        this.file = file;
+    }
 
     public Catalog catalog(Context ctx) {
         if (catalog == null) {
@@ -41,6 +78,146 @@ public class CatalogData extends AbstractObjectDataSavable {
 
     public void setCatalog(Catalog c) {
         catalog = c;
+        this.salesVersion = -1;
+    }
+
+    /**
+     * Search products of categories by label, the most sold first
+     * among equally matching ones.
+     * @param limit maximum number of results
+     */
+    public List<Product> searchProducts(Context ctx, String query, int limit) {
+        Catalog c = this.catalog(ctx);
+        if (c == null) {
+            return new ArrayList<>();
+        }
+        Data.awaitLoaded(Data.ProductSales);
+        synchronized (this) {
+            int version = Data.ProductSales.getVersion();
+            if (version != this.salesVersion) {
+                c.getSearchIndex().setSales(Data.ProductSales.getCounts());
+                this.salesVersion = version;
+            }
+        }
+        return c.searchProducts(query, limit);
+    }
+
+    private java.io.File searchFile() {
+        return new java.io.File(this.file.getParentFile(), SEARCH_FILENAME);
+    }
+
+    @Override
+    public void save(Context ctx) throws IOError {
+        if (this.catalog == null || this.catalog instanceof MappedCatalog) {
+            // Nothing new to write
+            return;
+        }
+        try {
+            CatalogFile.write(this.catalog, this.file);
+            this.writeSearchIndex(this.catalog.getSearchIndex());
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+    }
+
+    /** Write the index to a temporary file renamed once synced */
+    private void writeSearchIndex(ProductIndex index) throws IOException {
+        java.io.File target = this.searchFile();
+        java.io.File tmp = new java.io.File(target.getParentFile(),
+                target.getName() + TEMPORARY_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            index.write(out);
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            IOUtils.closeQuietly(fos);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw e;
+        }
+        fos.close();
+        if (!tmp.renameTo(target)) {
+            throw new IOException("Could not rename to " + target.getName());
+        }
+    }
+
+    /**
+     * Read the search index of the loaded catalog.
+     * When missing or unreadable it is built again and written.
+     */
+    private void loadSearchIndex() {
+        java.io.File searchFile = this.searchFile();
+        DataInputStream in = null;
+        try {
+            if (searchFile.lastModified() < this.file.lastModified()) {
+                // Not written after the catalog
+                throw new FileNotFoundException(SEARCH_FILENAME);
+            }
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(searchFile)));
+            this.catalog.setSearchIndex(ProductIndex.read(in));
+            return;
+        } catch (FileNotFoundException e) {
+            Log.i(LOG_TAG, "No search index, building it");
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read search index, building it", e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        try {
+            this.writeSearchIndex(this.catalog.getSearchIndex());
+        } catch (IOException e) {
+            // Built again on next load
+            Log.w(LOG_TAG, "Could not write search index", e);
+        }
+    }
+
+    @Override
+    public void load(Context ctx) throws DataCorruptedException, IOError {
+        if (!this.file.exists() && this.migrate(ctx)) {
+            return;
+        }
+        try {
+            this.catalog = CatalogFile.open(this.file);
+            this.salesVersion = -1;
+        } catch (FileNotFoundException | StreamCorruptedException e) {
+            throw new DataCorruptedException(e, DataCorruptedException.Action.LOADING)
+                    .addFileName(getFileName())
+                    .addObjectList(getObjectList());
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        this.loadSearchIndex();
+    }
+
+    /**
+     * Convert the serialized catalog of previous versions, if any.
+     * @return <code>true</code> if a catalog was migrated
+     */
+    private boolean migrate(Context ctx) {
+        FileInputStream fis;
+        try {
+            fis = ctx.openFileInput(LEGACY_FILENAME);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(fis);
+            this.catalog = (Catalog) ois.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            Log.w(LOG_TAG, "Could not read legacy catalog", e);
+            return false;
+        } finally {
+            IOUtils.closeQuietly(ois);
+            IOUtils.closeQuietly(fis);
+        }
+        this.save(ctx);
+        ctx.deleteFile(LEGACY_FILENAME);
+        Log.i(LOG_TAG, "Migrated legacy catalog");
+        return true;
     }
 
     @Override
@@ -55,15 +232,6 @@ public class CatalogData extends AbstractObjectDataSavable {
         return result;
     }
 
-/*
-    JsonDataSavable implementation
-    @Override
-    protected List<Type> getClassList() {
-        List<Type> result = new ArrayList<>();
-        result.add(Catalog.class);
-        return result;
-    }*/
-
     @Override
     protected int getNumberOfObjects() {
         return 1;
@@ -17,30 +17,287 @@
 */
 package fr.pasteque.client.data.DataSavable;
 
+import android.content.Context;
+import android.database.SQLException;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
+import fr.pasteque.client.Configure;
+import fr.pasteque.client.data.CustomerIndex;
+import fr.pasteque.client.data.Data;
+import fr.pasteque.client.data.LocalDatabase;
 import fr.pasteque.client.models.Customer;
+import fr.pasteque.client.utils.exception.DataCorruptedException;
 
+import java.io.IOError;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
 
+/**
+ * Stores customers, in a JSON file or in LocalDatabase
+ * when SQLite storage is selected.
+ * Customers are indexed by card, name and phone once loaded,
+ * the index is built again when they are replaced.
+ * Only the changed customers are written to the database, call
+ * markChanged after editing one in place.
+ */
 public class CustomerData extends AbstractJsonDataSavable {
 
     private static final String FILENAME = "customers.json";
 
     public List<Customer> customers = new ArrayList<Customer>();
-    public List<Customer> createdCustomers = new ArrayList<>();
+    private List<Customer> createdCustomers = new ArrayList<>();
     // Map containing which local id to replace with server id
-    public HashMap<String, String> resolvedIds = new HashMap<>();
+    private HashMap<String, String> resolvedIds = new HashMap<>();
+    /** Set when customers are stored in SQLite instead of a file */
+    private LocalDatabase database;
+    /** Ids of the customers changed since written to the database */
+    private Set<String> changedIds = new HashSet<>();
+    private Map<String, String> storedResolvedIds;
+    private volatile CustomerIndex index = new CustomerIndex();
+
+    /** @return customers, once loaded */
+    public List<Customer> getCustomers() {
+        Data.awaitLoaded(this);
+        return customers;
+    }
+
+    /** @return customers created locally and not sent yet, once loaded */
+    public List<Customer> getCreatedCustomers() {
+        Data.awaitLoaded(this);
+        return this.createdCustomers;
+    }
+
+    /** @return server ids of sent created customers by local id, once loaded */
+    public Map<String, String> getResolvedIds() {
+        Data.awaitLoaded(this);
+        return this.resolvedIds;
+    }
 
     public void setCustomers(List<Customer> c) {
+        Data.awaitLoaded(this);
+        this.changed(this.customers);
         customers = c;
+        this.changed(this.customers);
+        this.reindex();
+    }
+
+    /** Mark a customer edited in place, to write it on next save */
+    public void markChanged(Customer c) {
+        this.changed(c.getId());
+    }
+
+    /** @return ids of the customers to write on next save */
+    synchronized Set<String> getChangedIds() {
+        return new HashSet<>(this.changedIds);
+    }
+
+    private synchronized void changed(String id) {
+        this.changedIds.add(id);
+    }
+
+    private synchronized void changed(Collection<Customer> customers) {
+        if (customers == null) {
+            return;
+        }
+        for (Customer c : customers) {
+            this.changedIds.add(c.getId());
+        }
+    }
+
+    private void reindex() {
+        this.index = this.customers == null ? new CustomerIndex()
+                : new CustomerIndex(this.customers);
+    }
+
+    /**
+     * Apply the changes of a delta sync to the loaded customers:
+     * replace the updated ones, add the new ones and remove the deleted
+     * ones. Customers created locally are kept.
+     */
+    public void patchCustomers(List<Customer> updated, Collection<String> deletedIds) {
+        Data.awaitLoaded(this);
+        Map<String, Customer> updates = new HashMap<>();
+        for (Customer c : updated) {
+            updates.put(c.getId(), c);
+        }
+        Set<String> deleted = new HashSet<>(deletedIds);
+        this.changed(updated);
+        for (String id : deleted) {
+            this.changed(id);
+        }
+        ListIterator<Customer> it = this.customers.listIterator();
+        while (it.hasNext()) {
+            Customer c = it.next();
+            if (deleted.contains(c.getId())) {
+                it.remove();
+            } else if (updates.containsKey(c.getId())) {
+                it.set(updates.remove(c.getId()));
+            }
+        }
+        for (Customer c : updated) {
+            if (updates.remove(c.getId()) != null) {
+                this.customers.add(c);
+            }
+        }
+        this.reindex();
     }
 
     public void addCreatedCustomer(Customer c) {
+        Data.awaitLoaded(this);
         this.customers.add(c);
         this.createdCustomers.add(c);
+        this.index.add(c);
+        this.changed(c.getId());
+    }
+
+    /** Add a customer already registered on the server */
+    public void addCustomer(Customer c) {
+        Data.awaitLoaded(this);
+        this.customers.add(c);
+        this.index.add(c);
+        this.changed(c.getId());
+    }
+
+    /**
+     * Give their server id to created customers and forget they are to
+     * be sent. Their local id is kept in resolved ids.
+     * @param resolved server ids by local id
+     */
+    public void resolveCreatedCustomers(Map<String, String> resolved) {
+        Data.awaitLoaded(this);
+        for (String localId : resolved.keySet()) {
+            // Removed from the row of the local id
+            this.changed(localId);
+            this.changed(resolved.get(localId));
+        }
+        ListIterator<Customer> it = this.createdCustomers.listIterator();
+        while (it.hasNext()) {
+            Customer c = it.next();
+            if (resolved.containsKey(c.getId())) {
+                it.remove();
+                c.setId(resolved.get(c.getId()));
+            }
+        }
+        for (Customer c : this.customers) {
+            String serverId = resolved.get(c.getId());
+            if (serverId != null) {
+                c.setId(serverId);
+            }
+        }
+        this.resolvedIds.putAll(resolved);
+    }
+
+    /**
+     * Find a customer by its card.
+     * @return the customer, null if not found
+     */
+    public Customer findByCard(String card) {
+        Data.awaitLoaded(this);
+        return this.index.findByCard(card);
+    }
+
+    /**
+     * Find the customers whose first name, last name or phone contains
+     * the query, ignoring case and accents.
+     */
+    public List<Customer> search(String query) {
+        Data.awaitLoaded(this);
+        return this.index.filter(query);
+    }
+
+    @Override
+    public synchronized void save(Context ctx) throws IOError {
+        if (this.database == null) {
+            // The file has every customer
+            this.changedIds.clear();
+            super.save(ctx);
+            return;
+        }
+        Data.awaitLoaded(this);
+        Set<String> changed = this.changedIds;
+        this.changedIds = new HashSet<>();
+        try {
+            this.database.updateCustomers(this.customers, this.createdCustomers,
+                    changed, this.storedResolvedIds, this.resolvedIds);
+            this.storedResolvedIds = new HashMap<>(this.resolvedIds);
+        } catch (SQLException e) {
+            // Written again on next save
+            this.changedIds.addAll(changed);
+            throw new IOError(e);
+        }
+    }
+
+    @Override
+    public synchronized Object takeSnapshot() {
+        // The database is written on save, with the changed rows only
+        if (this.database != null) {
+            return null;
+        }
+        this.changedIds.clear();
+        return super.takeSnapshot();
+    }
+
+    /**
+     * Load from the selected storage. Customers left in the other one
+     * are moved to it when the selected one is empty.
+     */
+    @Override
+    public void load(Context ctx) throws DataCorruptedException, IOError {
+        try {
+            if (Configure.SQLITE_STORAGE.equals(Configure.getCustomersStorage(ctx))) {
+                this.loadDatabase(ctx);
+            } else {
+                this.database = null;
+                this.loadFile(ctx);
+            }
+        } catch (SQLException e) {
+            throw new IOError(e);
+        } catch (JsonParseException e) {
+            throw newException(e);
+        }
+        this.reindex();
+    }
+
+    private void loadDatabase(Context ctx) throws DataCorruptedException {
+        LocalDatabase db = LocalDatabase.get(ctx);
+        LocalDatabase.Customers stored = db.readCustomers();
+        if (stored.isEmpty() && this.file.exists()) {
+            super.load(ctx);
+            db.replaceCustomers(this.customers, this.createdCustomers, this.resolvedIds);
+            this.file.delete();
+        } else {
+            this.customers = stored.customers;
+            this.createdCustomers = stored.createdCustomers;
+            this.resolvedIds = stored.resolvedIds;
+        }
+        synchronized (this) {
+            this.changedIds.clear();
+        }
+        this.storedResolvedIds = new HashMap<>(this.resolvedIds);
+        this.database = db;
+    }
+
+    private void loadFile(Context ctx) throws DataCorruptedException {
+        if (!this.file.exists() && LocalDatabase.exists(ctx)) {
+            LocalDatabase db = LocalDatabase.get(ctx);
+            LocalDatabase.Customers stored = db.readCustomers();
+            if (!stored.isEmpty()) {
+                this.customers = stored.customers;
+                this.createdCustomers = stored.createdCustomers;
+                this.resolvedIds = stored.resolvedIds;
+                super.save(ctx);
+                db.deleteCustomers();
+                return;
+            }
+        }
+        super.load(ctx);
     }
 
     @Override
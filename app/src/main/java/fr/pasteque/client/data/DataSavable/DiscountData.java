@@ -11,10 +11,19 @@ import fr.pasteque.client.utils.exception.NotFoundException;
 
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * Save and Load discounts in FILENAME Data can be accessed anywhere, anytime.
+ * Discounts are indexed by barcode and by validity period when the
+ * collection changes: the time line is cut at every start and end date,
+ * and the discount valid on each piece is computed once.
  *
  * @author nsvir
  */
@@ -23,6 +32,13 @@ public class DiscountData extends AbstractJsonDataSavable {
     private static final String FILENAME = "discount.json";
 
     private ArrayList<Discount> discounts = new ArrayList<>();
+    private Map<String, Discount> barcodes = new HashMap<>();
+    /** Sorted start and end times of the discounts */
+    private long[] bounds = new long[0];
+    /** Discount valid at bounds[i], null if none */
+    private Discount[] validAt = new Discount[0];
+    /** Discount valid between bounds[i] and bounds[i + 1], null if none */
+    private Discount[] validAfter = new Discount[0];
 
     @Override
     protected String getFileName() {
@@ -51,38 +67,116 @@ public class DiscountData extends AbstractJsonDataSavable {
     @Override
     protected void recoverObjects(List<Object> objs) {
         discounts = (ArrayList<Discount>) objs.get(0);
+        if (discounts == null) {
+            discounts = new ArrayList<>();
+        }
+        this.reindex();
     }
 
     public void addDiscount(Discount disc) {
         discounts.add(disc);
+        this.reindex();
     }
 
     public void setCollection(ArrayList<Discount> discounts) {
         this.discounts.clear();
         if (discounts != null)
             this.discounts.addAll(discounts);
+        this.reindex();
     }
 
     public List<Discount> getDiscounts() {
         return discounts;
     }
 
+    /** @return the first discount valid now, null if none */
     public Discount getADiscount() {
-        if (discounts == null || discounts.isEmpty())
-            return null;
-        for (Discount disc : discounts)
-            if (disc.isValid())
-                return disc;
-        return null;
+        return this.getADiscount(System.currentTimeMillis());
     }
 
-    public Discount findFromBarcode(String code) throws NotFoundException {
-        if (discounts != null)
-            for (Discount discount : discounts) {
-                if (discount.getBarcode().getCode().equals(code))
-                    return discount;
-            }
-        throw new NotFoundException("DiscountData");
+    /** @return the first discount valid at the time, null if none */
+    public synchronized Discount getADiscount(long time) {
+        int pos = Arrays.binarySearch(this.bounds, time);
+        if (pos >= 0) {
+            return this.validAt[pos];
+        }
+        // Insertion point minus one is the last bound before time
+        int before = -pos - 2;
+        return before < 0 ? null : this.validAfter[before];
+    }
+
+    public synchronized Discount findFromBarcode(String code) throws NotFoundException {
+        Discount discount = code == null ? null : this.barcodes.get(code);
+        if (discount == null) {
+            throw new NotFoundException("DiscountData");
+        }
+        return discount;
     }
 
+    /** Build the barcode and validity indexes of the discounts */
+    private synchronized void reindex() {
+        Map<Discount, Integer> positions = new IdentityHashMap<>();
+        Map<String, Discount> barcodes = new HashMap<>();
+        TreeSet<Long> times = new TreeSet<>();
+        List<Discount> periods = new ArrayList<>();
+        for (int i = 0; i < this.discounts.size(); i++) {
+            Discount d = this.discounts.get(i);
+            if (d == null) {
+                continue;
+            }
+            String code = d.getBarcode() == null ? null : d.getBarcode().getCode();
+            if (code != null && !barcodes.containsKey(code)) {
+                // The first listed wins
+                barcodes.put(code, d);
+            }
+            if (d.getStartDate() != null && d.getEndDate() != null
+                    && d.getStartDate().before(d.getEndDate())) {
+                positions.put(d, i);
+                periods.add(d);
+                times.add(d.getStartDate().getTime());
+                times.add(d.getEndDate().getTime());
+            }
+        }
+        long[] bounds = new long[times.size()];
+        int n = 0;
+        for (long t : times) {
+            bounds[n++] = t;
+        }
+        Discount[] validAt = new Discount[bounds.length];
+        Discount[] validAfter = new Discount[bounds.length];
+        // Sweep the bounds, the valid discount is the first listed active one
+        Discount[] byStart = periods.toArray(new Discount[periods.size()]);
+        Discount[] byEnd = byStart.clone();
+        Arrays.sort(byStart, new Comparator<Discount>() {
+            @Override
+            public int compare(Discount a, Discount b) {
+                return a.getStartDate().compareTo(b.getStartDate());
+            }
+        });
+        Arrays.sort(byEnd, new Comparator<Discount>() {
+            @Override
+            public int compare(Discount a, Discount b) {
+                return a.getEndDate().compareTo(b.getEndDate());
+            }
+        });
+        TreeSet<Integer> active = new TreeSet<>();
+        int start = 0;
+        int end = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            // Not valid at their end date, nor at their start date
+            while (end < byEnd.length && byEnd[end].getEndDate().getTime() == bounds[i]) {
+                active.remove(positions.get(byEnd[end++]));
+            }
+            validAt[i] = active.isEmpty() ? null : this.discounts.get(active.first());
+            while (start < byStart.length
+                    && byStart[start].getStartDate().getTime() == bounds[i]) {
+                active.add(positions.get(byStart[start++]));
+            }
+            validAfter[i] = active.isEmpty() ? null : this.discounts.get(active.first());
+        }
+        this.barcodes = barcodes;
+        this.bounds = bounds;
+        this.validAt = validAt;
+        this.validAfter = validAfter;
+    }
 }
@@ -0,0 +1,146 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data.DataSavable;
+
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Manifest of the downloaded images. For each image it holds the hash
+ * of its content, which names the stored file, and the validators sent
+ * by the server to request it again only when it changed.
+ */
+public class ImageCacheData extends AbstractJsonDataSavable {
+
+    private static final String FILENAME = "images.json";
+
+    /** Stored image of an item */
+    public static class Entry {
+        private String hash;
+        private String etag;
+        private String lastModified;
+
+        public Entry(String hash, String etag, String lastModified) {
+            this.hash = hash;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /** @return the hash of the content */
+        public String getHash() {
+            return this.hash;
+        }
+
+        /** @return the ETag header of the response, may be null */
+        public String getEtag() {
+            return this.etag;
+        }
+
+        /** @return the Last-Modified header of the response, may be null */
+        public String getLastModified() {
+            return this.lastModified;
+        }
+    }
+
+    private Map<String, Entry> entries = new HashMap<>();
+
+    /** @return the stored image of the item, null if none */
+    public synchronized Entry get(String key) {
+        return this.entries.get(key);
+    }
+
+    public synchronized void put(String key, Entry entry) {
+        this.entries.put(key, entry);
+    }
+
+    public synchronized void remove(String key) {
+        this.entries.remove(key);
+    }
+
+    /** Remove the entries of every item whose key starts with prefix */
+    public synchronized void removeAll(String prefix) {
+        this.entries.keySet().retainAll(this.keysNotStartingWith(prefix));
+    }
+
+    /** Remove the entries of the items that are not in keys */
+    public synchronized void retain(Collection<String> keys) {
+        this.entries.keySet().retainAll(keys);
+    }
+
+    /** @return the hashes referenced by an item */
+    public synchronized Set<String> getHashes() {
+        Set<String> hashes = new HashSet<>();
+        for (Entry e : this.entries.values()) {
+            hashes.add(e.hash);
+        }
+        return hashes;
+    }
+
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    private Set<String> keysNotStartingWith(String prefix) {
+        Set<String> keys = new HashSet<>();
+        for (String key : this.entries.keySet()) {
+            if (!key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    protected String getFileName() {
+        return FILENAME;
+    }
+
+    @Override
+    protected synchronized List<Object> getObjectList() {
+        List<Object> result = new ArrayList<>();
+        result.add(this.entries);
+        return result;
+    }
+
+    @Override
+    protected List<Type> getClassList() {
+        List<Type> result = new ArrayList<>();
+        result.add(new TypeToken<HashMap<String, Entry>>(){}.getType());
+        return result;
+    }
+
+    @Override
+    protected int getNumberOfObjects() {
+        return 1;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected synchronized void recoverObjects(List<Object> objs) {
+        Map<String, Entry> entries = (Map<String, Entry>) objs.get(0);
+        this.entries = entries == null ? new HashMap<String, Entry>() : entries;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data.DataSavable;
+
+import fr.pasteque.client.models.Cash;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How far the receipts of the current cash were sent in background.
+ * Receipts are appended to Data.Receipt in order, thus the ones not
+ * sent yet are the ones after the count. The count is reset when the
+ * cash changes.
+ */
+public class OutboxData extends AbstractJsonDataSavable {
+
+    private static final String FILENAME = "outbox.json";
+
+    /** Identifies the cash the count is about, it may have no id yet */
+    private String cashKey;
+    private int sentReceipts;
+
+    private static String cashKey(Cash cash) {
+        return cash.getCashRegisterId() + "-" + cash.getOpenDate();
+    }
+
+    /** @return number of receipts of the cash already sent */
+    public synchronized int getSentReceipts(Cash cash) {
+        if (cash == null || !cashKey(cash).equals(this.cashKey)) {
+            return 0;
+        }
+        return this.sentReceipts;
+    }
+
+    public synchronized void setSentReceipts(Cash cash, int count) {
+        this.cashKey = cashKey(cash);
+        this.sentReceipts = count;
+    }
+
+    public synchronized void clear() {
+        this.cashKey = null;
+        this.sentReceipts = 0;
+    }
+
+    @Override
+    protected String getFileName() {
+        return FILENAME;
+    }
+
+    @Override
+    protected synchronized List<Object> getObjectList() {
+        List<Object> result = new ArrayList<>();
+        result.add(this.cashKey);
+        result.add(this.sentReceipts);
+        return result;
+    }
+
+    @Override
+    protected List<Type> getClassList() {
+        List<Type> result = new ArrayList<>();
+        result.add(String.class);
+        result.add(Integer.class);
+        return result;
+    }
+
+    @Override
+    protected int getNumberOfObjects() {
+        return 2;
+    }
+
+    @Override
+    protected synchronized void recoverObjects(List<Object> objs) {
+        this.cashKey = (String) objs.get(0);
+        Integer count = (Integer) objs.get(1);
+        this.sentReceipts = count == null ? 0 : count;
+    }
+}
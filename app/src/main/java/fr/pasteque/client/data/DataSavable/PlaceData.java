@@ -18,6 +18,7 @@
 package fr.pasteque.client.data.DataSavable;
 
 import com.google.gson.reflect.TypeToken;
+import fr.pasteque.client.data.Data;
 import fr.pasteque.client.models.Floor;
 
 import java.lang.reflect.Type;
@@ -30,7 +31,14 @@ public class PlaceData extends AbstractJsonDataSavable {
 
     public List<Floor> floors = new ArrayList<Floor>();
 
+    /** @return floors, once loaded */
+    public List<Floor> getFloors() {
+        Data.awaitLoaded(this);
+        return floors;
+    }
+
     public void setFloors(List<Floor> f) {
+        Data.awaitLoaded(this);
         floors = f;
     }
 
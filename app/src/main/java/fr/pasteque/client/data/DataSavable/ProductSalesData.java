@@ -0,0 +1,103 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data.DataSavable;
+
+import com.google.gson.reflect.TypeToken;
+import fr.pasteque.client.models.Product;
+import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.models.TicketLine;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Number of sales of each product, by id, to rank search results.
+ * A sale counts once whatever the quantity, refunds are not counted.
+ */
+public class ProductSalesData extends AbstractJsonDataSavable {
+
+    private static final String FILENAME = "productsales.json";
+
+    private Map<String, Integer> counts = new HashMap<>();
+    /** Changed each time the counts change */
+    private int version;
+
+    /** Count the products sold by a receipt */
+    public synchronized void addReceipt(Receipt r) {
+        for (TicketLine l : r.getTicket().getLines()) {
+            Product p = l.getProduct();
+            if (p == null || p.getId() == null || l.getQuantity() <= 0) {
+                continue;
+            }
+            Integer count = this.counts.get(p.getId());
+            this.counts.put(p.getId(), count == null ? 1 : count + 1);
+        }
+        this.version++;
+    }
+
+    /** @return number of sales of the product */
+    public synchronized int getCount(String productId) {
+        Integer count = this.counts.get(productId);
+        return count == null ? 0 : count;
+    }
+
+    /** @return a copy of the counts by product id */
+    public synchronized Map<String, Integer> getCounts() {
+        return new HashMap<>(this.counts);
+    }
+
+    /** @return a number changed each time the counts change */
+    public synchronized int getVersion() {
+        return this.version;
+    }
+
+    @Override
+    protected String getFileName() {
+        return FILENAME;
+    }
+
+    @Override
+    protected synchronized List<Object> getObjectList() {
+        List<Object> result = new ArrayList<>();
+        result.add(this.counts);
+        return result;
+    }
+
+    @Override
+    protected List<Type> getClassList() {
+        List<Type> result = new ArrayList<>();
+        result.add(new TypeToken<HashMap<String, Integer>>(){}.getType());
+        return result;
+    }
+
+    @Override
+    protected int getNumberOfObjects() {
+        return 1;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected synchronized void recoverObjects(List<Object> objs) {
+        Map<String, Integer> counts = (Map<String, Integer>) objs.get(0);
+        this.counts = counts == null ? new HashMap<String, Integer>() : counts;
+        this.version++;
+    }
+}
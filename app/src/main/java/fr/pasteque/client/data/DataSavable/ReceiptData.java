@@ -17,25 +17,74 @@
 */
 package fr.pasteque.client.data.DataSavable;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
 import fr.pasteque.client.Pasteque;
+import fr.pasteque.client.data.Data;
+import fr.pasteque.client.data.LocalDatabase;
 import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.models.ReceiptSummary;
+import fr.pasteque.client.utils.exception.DataCorruptedException;
+import fr.pasteque.client.utils.file.Journal;
 
 import android.content.Context;
+import android.database.SQLException;
+import android.util.Log;
 
+import java.io.IOError;
+import java.io.IOException;
+import java.io.StringWriter;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 
-/** Stores finalized tickets */
+/**
+ * Stores finalized tickets in LocalDatabase, each new receipt is a
+ * single row insert. Receipts are read only when the whole list is
+ * requested, getReceipts(Context, int, int) reads only the requested
+ * ones, so that memory use does not grow with the day.
+ *
+ * Lists show receipts with the paged summaries of getSummary(int),
+ * the full receipt is read with getReceipt(ReceiptSummary).
+ *
+ * Receipts of the former JSON storage, a snapshot file and a journal
+ * of the receipts added since, are moved to the database on load.
+ * Until loaded, receipts are kept in memory and written to these files.
+ */
 public class ReceiptData extends AbstractJsonDataSavable {
 
+    private static final String LOG_TAG = "Pasteque/ReceiptData";
     private static final String FILENAME = "tickets.json";
+    private static final String JOURNAL_FILENAME = "tickets.journal";
+    /** Number of journaled receipts after which the snapshot is rewritten */
+    private static final int JOURNAL_COMPACT_THRESHOLD = 50;
+    private static final int PAGE_SIZE = 20;
+    private static final int CACHED_PAGES = 3;
 
+    /** Null when stored in SQLite and not read yet */
     private List<Receipt> receipts = new ArrayList<>();
+    private int journalRecords = 0;
+    /** Set once loaded */
+    private LocalDatabase database;
+    /** Last used pages of summaries, by page index */
+    private final Map<Integer, List<ReceiptSummary>> pages =
+            new LinkedHashMap<Integer, List<ReceiptSummary>>(CACHED_PAGES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, List<ReceiptSummary>> e) {
+                    return this.size() > CACHED_PAGES;
+                }
+            };
+    /** Number of receipts, -1 when to be counted */
+    private int count = -1;
 
     @Override
     protected String getFileName() {
@@ -45,7 +94,7 @@ public class ReceiptData extends AbstractJsonDataSavable {
     @Override
     protected List<Object> getObjectList() {
         List<Object> result = new ArrayList<>();
-        result.add(receipts);
+        result.add(this.receipts != null ? this.receipts : this.readDatabase());
         return result;
     }
 
@@ -67,29 +116,330 @@ public class ReceiptData extends AbstractJsonDataSavable {
     }
 
     public void addReceipt(Receipt r) {
-        receipts.add(r);
+        if (this.receipts != null) {
+            this.receipts.add(r);
+        }
+        this.invalidateSummaries();
+    }
+
+    /**
+     * Add a receipt and append it to the journal instead of rewriting
+     * the whole file. The snapshot is compacted every
+     * JOURNAL_COMPACT_THRESHOLD receipts.
+     * @throws IOError if the receipt could not be written
+     */
+    public synchronized void appendReceipt(Context ctx, Receipt r) throws IOError {
+        this.addReceipt(r);
+        if (this.database != null) {
+            try {
+                this.database.insertReceipt(r);
+            } catch (SQLException e) {
+                throw new IOError(e);
+            }
+            return;
+        }
+        try {
+            this.getJournal().append(this.toRecord(r));
+            this.journalRecords++;
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        if (this.journalRecords >= JOURNAL_COMPACT_THRESHOLD) {
+            this.save(ctx);
+        }
+    }
+
+    /**
+     * Write the receipts read in memory, they are dropped from memory
+     * once in the database. Until loaded, rewrite the snapshot file with
+     * every receipt and empty the journal.
+     */
+    @Override
+    public synchronized void save(Context ctx) throws IOError {
+        this.invalidateSummaries();
+        if (this.database != null) {
+            Data.awaitLoaded(this);
+            if (this.receipts == null) {
+                // Not read, thus not modified
+                return;
+            }
+            try {
+                this.database.replaceReceipts(this.receipts);
+            } catch (SQLException e) {
+                throw new IOError(e);
+            }
+            this.receipts = null;
+            return;
+        }
+        // Versioned, an older snapshot is not written over it
+        super.save(ctx);
+    }
+
+    @Override
+    protected void onSaved(Context ctx) {
+        // Every journaled receipt is in the file now
+        this.getJournal().clear();
+        this.journalRecords = 0;
+    }
+
+    /** Open the database, moving there the receipts left in files */
+    @Override
+    public void load(Context ctx) throws DataCorruptedException, IOError {
+        this.invalidateSummaries();
+        try {
+            this.loadDatabase(ctx);
+        } catch (SQLException e) {
+            throw new IOError(e);
+        } catch (JsonParseException e) {
+            throw newException(e);
+        }
+    }
+
+    private void loadDatabase(Context ctx) throws DataCorruptedException {
+        List<Receipt> fromFiles;
+        try {
+            this.loadFiles(ctx);
+            fromFiles = this.receipts;
+        } catch (DataCorruptedException e) {
+            if (e.status != DataCorruptedException.Status.FILE_NOT_FOUND) {
+                throw e;
+            }
+            fromFiles = new ArrayList<>();
+        }
+        LocalDatabase db = LocalDatabase.get(ctx);
+        this.receipts = null;
+        if (!fromFiles.isEmpty()) {
+            for (Receipt r : fromFiles) {
+                db.insertReceipt(r);
+            }
+            this.file.delete();
+            this.getJournal().clear();
+            this.journalRecords = 0;
+        }
+        this.database = db;
+    }
+
+    /** Load the snapshot then replay the journal on top of it */
+    private void loadFiles(Context ctx) throws DataCorruptedException, IOError {
+        DataCorruptedException snapshotMissing = null;
+        try {
+            super.load(ctx);
+        } catch (DataCorruptedException e) {
+            if (e.status != DataCorruptedException.Status.FILE_NOT_FOUND) {
+                throw e;
+            }
+            snapshotMissing = e;
+            this.receipts = new ArrayList<>();
+        }
+        List<String> records;
+        try {
+            records = this.getJournal().replay();
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        if (snapshotMissing != null && records.isEmpty()) {
+            throw snapshotMissing;
+        }
+        this.replay(records);
+    }
+
+    /**
+     * Add the journaled receipts that are not already in the snapshot.
+     * They may be if the app was killed between a compaction and
+     * the journal removal.
+     */
+    private void replay(List<String> records) throws DataCorruptedException {
+        Set<String> known = new HashSet<>();
+        for (Receipt r : this.receipts) {
+            known.add(receiptKey(r));
+        }
+        Gson gson = getGson();
+        for (String record : records) {
+            Receipt r;
+            try {
+                r = gson.fromJson(record, Receipt.class);
+            } catch (JsonParseException e) {
+                throw newException(e);
+            }
+            if (known.add(receiptKey(r))) {
+                this.receipts.add(r);
+            }
+        }
+        this.journalRecords = records.size();
+        Log.i(LOG_TAG, "Replayed " + records.size() + " journaled receipts");
     }
 
+    private String toRecord(Receipt r) throws IOException {
+        StringWriter out = new StringWriter();
+        // A bare JsonWriter is never indented, the record stays on one line
+        getGson().toJson(r, Receipt.class, new JsonWriter(out));
+        return out.toString();
+    }
+
+    /** @return a key identifying the receipt in every store */
+    public static String receiptKey(Receipt r) {
+        return r.getTicketNumber() + "@" + r.getPaymentTime();
+    }
+
+    private Journal getJournal() {
+        return new Journal(new java.io.File(this.file.getParentFile(), JOURNAL_FILENAME));
+    }
+
+    /** @return every receipt, read from the database if not already */
     public List<Receipt> getReceipts(Context ctx) {
+        if (this.database != null) {
+            synchronized (this) {
+                if (this.receipts == null) {
+                    this.receipts = this.readDatabase();
+                }
+                return this.receipts;
+            }
+        }
         if (receipts.size() == 0) {
             this.loadNoMatterWhat(ctx);
         }
         return receipts;
     }
 
+    /**
+     * Get some receipts without reading the others from the database.
+     * @return at most limit receipts from offset, in insertion order
+     * @throws IOError if the database could not be read
+     */
+    public List<Receipt> getReceipts(Context ctx, int offset, int limit) throws IOError {
+        if (this.database != null) {
+            synchronized (this) {
+                if (this.receipts == null) {
+                    try {
+                        return this.database.readReceipts(offset, limit);
+                    } catch (SQLException | JsonParseException e) {
+                        throw new IOError(e);
+                    }
+                }
+            }
+        }
+        List<Receipt> all = this.getReceipts(ctx);
+        int start = Math.min(offset, all.size());
+        int end = (int) Math.min(all.size(), (long) start + limit);
+        return new ArrayList<>(all.subList(start, end));
+    }
+
+    private List<Receipt> readDatabase() throws IOError {
+        try {
+            return this.database.readReceipts();
+        } catch (SQLException | JsonParseException e) {
+            throw new IOError(e);
+        }
+    }
+
     public boolean hasReceipts() {
-        return receipts.size() > 0;
+        return this.getSummaryCount() > 0;
+    }
+
+    /**
+     * @return number of receipts, without reading them
+     * @throws IOError if the database could not be read
+     */
+    public synchronized int getSummaryCount() throws IOError {
+        if (this.count == -1) {
+            if (this.receipts != null) {
+                this.count = this.receipts.size();
+            } else {
+                try {
+                    this.count = this.database.countReceipts();
+                } catch (SQLException e) {
+                    throw new IOError(e);
+                }
+            }
+        }
+        return this.count;
+    }
+
+    /**
+     * Get the summary of a receipt from the page cache,
+     * read its page if not cached.
+     * @param position index of the receipt, in insertion order
+     * @throws IOError if the database could not be read
+     */
+    public synchronized ReceiptSummary getSummary(int position) throws IOError {
+        int index = position / PAGE_SIZE;
+        List<ReceiptSummary> page = this.pages.get(index);
+        if (page == null) {
+            int offset = index * PAGE_SIZE;
+            if (this.receipts != null) {
+                int end = Math.min(this.receipts.size(), offset + PAGE_SIZE);
+                page = new ArrayList<>(end - offset);
+                for (Receipt r : this.receipts.subList(offset, end)) {
+                    page.add(new ReceiptSummary(r));
+                }
+            } else {
+                try {
+                    page = this.database.readSummaries(offset, PAGE_SIZE);
+                } catch (SQLException e) {
+                    throw new IOError(e);
+                }
+            }
+            this.pages.put(index, page);
+        }
+        return page.get(position - index * PAGE_SIZE);
+    }
+
+    /**
+     * Get the full receipt of a summary, to open or print it.
+     * @return the receipt, null if it is not stored anymore
+     * @throws IOError if the database could not be read
+     */
+    public synchronized Receipt getReceipt(ReceiptSummary summary) throws IOError {
+        if (this.receipts == null) {
+            try {
+                return this.database.findReceipt(summary);
+            } catch (SQLException | JsonParseException e) {
+                throw new IOError(e);
+            }
+        }
+        for (Receipt r : this.receipts) {
+            if (summary.isOf(r)) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void invalidateSummaries() {
+        this.pages.clear();
+        this.count = -1;
+    }
+
+    /**
+     * Find a receipt by the id of its ticket,
+     * with an indexed query when stored in SQLite.
+     * @return the receipt, null if not found
+     */
+    public Receipt findByTicketId(String ticketId) {
+        if (this.database != null) {
+            try {
+                return this.database.findReceiptByTicketId(ticketId);
+            } catch (SQLException | JsonParseException e) {
+                Log.w(LOG_TAG, "Unable to look up ticket " + ticketId, e);
+            }
+        }
+        for (Receipt r : this.getReceipts(Pasteque.getAppContext())) {
+            if (r.getTicket().getId().equals(ticketId)) {
+                return r;
+            }
+        }
+        return null;
     }
 
     /** Delete current receipts and save */
     public void clear(Context ctx) {
-        receipts.clear();
+        this.receipts = new ArrayList<>();
         save(Pasteque.getAppContext());
     }
     
     public JSONArray toJSON(Context ctx) throws JSONException {
         JSONArray array = new JSONArray();
-        for (Receipt r : receipts) {
+        for (Receipt r : this.getReceipts(ctx)) {
             array.put(r.toJSON(ctx));
         }
         return array;
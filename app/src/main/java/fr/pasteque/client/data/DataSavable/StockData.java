@@ -18,6 +18,7 @@
 package fr.pasteque.client.data.DataSavable;
 
 import com.google.gson.reflect.TypeToken;
+import fr.pasteque.client.data.Data;
 import fr.pasteque.client.models.Stock;
 
 import android.content.Context;
@@ -31,6 +32,8 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -41,6 +44,33 @@ public class StockData extends AbstractJsonDataSavable {
 
     public Map<String, Stock> stocks;
 
+    /** @return stocks by product id, once loaded */
+    public Map<String, Stock> getStocks() {
+        Data.awaitLoaded(this);
+        return stocks;
+    }
+
+    public void setStocks(Map<String, Stock> s) {
+        Data.awaitLoaded(this);
+        stocks = s;
+    }
+
+    /**
+     * Apply the changes of a delta sync to the loaded stocks.
+     * @param updated stocks by product id
+     * @param deletedIds product ids of the deleted stocks
+     */
+    public void patchStocks(Map<String, Stock> updated, Collection<String> deletedIds) {
+        Data.awaitLoaded(this);
+        if (stocks == null) {
+            stocks = new HashMap<>();
+        }
+        for (String id : deletedIds) {
+            stocks.remove(id);
+        }
+        stocks.putAll(updated);
+    }
+
     @Override
     protected String getFileName() {
         return StockData.FILENAME;
@@ -0,0 +1,94 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data.DataSavable;
+
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * High-water marks of the last update sync, by entity.
+ * A mark is the server time of the last changes the local data holds,
+ * only changes made after it are requested on next sync.
+ */
+public class SyncMarkData extends AbstractJsonDataSavable {
+
+    public static final String CATEGORIES = "categories";
+    public static final String PRODUCTS = "products";
+    public static final String CUSTOMERS = "customers";
+    public static final String STOCKS = "stocks";
+
+    private static final String FILENAME = "syncmarks.json";
+
+    private Map<String, Long> marks = new HashMap<>();
+
+    /** @return the mark of the entity, 0 if it must be fully synced */
+    public synchronized long getMark(String entity) {
+        Long mark = this.marks.get(entity);
+        return mark == null ? 0 : mark;
+    }
+
+    public synchronized void setMark(String entity, long mark) {
+        this.marks.put(entity, mark);
+    }
+
+    /** Forget the mark of the entity to fully sync it next time */
+    public synchronized void resetMark(String entity) {
+        this.marks.remove(entity);
+    }
+
+    /** Forget all marks to fully sync everything next time */
+    public synchronized void clear() {
+        this.marks.clear();
+    }
+
+    @Override
+    protected String getFileName() {
+        return FILENAME;
+    }
+
+    @Override
+    protected synchronized List<Object> getObjectList() {
+        List<Object> result = new ArrayList<>();
+        result.add(this.marks);
+        return result;
+    }
+
+    @Override
+    protected List<Type> getClassList() {
+        List<Type> result = new ArrayList<>();
+        result.add(new TypeToken<HashMap<String, Long>>(){}.getType());
+        return result;
+    }
+
+    @Override
+    protected int getNumberOfObjects() {
+        return 1;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected synchronized void recoverObjects(List<Object> objs) {
+        Map<String, Long> marks = (Map<String, Long>) objs.get(0);
+        this.marks = marks == null ? new HashMap<String, Long>() : marks;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data;
+
+import android.content.Context;
+import android.util.Log;
+import fr.pasteque.client.data.DataSavable.interfaces.DataSavable;
+
+import java.io.IOError;
+import java.util.ConcurrentModificationException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind saver. Stores are marked dirty and written together
+ * by a single background thread once the delay is elapsed, so that
+ * a burst of changes ends in a single write of each store.
+ * Stores able to take a snapshot of their state have it taken once,
+ * by the write, and are not held while the snapshot is written.
+ */
+public class DataSaver {
+
+    /** Store serializing its state apart from writing it */
+    public interface SnapshotSavable extends DataSavable {
+        /**
+         * Called by the write, under the lock of the store.
+         * @return the serialized state, null to call save instead
+         */
+        Object takeSnapshot();
+
+        /** Write a state returned by takeSnapshot */
+        void saveSnapshot(Context ctx, Object snapshot) throws IOError;
+    }
+
+    /** Told of failed background writes, from the saver thread */
+    public interface ErrorListener {
+        void onSaveFailed(DataSavable data, IOError e);
+    }
+
+    private static final String LOG_TAG = "Pasteque/DataSaver";
+    public static final long DEFAULT_DELAY = 500;
+
+    /** Dirty stores, with the context to save them with */
+    private final Map<DataSavable, Context> dirty = new LinkedHashMap<>();
+    /** Held while writing, so that flush waits for a running write */
+    private final Object writeLock = new Object();
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            DataSaver.this.writeDirty();
+        }
+    };
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> pending;
+    private long delay = DEFAULT_DELAY;
+    private int writeCount;
+    private ErrorListener errorListener;
+
+    /** Set how long changes are gathered before writing, in milliseconds */
+    public synchronized void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public synchronized void setErrorListener(ErrorListener listener) {
+        this.errorListener = listener;
+    }
+
+    /**
+     * Mark the store as dirty and schedule its write.
+     * Nothing is serialized until the write.
+     */
+    public synchronized void saveLater(Context ctx, DataSavable data) {
+        this.dirty.put(data, ctx);
+        if (this.pending == null) {
+            this.pending = this.executor().schedule(this.writeTask,
+                    this.delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized boolean isDirty(DataSavable data) {
+        return this.dirty.containsKey(data);
+    }
+
+    /** @return number of store writes done since creation */
+    public synchronized int getWriteCount() {
+        return this.writeCount;
+    }
+
+    /** Write every dirty store now, on the calling thread */
+    public void flush() {
+        synchronized (this) {
+            if (this.pending != null) {
+                this.pending.cancel(false);
+            }
+        }
+        this.writeDirty();
+    }
+
+    private void writeDirty() {
+        synchronized (this.writeLock) {
+            Map<DataSavable, Context> stores;
+            synchronized (this) {
+                this.pending = null;
+                stores = new LinkedHashMap<>(this.dirty);
+                this.dirty.clear();
+            }
+            for (Map.Entry<DataSavable, Context> entry : stores.entrySet()) {
+                DataSavable data = entry.getKey();
+                Context ctx = entry.getValue();
+                try {
+                    Object snapshot = null;
+                    if (data instanceof SnapshotSavable) {
+                        snapshot = ((SnapshotSavable) data).takeSnapshot();
+                    }
+                    if (snapshot != null) {
+                        ((SnapshotSavable) data).saveSnapshot(ctx, snapshot);
+                    } else {
+                        data.save(ctx);
+                    }
+                    synchronized (this) {
+                        this.writeCount++;
+                    }
+                } catch (ConcurrentModificationException e) {
+                    // Changed while serializing, write the new state later
+                    this.saveLater(ctx, data);
+                } catch (IOError e) {
+                    Log.e(LOG_TAG, "Unable to save " + data.getClass().getName(), e);
+                    ErrorListener listener;
+                    // Keep it dirty for the next flush, without retrying in loop
+                    synchronized (this) {
+                        if (!this.dirty.containsKey(data)) {
+                            this.dirty.put(data, ctx);
+                        }
+                        listener = this.errorListener;
+                    }
+                    if (listener != null) {
+                        listener.onSaveFailed(data, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private ScheduledExecutorService executor() {
+        if (this.executor == null) {
+            this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DataSaver");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return this.executor;
+    }
+}
@@ -21,7 +21,9 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import fr.pasteque.client.Pasteque;
+import fr.pasteque.client.data.DataSavable.ImageCacheData;
 import fr.pasteque.client.utils.BitmapLoader;
+import fr.pasteque.client.utils.StringUtils;
 import fr.pasteque.client.utils.file.File;
 import fr.pasteque.client.utils.file.InternalFile;
 
@@ -29,89 +31,210 @@ import java.io.IOException;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Product, categories and other image data loader
+ * Product, categories and other image data loader.
+ * Images are stored by the hash of their content and Data.ImageCache
+ * tells which one each item uses, so that an unchanged image is kept
+ * across syncs and a changed one never shows the cached old bitmap.
  */
 public class ImagesData {
 
+    /** Files of the images stored before content hashes, read as fallback */
     private static final String PRODUCT_PREFIX = "img_prd_";
     private static final String CATEGORY_PREFIX = "img_cat_";
     private static final String PAYMENTMODE_PREFIX = "img_pm_";
+    private static final String HASH_PREFIX = "img_sha1_";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String PRODUCT_KEY = "prd_";
+    private static final String CATEGORY_KEY = "cat_";
+    private static final String PAYMENTMODE_KEY = "pm_";
     private static final String IMAGE_DIRECTORY = "images";
 
     private static final BitmapLoader bitmapLoader = new BitmapLoader();
+    /** Makes temporary files unique, images are stored from many threads */
+    private static final AtomicInteger tmpCount = new AtomicInteger();
+
+    /** @return the key of the product image in Data.ImageCache */
+    public static String productKey(String productId) {
+        return PRODUCT_KEY + productId;
+    }
+
+    /** @return the key of the category image in Data.ImageCache */
+    public static String categoryKey(String categoryId) {
+        return CATEGORY_KEY + categoryId;
+    }
+
+    /** @return the key of the payment mode image in Data.ImageCache */
+    public static String paymentModeKey(int paymentModeId) {
+        return PAYMENTMODE_KEY + paymentModeId;
+    }
 
     public static void clearProducts(Context ctx)
             throws IOException {
-        for (String file : ctx.fileList()) {
-            if (file.startsWith(PRODUCT_PREFIX)) {
-                ctx.deleteFile(file);
-            }
-        }
+        Data.ImageCache.removeAll(PRODUCT_KEY);
     }
 
     public static void clearCategories(Context ctx)
             throws IOException {
-        for (String file : ctx.fileList()) {
-            if (file.startsWith(CATEGORY_PREFIX)) {
-                ctx.deleteFile(file);
-            }
-        }
+        Data.ImageCache.removeAll(CATEGORY_KEY);
     }
 
     public static void clearPaymentModes(Context ctx)
             throws IOException {
-        for (String file : ctx.fileList()) {
-            if (file.startsWith(PAYMENTMODE_PREFIX)) {
-                ctx.deleteFile(file);
+        Data.ImageCache.removeAll(PAYMENTMODE_KEY);
+    }
+
+    /** Erase the image of a product, if any */
+    public static void deleteProductImage(String productId) {
+        Data.ImageCache.remove(productKey(productId));
+        new InternalFile(IMAGE_DIRECTORY, PRODUCT_PREFIX + productId).delete();
+    }
+
+    /** Forget the image of an item that has none anymore */
+    public static void removeImage(String key) {
+        Data.ImageCache.remove(key);
+    }
+
+    /** Forget the images of the items that are not in keys */
+    public static void retainImages(Collection<String> keys) {
+        Data.ImageCache.retain(keys);
+    }
+
+    /**
+     * Delete the files no item uses anymore, including the ones stored
+     * before content hashes. Call it only once every image is stored.
+     */
+    public static void pruneImages() {
+        Set<String> hashes = Data.ImageCache.getHashes();
+        java.io.File dir = Pasteque.getAppContext().getDir(IMAGE_DIRECTORY,
+                Context.MODE_PRIVATE);
+        java.io.File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (java.io.File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(HASH_PREFIX)
+                    || !hashes.contains(name.substring(HASH_PREFIX.length()))) {
+                f.delete();
             }
         }
     }
 
-    private static Bitmap getBitmap(String filename) {
-        return bitmapLoader.get(IMAGE_DIRECTORY, filename);
+    /**
+     * Get the stored image of an item, to request it again only if it
+     * changed.
+     * @return the entry, null if not stored
+     */
+    public static ImageCacheData.Entry getCachedImage(String key) {
+        ImageCacheData.Entry e = Data.ImageCache.get(key);
+        if (e == null
+                || !new InternalFile(IMAGE_DIRECTORY, HASH_PREFIX + e.getHash()).exists()) {
+            return null;
+        }
+        return e;
     }
 
+    private static Bitmap getBitmap(String key, String legacyFilename) {
+        ImageCacheData.Entry e = Data.ImageCache.get(key);
+        if (e != null) {
+            return bitmapLoader.get(IMAGE_DIRECTORY, HASH_PREFIX + e.getHash());
+        }
+        return bitmapLoader.get(IMAGE_DIRECTORY, legacyFilename);
+    }
 
-    private static void write(FileOutputStream fileOutputStream, byte[] data) throws IOException {
-        fileOutputStream.write(data, 0, data.length);
-        fileOutputStream.close();
+    /**
+     * Store the content once by its hash and point the item to it.
+     * @param etag the ETag header of the response, may be null
+     * @param lastModified the Last-Modified header of the response, may be null
+     */
+    private static void store(String key, String legacyFilename, byte[] data,
+            String etag, String lastModified) throws IOException {
+        String hash = hash(data);
+        String filename = HASH_PREFIX + hash;
+        if (!new InternalFile(IMAGE_DIRECTORY, filename).exists()) {
+            // Never leave a truncated file under the hash name
+            InternalFile tmp = new InternalFile(IMAGE_DIRECTORY, filename + "."
+                    + tmpCount.incrementAndGet() + TMP_SUFFIX);
+            write(new FileOutputStream(tmp), data);
+            if (!tmp.renameTo(new InternalFile(IMAGE_DIRECTORY, filename))) {
+                tmp.delete();
+                throw new IOException("Unable to store image " + key);
+            }
+        }
+        Data.ImageCache.put(key, new ImageCacheData.Entry(hash, etag, lastModified));
+        new InternalFile(IMAGE_DIRECTORY, legacyFilename).delete();
+    }
+
+    private static String hash(byte[] data) throws IOException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return StringUtils.byte2hex(md.digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
     }
 
-    private static FileOutputStream getFileOutputStream(String s) throws FileNotFoundException {
-        return new FileOutputStream(new InternalFile(IMAGE_DIRECTORY, s));
+    private static void write(FileOutputStream fileOutputStream, byte[] data) throws IOException {
+        try {
+            fileOutputStream.write(data, 0, data.length);
+        } finally {
+            fileOutputStream.close();
+        }
     }
 
     public static Bitmap getCategoryImage(String categoryId) {
-        return getBitmap(CATEGORY_PREFIX + categoryId);
+        return getBitmap(categoryKey(categoryId), CATEGORY_PREFIX + categoryId);
     }
 
     public static Bitmap getProductImage(String productId) {
-        return getBitmap(PRODUCT_PREFIX + productId);
+        return getBitmap(productKey(productId), PRODUCT_PREFIX + productId);
     }
 
     public static Bitmap getPaymentModeImage(int paymentModeId)
             throws IOException {
-        return getBitmap(PAYMENTMODE_PREFIX
-                + paymentModeId);
+        return getBitmap(paymentModeKey(paymentModeId),
+                PAYMENTMODE_PREFIX + paymentModeId);
     }
 
     public static void storeCategoryImage(String categoryId, byte[] data)
             throws IOException {
-        write(getFileOutputStream(CATEGORY_PREFIX + categoryId), data);
+        storeCategoryImage(categoryId, data, null, null);
+    }
+
+    public static void storeCategoryImage(String categoryId, byte[] data,
+            String etag, String lastModified) throws IOException {
+        store(categoryKey(categoryId), CATEGORY_PREFIX + categoryId, data,
+                etag, lastModified);
     }
 
     public static void storeProductImage(String productId, byte[] data)
             throws IOException {
-        write(getFileOutputStream(PRODUCT_PREFIX + productId), data);
+        storeProductImage(productId, data, null, null);
+    }
+
+    public static void storeProductImage(String productId, byte[] data,
+            String etag, String lastModified) throws IOException {
+        store(productKey(productId), PRODUCT_PREFIX + productId, data,
+                etag, lastModified);
     }
 
     public static void storePaymentModeImage(int paymentModeId,
                                              byte[] data)
             throws IOException {
-        write(getFileOutputStream(PAYMENTMODE_PREFIX
-                + paymentModeId), data);
+        storePaymentModeImage(paymentModeId, data, null, null);
+    }
+
+    public static void storePaymentModeImage(int paymentModeId, byte[] data,
+            String etag, String lastModified) throws IOException {
+        store(paymentModeKey(paymentModeId), PAYMENTMODE_PREFIX + paymentModeId,
+                data, etag, lastModified);
     }
 
 }
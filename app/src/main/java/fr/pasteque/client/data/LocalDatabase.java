@@ -0,0 +1,517 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import com.google.gson.Gson;
+import fr.pasteque.client.models.Customer;
+import fr.pasteque.client.models.Payment;
+import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.models.ReceiptSummary;
+import fr.pasteque.client.models.TicketLine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SQLite storage for receipts, and for customers when selected
+ * in Configure instead of the JSON file.
+ * Objects are kept as JSON along with the indexed columns they are
+ * looked up by, lines and payments are in their own tables.
+ * Methods throw SQLiteException on failure and JsonParseException
+ * on unreadable content.
+ */
+public class LocalDatabase extends SQLiteOpenHelper {
+
+    private static final String NAME = "pasteque.db";
+    private static final int VERSION = 1;
+
+    private static final String INSERT_CUSTOMER = "INSERT OR REPLACE INTO customers "
+            + "(id, card, name, listed, created, json) VALUES (?, ?, ?, ?, ?, ?)";
+
+    private static LocalDatabase instance;
+
+    public static synchronized LocalDatabase get(Context ctx) {
+        if (instance == null) {
+            instance = new LocalDatabase(ctx.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /** @return true if the database was created, without creating it */
+    public static boolean exists(Context ctx) {
+        return ctx.getDatabasePath(NAME).exists();
+    }
+
+    private LocalDatabase(Context ctx) {
+        super(ctx, NAME, null, VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE receipts ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "ticket_id TEXT, ticket_number TEXT, payment_time INTEGER, "
+                + "customer_id TEXT, total REAL, cashier TEXT, content TEXT, "
+                + "json TEXT NOT NULL)");
+        // A receipt is written once, see ReceiptData.receiptKey
+        db.execSQL("CREATE UNIQUE INDEX receipts_key ON receipts (ticket_number, payment_time)");
+        db.execSQL("CREATE INDEX receipts_ticket_id ON receipts (ticket_id)");
+        db.execSQL("CREATE INDEX receipts_customer_id ON receipts (customer_id)");
+        db.execSQL("CREATE TABLE ticket_lines ("
+                + "receipt_id INTEGER NOT NULL REFERENCES receipts (_id) ON DELETE CASCADE, "
+                + "line INTEGER NOT NULL, product_id TEXT, quantity REAL)");
+        db.execSQL("CREATE INDEX ticket_lines_receipt_id ON ticket_lines (receipt_id)");
+        db.execSQL("CREATE INDEX ticket_lines_product_id ON ticket_lines (product_id)");
+        db.execSQL("CREATE TABLE payments ("
+                + "receipt_id INTEGER NOT NULL REFERENCES receipts (_id) ON DELETE CASCADE, "
+                + "mode TEXT, amount REAL)");
+        db.execSQL("CREATE INDEX payments_receipt_id ON payments (receipt_id)");
+        db.execSQL("CREATE TABLE customers ("
+                + "id TEXT PRIMARY KEY, card TEXT, name TEXT, "
+                + "listed INTEGER NOT NULL, created INTEGER NOT NULL, json TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX customers_card ON customers (card)");
+        db.execSQL("CREATE TABLE resolved_ids ("
+                + "local_id TEXT PRIMARY KEY, server_id TEXT NOT NULL)");
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            // Set on each connection, onConfigure needs API 16
+            db.execSQL("PRAGMA foreign_keys=ON");
+        }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // First version
+    }
+
+    /*
+     * Receipts
+     */
+
+    /** @return every receipt, in insertion order */
+    public List<Receipt> readReceipts() {
+        Cursor c = this.getReadableDatabase().rawQuery(
+                "SELECT json FROM receipts ORDER BY _id", null);
+        try {
+            List<Receipt> receipts = new ArrayList<>(c.getCount());
+            Gson gson = DataGson.get();
+            while (c.moveToNext()) {
+                receipts.add(gson.fromJson(c.getString(0), Receipt.class));
+            }
+            return receipts;
+        } finally {
+            c.close();
+        }
+    }
+
+    /** @return receipts from offset, in insertion order */
+    public List<Receipt> readReceipts(int offset, int limit) {
+        Cursor c = this.getReadableDatabase().rawQuery(
+                "SELECT json FROM receipts ORDER BY _id LIMIT ? OFFSET ?",
+                new String[] {String.valueOf(limit), String.valueOf(offset)});
+        try {
+            List<Receipt> receipts = new ArrayList<>(c.getCount());
+            Gson gson = DataGson.get();
+            while (c.moveToNext()) {
+                receipts.add(gson.fromJson(c.getString(0), Receipt.class));
+            }
+            return receipts;
+        } finally {
+            c.close();
+        }
+    }
+
+    public int countReceipts() {
+        Cursor c = this.getReadableDatabase().rawQuery(
+                "SELECT COUNT(*) FROM receipts", null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /** @return summaries of receipts from offset, in insertion order */
+    public List<ReceiptSummary> readSummaries(int offset, int limit) {
+        Cursor c = this.getReadableDatabase().rawQuery("SELECT ticket_number, payment_time, "
+                + "total, cashier, content FROM receipts ORDER BY _id LIMIT ? OFFSET ?",
+                new String[] {String.valueOf(limit), String.valueOf(offset)});
+        try {
+            List<ReceiptSummary> summaries = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                summaries.add(new ReceiptSummary(c.getString(0), c.getLong(1),
+                        c.getDouble(2), c.getString(3), c.getString(4)));
+            }
+            return summaries;
+        } finally {
+            c.close();
+        }
+    }
+
+    /** @return the receipt of this summary, null if not found */
+    public Receipt findReceipt(ReceiptSummary s) {
+        Cursor c = this.getReadableDatabase().rawQuery("SELECT json FROM receipts "
+                + "WHERE ticket_number = ? AND payment_time = ?",
+                new String[] {s.getTicketNumber(), String.valueOf(s.getPaymentTime())});
+        try {
+            return c.moveToFirst() ? DataGson.get().fromJson(c.getString(0), Receipt.class) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /** @return the receipt of the ticket with this id, null if not found */
+    public Receipt findReceiptByTicketId(String ticketId) {
+        return this.findReceipt("ticket_id", ticketId);
+    }
+
+    /** @return the receipt with this ticket number, null if not found */
+    public Receipt findReceiptByTicketNumber(String ticketNumber) {
+        return this.findReceipt("ticket_number", ticketNumber);
+    }
+
+    private Receipt findReceipt(String column, String value) {
+        if (value == null) {
+            return null;
+        }
+        Cursor c = this.getReadableDatabase().rawQuery(
+                "SELECT json FROM receipts WHERE " + column + " = ? ORDER BY _id LIMIT 1",
+                new String[] {value});
+        try {
+            return c.moveToFirst() ? DataGson.get().fromJson(c.getString(0), Receipt.class) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Insert a single receipt with its lines and payments in one transaction.
+     * @return false if the receipt was already stored
+     */
+    public boolean insertReceipt(Receipt r) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            boolean inserted = this.insertReceipt(db, r, DataGson.get());
+            db.setTransactionSuccessful();
+            return inserted;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Replace every stored receipt in one transaction */
+    public void replaceReceipts(List<Receipt> receipts) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        Gson gson = DataGson.get();
+        db.beginTransaction();
+        try {
+            db.delete("receipts", null, null);
+            for (Receipt r : receipts) {
+                this.insertReceipt(db, r, gson);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private boolean insertReceipt(SQLiteDatabase db, Receipt r, Gson gson) {
+        ContentValues values = new ContentValues();
+        values.put("ticket_id", r.getTicket().getId());
+        values.put("ticket_number", r.getTicketNumber());
+        values.put("payment_time", r.getPaymentTime());
+        Customer customer = r.getTicket().getCustomer();
+        values.put("customer_id", customer != null ? customer.getId() : null);
+        putSummary(values, new ReceiptSummary(r));
+        values.put("json", gson.toJson(r, Receipt.class));
+        long id = db.insertWithOnConflict("receipts", null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (id == -1) {
+            return false;
+        }
+        SQLiteStatement line = db.compileStatement("INSERT INTO ticket_lines "
+                + "(receipt_id, line, product_id, quantity) VALUES (?, ?, ?, ?)");
+        try {
+            int i = 0;
+            for (TicketLine l : r.getTicket().getLines()) {
+                line.bindLong(1, id);
+                line.bindLong(2, i++);
+                bindString(line, 3, l.getProduct() != null ? l.getProduct().getId() : null);
+                line.bindDouble(4, l.getQuantity());
+                line.executeInsert();
+            }
+        } finally {
+            line.close();
+        }
+        SQLiteStatement payment = db.compileStatement("INSERT INTO payments "
+                + "(receipt_id, mode, amount) VALUES (?, ?, ?)");
+        try {
+            for (Payment p : r.getPayments()) {
+                payment.bindLong(1, id);
+                bindString(payment, 2, p.getMode() != null ? p.getMode().getCode() : null);
+                payment.bindDouble(3, p.getAmount());
+                payment.executeInsert();
+            }
+        } finally {
+            payment.close();
+        }
+        return true;
+    }
+
+    private static void putSummary(ContentValues values, ReceiptSummary s) {
+        values.put("total", s.getTotal());
+        values.put("cashier", s.getCashier());
+        values.put("content", s.getContent());
+    }
+
+    /*
+     * Customers
+     */
+
+    /** Customers as stored by CustomerData */
+    public static class Customers {
+        public List<Customer> customers = new ArrayList<>();
+        public List<Customer> createdCustomers = new ArrayList<>();
+        public HashMap<String, String> resolvedIds = new HashMap<>();
+
+        public boolean isEmpty() {
+            return this.customers.isEmpty() && this.createdCustomers.isEmpty()
+                    && this.resolvedIds.isEmpty();
+        }
+    }
+
+    /** A customer row, with the lists it belongs to */
+    static class CustomerRow {
+        final Customer customer;
+        final boolean listed;
+        final boolean created;
+        final String json;
+
+        private CustomerRow(Customer customer, boolean listed, boolean created,
+                            String json) {
+            this.customer = customer;
+            this.listed = listed;
+            this.created = created;
+            this.json = json;
+        }
+    }
+
+    /**
+     * Get the rows of some customers, by id. Listed customers come first,
+     * then the created ones not listed. Only the customers to write are
+     * converted to JSON.
+     * @param ids ids of the customers to get, null for every customer
+     */
+    static Map<String, CustomerRow> customerRows(List<Customer> customers,
+            List<Customer> createdCustomers, Set<String> ids) {
+        Set<String> created = new HashSet<>();
+        for (Customer c : createdCustomers) {
+            created.add(c.getId());
+        }
+        Gson gson = DataGson.get();
+        Map<String, CustomerRow> rows = new LinkedHashMap<>();
+        for (Customer c : customers) {
+            if (ids == null || ids.contains(c.getId())) {
+                rows.put(c.getId(), new CustomerRow(c, true, created.contains(c.getId()),
+                        gson.toJson(c, Customer.class)));
+            }
+        }
+        for (Customer c : createdCustomers) {
+            if ((ids == null || ids.contains(c.getId())) && !rows.containsKey(c.getId())) {
+                rows.put(c.getId(), new CustomerRow(c, false, true,
+                        gson.toJson(c, Customer.class)));
+            }
+        }
+        return rows;
+    }
+
+    /** @return the resolved ids added or changed since the stored ones */
+    static Map<String, String> changedResolvedIds(Map<String, String> storedResolvedIds,
+            Map<String, String> resolvedIds) {
+        Map<String, String> changed = new HashMap<>();
+        for (Map.Entry<String, String> entry : resolvedIds.entrySet()) {
+            if (!entry.getValue().equals(storedResolvedIds.get(entry.getKey()))) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changed;
+    }
+
+    /** @return the local ids that are not resolved anymore */
+    static Set<String> removedResolvedIds(Map<String, String> storedResolvedIds,
+            Map<String, String> resolvedIds) {
+        Set<String> removed = new HashSet<>(storedResolvedIds.keySet());
+        removed.removeAll(resolvedIds.keySet());
+        return removed;
+    }
+
+    public Customers readCustomers() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        Customers result = new Customers();
+        Gson gson = DataGson.get();
+        Cursor c = db.rawQuery("SELECT json, listed, created FROM customers ORDER BY rowid", null);
+        try {
+            while (c.moveToNext()) {
+                // Same instance in both lists, as CustomerData.addCreatedCustomer does
+                Customer customer = gson.fromJson(c.getString(0), Customer.class);
+                boolean listed = c.getInt(1) != 0;
+                boolean created = c.getInt(2) != 0;
+                if (listed) {
+                    result.customers.add(customer);
+                }
+                if (created) {
+                    result.createdCustomers.add(customer);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        c = db.rawQuery("SELECT local_id, server_id FROM resolved_ids", null);
+        try {
+            while (c.moveToNext()) {
+                result.resolvedIds.put(c.getString(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return result;
+    }
+
+    /** Replace every stored customer in one transaction */
+    public void replaceCustomers(List<Customer> customers,
+            List<Customer> createdCustomers, Map<String, String> resolvedIds) {
+        Map<String, CustomerRow> rows = customerRows(customers, createdCustomers, null);
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(INSERT_CUSTOMER);
+        try {
+            db.delete("customers", null, null);
+            for (CustomerRow row : rows.values()) {
+                bindCustomer(insert, row);
+                insert.executeInsert();
+            }
+            db.delete("resolved_ids", null, null);
+            for (Map.Entry<String, String> entry : resolvedIds.entrySet()) {
+                putResolvedId(db, entry.getKey(), entry.getValue());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Write in one transaction only the changed customers and the
+     * resolved ids that changed since the stored ones were written.
+     * @param changedIds ids of the customers added, edited or removed
+     */
+    public void updateCustomers(List<Customer> customers,
+            List<Customer> createdCustomers, Set<String> changedIds,
+            Map<String, String> storedResolvedIds, Map<String, String> resolvedIds) {
+        Map<String, CustomerRow> rows = customerRows(customers, createdCustomers,
+                changedIds);
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(INSERT_CUSTOMER);
+        // Rows are updated in place to keep their order
+        SQLiteStatement update = db.compileStatement("UPDATE customers "
+                + "SET id = ?, card = ?, name = ?, listed = ?, created = ?, json = ? "
+                + "WHERE id = ?");
+        try {
+            for (String id : changedIds) {
+                if (!rows.containsKey(id)) {
+                    db.delete("customers", "id = ?", new String[] {id});
+                }
+            }
+            for (Map.Entry<String, CustomerRow> entry : rows.entrySet()) {
+                bindCustomer(update, entry.getValue());
+                bindString(update, 7, entry.getKey());
+                if (update.executeUpdateDelete() == 0) {
+                    bindCustomer(insert, entry.getValue());
+                    insert.executeInsert();
+                }
+            }
+            for (String localId : removedResolvedIds(storedResolvedIds, resolvedIds)) {
+                db.delete("resolved_ids", "local_id = ?", new String[] {localId});
+            }
+            for (Map.Entry<String, String> entry
+                    : changedResolvedIds(storedResolvedIds, resolvedIds).entrySet()) {
+                putResolvedId(db, entry.getKey(), entry.getValue());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            update.close();
+            db.endTransaction();
+        }
+    }
+
+    private static void putResolvedId(SQLiteDatabase db, String localId, String serverId) {
+        ContentValues values = new ContentValues();
+        values.put("local_id", localId);
+        values.put("server_id", serverId);
+        db.insertWithOnConflict("resolved_ids", null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public void deleteCustomers() {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete("customers", null, null);
+            db.delete("resolved_ids", null, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void bindCustomer(SQLiteStatement statement, CustomerRow row) {
+        bindString(statement, 1, row.customer.getId());
+        bindString(statement, 2, row.customer.getCard());
+        bindString(statement, 3, row.customer.getName());
+        statement.bindLong(4, row.listed ? 1 : 0);
+        statement.bindLong(5, row.created ? 1 : 0);
+        statement.bindString(6, row.json);
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data;
+
+import fr.pasteque.client.models.Catalog;
+import fr.pasteque.client.models.Category;
+import fr.pasteque.client.models.Product;
+import fr.pasteque.client.utils.BarcodeCheck;
+import org.apache.commons.io.Charsets;
+
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static fr.pasteque.client.data.CatalogFile.*;
+
+/**
+ * Read-only catalog backed by a mapped {@link CatalogFile}.
+ * Categories are read when opening. Products are flyweights reading
+ * their values from the file, strings being decoded once when first read.
+ */
+public class MappedCatalog extends Catalog {
+
+    private final transient ByteBuffer buffer;
+    private final int stringCount;
+    private final int categoryCount;
+    private final int productCount;
+    private final int barcodeCount;
+    private final int idIndexCapacity;
+    private final int stringOffsetsPos;
+    private final int stringDataPos;
+    private final int categoriesPos;
+    private final int membersPos;
+    private final int productsPos;
+    private final int idIndexPos;
+    private final int barcodesPos;
+
+    private final transient String[] strings;
+    private final transient Product[] products;
+    private final Map<Category, Integer> categoryIndexes = new HashMap<>();
+    private final Map<Category, List<Product>> categoryProducts = new HashMap<>();
+
+    MappedCatalog(ByteBuffer buffer) throws StreamCorruptedException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new StreamCorruptedException("Not a catalog file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new StreamCorruptedException("Unsupported catalog version " + buffer.getInt(4));
+        }
+        this.stringCount = buffer.getInt(8);
+        this.categoryCount = buffer.getInt(12);
+        this.productCount = buffer.getInt(16);
+        int memberCount = buffer.getInt(20);
+        this.barcodeCount = buffer.getInt(24);
+        this.idIndexCapacity = buffer.getInt(28);
+        this.stringOffsetsPos = HEADER_SIZE;
+        this.stringDataPos = this.stringOffsetsPos + 4 * (this.stringCount + 1);
+        if (this.stringCount < 0 || this.stringDataPos > buffer.capacity()) {
+            throw new StreamCorruptedException("Truncated catalog file");
+        }
+        this.categoriesPos = this.stringDataPos + buffer.getInt(this.stringDataPos - 4);
+        this.membersPos = this.categoriesPos + CATEGORY_RECORD_SIZE * this.categoryCount;
+        this.productsPos = this.membersPos + 4 * memberCount;
+        this.idIndexPos = this.productsPos + PRODUCT_RECORD_SIZE * this.productCount;
+        this.barcodesPos = this.idIndexPos + 4 * this.idIndexCapacity;
+        if (this.barcodesPos + 4 * this.barcodeCount != buffer.capacity()) {
+            throw new StreamCorruptedException("Catalog file size mismatch");
+        }
+        this.strings = new String[this.stringCount];
+        this.products = new Product[this.productCount];
+        this.readCategories();
+        // Read from its own file or built on first search
+        this.setSearchIndex(null);
+    }
+
+    private void readCategories() {
+        Category[] categories = new Category[this.categoryCount];
+        for (int i = 0; i < this.categoryCount; i++) {
+            int record = this.categoriesPos + i * CATEGORY_RECORD_SIZE;
+            Category c = new Category(this.string(this.buffer.getInt(record + CAT_ID)),
+                    this.string(this.buffer.getInt(record + CAT_LABEL)),
+                    (this.buffer.getInt(record + CAT_FLAGS) & FLAG_HAS_IMAGE) != 0);
+            categories[i] = c;
+            int parent = this.buffer.getInt(record + CAT_PARENT);
+            if (parent != NONE) {
+                categories[parent].addSubcategory(c);
+            }
+        }
+        // Category hash codes depend on subcategories, index them once complete
+        for (int i = 0; i < this.categoryCount; i++) {
+            this.categoryIndexes.put(categories[i], i);
+            int record = this.categoriesPos + i * CATEGORY_RECORD_SIZE;
+            if (this.buffer.getInt(record + CAT_PARENT) == NONE) {
+                super.addRootCategory(categories[i]);
+            }
+        }
+    }
+
+    @Override
+    public void addRootCategory(Category c) {
+        throw new UnsupportedOperationException("Mapped catalog is read-only");
+    }
+
+    @Override
+    public void addProduct(Category c, Product p) {
+        throw new UnsupportedOperationException("Mapped catalog is read-only");
+    }
+
+    @Override
+    public void addProduct(Product p) {
+        throw new UnsupportedOperationException("Mapped catalog is read-only");
+    }
+
+    @Override
+    public synchronized List<Product> getProducts(Category c) {
+        List<Product> result = this.categoryProducts.get(c);
+        if (result != null) {
+            return result;
+        }
+        Integer index = this.categoryIndexes.get(c);
+        if (index == null) {
+            return null;
+        }
+        int record = this.categoriesPos + index * CATEGORY_RECORD_SIZE;
+        int first = this.buffer.getInt(record + CAT_FIRST_MEMBER);
+        int count = this.buffer.getInt(record + CAT_MEMBER_COUNT);
+        result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(this.product(this.buffer.getInt(this.membersPos + 4 * (first + i))));
+        }
+        this.categoryProducts.put(c, result);
+        return result;
+    }
+
+    @Override
+    public Product getProduct(String id) {
+        if (id == null) {
+            return null;
+        }
+        int mask = this.idIndexCapacity - 1;
+        int slot = hash(id) & mask;
+        while (true) {
+            int index = this.buffer.getInt(this.idIndexPos + 4 * slot);
+            if (index == NONE) {
+                return null;
+            }
+            if (id.equals(this.productString(index, PRD_ID))) {
+                return this.product(index);
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /** Look for the code as is, then in its other form, without copying it */
+    @Override
+    public Product getProductByBarcode(String barcode) {
+        if (barcode == null) {
+            return null;
+        }
+        int index = this.findBarcode(barcode, 0, false);
+        if (index == NONE) {
+            if (BarcodeCheck.upcA(barcode)) {
+                index = this.findBarcode(barcode, 0, true);
+            } else if (barcode.startsWith("0") && BarcodeCheck.ean13(barcode)) {
+                index = this.findBarcode(barcode, 1, false);
+            }
+        }
+        return index == NONE ? null : this.product(index);
+    }
+
+    @Override
+    public Iterator<Product> productsLikeBarcode(final String prefix, final int limit) {
+        final int start = this.lowerBound(prefix, 0, false);
+        return new Iterator<Product>() {
+            private int pos = start;
+
+            @Override
+            public boolean hasNext() {
+                return this.pos - start < limit && this.pos < barcodeCount
+                        && productString(barcodeIndex(this.pos), PRD_BARCODE).startsWith(prefix);
+            }
+
+            @Override
+            public Product next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return product(barcodeIndex(this.pos++));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Mapped catalog is read-only");
+            }
+        };
+    }
+
+    @Override
+    public int getProductCount() {
+        return this.productCount;
+    }
+
+    @Override
+    public Collection<Product> getAllProducts() {
+        List<Product> result = new ArrayList<>(this.productCount);
+        for (int i = 0; i < this.productCount; i++) {
+            result.add(this.product(i));
+        }
+        return result;
+    }
+
+    /**
+     * Find a product by barcode.
+     * @see #compareBarcode(String, String, int, boolean)
+     * @return the index of the product, NONE if not found
+     */
+    private int findBarcode(String barcode, int skip, boolean zero) {
+        int pos = this.lowerBound(barcode, skip, zero);
+        if (pos < this.barcodeCount) {
+            int index = this.barcodeIndex(pos);
+            if (compareBarcode(this.productString(index, PRD_BARCODE), barcode, skip, zero) == 0) {
+                return index;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Compare like String.compareTo a code to a barcode read
+     * from skip and preceded by a 0 if zero is set.
+     */
+    private static int compareBarcode(String code, String barcode, int skip, boolean zero) {
+        int shift = zero ? 1 : 0;
+        int length = barcode.length() - skip + shift;
+        int common = Math.min(code.length(), length);
+        for (int i = 0; i < common; i++) {
+            char c = (zero && i == 0) ? '0' : barcode.charAt(skip + i - shift);
+            if (code.charAt(i) != c) {
+                return code.charAt(i) - c;
+            }
+        }
+        return code.length() - length;
+    }
+
+    /**
+     * @return the first position in the barcode index not lower than barcode
+     * @see #compareBarcode(String, String, int, boolean)
+     */
+    private int lowerBound(String barcode, int skip, boolean zero) {
+        int low = 0;
+        int high = this.barcodeCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            String code = this.productString(this.barcodeIndex(mid), PRD_BARCODE);
+            if (compareBarcode(code, barcode, skip, zero) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int barcodeIndex(int pos) {
+        return this.buffer.getInt(this.barcodesPos + 4 * pos);
+    }
+
+    private String productString(int index, int field) {
+        return this.string(this.buffer.getInt(this.productsPos + index * PRODUCT_RECORD_SIZE + field));
+    }
+
+    private double productDouble(int index, int field) {
+        return this.buffer.getDouble(this.productsPos + index * PRODUCT_RECORD_SIZE + field);
+    }
+
+    private boolean productFlag(int index, int flag) {
+        return (this.buffer.getInt(this.productsPos + index * PRODUCT_RECORD_SIZE + PRD_FLAGS) & flag) != 0;
+    }
+
+    /** Get the product of a record, the same instance each time */
+    private Product product(int index) {
+        Product p = this.products[index];
+        if (p == null) {
+            p = new MappedProduct(index);
+            this.products[index] = p;
+        }
+        return p;
+    }
+
+    /** Decode a string of the table, once */
+    private String string(int index) {
+        if (index == NONE) {
+            return null;
+        }
+        String s = this.strings[index];
+        if (s == null) {
+            int start = this.buffer.getInt(this.stringOffsetsPos + 4 * index);
+            int end = this.buffer.getInt(this.stringOffsetsPos + 4 * (index + 1));
+            byte[] bytes = new byte[end - start];
+            ByteBuffer view = this.buffer.duplicate();
+            view.position(this.stringDataPos + start);
+            view.get(bytes);
+            s = new String(bytes, Charsets.UTF_8);
+            this.strings[index] = s;
+        }
+        return s;
+    }
+
+    /**
+     * Product reading its values from its record, holding only its index.
+     * It is serialized as a plain product.
+     */
+    private class MappedProduct extends Product {
+
+        private final int index;
+
+        MappedProduct(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getId() {
+            return productString(this.index, PRD_ID);
+        }
+
+        @Override
+        public String getLabel() {
+            return productString(this.index, PRD_LABEL);
+        }
+
+        @Override
+        protected String getBaseLabel() {
+            return this.getLabel();
+        }
+
+        @Override
+        public String getBarcode() {
+            return productString(this.index, PRD_BARCODE);
+        }
+
+        @Override
+        protected double getBasePrice() {
+            return productDouble(this.index, PRD_PRICE);
+        }
+
+        @Override
+        public String getTaxId() {
+            return productString(this.index, PRD_TAX_ID);
+        }
+
+        @Override
+        public double getTaxRate() {
+            return productDouble(this.index, PRD_TAX_RATE);
+        }
+
+        @Override
+        public double getDiscountRate() {
+            return productDouble(this.index, PRD_DISCOUNT_RATE);
+        }
+
+        @Override
+        public boolean isScaled() {
+            return productFlag(this.index, FLAG_SCALED);
+        }
+
+        @Override
+        public boolean hasImage() {
+            return productFlag(this.index, FLAG_HAS_IMAGE);
+        }
+
+        @Override
+        public boolean isDiscountRateEnabled() {
+            return productFlag(this.index, FLAG_DISCOUNT_ENABLED);
+        }
+
+        private Object writeReplace() {
+            return new Product(this.getId(), this.getLabel(), this.getBarcode(),
+                    this.getBasePrice(), this.getTaxId(), this.getTaxRate(),
+                    this.isScaled(), this.hasImage(), this.getDiscountRate(),
+                    this.isDiscountRateEnabled());
+        }
+    }
+}
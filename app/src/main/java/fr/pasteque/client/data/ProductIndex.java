@@ -0,0 +1,440 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.data;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Full-text index of product labels for type-ahead search.
+ * <p>Labels are split into lower case tokens without accents. The
+ * tokens are kept sorted, so that the tokens starting with a prefix
+ * are a range found by binary search, and each token lists the
+ * products it appears in along with its position in the label.
+ * <p>Products are added while the catalog is built, the sorted form
+ * is made on the first search. Every token of a query must match the
+ * start of a token of the label. Results are ranked by match quality,
+ * then by sales count, then in the order products were added.
+ */
+public class ProductIndex {
+
+    static final int MAGIC = 0x50514958; // PQIX
+    static final int VERSION = 1;
+
+    /** Postings hold the product position shifted by this */
+    private static final int POSITION_SHIFT = 8;
+    private static final int MAX_TOKEN_POSITION = (1 << POSITION_SHIFT) - 1;
+    /** Products indexed at most, positions are packed in sort keys */
+    public static final int MAX_PRODUCTS = 1 << 21;
+
+    private static final int SCORE_PREFIX = 2;
+    private static final int SCORE_EXACT = 3;
+    /** The label starts with the first token of the query */
+    private static final int SCORE_FIRST = 2;
+
+    /** Product ids, by position */
+    private final List<String> ids = new ArrayList<>();
+    private final Map<String, Integer> positions = new HashMap<>();
+    private int[] sales = new int[16];
+    /** Postings by token while adding, null once sorted */
+    private Map<String, int[]> building = new HashMap<>();
+    // Sorted form: postings of tokens[i] are postings[starts[i]..starts[i + 1]]
+    private String[] tokens;
+    private int[] starts;
+    private int[] postings;
+    /** Number of label tokens the last search went through */
+    private int scannedTokens;
+
+    /**
+     * Index the label of a product. A product already indexed is
+     * left as is.
+     */
+    public synchronized void add(String id, String label) {
+        if (id == null || this.positions.containsKey(id)) {
+            return;
+        }
+        if (this.ids.size() == MAX_PRODUCTS) {
+            throw new IllegalStateException("Too many products to index");
+        }
+        this.thaw();
+        int position = this.ids.size();
+        this.ids.add(id);
+        this.positions.put(id, position);
+        if (position == this.sales.length) {
+            this.sales = Arrays.copyOf(this.sales, position * 2);
+        }
+        List<String> labelTokens = tokenize(label);
+        for (int i = 0; i < labelTokens.size(); i++) {
+            String token = labelTokens.get(i);
+            int posting = (position << POSITION_SHIFT)
+                    | Math.min(i, MAX_TOKEN_POSITION);
+            int[] list = this.building.get(token);
+            if (list == null) {
+                // First int is the count
+                list = new int[4];
+            } else if ((list[list[0]] >>> POSITION_SHIFT) == position) {
+                // A token repeated in the label, keep its first position
+                continue;
+            } else if (list[0] + 1 == list.length) {
+                list = Arrays.copyOf(list, list.length * 2);
+            }
+            list[0]++;
+            list[list[0]] = posting;
+            this.building.put(token, list);
+        }
+    }
+
+    /** @return number of indexed products */
+    public synchronized int size() {
+        return this.ids.size();
+    }
+
+    /** Set the sales count of a product, used to rank results */
+    public synchronized void setSales(String id, int count) {
+        Integer position = this.positions.get(id);
+        if (position != null) {
+            this.sales[position] = count;
+        }
+    }
+
+    /** Set the sales counts of all products, missing ones are reset */
+    public synchronized void setSales(Map<String, Integer> counts) {
+        Arrays.fill(this.sales, 0);
+        for (Map.Entry<String, Integer> e : counts.entrySet()) {
+            Integer position = this.positions.get(e.getKey());
+            if (position != null && e.getValue() != null) {
+                this.sales[position] = e.getValue();
+            }
+        }
+    }
+
+    /**
+     * Find the products matching a query.
+     * @param limit maximum number of results
+     * @return ids of the matching products, best first
+     */
+    public synchronized List<String> search(String query, int limit) {
+        List<String> queryTokens = tokenize(query);
+        List<String> result = new ArrayList<>();
+        if (queryTokens.isEmpty() || limit <= 0 || this.ids.isEmpty()) {
+            return result;
+        }
+        this.freeze();
+        int count = this.ids.size();
+        // Number of query tokens each product matched, and its score
+        byte[] matched = new byte[count];
+        int[] scores = new int[count];
+        // Score of the best label token matching the current query token
+        int[] tokenScores = new int[count];
+        int tokenCount = Math.min(queryTokens.size(), Byte.MAX_VALUE);
+        this.scannedTokens = 0;
+        for (int q = 0; q < tokenCount; q++) {
+            String prefix = queryTokens.get(q);
+            int first = this.lowerBound(prefix);
+            boolean found = false;
+            for (int t = first; t < this.tokens.length
+                    && this.tokens[t].startsWith(prefix); t++) {
+                this.scannedTokens++;
+                // The exact token sorts first
+                boolean exact = t == first && this.tokens[t].length() == prefix.length();
+                for (int i = this.starts[t]; i < this.starts[t + 1]; i++) {
+                    int posting = this.postings[i];
+                    int position = posting >>> POSITION_SHIFT;
+                    int score = exact ? SCORE_EXACT : SCORE_PREFIX;
+                    if (q == 0 && (posting & MAX_TOKEN_POSITION) == 0) {
+                        score += SCORE_FIRST;
+                    }
+                    if (matched[position] == q) {
+                        matched[position] = (byte) (q + 1);
+                        scores[position] += score;
+                        tokenScores[position] = score;
+                        found = true;
+                    } else if (matched[position] == q + 1
+                            && score > tokenScores[position]) {
+                        // Another token of the label matches better
+                        scores[position] += score - tokenScores[position];
+                        tokenScores[position] = score;
+                    }
+                    // Otherwise it missed a previous query token
+                }
+            }
+            if (!found) {
+                return result;
+            }
+        }
+        // Keep the best keys in a min-heap: score, sales,
+        // then reversed position for the first added first
+        long[] heap = new long[Math.min(limit, count)];
+        int n = 0;
+        for (int p = 0; p < count; p++) {
+            if (matched[p] != tokenCount) {
+                continue;
+            }
+            long key = ((long) Math.min(scores[p], 0x3FF) << 52)
+                    | ((long) Math.min(this.sales[p], 0x7FFFFFFF) << 21)
+                    | (MAX_PRODUCTS - 1 - p);
+            if (n < heap.length) {
+                heap[n++] = key;
+                siftUp(heap, n - 1);
+            } else if (key > heap[0]) {
+                heap[0] = key;
+                siftDown(heap, n);
+            }
+        }
+        Arrays.sort(heap, 0, n);
+        for (int i = n - 1; i >= 0; i--) {
+            int position = MAX_PRODUCTS - 1 - (int) (heap[i] & (MAX_PRODUCTS - 1));
+            result.add(this.ids.get(position));
+        }
+        return result;
+    }
+
+    /** @return number of label tokens the last search went through */
+    synchronized int getScannedTokens() {
+        return this.scannedTokens;
+    }
+
+    private static void siftUp(long[] heap, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= heap[i]) {
+                return;
+            }
+            long tmp = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = tmp;
+            i = parent;
+        }
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[i] <= heap[child]) {
+                return;
+            }
+            long tmp = heap[child];
+            heap[child] = heap[i];
+            heap[i] = tmp;
+            i = child;
+        }
+    }
+
+    /** @return index of the first sorted token not lower than prefix */
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = this.tokens.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.tokens[mid].compareTo(prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Sort the tokens and pack their postings */
+    private void freeze() {
+        if (this.building == null) {
+            return;
+        }
+        String[] sorted = this.building.keySet().toArray(new String[this.building.size()]);
+        Arrays.sort(sorted);
+        int total = 0;
+        for (int[] list : this.building.values()) {
+            total += list[0];
+        }
+        int[] packed = new int[total];
+        int[] offsets = new int[sorted.length + 1];
+        int pos = 0;
+        for (int t = 0; t < sorted.length; t++) {
+            offsets[t] = pos;
+            int[] list = this.building.get(sorted[t]);
+            System.arraycopy(list, 1, packed, pos, list[0]);
+            pos += list[0];
+        }
+        offsets[sorted.length] = pos;
+        this.tokens = sorted;
+        this.starts = offsets;
+        this.postings = packed;
+        this.building = null;
+    }
+
+    /** Get back to the map of postings to add products */
+    private void thaw() {
+        if (this.building != null) {
+            return;
+        }
+        this.building = new HashMap<>();
+        for (int t = 0; t < this.tokens.length; t++) {
+            int length = this.starts[t + 1] - this.starts[t];
+            int[] list = new int[Math.max(4, length + 1)];
+            list[0] = length;
+            System.arraycopy(this.postings, this.starts[t], list, 1, length);
+            this.building.put(this.tokens[t], list);
+        }
+        this.tokens = null;
+        this.starts = null;
+        this.postings = null;
+    }
+
+    /** Write the sorted index, sales counts are not written */
+    public synchronized void write(DataOutputStream out) throws IOException {
+        this.freeze();
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(this.ids.size());
+        out.writeInt(this.tokens.length);
+        out.writeInt(this.postings.length);
+        for (String id : this.ids) {
+            out.writeUTF(id);
+        }
+        for (int t = 0; t < this.tokens.length; t++) {
+            out.writeUTF(this.tokens[t]);
+            out.writeInt(this.starts[t + 1] - this.starts[t]);
+        }
+        for (int posting : this.postings) {
+            out.writeInt(posting);
+        }
+    }
+
+    /**
+     * Read an index written by write.
+     * @throws StreamCorruptedException if it is not a valid index
+     */
+    public static ProductIndex read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new StreamCorruptedException("Not a product index");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new StreamCorruptedException("Unsupported index version " + version);
+        }
+        int productCount = in.readInt();
+        int tokenCount = in.readInt();
+        int postingCount = in.readInt();
+        if (productCount < 0 || productCount > MAX_PRODUCTS
+                || tokenCount < 0 || postingCount < 0) {
+            throw new StreamCorruptedException("Invalid product index sizes");
+        }
+        ProductIndex index = new ProductIndex();
+        for (int i = 0; i < productCount; i++) {
+            String id = in.readUTF();
+            index.positions.put(id, i);
+            index.ids.add(id);
+        }
+        index.sales = new int[Math.max(16, productCount)];
+        index.tokens = new String[tokenCount];
+        index.starts = new int[tokenCount + 1];
+        int pos = 0;
+        for (int t = 0; t < tokenCount; t++) {
+            index.tokens[t] = in.readUTF();
+            index.starts[t] = pos;
+            pos += in.readInt();
+        }
+        index.starts[tokenCount] = pos;
+        if (pos != postingCount) {
+            throw new StreamCorruptedException("Product index size mismatch");
+        }
+        index.postings = new int[postingCount];
+        for (int i = 0; i < postingCount; i++) {
+            int posting = in.readInt();
+            if ((posting >>> POSITION_SHIFT) >= productCount) {
+                throw new StreamCorruptedException("Invalid product index posting");
+            }
+            index.postings[i] = posting;
+        }
+        index.building = null;
+        return index;
+    }
+
+    /**
+     * Split a text into lower case tokens of letters and digits,
+     * without accents.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> result = new ArrayList<>();
+        if (text == null) {
+            return result;
+        }
+        String folded = fold(text);
+        int start = -1;
+        for (int i = 0; i < folded.length(); i++) {
+            if (Character.isLetterOrDigit(folded.charAt(i))) {
+                if (start == -1) {
+                    start = i;
+                }
+            } else if (start != -1) {
+                result.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+        if (start != -1) {
+            result.add(folded.substring(start));
+        }
+        return result;
+    }
+
+    /**
+     * Put a text in lower case without accents, ligatures are
+     * expanded. Other characters are left as is.
+     */
+    public static String fold(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder result = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            switch (c) {
+            case '\u0153':
+            case '\u0152':
+                result.append("oe");
+                break;
+            case '\u00E6':
+            case '\u00C6':
+                result.append("ae");
+                break;
+            case '\u00DF':
+                result.append("ss");
+                break;
+            default:
+                if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                    // Accents of the previous letter are dropped
+                    result.append(Character.toLowerCase(c));
+                }
+            }
+        }
+        return result.toString();
+    }
+}
@@ -37,6 +37,7 @@ import fr.pasteque.client.models.Customer;
 import fr.pasteque.client.models.Ticket;
 import fr.pasteque.client.sync.SyncUtils;
 import fr.pasteque.client.activities.TrackedActivity;
+import fr.pasteque.client.utils.RequestExecutor;
 import fr.pasteque.client.utils.URLTextGetter;
 import fr.pasteque.client.widgets.CustomerTicketHistoryAdapter;
 import fr.pasteque.client.widgets.ProgressPopup;
@@ -182,7 +183,8 @@ public class CustomerInfoDialog extends DialogFragment
             Map<String, String> params = SyncUtils.initParams(mCtx, "TicketsAPI", "search");
             params.put("customerId", mCustomer.getId());
             URLTextGetter.getText(SyncUtils.apiUrl(mCtx), null, params,
-                    new DataHandler(CustomerInfoDialog.this), DATAHANDLER_HISTORY);
+                    new DataHandler(CustomerInfoDialog.this), DATAHANDLER_HISTORY,
+                    RequestExecutor.PRIORITY_INTERACTIVE);
         }
 
         // show soft keyboard
@@ -343,7 +345,8 @@ public class CustomerInfoDialog extends DialogFragment
         try {
             postBody.put("customer", c.toJSON().toString());
             URLTextGetter.getText(SyncUtils.apiUrl(mCtx), postBody, null,
-                    new DataHandler(this), DATAHANDLER_CUSTOMER);
+                    new DataHandler(this), DATAHANDLER_CUSTOMER,
+                    RequestExecutor.PRIORITY_INTERACTIVE);
             mPopup = new ProgressPopup(mCtx);
             mPopup.setIndeterminate(true);
             mPopup.setMessage(getString(R.string.saving_customer_message));
@@ -362,7 +365,7 @@ public class CustomerInfoDialog extends DialogFragment
             String id = ids.getString(0);
             mNewCustomer.setId(id);
             // Update local customer list
-            Data.Customer.customers.add(mNewCustomer);
+            Data.Customer.addCustomer(mNewCustomer);
             try {
                 Data.Customer.save(mCtx);
             } catch (IOError ioe) {
@@ -74,9 +74,9 @@ public class CustomerSelectDialog extends DialogFragment implements AdapterView.
         if (mbNoneField) {
             data = new ArrayList<>();
             data.add(null);
-            data.addAll(Data.Customer.customers);
+            data.addAll(Data.Customer.getCustomers());
         } else {
-            data = Data.Customer.customers;
+            data = Data.Customer.getCustomers();
         }
         mCustomersAdapter = new CustomersAdapter(data, mContext);
         mList = (ListView) layout.findViewById(R.id.customers_list);
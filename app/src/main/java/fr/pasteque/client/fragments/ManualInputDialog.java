@@ -15,6 +15,7 @@ import android.view.ViewGroup;
 import android.widget.*;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import fr.pasteque.client.BuildConfig;
@@ -35,6 +36,8 @@ public class ManualInputDialog extends DialogFragment {
     // TODO: Maybe do a base Tab DialogFragment ?
 
     public static String TAG = "ManualInputDFRAG";
+    /** Maximum number of products found by label */
+    private static final int MAX_SEARCH_RESULTS = 50;
 
     private final TextWatcher BARCODE_INPUT_TW;
     private Listener mListener;
@@ -171,11 +174,16 @@ public class ManualInputDialog extends DialogFragment {
         mMatchingItems.clearItems();
         if (!code.isEmpty()) {
             Catalog cat = Data.Catalog.catalog(mContext);
-            List<Product> pList = cat.getProductLikeBarcode(code);
-            if (pList.size() > 0) {
+            Iterator<Product> products = cat.productsLikeBarcode(code,
+                    MAX_SEARCH_RESULTS);
+            if (!products.hasNext()) {
+                products = Data.Catalog.searchProducts(mContext, code,
+                        MAX_SEARCH_RESULTS).iterator();
+            }
+            if (products.hasNext()) {
                 mNotFoundToast = true;
-                for (Product p : pList) {
-                    mMatchingItems.addItem(p);
+                while (products.hasNext()) {
+                    mMatchingItems.addItem(products.next());
                 }
             } else if (mNotFoundToast) {
                 mNotFoundToast = false;
@@ -494,9 +494,10 @@ public class PaymentFragment extends ViewPageFragment
             }
         }
         if (custDirty) {
-            int index = Data.Customer.customers.indexOf(mCustomer);
-            Data.Customer.customers.remove(index);
-            Data.Customer.customers.add(index, mCustomer);
+            int index = Data.Customer.getCustomers().indexOf(mCustomer);
+            Data.Customer.getCustomers().remove(index);
+            Data.Customer.getCustomers().add(index, mCustomer);
+            Data.Customer.markChanged(mCustomer);
             try {
                 Data.Customer.save(mContext);
             } catch (IOError e) {
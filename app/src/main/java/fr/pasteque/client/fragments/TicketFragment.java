@@ -21,7 +21,6 @@ import android.widget.ListView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
-import java.io.IOError;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -620,11 +619,7 @@ public class TicketFragment extends ViewPageFragment
     }
 
     private void saveSession() {
-        try {
-            Data.Session.save(mContext);
-        } catch (IOError e) {
-            Log.e(LOG_TAG, "Unable to save session", e);
-        }
+        Data.Session.saveLater(mContext);
     }
 
     private void updateReceivedSharedTickets(List<Ticket> tickets) {
@@ -17,7 +17,12 @@
 */
 package fr.pasteque.client.models;
 
+import fr.pasteque.client.data.ProductIndex;
+import fr.pasteque.client.utils.BarcodeCheck;
+
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
@@ -33,6 +38,9 @@ import org.json.JSONArray;
  */
 public class Catalog implements Serializable {
 
+    /** Pinned to read catalogs serialized by previous versions */
+    private static final long serialVersionUID = 8520862607172792350L;
+
     /**
      * The first level of the category tree
      */
@@ -41,12 +49,15 @@ public class Catalog implements Serializable {
     private Map<String, Product> database;
     public Map<String, Product> barcodeDb;
     private Category prepaidCategory;
+    /** Labels of the products in categories, null until built */
+    private transient ProductIndex searchIndex;
 
     public Catalog() {
         this.categories = new ArrayList<Category>();
         this.products = new HashMap<Category, List<Product>>();
         this.database = new HashMap<String, Product>();
         this.barcodeDb = new TreeMap<String, Product>();
+        this.searchIndex = new ProductIndex();
     }
 
     /**
@@ -76,6 +87,9 @@ public class Catalog implements Serializable {
 
     public void addProduct(Category c, Product p) {
         this.products.get(c).add(p);
+        if (this.searchIndex != null) {
+            this.searchIndex.add(p.getId(), p.getLabel());
+        }
         this.database.put(p.getId(), p);
         if (p.getBarcode() != null) {
             this.barcodeDb.put(p.getBarcode(), p);
@@ -130,20 +144,115 @@ public class Catalog implements Serializable {
         return this.database.get(id);
     }
 
+    /**
+     * Get a product by its complete code. UPC-A codes and EAN-13 codes
+     * starting with 0 match the product registered with the other form.
+     */
     public Product getProductByBarcode(String barcode) {
-        return this.barcodeDb.get(barcode);
+        Product p = this.barcodeDb.get(barcode);
+        if (p == null && barcode != null) {
+            String other = BarcodeCheck.otherForm(barcode);
+            if (other != null) {
+                p = this.barcodeDb.get(other);
+            }
+        }
+        return p;
     }
 
     public List<Product> getProductLikeBarcode(String barcode) {
-        SortedMap<String, Product> sm = ((TreeMap<String, Product>) this.barcodeDb).subMap(barcode, barcode + Character.MAX_VALUE);
-        return new ArrayList<Product>(sm.values());
+        List<Product> result = new ArrayList<Product>();
+        Iterator<Product> it = this.productsLikeBarcode(barcode, Integer.MAX_VALUE);
+        while (it.hasNext()) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
+    /**
+     * Iterate over the products with a barcode starting with prefix,
+     * in barcode order, without copying them.
+     * @param limit maximum number of products
+     */
+    public Iterator<Product> productsLikeBarcode(String prefix, int limit) {
+        SortedMap<String, Product> sm = ((TreeMap<String, Product>) this.barcodeDb).subMap(prefix, prefix + Character.MAX_VALUE);
+        return new LimitedIterator<Product>(sm.values().iterator(), limit);
+    }
+
+    /**
+     * Get all products, including the ones not directly accessible
+     * from catalog.
+     */
+    public Collection<Product> getAllProducts() {
+        return this.database.values();
     }
 
     public int getProductCount() {
         return this.database.keySet().size();
     }
 
+    /**
+     * Search products of categories by label.
+     * @param limit maximum number of results
+     * @return matching products, best first
+     */
+    public List<Product> searchProducts(String query, int limit) {
+        List<Product> result = new ArrayList<Product>();
+        for (String id : this.getSearchIndex().search(query, limit)) {
+            Product p = this.getProduct(id);
+            if (p != null) {
+                result.add(p);
+            }
+        }
+        return result;
+    }
+
+    /** Get the search index, building it from categories if not set */
+    public synchronized ProductIndex getSearchIndex() {
+        if (this.searchIndex == null) {
+            ProductIndex index = new ProductIndex();
+            for (Category c : this.getAllCategories()) {
+                for (Product p : this.getProducts(c)) {
+                    index.add(p.getId(), p.getLabel());
+                }
+            }
+            this.searchIndex = index;
+        }
+        return this.searchIndex;
+    }
+
+    /** Set the search index read along the catalog, null to build it */
+    public synchronized void setSearchIndex(ProductIndex index) {
+        this.searchIndex = index;
+    }
+
     public Catalog fromJSON(JSONArray array) throws JSONException {
         return null;
     }
+
+    /** Iterator stopping after a number of items */
+    private static class LimitedIterator<T> implements Iterator<T> {
+        private final Iterator<T> it;
+        private int remaining;
+
+        LimitedIterator(Iterator<T> it, int limit) {
+            this.it = it;
+            this.remaining = limit;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return this.remaining > 0 && this.it.hasNext();
+        }
+
+        @Override
+        public T next() {
+            this.remaining--;
+            return this.it.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
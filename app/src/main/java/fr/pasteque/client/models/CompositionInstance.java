@@ -29,9 +29,10 @@ public class CompositionInstance extends Product {
     private Map<Composition.Group, Product> components;
 
     public CompositionInstance(Product product, Composition compo) {
-        super(product.id, product.label, product.barcode, product.price,
-                product.taxId, product.taxRate, product.scaled,
-                product.hasImage, product.discountRate, product.discountRateEnabled);
+        super(product.getId(), product.getBaseLabel(), product.getBarcode(),
+                product.getBasePrice(), product.getTaxId(), product.getTaxRate(),
+                product.isScaled(), product.hasImage(), product.getDiscountRate(),
+                product.isDiscountRateEnabled());
         this.compo = compo;
         this.components = new HashMap<Composition.Group, Product>();
     }
@@ -17,6 +17,12 @@
 */
 package fr.pasteque.client.models;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
 import java.io.Serializable;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -214,4 +220,81 @@ public class Customer implements Serializable {
     public boolean equals(Object o) {
         return (o instanceof Customer) && this.id.equals(((Customer)o).id);
     }
+
+    /** Gson adapter with the same layout as reflection, without reflection */
+    public static class GsonAdapter extends TypeAdapter<Customer> {
+
+        @Override
+        public void write(JsonWriter out, Customer c) throws IOException {
+            if (c == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(c.id);
+            out.name("name").value(c.name);
+            out.name("card").value(c.card);
+            out.name("firstName").value(c.firstName);
+            out.name("lastName").value(c.lastName);
+            out.name("address1").value(c.address1);
+            out.name("address2").value(c.address2);
+            out.name("zipCode").value(c.zipCode);
+            out.name("city").value(c.city);
+            out.name("department").value(c.department);
+            out.name("country").value(c.country);
+            out.name("mail").value(c.mail);
+            out.name("phone1").value(c.phone1);
+            out.name("phone2").value(c.phone2);
+            out.name("fax").value(c.fax);
+            out.name("prepaid").value(c.prepaid);
+            out.name("maxDebt").value(c.maxDebt);
+            out.name("currDebt").value(c.currDebt);
+            out.name("tariffAreaId").value(c.tariffAreaId);
+            out.name("note").value(c.note);
+            out.endObject();
+        }
+
+        @Override
+        public Customer read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Customer c = new Customer(null, null, null, null, null, null, null, null, null,
+                    null, null, null, null, null, null, 0, 0, 0, null, null);
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "id": c.id = in.nextString(); break;
+                    case "name": c.name = in.nextString(); break;
+                    case "card": c.card = in.nextString(); break;
+                    case "firstName": c.firstName = in.nextString(); break;
+                    case "lastName": c.lastName = in.nextString(); break;
+                    case "address1": c.address1 = in.nextString(); break;
+                    case "address2": c.address2 = in.nextString(); break;
+                    case "zipCode": c.zipCode = in.nextString(); break;
+                    case "city": c.city = in.nextString(); break;
+                    case "department": c.department = in.nextString(); break;
+                    case "country": c.country = in.nextString(); break;
+                    case "mail": c.mail = in.nextString(); break;
+                    case "phone1": c.phone1 = in.nextString(); break;
+                    case "phone2": c.phone2 = in.nextString(); break;
+                    case "fax": c.fax = in.nextString(); break;
+                    case "prepaid": c.prepaid = in.nextDouble(); break;
+                    case "maxDebt": c.maxDebt = in.nextDouble(); break;
+                    case "currDebt": c.currDebt = in.nextDouble(); break;
+                    case "tariffAreaId": c.tariffAreaId = in.nextString(); break;
+                    case "note": c.note = in.nextString(); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return c;
+        }
+    }
 }
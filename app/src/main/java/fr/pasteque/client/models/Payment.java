@@ -18,7 +18,13 @@
 package fr.pasteque.client.models;
 
 import android.content.Context;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Currency;
 
@@ -110,4 +116,56 @@ public class Payment implements Serializable {
 	public boolean equals(Object o) {
         return o instanceof Payment && ((Payment)o).innerId == this.innerId;
     }
+
+    /** Gson adapter with the same layout as reflection, without reflection */
+    public static class GsonAdapter extends TypeAdapter<Payment> {
+
+        private final TypeAdapter<PaymentMode> modeAdapter;
+
+        public GsonAdapter(Gson gson) {
+            this.modeAdapter = gson.getAdapter(PaymentMode.class);
+        }
+
+        @Override
+        public void write(JsonWriter out, Payment p) throws IOException {
+            if (p == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("mode");
+            this.modeAdapter.write(out, p.mode);
+            out.name("amount").value(p.amount);
+            out.name("given").value(p.given);
+            out.name("innerId").value(p.innerId);
+            out.endObject();
+        }
+
+        @Override
+        public Payment read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Payment p = new Payment(null, 0, 0);
+            p.innerId = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "mode": p.mode = this.modeAdapter.read(in); break;
+                    case "amount": p.amount = in.nextDouble(); break;
+                    case "given": p.given = in.nextDouble(); break;
+                    case "innerId": p.innerId = in.nextInt(); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return p;
+        }
+    }
 }
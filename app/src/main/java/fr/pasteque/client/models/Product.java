@@ -17,18 +17,30 @@
 */
 package fr.pasteque.client.models;
 
+import java.io.IOException;
 import java.io.Serializable;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import fr.pasteque.client.data.ImagesData;
 import fr.pasteque.client.models.interfaces.Item;
 import fr.pasteque.client.utils.CalculPrice;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+/**
+ * A product to sell. Values are read through the getters, subclasses
+ * may read them from a shared storage instead of holding them.
+ */
 public class Product implements Serializable, Item {
 
+    /** Pinned to read catalogs serialized by previous versions */
+    private static final long serialVersionUID = -905664139777495404L;
+
     protected String id;
     protected String label;
     protected double price;
@@ -55,6 +67,10 @@ public class Product implements Serializable, Item {
         this.discountRateEnabled = discountRateEnabled;
     }
 
+    /** For subclasses overriding every getter, with no value set */
+    protected Product() {
+    }
+
     public String getId() {
         return this.id;
     }
@@ -65,36 +81,47 @@ public class Product implements Serializable, Item {
     }
 
     private double getPrice() {
-        return CalculPrice.round(this.price);
+        return CalculPrice.round(this.getBasePrice());
     }
 
     public String getLabel() {
         return this.label;
     }
 
+    /** @return the label without what subclasses may add to it */
+    protected String getBaseLabel() {
+        return this.label;
+    }
+
+    /** @return the price out of any tariff area */
+    protected double getBasePrice() {
+        return this.price;
+    }
+
     public String getBarcode() {
         return this.barcode;
     }
 
 
     private double _getGenericPrice(double price, double discount, int binaryMask) {
-        return CalculPrice.getGenericPrice(price, discount, this.taxRate, binaryMask);
+        return CalculPrice.getGenericPrice(price, discount, this.getTaxRate(), binaryMask);
     }
 
     double getGenericPrice(TariffArea area, int binaryMask) {
-        return _getGenericPrice(getPrice(area), this.discountRate, binaryMask);
+        return _getGenericPrice(getPrice(area), this.getDiscountRate(), binaryMask);
     }
 
     double getGenericPrice(TariffArea area, double discount, int binaryMask) {
         return _getGenericPrice(getPrice(area),
-                CalculPrice.mergeDiscount(this.discountRate, discount), binaryMask);
+                CalculPrice.mergeDiscount(this.getDiscountRate(), discount), binaryMask);
     }
 
     public double getPrice(TariffArea area) {
-        if (area != null && area.hasPrice(this.id)) {
-            return area.getPrice(this.id).doubleValue();
+        String id = this.getId();
+        if (area != null && area.hasPrice(id)) {
+            return area.getPrice(id).doubleValue();
         }
-        return this.price;
+        return this.getBasePrice();
     }
 
     public String getTaxId() {
@@ -145,19 +172,20 @@ public class Product implements Serializable, Item {
 
     public JSONObject toJSON(TariffArea area) throws JSONException {
         JSONObject o = new JSONObject();
-        o.put("id", this.id);
-        o.put("label", this.label);
-        if (area != null && area.hasPrice(this.id)) {
-            o.put("price", area.getPrice(this.id));
+        String id = this.getId();
+        o.put("id", id);
+        o.put("label", this.getBaseLabel());
+        if (area != null && area.hasPrice(id)) {
+            o.put("price", area.getPrice(id));
         } else {
-            o.put("price", this.price);
+            o.put("price", this.getBasePrice());
         }
-        o.put("taxId", this.taxId);
-        o.put("taxRate", this.taxRate);
-        o.put("scaled", this.scaled);
-        o.put("barcode", this.barcode);
-        o.put("discountRate", this.discountRate);
-        o.put("discountEnabled", this.discountRateEnabled);
+        o.put("taxId", this.getTaxId());
+        o.put("taxRate", this.getTaxRate());
+        o.put("scaled", this.isScaled());
+        o.put("barcode", this.getBarcode());
+        o.put("discountRate", this.getDiscountRate());
+        o.put("discountEnabled", this.isDiscountRateEnabled());
         return o;
     }
 
@@ -166,20 +194,79 @@ public class Product implements Serializable, Item {
         if (!(o instanceof Product)) {
             return false;
         }
-        if (((Product) o).id != null) {
-            return ((Product) o).id.equals(this.id);
+        Product p = (Product) o;
+        String id = p.getId();
+        if (id != null) {
+            return id.equals(this.getId());
         } else {
-            if (this.id != null) {
+            if (this.getId() != null) {
                 return false;
             }
-            Product p = (Product) o;
-            return p.price == this.price;
+            return p.getBasePrice() == this.getBasePrice();
         }
     }
 
     @Override
     public String toString() {
-        return this.label + " (" + this.id + ")";
+        return this.getBaseLabel() + " (" + this.getId() + ")";
     }
 
+    /** Gson adapter with the same layout as reflection, without reflection */
+    public static class GsonAdapter extends TypeAdapter<Product> {
+
+        @Override
+        public void write(JsonWriter out, Product p) throws IOException {
+            if (p == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(p.getId());
+            out.name("label").value(p.getBaseLabel());
+            out.name("price").value(p.getBasePrice());
+            out.name("taxId").value(p.getTaxId());
+            out.name("taxRate").value(p.getTaxRate());
+            out.name("scaled").value(p.isScaled());
+            out.name("barcode").value(p.getBarcode());
+            out.name("hasImage").value(p.hasImage());
+            out.name("discountRate").value(p.getDiscountRate());
+            out.name("discountRateEnabled").value(p.isDiscountRateEnabled());
+            out.endObject();
+        }
+
+        @Override
+        public Product read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            String id = null, label = null, taxId = null, barcode = null;
+            double price = 0, taxRate = 0, discountRate = 0;
+            boolean scaled = false, hasImage = false, discountRateEnabled = false;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "id": id = in.nextString(); break;
+                    case "label": label = in.nextString(); break;
+                    case "price": price = in.nextDouble(); break;
+                    case "taxId": taxId = in.nextString(); break;
+                    case "taxRate": taxRate = in.nextDouble(); break;
+                    case "scaled": scaled = in.nextBoolean(); break;
+                    case "barcode": barcode = in.nextString(); break;
+                    case "hasImage": hasImage = in.nextBoolean(); break;
+                    case "discountRate": discountRate = in.nextDouble(); break;
+                    case "discountRateEnabled": discountRateEnabled = in.nextBoolean(); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Product(id, label, barcode, price, taxId, taxRate,
+                    scaled, hasImage, discountRate, discountRateEnabled);
+        }
+    }
 }
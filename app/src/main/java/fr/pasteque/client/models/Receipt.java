@@ -18,7 +18,14 @@
 package fr.pasteque.client.models;
 
 import android.content.Context;
-
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.List;
 import java.util.Calendar;
@@ -59,6 +66,10 @@ public class Receipt implements Serializable {
         return this.payments;
     }
 
+    public User getCashier() {
+        return this.cashier;
+    }
+
     public Discount getDiscount() {
         return discount;
     }
@@ -92,4 +103,67 @@ public class Receipt implements Serializable {
     public String getTicketNumber() {
         return this.ticket.getTicketId();
     }
+
+    /** Gson adapter with the same layout as reflection, without reflection */
+    public static class GsonAdapter extends TypeAdapter<Receipt> {
+
+        private final TypeAdapter<Ticket> ticketAdapter;
+        private final TypeAdapter<List<Payment>> paymentsAdapter;
+        private final TypeAdapter<User> userAdapter;
+        private final TypeAdapter<Discount> discountAdapter;
+
+        public GsonAdapter(Gson gson) {
+            this.ticketAdapter = gson.getAdapter(Ticket.class);
+            this.paymentsAdapter = gson.getAdapter(new TypeToken<List<Payment>>() {});
+            this.userAdapter = gson.getAdapter(User.class);
+            this.discountAdapter = gson.getAdapter(Discount.class);
+        }
+
+        @Override
+        public void write(JsonWriter out, Receipt r) throws IOException {
+            if (r == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("ticket");
+            this.ticketAdapter.write(out, r.ticket);
+            out.name("payments");
+            this.paymentsAdapter.write(out, r.payments);
+            out.name("paymentTime").value(r.paymentTime);
+            out.name("cashier");
+            this.userAdapter.write(out, r.cashier);
+            out.name("discount");
+            this.discountAdapter.write(out, r.discount);
+            out.endObject();
+        }
+
+        @Override
+        public Receipt read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Receipt r = new Receipt(null, null, null);
+            r.paymentTime = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "ticket": r.ticket = this.ticketAdapter.read(in); break;
+                    case "payments": r.payments = this.paymentsAdapter.read(in); break;
+                    case "paymentTime": r.paymentTime = in.nextLong(); break;
+                    case "cashier": r.cashier = this.userAdapter.read(in); break;
+                    case "discount": r.discount = this.discountAdapter.read(in); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return r;
+        }
+    }
 }
@@ -0,0 +1,85 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.models;
+
+/**
+ * What is shown of a receipt in a list, without its ticket.
+ * The full receipt is read from ReceiptData when needed.
+ */
+public class ReceiptSummary {
+
+    private final String ticketNumber;
+    private final long paymentTime;
+    private final double total;
+    private final String cashier;
+    private final String content;
+
+    public ReceiptSummary(String ticketNumber, long paymentTime, double total,
+                          String cashier, String content) {
+        this.ticketNumber = ticketNumber;
+        this.paymentTime = paymentTime;
+        this.total = total;
+        this.cashier = cashier;
+        this.content = content;
+    }
+
+    public ReceiptSummary(Receipt r) {
+        this(r.getTicketNumber(), r.getPaymentTime(), r.getTicket().getTicketPrice(),
+                r.getCashier() != null ? r.getCashier().getName() : null,
+                getContent(r));
+    }
+
+    /** @return lines as "label x quantity", comma separated */
+    public static String getContent(Receipt r) {
+        StringBuilder content = new StringBuilder();
+        for (TicketLine l : r.getTicket().getLines()) {
+            if (content.length() > 0) {
+                content.append(", ");
+            }
+            content.append(l.getProduct().getLabel()).append(" x ").append(l.getQuantity());
+        }
+        return content.toString();
+    }
+
+    public String getTicketNumber() {
+        return this.ticketNumber;
+    }
+
+    public long getPaymentTime() {
+        return this.paymentTime;
+    }
+
+    public double getTotal() {
+        return this.total;
+    }
+
+    public String getCashier() {
+        return this.cashier;
+    }
+
+    public String getContent() {
+        return this.content;
+    }
+
+    /** @return true if it is the summary of this receipt */
+    public boolean isOf(Receipt r) {
+        return this.paymentTime == r.getPaymentTime()
+                && (this.ticketNumber == null ? r.getTicketNumber() == null
+                : this.ticketNumber.equals(r.getTicketNumber()));
+    }
+}
@@ -19,8 +19,10 @@ package fr.pasteque.client.models;
 
 import java.io.Serializable;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 
 public class Session implements Serializable {
 
@@ -30,6 +32,8 @@ public class Session implements Serializable {
     private List<Ticket> runningTickets;
     private List<Ticket> localSharedTickets;
     private Ticket currentTicket;
+    /** Shared tickets by id, built from localSharedTickets when needed */
+    private transient Map<String, Ticket> sharedIndex;
 
     /** Create an empty session */
     public Session() {
@@ -140,33 +144,101 @@ public class Session implements Serializable {
         return this.currentTicket;
     }
 
+    /** Replace the shared tickets by the full list from the server */
     public void updateSharedTickets(List<Ticket> sharedtickets) {
-        this._updateSharedTicket(sharedtickets);
-        this._removeClosedSharedTickets(sharedtickets);
-        this.localSharedTickets = sharedtickets;
-    }
-
-    private void _removeClosedSharedTickets(List<Ticket> sharedtickets) {
-        for (Ticket oldTicket : this.localSharedTickets) {
-            innerLoop:
-            {
-                for (Ticket newTicket : sharedtickets) {
-                    if (newTicket.getLabel().equals(oldTicket.getLabel())) {
-                        break innerLoop;
-                    }
+        Map<String, Ticket> labels = new HashMap<>();
+        for (Ticket newTicket : sharedtickets) {
+            labels.put(newTicket.getLabel(), newTicket);
+        }
+        // Drop the closed ones and replace the others where they are
+        List<Ticket> localTickets = new ArrayList<>(this.localSharedTickets);
+        for (Ticket oldTicket : localTickets) {
+            if (!labels.containsKey(oldTicket.getLabel())
+                    && !this.runningTickets.remove(oldTicket)) {
+                // Not the same instance once the session is read again
+                this.runningTickets.remove(this.getTicket(oldTicket.getId()));
+            }
+        }
+        this._updateOrCreate(sharedtickets);
+        this.localSharedTickets = new ArrayList<>(sharedtickets);
+        this.sharedIndex = null;
+    }
+
+    /**
+     * Apply the changes of the shared tickets since the last ones received.
+     * Only the changed tickets are looked up, by id.
+     * @param updated tickets created or modified
+     * @param deletedIds ids of the tickets closed
+     * @return true if a ticket was changed
+     */
+    public boolean applySharedChanges(List<Ticket> updated, List<String> deletedIds) {
+        Map<String, Ticket> index = this.getSharedIndex();
+        boolean changed = false;
+        for (String id : deletedIds) {
+            Ticket oldTicket = index.remove(id);
+            if (oldTicket != null) {
+                this.localSharedTickets.remove(oldTicket);
+                if (!this.runningTickets.remove(oldTicket)) {
+                    // Replaced meanwhile by one requested alone,
+                    // or not the same instance once the session is read again
+                    this.runningTickets.remove(this.getTicket(id));
+                }
+                changed = true;
+            }
+        }
+        List<Ticket> added = new ArrayList<>();
+        for (Ticket newTicket : updated) {
+            Ticket oldTicket = index.put(newTicket.getId(), newTicket);
+            int i = -1;
+            if (oldTicket != null) {
+                this.localSharedTickets.remove(oldTicket);
+                i = this.runningTickets.indexOf(oldTicket);
+                if (i == -1) {
+                    i = this.runningTickets.indexOf(this.getTicket(newTicket.getId()));
                 }
-                this._removeSharedTicket(oldTicket);
             }
+            this.localSharedTickets.add(newTicket);
+            if (i != -1) {
+                // Replace it even if its label changed
+                this.runningTickets.set(i, newTicket);
+            } else {
+                added.add(newTicket);
+            }
+            changed = true;
         }
+        if (!added.isEmpty()) {
+            this._updateOrCreate(added);
+        }
+        return changed;
     }
 
-    private void _removeSharedTicket(Ticket oldTicket) {
-        this.runningTickets.remove(oldTicket);
+    private Map<String, Ticket> getSharedIndex() {
+        if (this.sharedIndex == null) {
+            this.sharedIndex = new HashMap<>();
+            for (Ticket t : this.localSharedTickets) {
+                this.sharedIndex.put(t.getId(), t);
+            }
+        }
+        return this.sharedIndex;
     }
 
-    private void _updateSharedTicket(List<Ticket> sharedtickets) {
-        for (Ticket newTicket: sharedtickets) {
-            this.updateLocalTicket(newTicket);
+    /** Replace the running tickets by label, indexing them once */
+    private void _updateOrCreate(List<Ticket> newTickets) {
+        Map<String, Integer> positions = new HashMap<>();
+        for (int i = 0; i < this.runningTickets.size(); ++i) {
+            String label = this.runningTickets.get(i).getLabel();
+            if (!positions.containsKey(label)) {
+                positions.put(label, i);
+            }
+        }
+        for (Ticket newTicket : newTickets) {
+            Integer i = positions.get(newTicket.getLabel());
+            if (i != null) {
+                this.runningTickets.set(i, newTicket);
+            } else {
+                positions.put(newTicket.getLabel(), this.runningTickets.size());
+                this.runningTickets.add(newTicket);
+            }
         }
     }
 }
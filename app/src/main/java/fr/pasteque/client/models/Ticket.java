@@ -17,10 +17,17 @@
 */
 package fr.pasteque.client.models;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.reflect.TypeToken;
 import fr.pasteque.client.Configure;
 import fr.pasteque.client.Pasteque;
 import fr.pasteque.client.data.Data;
@@ -479,7 +486,7 @@ public class Ticket implements Serializable {
 
         // Getting Customer
         try {
-            List<Customer> customers = Data.Customer.customers;
+            List<Customer> customers = Data.Customer.getCustomers();
             String customerId = o.getString("customerId");
             for (int i = 0; i < customers.size(); ++i) {
                 if (customers.get(i).getId().equals(customerId)) {
@@ -559,4 +566,82 @@ public class Ticket implements Serializable {
             return new Ticket(id, label);
         }
     }
+
+    /** Gson adapter with the same layout as reflection, without reflection */
+    public static class GsonAdapter extends TypeAdapter<Ticket> {
+
+        private final TypeAdapter<List<TicketLine>> linesAdapter;
+        private final TypeAdapter<Customer> customerAdapter;
+        private final TypeAdapter<TariffArea> areaAdapter;
+        private final TypeAdapter<User> userAdapter;
+
+        public GsonAdapter(Gson gson) {
+            this.linesAdapter = gson.getAdapter(new TypeToken<List<TicketLine>>() {});
+            this.customerAdapter = gson.getAdapter(Customer.class);
+            this.areaAdapter = gson.getAdapter(TariffArea.class);
+            this.userAdapter = gson.getAdapter(User.class);
+        }
+
+        @Override
+        public void write(JsonWriter out, Ticket t) throws IOException {
+            if (t == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(t.id);
+            out.name("ticketId").value(t.ticketId);
+            out.name("articles").value(t.articles);
+            out.name("lines");
+            this.linesAdapter.write(out, t.lines);
+            out.name("customer");
+            this.customerAdapter.write(out, t.customer);
+            out.name("area");
+            this.areaAdapter.write(out, t.area);
+            out.name("user");
+            this.userAdapter.write(out, t.user);
+            out.name("discountProfileId").value(t.discountProfileId);
+            out.name("discountRate").value(t.discountRate);
+            out.name("custCount").value(t.custCount);
+            out.name("serverDate_seconds").value(t.serverDate_seconds);
+            out.name("creationTime").value(t.creationTime);
+            out.name("label").value(t.label);
+            out.endObject();
+        }
+
+        @Override
+        public Ticket read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Ticket t = new Ticket();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "id": t.id = in.nextString(); break;
+                    case "ticketId": t.ticketId = in.nextString(); break;
+                    case "articles": t.articles = in.nextInt(); break;
+                    case "lines": t.lines = this.linesAdapter.read(in); break;
+                    case "customer": t.customer = this.customerAdapter.read(in); break;
+                    case "area": t.area = this.areaAdapter.read(in); break;
+                    case "user": t.user = this.userAdapter.read(in); break;
+                    case "discountProfileId": t.discountProfileId = in.nextInt(); break;
+                    case "discountRate": t.discountRate = in.nextDouble(); break;
+                    case "custCount": t.custCount = in.nextInt(); break;
+                    case "serverDate_seconds": t.serverDate_seconds = in.nextLong(); break;
+                    case "creationTime": t.creationTime = in.nextDouble(); break;
+                    case "label": t.label = in.nextString(); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return t;
+        }
+    }
 }
@@ -17,9 +17,14 @@
 */
 package fr.pasteque.client.models;
 
+import java.io.IOException;
 import java.io.Serializable;
 
-
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import fr.pasteque.client.utils.CalculPrice.Type;
 import fr.pasteque.client.data.Data;
 import fr.pasteque.client.utils.CalculPrice;
@@ -285,4 +290,71 @@ public class TicketLine implements Serializable {
     public TicketLine getRefundLine() {
         return new TicketLine(getProduct(), -getQuantity(), tariffArea, customFlags, lineCustomPrice, lineCustomDiscount);
     }
+
+    /** Gson adapter with the same layout as reflection, without reflection */
+    public static class GsonAdapter extends TypeAdapter<TicketLine> {
+
+        private final Gson gson;
+        private final TypeAdapter<Product> productAdapter;
+        private final TypeAdapter<TariffArea> areaAdapter;
+
+        public GsonAdapter(Gson gson) {
+            this.gson = gson;
+            this.productAdapter = gson.getAdapter(Product.class);
+            this.areaAdapter = gson.getAdapter(TariffArea.class);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void write(JsonWriter out, TicketLine l) throws IOException {
+            if (l == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("product");
+            if (l.product instanceof CompositionInstance) {
+                // Keep its components, other products are written as plain ones
+                TypeAdapter<Product> adapter = (TypeAdapter<Product>) this.gson.getAdapter(l.product.getClass());
+                adapter.write(out, l.product);
+            } else {
+                this.productAdapter.write(out, l.product);
+            }
+            out.name("quantity").value(l.quantity);
+            out.name("tariffArea");
+            this.areaAdapter.write(out, l.tariffArea);
+            out.name("lineCustomDiscount").value(l.lineCustomDiscount);
+            out.name("lineCustomPrice").value(l.lineCustomPrice);
+            out.name("customFlags").value(l.customFlags);
+            out.endObject();
+        }
+
+        @Override
+        public TicketLine read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            TicketLine l = new TicketLine(null, 0, null);
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "product": l.product = this.productAdapter.read(in); break;
+                    case "quantity": l.quantity = in.nextDouble(); break;
+                    case "tariffArea": l.tariffArea = this.areaAdapter.read(in); break;
+                    case "lineCustomDiscount": l.lineCustomDiscount = in.nextDouble(); break;
+                    case "lineCustomPrice": l.lineCustomPrice = in.nextDouble(); break;
+                    case "customFlags": l.customFlags = in.nextInt(); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return l;
+        }
+    }
 }
@@ -0,0 +1,110 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.sync;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import fr.pasteque.client.data.ArchiveFile;
+
+/**
+ * Chunks of an archive sent a few at a time. A chunk is marked sent in
+ * the archive once every previous one is saved, so that an interrupted
+ * upload resumes from the first chunk not saved.
+ */
+class ChunkPipeline {
+
+    private static final String LOG_TAG = "Pasteque/ChunkPipeline";
+
+    /** Sends a chunk, its response is given back with saved() */
+    interface Sender {
+        /** @return false if the chunk could not be sent */
+        boolean send(int chunk);
+    }
+
+    private final ArchiveFile archive;
+    private final int maxInFlight;
+    private final Sender sender;
+    /** Index of the next archive chunk to send */
+    private int nextChunk;
+    /** Number of chunks sent and not answered yet */
+    private int inFlight;
+    /** Chunks saved while a previous one is not, not marked sent yet */
+    private final Set<Integer> acked = new HashSet<>();
+    private boolean stopped;
+
+    ChunkPipeline(ArchiveFile archive, int maxInFlight, Sender sender) {
+        this.archive = archive;
+        this.maxInFlight = maxInFlight;
+        this.sender = sender;
+        this.nextChunk = archive.getFirstUnsentChunk();
+    }
+
+    /** Send chunks until maxInFlight are waiting for a response */
+    void fill() {
+        while (this.inFlight < this.maxInFlight
+                && this.nextChunk < this.archive.getChunkCount()
+                && !this.stopped) {
+            if (!this.sender.send(this.nextChunk)) {
+                return;
+            }
+            this.nextChunk++;
+            this.inFlight++;
+        }
+    }
+
+    /**
+     * Record a saved chunk and send the next ones.
+     * @return true once every chunk is saved
+     */
+    boolean saved(int chunk) {
+        this.inFlight--;
+        this.acked.add(chunk);
+        int firstUnsent = this.archive.getFirstUnsentChunk();
+        int done = firstUnsent;
+        while (this.acked.remove(done)) {
+            done++;
+        }
+        if (done > firstUnsent) {
+            try {
+                this.archive.markSent(done - 1);
+            } catch (IOException e) {
+                // They will be sent again
+                Log.w(LOG_TAG, "Unable to mark chunks as sent", e);
+            }
+        }
+        if (done == this.archive.getChunkCount()) {
+            return true;
+        }
+        this.fill();
+        return false;
+    }
+
+    /** Send no more chunk, the ones in flight can still be saved */
+    void stop() {
+        this.stopped = true;
+    }
+
+    /** @return number of chunks sent and not answered yet */
+    int getInFlight() {
+        return this.inFlight;
+    }
+}
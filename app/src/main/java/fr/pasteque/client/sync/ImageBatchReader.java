@@ -0,0 +1,111 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.sync;
+
+import fr.pasteque.client.utils.URLTextGetter;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Images of a batch request, read while they are downloaded and given
+ * to the store one at a time so that the batch is never held in memory.
+ * <p>The response starts with the "PIMG" magic, followed by a record
+ * for each requested id, until the end of the content:
+ * the id (as written by DataOutput.writeUTF), the length of the image
+ * as a 4-bytes big-endian int, and the image itself. The length is
+ * UNCHANGED when the hash sent with the request matched, NO_IMAGE when
+ * the item has none.
+ * <p>Servers without the batch action answer a JSON error instead,
+ * see isSupported().
+ */
+public class ImageBatchReader implements URLTextGetter.ResponseParser {
+
+    /** Called from the request thread for each image */
+    public interface ImageStore {
+        void store(String id, byte[] image) throws IOException;
+        /** Called when the item has no image anymore */
+        void remove(String id);
+    }
+
+    public static final int UNCHANGED = -1;
+    public static final int NO_IMAGE = -2;
+    private static final byte[] MAGIC = {'P', 'I', 'M', 'G'};
+
+    private final ImageStore store;
+    private boolean supported;
+    private final List<String> readIds = new ArrayList<>();
+    private int storedCount;
+
+    public ImageBatchReader(ImageStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Object parse(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        for (byte b : MAGIC) {
+            if (data.read() != b) {
+                // Not a batch, likely an unknown action error
+                return this;
+            }
+        }
+        this.supported = true;
+        while (true) {
+            String id;
+            try {
+                id = data.readUTF();
+            } catch (EOFException e) {
+                // End of the batch, missing records are not read
+                break;
+            }
+            int length = data.readInt();
+            if (length >= 0) {
+                byte[] image = new byte[length];
+                data.readFully(image);
+                this.store.store(id, image);
+                this.storedCount++;
+            } else if (length == NO_IMAGE) {
+                this.store.remove(id);
+            } else if (length != UNCHANGED) {
+                throw new IOException("Invalid image length " + length);
+            }
+            this.readIds.add(id);
+        }
+        return this;
+    }
+
+    /** @return false if the server can't send batches */
+    public boolean isSupported() {
+        return this.supported;
+    }
+
+    /** @return ids of the records read, stored or not */
+    public List<String> getReadIds() {
+        return this.readIds;
+    }
+
+    /** @return number of images stored */
+    public int getStoredCount() {
+        return this.storedCount;
+    }
+}
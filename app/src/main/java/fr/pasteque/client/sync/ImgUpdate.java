@@ -17,30 +17,43 @@
 */
 package fr.pasteque.client.sync;
 
+import fr.pasteque.client.data.DataSavable.ImageCacheData;
 import fr.pasteque.client.data.ImagesData;
 import fr.pasteque.client.models.Category;
 import fr.pasteque.client.models.PaymentMode;
 import fr.pasteque.client.models.Product;
+import fr.pasteque.client.utils.RequestExecutor;
 import fr.pasteque.client.utils.URLTextGetter;
 
 import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
+import android.util.Log;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import org.json.JSONArray;
 
-/** Updater for product and category images */
+/**
+ * Updater for product and category images.
+ * Images are requested by batches of ids, and one by one
+ * when the server can't send batches.
+ */
 public class ImgUpdate {
 
     private static final String LOG_TAG = "Pasteque/ImgUpdate";
     public static final int LOAD_DONE = 4701;
     public static final int CONNECTION_FAILED = 4702;
-
-    private static final int TYPE_CAT = 1;
-    private static final int TYPE_PRD = 2;
+    /** Maximum number of images requested at once */
+    public static final int BATCH_SIZE = 50;
 
     private Context ctx;
     private Handler listener;
+    /** False once the server answered it can't send batches */
+    private boolean batchSupported = true;
 
     public ImgUpdate(Context ctx, Handler listener) {
         this.ctx = ctx;
@@ -57,34 +70,244 @@ public class ImgUpdate {
         ImagesData.clearProducts(this.ctx);
     }
 
+    /**
+     * Request the image of an item, only if it changed since it was
+     * stored. Unchanged images are kept as is.
+     */
+    private void load(int type, String id, Batch batch) {
+        String url = SyncUtils.apiUrl(this.ctx);
+        Map<String, String> params = SyncUtils.initParams(this.ctx,
+                "ImagesAPI", method(type));
+        params.put("id", id);
+        ImageCacheData.Entry cached = ImagesData.getCachedImage(key(type, id));
+        URLTextGetter.getBinaryIfModified(url, params,
+                cached == null ? null : cached.getEtag(),
+                cached == null ? null : cached.getLastModified(),
+                new DataHandler(type, id, batch),
+                RequestExecutor.PRIORITY_BACKGROUND);
+    }
+
     /** Request and store the image of a category */
     public void loadImage(Category c) {
-        String url = SyncUtils.apiUrl(this.ctx);
-        Map<String, String> params = SyncUtils.initParams(this.ctx, "ImagesAPI",
-                "getCat");
-        params.put("id", c.getId());
-        URLTextGetter.getBinary(url, params,
-                new DataHandler(DataHandler.TYPE_CAT, c.getId()));
+        this.load(DataHandler.TYPE_CAT, c.getId(), null);
     }
 
     /** Request and store the image of a product */
     public void loadImage(Product p) {
-        String url = SyncUtils.apiUrl(this.ctx);
-        Map<String, String> params = SyncUtils.initParams(this.ctx, "ImagesAPI",
-                "getPrd");
-        params.put("id", p.getId());
-        URLTextGetter.getBinary(url, params,
-                new DataHandler(DataHandler.TYPE_PRD, p.getId()));        
+        this.load(DataHandler.TYPE_PRD, p.getId(), null);
     }
 
     public void loadImage(PaymentMode pm) {
-        String url = SyncUtils.apiUrl(this.ctx);
-        Map<String, String> params = SyncUtils.initParams(this.ctx,
-                "ImagesAPI", "getPM");
-        params.put("id", String.valueOf(pm.getId()));
-        URLTextGetter.getBinary(url, params,
-                new DataHandler(DataHandler.TYPE_PM,
-                        String.valueOf(pm.getId())));
+        this.load(DataHandler.TYPE_PM, String.valueOf(pm.getId()), null);
+    }
+
+    /**
+     * Request and store the images of at most BATCH_SIZE categories.
+     * LOAD_DONE is sent once for all of them, with their count.
+     */
+    public void loadCategoryImages(List<Category> categories) {
+        List<String> ids = new ArrayList<String>();
+        for (Category c : categories) {
+            ids.add(c.getId());
+        }
+        this.loadBatch(DataHandler.TYPE_CAT, ids);
+    }
+
+    /**
+     * Request and store the images of at most BATCH_SIZE products.
+     * LOAD_DONE is sent once for all of them, with their count.
+     */
+    public void loadProductImages(List<Product> products) {
+        List<String> ids = new ArrayList<String>();
+        for (Product p : products) {
+            ids.add(p.getId());
+        }
+        this.loadBatch(DataHandler.TYPE_PRD, ids);
+    }
+
+    /**
+     * Request and store the images of at most BATCH_SIZE payment modes.
+     * LOAD_DONE is sent once for all of them, with their count.
+     */
+    public void loadPaymentModeImages(List<PaymentMode> modes) {
+        List<String> ids = new ArrayList<String>();
+        for (PaymentMode pm : modes) {
+            ids.add(String.valueOf(pm.getId()));
+        }
+        this.loadBatch(DataHandler.TYPE_PM, ids);
+    }
+
+    /**
+     * Request the images in a single call. The hashes of the stored ones
+     * are sent along for the server to skip them when unchanged.
+     */
+    private void loadBatch(int type, List<String> ids) {
+        if (!this.batchSupported || ids.size() == 1) {
+            this.loadEach(type, ids, new Batch(ids.size(), ids.size()));
+            return;
+        }
+        JSONArray jsIds = new JSONArray();
+        JSONArray hashes = new JSONArray();
+        for (String id : ids) {
+            jsIds.put(id);
+            ImageCacheData.Entry cached = ImagesData.getCachedImage(key(type, id));
+            hashes.put(cached == null ? "" : cached.getHash());
+        }
+        Map<String, String> postBody = SyncUtils.initParams(this.ctx,
+                "ImagesAPI", method(type) + "s");
+        postBody.put("ids", jsIds.toString());
+        postBody.put("hashes", hashes.toString());
+        URLTextGetter.getParsed(SyncUtils.apiUrl(this.ctx), null, postBody,
+                new ImageBatchReader(new BatchStore(type)),
+                new BatchHandler(type, ids), 0,
+                RequestExecutor.PRIORITY_BACKGROUND);
+    }
+
+    /** Request the images one by one, ending as one batch */
+    private void loadEach(int type, List<String> ids, Batch batch) {
+        for (String id : ids) {
+            this.load(type, id, batch);
+        }
+    }
+
+    private static String method(int type) {
+        switch (type) {
+        case DataHandler.TYPE_CAT:
+            return "getCat";
+        case DataHandler.TYPE_PRD:
+            return "getPrd";
+        default:
+            return "getPM";
+        }
+    }
+
+    private static String key(int type, String id) {
+        switch (type) {
+        case DataHandler.TYPE_CAT:
+            return ImagesData.categoryKey(id);
+        case DataHandler.TYPE_PRD:
+            return ImagesData.productKey(id);
+        default:
+            return ImagesData.paymentModeKey(Integer.valueOf(id));
+        }
+    }
+
+    private static void store(int type, String id, byte[] img, String etag,
+            String lastModified) throws IOException {
+        switch (type) {
+        case DataHandler.TYPE_CAT:
+            ImagesData.storeCategoryImage(id, img, etag, lastModified);
+            break;
+        case DataHandler.TYPE_PRD:
+            ImagesData.storeProductImage(id, img, etag, lastModified);
+            break;
+        case DataHandler.TYPE_PM:
+            ImagesData.storePaymentModeImage(Integer.valueOf(id), img,
+                    etag, lastModified);
+        }
+    }
+
+    /** Store images of a batch as they are read */
+    private static class BatchStore implements ImageBatchReader.ImageStore {
+        private final int type;
+
+        BatchStore(int type) {
+            this.type = type;
+        }
+
+        @Override
+        public void store(String id, byte[] image) throws IOException {
+            // Batches have no validators, keep the ones of single requests
+            ImageCacheData.Entry cached = ImagesData.getCachedImage(key(this.type, id));
+            if (cached != null) {
+                ImgUpdate.store(this.type, id, image, cached.getEtag(),
+                        cached.getLastModified());
+            } else {
+                ImgUpdate.store(this.type, id, image, null, null);
+            }
+        }
+
+        @Override
+        public void remove(String id) {
+            ImagesData.removeImage(key(this.type, id));
+        }
+    }
+
+    /** Requests standing for a batch, ended with a single message */
+    private class Batch {
+        private final int size;
+        private int remaining;
+        private boolean failed;
+
+        /**
+         * @param size number of images of the batch
+         * @param remaining number of images still to request
+         */
+        Batch(int size, int remaining) {
+            this.size = size;
+            this.remaining = remaining;
+        }
+
+        void imageDone() {
+            this.remaining--;
+            if (this.remaining == 0 && !this.failed) {
+                SyncUtils.notifyListener(listener, LOAD_DONE, this.size);
+            }
+        }
+
+        void imageFailed(Object error) {
+            if (!this.failed) {
+                this.failed = true;
+                SyncUtils.notifyListener(listener, CONNECTION_FAILED, error);
+            }
+        }
+    }
+
+    private class BatchHandler extends Handler {
+
+        private int type;
+        private List<String> ids;
+
+        public BatchHandler(int type, List<String> ids) {
+            this.type = type;
+            this.ids = ids;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+            case URLTextGetter.SUCCESS:
+                ImageBatchReader res = (ImageBatchReader) msg.obj;
+                if (!res.isSupported()) {
+                    Log.i(LOG_TAG, "No batch support, loading images one by one");
+                    batchSupported = false;
+                    loadEach(this.type, this.ids,
+                            new Batch(this.ids.size(), this.ids.size()));
+                    break;
+                }
+                // Request what the batch missed one by one
+                Set<String> read = new HashSet<String>(res.getReadIds());
+                List<String> missing = new ArrayList<String>();
+                for (String id : this.ids) {
+                    if (!read.contains(id)) {
+                        missing.add(id);
+                    }
+                }
+                if (missing.isEmpty()) {
+                    SyncUtils.notifyListener(listener, LOAD_DONE,
+                            this.ids.size());
+                } else {
+                    loadEach(this.type, missing,
+                            new Batch(this.ids.size(), missing.size()));
+                }
+                break;
+            case URLTextGetter.ERROR:
+                ((Exception)msg.obj).printStackTrace();
+            case URLTextGetter.STATUS_NOK:
+                SyncUtils.notifyListener(listener, CONNECTION_FAILED,
+                        msg.obj);
+            }
+        }
     }
 
     private class DataHandler extends Handler {
@@ -95,55 +318,64 @@ public class ImgUpdate {
 
         private int type;
         private String id;
-        
-        public DataHandler(int type, String id) {
+        private Batch batch;
+
+        /** @param batch the batch it stands for, null when alone */
+        public DataHandler(int type, String id, Batch batch) {
             this.type = type;
             this.id = id;
+            this.batch = batch;
         }
 
-
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
+            case URLTextGetter.NOT_MODIFIED:
+                // Keep the stored image
+                this.done(null);
+                break;
             case URLTextGetter.SUCCESS:
                 // Parse content
-                byte[] img = (byte[]) msg.obj;
-                switch (this.type) {
-                case TYPE_CAT:
-                    try {
-                        ImagesData.storeCategoryImage(this.id, img);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        // TODO: handle IOException
-                    }
+                URLTextGetter.CachedContent res
+                        = (URLTextGetter.CachedContent) msg.obj;
+                byte[] img = res.getContent();
+                if (img == null) {
+                    this.failed(null);
                     break;
-                case TYPE_PRD:
-                    try {
-                        ImagesData.storeProductImage(this.id, img);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        // TODO: handle IOException
-                    }
+                }
+                try {
+                    store(this.type, this.id, img, res.getEtag(),
+                            res.getLastModified());
+                } catch (IOException e) {
+                    // Not stored, the sync must not prune the old one
+                    Log.e(LOG_TAG, "Unable to store image " + this.id, e);
+                    this.failed(e);
                     break;
-                case TYPE_PM:
-                    try {
-                        ImagesData.storePaymentModeImage(
-                                Integer.valueOf(this.id), img);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        // TODO: handle IOException
-                    }
                 }
-                SyncUtils.notifyListener(listener, LOAD_DONE,
-                        msg.obj);
+                this.done(img);
                 break;
             case URLTextGetter.ERROR:
                 ((Exception)msg.obj).printStackTrace();
             case URLTextGetter.STATUS_NOK:
-                SyncUtils.notifyListener(listener, CONNECTION_FAILED,
-                        msg.obj);
+                this.failed(msg.obj);
+            }
+        }
+
+        private void done(Object obj) {
+            if (this.batch != null) {
+                this.batch.imageDone();
+            } else {
+                SyncUtils.notifyListener(listener, LOAD_DONE, obj);
+            }
+        }
+
+        private void failed(Object error) {
+            if (this.batch != null) {
+                this.batch.imageFailed(error);
+            } else {
+                SyncUtils.notifyListener(listener, CONNECTION_FAILED, error);
             }
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,430 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.sync;
+
+import fr.pasteque.client.Configure;
+import fr.pasteque.client.data.Data;
+import fr.pasteque.client.models.Cash;
+import fr.pasteque.client.models.Customer;
+import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.utils.URLTextGetter;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+import java.io.IOError;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sends sales data in background while the cash is opened, so that
+ * closing it has little left to send.
+ * <p>Created customers, then the current cash (to get its id) and then
+ * the receipts are sent as soon as they are saved. The receipts are
+ * queued in Data.Receipt itself, Data.Outbox only records how many
+ * were sent. On failure the outbox retries after a delay doubling
+ * each time, and right away when the network comes back.
+ * <p>It pauses while UpdateProcess or SendProcess run. The close
+ * inventory is sent with the cash archive when closing, once the
+ * request in flight got its response (see whenIdle).
+ */
+public class Outbox implements Handler.Callback {
+
+    private static final String LOG_TAG = "Pasteque/Outbox";
+
+    /** Sent to the listener when receipts were sent, with the pending count */
+    public static final int PROGRESSED = 4801;
+    static final int RETRY = 4802;
+
+    /** Maximum number of receipts by request */
+    private static final int RECEIPTS_BY_REQUEST = 10;
+    private static final long BASE_DELAY = 5000;
+    private static final long MAX_DELAY = 10 * 60 * 1000;
+
+    private static Outbox instance;
+
+    private Context ctx;
+    private Handler handler;
+    private Handler listener;
+    /** True while a request is waiting for its response */
+    private boolean sending;
+    /** True while waiting for the retry delay */
+    private boolean waiting;
+    /** Number of failures in a row */
+    private int failures;
+    /** Run once the request in flight got its response */
+    private final List<Runnable> idleTasks = new ArrayList<>();
+
+    private final BroadcastReceiver connectivity = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (isConnected()) {
+                retryNow();
+            }
+        }
+    };
+
+    Outbox(Context ctx) {
+        this.ctx = ctx;
+        this.handler = new Handler(this);
+    }
+
+    /**
+     * Start sending in background, from the main thread once data
+     * are loaded. If already started nothing happens. It runs as long
+     * as the application, the receiver is registered on its context.
+     */
+    public static void start(Context ctx) {
+        if (instance != null) {
+            return;
+        }
+        instance = new Outbox(ctx.getApplicationContext());
+        instance.ctx.registerReceiver(instance.connectivity,
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        instance.drain();
+    }
+
+    /** Send what was saved, unless waiting to retry */
+    public static void wake() {
+        if (instance != null) {
+            instance.drain();
+        }
+    }
+
+    /**
+     * Run a task once no request is waiting for its response, right
+     * away if none is. Close the cash before, so that nothing new is
+     * sent: receipts in flight are then counted as sent before the
+     * task archives the others.
+     */
+    public static void whenIdle(Runnable task) {
+        if (instance == null) {
+            task.run();
+        } else {
+            instance.runWhenIdle(task);
+        }
+    }
+
+    void runWhenIdle(Runnable task) {
+        if (!this.sending) {
+            task.run();
+        } else {
+            this.idleTasks.add(task);
+        }
+    }
+
+    /** Set the handler to notify with PROGRESSED, null to remove it */
+    public static void setListener(Handler listener) {
+        if (instance != null) {
+            instance.listener = listener;
+        }
+    }
+
+    /** @return number of receipts of the current cash not sent yet */
+    public static int getPendingReceipts(Context ctx) {
+        Cash cash = Data.Cash.currentCash(ctx);
+        if (cash == null) {
+            return 0;
+        }
+        int count = Data.Receipt.getSummaryCount();
+        return Math.max(0, count - Data.Outbox.getSentReceipts(cash));
+    }
+
+    private boolean isConnected() {
+        ConnectivityManager cm = (ConnectivityManager)
+                this.ctx.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    private void retryNow() {
+        this.handler.removeMessages(RETRY);
+        this.waiting = false;
+        this.drain();
+    }
+
+    /** @return false while syncing, without account or network */
+    boolean canSend() {
+        return !UpdateProcess.isStarted() && !SendProcess.isStarted()
+                && Configure.isAccount(this.ctx) && this.isConnected();
+    }
+
+    /** Send the next pending data, one request at a time */
+    void drain() {
+        if (this.sending || this.waiting || !this.canSend()) {
+            return;
+        }
+        Cash cash = Data.Cash.currentCash(this.ctx);
+        if (cash == null || !cash.isOpened()) {
+            return;
+        }
+        if (Data.Customer.getCreatedCustomers().size() > 0) {
+            this.sendCustomers();
+        } else if (cash.getId() == null) {
+            this.sendCash(cash);
+        } else if (getPendingReceipts(this.ctx) > 0) {
+            this.sendReceipts(cash);
+        }
+    }
+
+    private void sendCustomers() {
+        JSONArray customers;
+        try {
+            customers = SendProcess.createdCustomersJSON();
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Unable to convert created customers", e);
+            return;
+        }
+        List<String> ids = new ArrayList<String>();
+        for (Customer c : Data.Customer.getCreatedCustomers()) {
+            ids.add(c.getId());
+        }
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("customers", customers.toString());
+        this.send("CustomersAPI", "save", params,
+                new DataHandler(DataHandler.TYPE_CUSTOMERS, ids, null, 0));
+    }
+
+    /** Register the cash opened locally to get its id */
+    private void sendCash(Cash cash) {
+        Map<String, String> params = new HashMap<String, String>();
+        try {
+            params.put("cash", cash.toJSON().toString());
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Unable to convert cash", e);
+            return;
+        }
+        this.send("CashesAPI", "update", params,
+                new DataHandler(DataHandler.TYPE_CASH, null, null, 0));
+    }
+
+    private void sendReceipts(Cash cash) {
+        int sent = Data.Outbox.getSentReceipts(cash);
+        List<Receipt> receipts = Data.Receipt.getReceipts(this.ctx, sent,
+                RECEIPTS_BY_REQUEST);
+        JSONArray tickets = new JSONArray();
+        try {
+            for (Receipt r : receipts) {
+                SyncSend.resolveCustomer(r);
+                tickets.put(r.toJSON(this.ctx));
+            }
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, "Unable to convert receipts", e);
+            return;
+        }
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("tickets", tickets.toString());
+        params.put("cashId", cash.getId());
+        this.send("TicketsAPI", "save", params,
+                new DataHandler(DataHandler.TYPE_RECEIPTS, null, cash.getId(),
+                        receipts.size()));
+    }
+
+    private void send(String service, String action,
+            Map<String, String> params, DataHandler h) {
+        this.sending = true;
+        this.post(service, action, params, h);
+    }
+
+    /** Post a request, the handler gets its response */
+    void post(String service, String action, Map<String, String> params,
+            DataHandler h) {
+        Map<String, String> postBody = SyncUtils.initParams(this.ctx,
+                service, action);
+        postBody.putAll(params);
+        URLTextGetter.getText(SyncUtils.apiUrl(this.ctx), null, postBody, h);
+    }
+
+    private void succeeded() {
+        this.sending = false;
+        this.failures = 0;
+        this.runIdleTasks();
+        this.drain();
+    }
+
+    private void runIdleTasks() {
+        List<Runnable> tasks = new ArrayList<>(this.idleTasks);
+        this.idleTasks.clear();
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    /** Retry later, waiting twice longer at each failure in a row */
+    private void failed() {
+        this.sending = false;
+        this.failures++;
+        long delay = retryDelay(this.failures);
+        Log.i(LOG_TAG, "Sending failed, retrying in " + (delay / 1000) + "s");
+        this.waiting = true;
+        this.handler.sendEmptyMessageDelayed(RETRY, delay);
+        this.runIdleTasks();
+    }
+
+    /** @return the delay before retrying after failures in a row */
+    static long retryDelay(int failures) {
+        return Math.min(MAX_DELAY, BASE_DELAY << Math.min(failures - 1, 16));
+    }
+
+    /**
+     * Resolve the sent customers. The ones created meanwhile are sent
+     * next, the ones SendProcess sent meanwhile are already resolved.
+     */
+    private void parseCustomers(JSONObject content, List<String> sentIds)
+            throws JSONException {
+        SendProcess.resolveCreatedCustomers(this.ctx, sentIds,
+                content.getJSONArray("saved"));
+    }
+
+    /** @return false if the cash is not the current one */
+    private boolean parseCash(JSONObject content) throws JSONException {
+        Cash cash = Cash.fromJSON(content);
+        if (!Data.Cash.mergeCurrent(cash)) {
+            Log.w(LOG_TAG, "Unexpected cash " + cash);
+            return false;
+        }
+        Data.Cash.save(this.ctx);
+        return true;
+    }
+
+    /**
+     * Count the receipts the server saved, they are saved in order.
+     * @return false if the server did not save every receipt, the
+     * others are sent again on retry
+     */
+    private boolean parseReceipts(JSONObject content, String cashId, int count)
+            throws JSONException {
+        int saved = content.getInt("saved");
+        if (saved < 0 || saved > count) {
+            Log.w(LOG_TAG, saved + " tickets saved, expecting " + count);
+            return false;
+        }
+        Cash cash = Data.Cash.currentCash(this.ctx);
+        if (cash == null || !cashId.equals(cash.getId())) {
+            // Cleared meanwhile, nothing left to count them in
+            return true;
+        }
+        if (saved > 0) {
+            Data.Outbox.setSentReceipts(cash,
+                    Data.Outbox.getSentReceipts(cash) + saved);
+            Data.Outbox.save(this.ctx);
+            SyncUtils.notifyListener(this.listener, PROGRESSED,
+                    getPendingReceipts(this.ctx));
+        }
+        if (saved < count) {
+            Log.w(LOG_TAG, saved + " tickets saved, retrying the "
+                    + (count - saved) + " others");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean handleMessage(Message m) {
+        if (m.what == RETRY) {
+            this.waiting = false;
+            this.drain();
+        }
+        return true;
+    }
+
+    class DataHandler extends Handler {
+
+        private static final int TYPE_CUSTOMERS = 1;
+        private static final int TYPE_CASH = 2;
+        private static final int TYPE_RECEIPTS = 3;
+
+        private int type;
+        private List<String> customerIds;
+        private String cashId;
+        private int receiptCount;
+
+        /**
+         * @param customerIds local ids of the sent customers
+         * @param cashId id of the cash of the sent receipts
+         * @param receiptCount number of sent receipts
+         */
+        public DataHandler(int type, List<String> customerIds, String cashId,
+                int receiptCount) {
+            this.type = type;
+            this.customerIds = customerIds;
+            this.cashId = cashId;
+            this.receiptCount = receiptCount;
+        }
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+            case URLTextGetter.SUCCESS:
+                boolean ok = false;
+                try {
+                    JSONObject result = new JSONObject((String) msg.obj);
+                    if (!"ok".equals(result.getString("status"))) {
+                        Log.w(LOG_TAG, "Server error " + result);
+                    } else {
+                        JSONObject content = result.getJSONObject("content");
+                        switch (this.type) {
+                        case TYPE_CUSTOMERS:
+                            parseCustomers(content, this.customerIds);
+                            ok = true;
+                            break;
+                        case TYPE_CASH:
+                            ok = parseCash(content);
+                            break;
+                        case TYPE_RECEIPTS:
+                            ok = parseReceipts(content, this.cashId,
+                                    this.receiptCount);
+                            break;
+                        }
+                    }
+                } catch (JSONException e) {
+                    Log.w(LOG_TAG, "Unable to parse response", e);
+                } catch (IOError e) {
+                    Log.e(LOG_TAG, "Unable to save sent data", e);
+                }
+                if (ok) {
+                    succeeded();
+                } else {
+                    failed();
+                }
+                break;
+            case URLTextGetter.ERROR:
+                Log.i(LOG_TAG, "Connection error", (Exception) msg.obj);
+                failed();
+                break;
+            case URLTextGetter.STATUS_NOK:
+                Log.i(LOG_TAG, "Server error " + msg.obj);
+                failed();
+                break;
+            }
+        }
+    }
+}
@@ -22,13 +22,13 @@ import fr.pasteque.client.utils.exception.loadArchiveException;
 import fr.pasteque.client.models.Ticket;
 import fr.pasteque.client.utils.Error;
 import fr.pasteque.client.R;
+import fr.pasteque.client.data.ArchiveFile;
 import fr.pasteque.client.data.CashArchive;
 import fr.pasteque.client.models.Cash;
 import fr.pasteque.client.models.Customer;
 import fr.pasteque.client.models.Receipt;
 import fr.pasteque.client.activities.TrackedActivity;
 import fr.pasteque.client.utils.URLTextGetter;
-import fr.pasteque.client.utils.exception.SaveArchiveException;
 import fr.pasteque.client.widgets.ProgressPopup;
 
 import android.content.Context;
@@ -40,6 +40,7 @@ import java.io.IOError;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -65,8 +66,7 @@ public class SendProcess implements Handler.Callback {
     /** Content progress */
     private int subprogress;
     private int subprogressMax;
-    /** [0] is Cash, [1] is List<Receipt> */
-    private Object[] currentArchive;
+    private ArchiveFile currentArchive;
     /** True when sync is requested to be interrupted */
     private boolean stop;
     private boolean sendCustomer;
@@ -75,7 +75,7 @@ public class SendProcess implements Handler.Callback {
         this.ctx = ctx;
         this.errorOccured = false;
         this.progressMax = CashArchive.getArchiveCount(ctx);
-        this.sendCustomer = Data.Customer.createdCustomers.size() > 0;
+        this.sendCustomer = Data.Customer.getCreatedCustomers().size() > 0;
     }
 
     /** Start update process with the given context (should be application
@@ -116,6 +116,8 @@ public class SendProcess implements Handler.Callback {
         SyncUtils.notifyListener(this.listener, SyncSend.SYNC_DONE);
         unbind();
         instance = null;
+        // Go on with what was sold meanwhile
+        Outbox.wake();
     }
     /** Bind a feedback popup to the process. Must be started before binding
      * otherwise nothing happens.
@@ -172,7 +174,7 @@ public class SendProcess implements Handler.Callback {
      * @return true if customers were send, false otherwise
      */
     private boolean sendCustomer() {
-        if (Data.Customer.resolvedIds.size() > 0) {
+        if (Data.Customer.getResolvedIds().size() > 0) {
             Log.i(LOG_TAG, "Customer Sync: There are saved local customer ids");
         }
         if (!this.sendCustomer) {
@@ -180,22 +182,13 @@ public class SendProcess implements Handler.Callback {
             instance.nextArchive();
             return false;
         }
-        JSONArray cstJArray = new JSONArray();
-        for (Customer c : Data.Customer.createdCustomers) {
-            try {
-                // requiered hack to avoid errors. Prepaid is local storage
-                // use but the prepaid amount will be calculated from tickets
-                // lines by Pastequ-API
-                double storedCustomerPrepaid = c.getPrepaid();
-                c.setPrepaid(0);
-                JSONObject o = c.toJSON();
-                cstJArray.put(o);
-                c.setPrepaid(storedCustomerPrepaid);
-            } catch (JSONException e) {
-                Log.d(LOG_TAG, c.toString(), e);
-                SyncUtils.notifyListener(this.listener, SyncSend.CUSTOMER_SYNC_FAILED);
-                return false;
-            }
+        JSONArray cstJArray;
+        try {
+            cstJArray = createdCustomersJSON();
+        } catch (JSONException e) {
+            Log.d(LOG_TAG, "Unable to convert created customers", e);
+            SyncUtils.notifyListener(this.listener, SyncSend.CUSTOMER_SYNC_FAILED);
+            return false;
         }
         this.subprogress++;
         this.refreshFeedback();
@@ -206,42 +199,84 @@ public class SendProcess implements Handler.Callback {
         return true;
     }
 
+    /** @return the customers created locally, as sent to CustomersAPI */
+    static JSONArray createdCustomersJSON() throws JSONException {
+        JSONArray cstJArray = new JSONArray();
+        for (Customer c : Data.Customer.getCreatedCustomers()) {
+            // requiered hack to avoid errors. Prepaid is local storage
+            // use but the prepaid amount will be calculated from tickets
+            // lines by Pastequ-API
+            double storedCustomerPrepaid = c.getPrepaid();
+            c.setPrepaid(0);
+            JSONObject o = c.toJSON();
+            cstJArray.put(o);
+            c.setPrepaid(storedCustomerPrepaid);
+        }
+        return cstJArray;
+    }
+
+    /**
+     * Replace the local ids of the created customers by the ones
+     * the server gave, in the same order, and save.
+     */
+    static void resolveCreatedCustomers(Context ctx, JSONArray ids)
+            throws JSONException, IOError {
+        List<String> sentIds = new ArrayList<String>();
+        for (Customer c : Data.Customer.getCreatedCustomers()) {
+            sentIds.add(c.getId());
+        }
+        resolveCreatedCustomers(ctx, sentIds, ids);
+    }
+
+    /**
+     * Replace the local ids of the sent customers by the ones the server
+     * gave, in the same order, and save. Sent customers that were already
+     * resolved are skipped, customers created since are kept to be sent.
+     * @param sentIds local ids of the sent customers
+     */
+    static void resolveCreatedCustomers(Context ctx, List<String> sentIds,
+            JSONArray ids) throws JSONException, IOError {
+        List<Customer> created = Data.Customer.getCreatedCustomers();
+        Map<String, String> resolved = new HashMap<String, String>();
+        for (int i = 0; i < sentIds.size(); i++) {
+            String tmpId = sentIds.get(i);
+            String serverId = ids.getString(i);
+            if (tmpId == null) continue; // Should never happen.
+            for (Customer c : created) {
+                if (tmpId.equals(c.getId())) {
+                    resolved.put(tmpId, serverId);
+                    break;
+                }
+            }
+        }
+        if (resolved.isEmpty()) {
+            // Resolved meanwhile
+            return;
+        }
+        // Sending these customers completed
+        Data.Customer.resolveCreatedCustomers(resolved);
+        for (Ticket t : Data.Session.currentSession(ctx).getTickets()) {
+            Customer c = t.getCustomer();
+            if (c != null && resolved.containsKey(c.getId())) {
+                c.setId(resolved.get(c.getId()));
+            }
+        }
+        for (Receipt r : Data.Receipt.getReceipts(ctx)) {
+            Customer c = r.getTicket().getCustomer();
+            if (c != null && resolved.containsKey(c.getId())) {
+                c.setId(resolved.get(c.getId()));
+            }
+        }
+        Data.Customer.save(ctx);
+        Data.Session.save(ctx);
+        Data.Receipt.save(ctx);
+    }
+
     private boolean parseCustomer(JSONObject resp) {
         try {
             // Were customers properly send ?
             JSONObject o = resp.getJSONObject("content");
-            JSONArray ids = o.getJSONArray("saved");
-            int createdCustomerSize = Data.Customer.createdCustomers.size();
-            for (int i = 0; i < createdCustomerSize; i++) {
-                String tmpId = Data.Customer.createdCustomers.get(i).getId();
-                String serverId = ids.getString(i);
-                if (tmpId == null) continue; // Should never happen.
-                // Updating local info
-                for (Customer c : Data.Customer.customers) {
-                    if (c.getId().equals(tmpId)) {
-                        c.setId(serverId);
-                        break;
-                    }
-                }
-                for (Ticket t : Data.Session.currentSession(this.ctx).getTickets()) {
-                    Customer c = t.getCustomer();
-                    if (c != null && c.getId().equals(tmpId)) {
-                        c.setId(serverId);
-                    }
-                }
-                for (Receipt r : Data.Receipt.getReceipts(this.ctx)) {
-                    Customer c = r.getTicket().getCustomer();
-                    if (c != null && c.getId().equals(tmpId)) {
-                        c.setId(serverId);
-                    }
-                }
-                Data.Customer.resolvedIds.put(tmpId, serverId);
-            }
-            // Sending Customer completed
-            Data.Customer.createdCustomers.clear();
-            Data.Customer.save(this.ctx);
-            Data.Session.save(this.ctx);
-            Data.Receipt.save(this.ctx);
+            resolveCreatedCustomers(this.ctx, o.getJSONArray("saved"));
             Log.i(LOG_TAG, "Customer Sync: Saved new local customer ids");
             this.sendCustomer = false;
             this.subprogress = 0;
@@ -261,26 +296,19 @@ public class SendProcess implements Handler.Callback {
 
     private boolean nextArchive() {
         try {
-            this.currentArchive = CashArchive.loadAnArchive();
+            this.currentArchive = CashArchive.openAnArchive();
         } catch (loadArchiveException e) {
             e.printStackTrace();
             return false;
         }
-        if (this.currentArchive[0] == null) {
+        if (this.currentArchive.getCash() == null) {
             // No more
             return false;
         }
-        // Copy list to break pointer reference
-        List<Receipt> receipts = new ArrayList<Receipt>();
-        //noinspection unchecked [1] is a List<Receipt>
-        receipts.addAll((List<Receipt>) this.currentArchive[1]);
-        // Count chunks
-        int chunks = receipts.size() / SyncSend.TICKETS_BUFFER;
-        if (receipts.size() % SyncSend.TICKETS_BUFFER > 0) {
-            // Add final partial chunk
-            chunks++;
-        }
-        Cash cash = (Cash) this.currentArchive[0];
+        // Receipts are read chunk by chunk when sending
+        int chunks = this.currentArchive.getChunkCount()
+                - this.currentArchive.getFirstUnsentChunk();
+        Cash cash = this.currentArchive.getCash();
         // Add 1 for cash and 1 more if close inventory is set
         this.subprogressMax = chunks + 1;
         if (cash.getCloseInventory() != null) {
@@ -292,8 +320,7 @@ public class SendProcess implements Handler.Callback {
         this.refreshFeedback();
         // Sync archive
         SyncSend syncSend = new SyncSend(this.ctx,
-                new Handler(this), receipts,
-                (Cash) this.currentArchive[0]);
+                new Handler(this), this.currentArchive);
         syncSend.synchronize();
         return true;
     }
@@ -301,7 +328,7 @@ public class SendProcess implements Handler.Callback {
     /** Things to do after an archive is sent and start the next one if any. */
     private void postSync() {
         // Delete current archive
-        CashArchive.deleteArchive(this.ctx, (Cash) this.currentArchive[0]);
+        CashArchive.deleteArchive(this.ctx, this.currentArchive.getCash());
         // Move to next or finish
         if (!this.nextArchive() || this.stop) {
             // Finished
@@ -346,13 +373,9 @@ public class SendProcess implements Handler.Callback {
             // Merge from first send (id and sequence may have been set)
             Cash newCash = (Cash) m.obj;
             try {
-                //noinspection unchecked
-                CashArchive.updateArchive(newCash,
-                        (List<Receipt>) this.currentArchive[1]);
+                this.currentArchive.updateCash(newCash);
             } catch (IOException e) {
                 e.printStackTrace();
-            } catch (SaveArchiveException e) {
-                e.printStackTrace();
             }
             break;
         case SyncSend.CLOSE_INV_SYNC_DONE:
@@ -367,38 +390,15 @@ public class SendProcess implements Handler.Callback {
             this.finish();
             break;
         case SyncSend.RECEIPTS_SYNC_DONE:
-            if (((Cash) this.currentArchive[0]).getCloseInventory() == null) {
+            if (this.currentArchive.getCash().getCloseInventory() == null) {
                 // No cash inventory, sync is done
-                this.subprogress++;
-                this.refreshFeedback();
                 this.postSync();
-                break;
-            } // else do the same as sync progress (delete tickets)
+            } // else wait for close inventory
+            break;
         case SyncSend.RECEIPTS_SYNC_PROGRESSED:
+            // SyncSend marks the chunks as sent in the archive
             this.subprogress++;
             this.refreshFeedback();
-            // Delete the first receipts to not send them twice.
-            // Use tickets or this.currentArchive[1] indifferently
-            // (shared pointer)
-            List tickets = (List) this.currentArchive[1];
-            if (tickets.size() > SyncSend.TICKETS_BUFFER) {
-                // subList shares reference, clear portion of the original list
-                tickets.subList(0, SyncSend.TICKETS_BUFFER).clear();
-            } else {
-                tickets.clear();
-            }
-            // Update archive
-            try {
-                //noinspection unchecked
-                CashArchive.updateArchive(
-                        (Cash) this.currentArchive[0],
-                        (List<Receipt>) this.currentArchive[1]);
-            } catch (IOException e) {
-                e.printStackTrace();
-                // There's nothing we can do about it, it's too late
-            } catch (SaveArchiveException e) {
-                e.printStackTrace();
-            }
             break;
         case SyncSend.CUSTOMER_SYNC_DONE:
             break;
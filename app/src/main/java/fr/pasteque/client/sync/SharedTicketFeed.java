@@ -0,0 +1,238 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.sync;
+
+import fr.pasteque.client.data.Data;
+import fr.pasteque.client.models.Session;
+import fr.pasteque.client.models.Ticket;
+import fr.pasteque.client.utils.RequestExecutor;
+import fr.pasteque.client.utils.URLTextGetter;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.json.JSONException;
+
+/**
+ * Keeps the shared tickets of the session up to date while a floor
+ * view is shown. The server holds each request until a shared ticket
+ * changes or the wait ends, then sends only the tickets changed since
+ * the version of the previous response:
+ * <code>{"updated": [...], "deleted": ["id", ...], "time": 123}</code>.
+ * The next request is sent with the new version as soon as the previous
+ * one was sent MIN_INTERVAL ago, so that changes show up as soon as they
+ * are made without flooding a server that answers right away.
+ * <p>Without a version the full list is sent. When the server doesn't
+ * know getSharedChanges, the tickets are read once with getAllShared.
+ */
+public class SharedTicketFeed implements Handler.Callback {
+
+    private static final String LOG_TAG = "Pasteque/TicketFeed";
+
+    /** Sent to the listener when shared tickets of the session changed */
+    public static final int CHANGED = 4901;
+    private static final int RETRY = 4902;
+    private static final int POLL = 4903;
+
+    /** Seconds the server may hold a request, under the read timeout */
+    private static final int WAIT = 20;
+    private static final long BASE_DELAY = 2000;
+    private static final long MAX_DELAY = 60 * 1000;
+    /** Minimum milliseconds between two polls */
+    private static final long MIN_INTERVAL = 1000;
+
+    private static SharedTicketFeed instance;
+
+    private Context ctx;
+    private Handler handler;
+    private Handler listener;
+    private URLTextGetter.Request request;
+    /** Server version of the shared tickets the session holds, 0 if none */
+    private long version;
+    /** Number of failures in a row */
+    private int failures;
+    /** System.nanoTime() when the last poll was sent */
+    private long pollTime;
+
+    private SharedTicketFeed(Context ctx, Handler listener) {
+        this.ctx = ctx;
+        this.listener = listener;
+        this.handler = new Handler(this);
+    }
+
+    /**
+     * Start following the shared tickets, notifying the listener with
+     * CHANGED. It replaces the listener if already started.
+     */
+    public static void start(Context ctx, Handler listener) {
+        if (instance != null) {
+            instance.listener = listener;
+            return;
+        }
+        instance = new SharedTicketFeed(ctx.getApplicationContext(), listener);
+        instance.poll();
+    }
+
+    /** Stop following, the pending request is dropped */
+    public static void stop() {
+        if (instance == null) {
+            return;
+        }
+        instance.handler.removeMessages(RETRY);
+        instance.handler.removeMessages(POLL);
+        if (instance.request != null) {
+            instance.request.cancel();
+        }
+        instance = null;
+    }
+
+    private void poll() {
+        this.pollTime = System.nanoTime();
+        Map<String, String> params = SyncUtils.initParams(this.ctx,
+                "TicketsAPI", "getSharedChanges");
+        if (this.version != 0) {
+            params.put("since", String.valueOf(this.version));
+        }
+        params.put("wait", String.valueOf(WAIT));
+        this.request = URLTextGetter.getParsed(SyncUtils.apiUrl(this.ctx),
+                params, null, this.newResponse(), new DataHandler(true), 0,
+                RequestExecutor.PRIORITY_INTERACTIVE);
+    }
+
+    /** Read every shared ticket once, for servers without changes */
+    private void loadAll() {
+        Map<String, String> params = SyncUtils.initParams(this.ctx,
+                "TicketsAPI", "getAllShared");
+        this.request = URLTextGetter.getParsed(SyncUtils.apiUrl(this.ctx),
+                params, null, this.newResponse(), new DataHandler(false), 0,
+                RequestExecutor.PRIORITY_INTERACTIVE);
+    }
+
+    private StreamedResponse<Ticket> newResponse() {
+        final Context ctx = this.ctx;
+        return new StreamedResponse<>(new StreamedResponse.ItemReader<Ticket>() {
+            @Override
+            public Ticket read(JsonReader in) throws IOException, JSONException {
+                return Ticket.fromJSON(ctx, StreamedResponse.readObject(in));
+            }
+        });
+    }
+
+    /** Apply the response to the session */
+    private void apply(StreamedResponse<Ticket> res) {
+        Session session = Data.Session.currentSession(this.ctx);
+        boolean changed;
+        if (res.isDelta()) {
+            changed = session.applySharedChanges(res.getItems(),
+                    res.getDeletedIds());
+        } else {
+            session.updateSharedTickets(res.getItems());
+            changed = true;
+        }
+        this.version = res.getTime();
+        if (changed) {
+            Data.Session.saveLater(this.ctx);
+            SyncUtils.notifyListener(this.listener, CHANGED, null);
+        }
+    }
+
+    /** Poll again once MIN_INTERVAL passed since the last poll */
+    private void pollNext() {
+        long elapsed = (System.nanoTime() - this.pollTime) / 1000000;
+        if (elapsed >= MIN_INTERVAL) {
+            this.poll();
+        } else {
+            this.handler.sendEmptyMessageDelayed(POLL, MIN_INTERVAL - elapsed);
+        }
+    }
+
+    /** Poll again later, waiting twice longer at each failure in a row */
+    private void failed() {
+        this.request = null;
+        this.failures++;
+        long delay = Math.min(MAX_DELAY,
+                BASE_DELAY << Math.min(this.failures - 1, 16));
+        Log.i(LOG_TAG, "Polling failed, retrying in " + (delay / 1000) + "s");
+        this.handler.sendEmptyMessageDelayed(RETRY, delay);
+    }
+
+    @Override
+    public boolean handleMessage(Message m) {
+        if ((m.what == RETRY || m.what == POLL) && instance == this) {
+            this.poll();
+        }
+        return true;
+    }
+
+    private class DataHandler extends Handler {
+
+        private boolean changes;
+
+        /** @param changes true for getSharedChanges, false for getAllShared */
+        public DataHandler(boolean changes) {
+            this.changes = changes;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void handleMessage(Message msg) {
+            if (instance != SharedTicketFeed.this) {
+                // Stopped
+                return;
+            }
+            switch (msg.what) {
+            case URLTextGetter.SUCCESS:
+                StreamedResponse<Ticket> res = (StreamedResponse<Ticket>) msg.obj;
+                if (!res.isOk() && this.changes) {
+                    Log.i(LOG_TAG, "No shared ticket changes ("
+                            + res.getErrorCode() + "), reading them once");
+                    loadAll();
+                    break;
+                }
+                if (!res.isOk() || res.getError() != null) {
+                    Log.w(LOG_TAG, "Unable to read shared tickets",
+                            res.getError());
+                    failed();
+                    break;
+                }
+                apply(res);
+                request = null;
+                failures = 0;
+                if (this.changes) {
+                    pollNext();
+                }
+                break;
+            case URLTextGetter.ERROR:
+                Log.i(LOG_TAG, "Connection error", (Exception) msg.obj);
+                failed();
+                break;
+            case URLTextGetter.STATUS_NOK:
+                Log.i(LOG_TAG, "Server error " + msg.obj);
+                failed();
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.sync;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+import fr.pasteque.client.utils.URLTextGetter;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * API response read while it is downloaded, on the request thread.
+ * Items of the content array are read one at a time into models,
+ * so that the whole response is never held in memory. The parsed
+ * response is the object sent to the handler.
+ * <p>The content is either the array of items, or for delta syncs
+ * an object with the updated items, the ids of the deleted ones and
+ * the server time to request the next changes from:
+ * <code>{"updated": [...], "deleted": ["id", ...], "time": 123}</code>.
+ * It is also an object with an error code when status is not ok.
+ *
+ * @param <T> type of the models read from the content array
+ */
+public class StreamedResponse<T> implements URLTextGetter.ResponseParser {
+
+    /** Read one item of the content array */
+    public interface ItemReader<T> {
+        T read(JsonReader in) throws IOException, JSONException;
+    }
+
+    private final ItemReader<T> itemReader;
+    private String status;
+    private String errorCode;
+    private final List<T> items = new ArrayList<>();
+    private final List<String> deletedIds = new ArrayList<>();
+    private boolean delta;
+    private long time;
+    private JSONException error;
+
+    public StreamedResponse(ItemReader<T> itemReader) {
+        this.itemReader = itemReader;
+    }
+
+    @Override
+    public Object parse(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("status")) {
+                    this.status = reader.nextString();
+                } else if (name.equals("content") && this.error == null) {
+                    this.readContent(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | MalformedJsonException e) {
+            // Not an API response
+            this.error = new JSONException(e.getMessage());
+        }
+        return this;
+    }
+
+    private void readContent(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_ARRAY:
+                this.readItems(reader);
+                break;
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.skipValue();
+                    } else if (name.equals("code")) {
+                        // Error content
+                        this.errorCode = reader.nextString();
+                    } else if (name.equals("updated")) {
+                        this.delta = true;
+                        this.readItems(reader);
+                    } else if (name.equals("deleted")) {
+                        this.delta = true;
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            this.deletedIds.add(reader.nextString());
+                        }
+                        reader.endArray();
+                    } else if (name.equals("time")) {
+                        this.time = reader.nextLong();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                break;
+            default:
+                reader.skipValue();
+        }
+    }
+
+    private void readItems(JsonReader reader) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (this.error != null) {
+                reader.skipValue();
+                continue;
+            }
+            try {
+                this.items.add(this.itemReader.read(reader));
+            } catch (JSONException e) {
+                this.error = e;
+            }
+        }
+        reader.endArray();
+    }
+
+    /** @return true if the server accepted the request */
+    public boolean isOk() {
+        return "ok".equals(this.status);
+    }
+
+    /** @return the error code sent by the server when not ok */
+    public String getErrorCode() {
+        return this.errorCode;
+    }
+
+    /**
+     * @return true if the content holds only the changes since
+     * the requested time, false if it holds every item
+     */
+    public boolean isDelta() {
+        return this.delta;
+    }
+
+    /** @return ids of the items deleted since the requested time */
+    public List<String> getDeletedIds() {
+        return this.deletedIds;
+    }
+
+    /** @return server time of the changes, 0 if not sent */
+    public long getTime() {
+        return this.time;
+    }
+
+    /** @return models read from the content, in order */
+    public List<T> getItems() {
+        return this.items;
+    }
+
+    /** @return the error raised by an item, null if all were read */
+    public JSONException getError() {
+        return this.error;
+    }
+
+    /** Read the next value as a small org.json object */
+    public static JSONObject readObject(JsonReader in) throws IOException, JSONException {
+        JSONObject o = new JSONObject();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            o.put(name, readValue(in));
+        }
+        in.endObject();
+        return o;
+    }
+
+    private static JSONArray readArray(JsonReader in) throws IOException, JSONException {
+        JSONArray a = new JSONArray();
+        in.beginArray();
+        while (in.hasNext()) {
+            a.put(readValue(in));
+        }
+        in.endArray();
+        return a;
+    }
+
+    private static Object readValue(JsonReader in) throws IOException, JSONException {
+        JsonToken token = in.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readObject(in);
+            case BEGIN_ARRAY:
+                return readArray(in);
+            case BOOLEAN:
+                return in.nextBoolean();
+            case NULL:
+                in.nextNull();
+                return JSONObject.NULL;
+            case NUMBER:
+                String number = in.nextString();
+                if (number.indexOf('.') == -1 && number.indexOf('e') == -1
+                        && number.indexOf('E') == -1) {
+                    try {
+                        return Long.parseLong(number);
+                    } catch (NumberFormatException ignored) {
+                        // Too big, read as a double
+                    }
+                }
+                return Double.parseDouble(number);
+            case STRING:
+                return in.nextString();
+            default:
+                throw new JSONException("Unexpected " + token);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.sync;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Graph of sync steps. Each node declares the nodes it depends on and
+ * is started once they are all done, with no more than maxRunning nodes
+ * running at the same time. When a node fails, the nodes depending on
+ * it are cancelled and the others go on.
+ * <p>Nodes are asynchronous: start() sends the request and the node
+ * calls done() or fail() when the response is read.
+ */
+public class SyncGraph {
+
+    private static final String LOG_TAG = "Pasteque/SyncGraph";
+
+    /** Notified of the progress of the graph */
+    public interface Listener {
+        /** Called when a node is done, failed or cancelled */
+        void onNodeEnded(Node node);
+
+        /** Called once when every node ended */
+        void onGraphEnded(SyncGraph graph);
+    }
+
+    public static final int STATE_WAITING = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_FAILED = 3;
+    public static final int STATE_CANCELLED = 4;
+
+    /** A sync step */
+    public abstract static class Node {
+
+        private final String name;
+        private final List<Node> dependencies;
+        private final List<Node> dependents = new ArrayList<>();
+        private SyncGraph graph;
+        private int state = STATE_WAITING;
+        private long startTime;
+        private long endTime;
+
+        protected Node(String name, Node... dependencies) {
+            this.name = name;
+            this.dependencies = Arrays.asList(dependencies);
+        }
+
+        /** Start the work, then call done() or fail() */
+        protected abstract void start();
+
+        /** Called when cancelled while running, to drop the work */
+        protected void onCancel() {
+        }
+
+        /** End the node successfully and start the ones waiting for it */
+        public final void done() {
+            this.graph.ended(this, STATE_DONE);
+        }
+
+        /** End the node and cancel the ones depending on it */
+        public final void fail() {
+            this.graph.ended(this, STATE_FAILED);
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        /** @return one of STATE_* */
+        public int getState() {
+            return this.state;
+        }
+
+        public List<Node> getDependencies() {
+            return Collections.unmodifiableList(this.dependencies);
+        }
+
+        /** @return run time in milliseconds, 0 if it didn't run */
+        public long getMillis() {
+            if (this.startTime == 0) {
+                return 0;
+            }
+            long end = this.endTime != 0 ? this.endTime : System.nanoTime();
+            return (end - this.startTime) / 1000000;
+        }
+
+        private boolean isReady() {
+            for (Node dep : this.dependencies) {
+                if (dep.state != STATE_DONE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+    }
+
+    private final int maxRunning;
+    private final Listener listener;
+    private final List<Node> nodes = new ArrayList<>();
+    private int running;
+    private int endedCount;
+    private boolean started;
+    private boolean ended;
+    private boolean scheduling;
+    private boolean rescheduled;
+
+    /**
+     * @param maxRunning maximum number of nodes running at the same time
+     * @param listener notified of the progress, may be null
+     */
+    public SyncGraph(int maxRunning, Listener listener) {
+        this.maxRunning = maxRunning;
+        this.listener = listener;
+    }
+
+    /**
+     * Add a node, after the ones it depends on.
+     * @return the node
+     */
+    public synchronized <T extends Node> T add(T node) {
+        Node n = node;
+        if (this.started) {
+            throw new IllegalStateException("Graph already started");
+        }
+        if (n.graph != null) {
+            throw new IllegalStateException("Node already added");
+        }
+        for (Node dep : n.dependencies) {
+            if (dep.graph != this) {
+                throw new IllegalArgumentException(n.name
+                        + " depends on " + dep.name + " which is not in the graph");
+            }
+            dep.dependents.add(n);
+        }
+        n.graph = this;
+        this.nodes.add(n);
+        return node;
+    }
+
+    /** Start the nodes without dependencies */
+    public synchronized void start() {
+        if (this.started) {
+            throw new IllegalStateException("Graph already started");
+        }
+        this.started = true;
+        this.schedule();
+    }
+
+    /** Cancel every node not ended yet */
+    public synchronized void cancel() {
+        for (Node n : this.nodes) {
+            if (n.state == STATE_RUNNING) {
+                this.running--;
+                this.end(n, STATE_CANCELLED);
+                n.onCancel();
+            } else if (n.state == STATE_WAITING) {
+                this.end(n, STATE_CANCELLED);
+            }
+        }
+        this.checkEnded();
+    }
+
+    /** @return the nodes, in the order they were added */
+    public synchronized List<Node> getNodes() {
+        return new ArrayList<>(this.nodes);
+    }
+
+    public synchronized int size() {
+        return this.nodes.size();
+    }
+
+    /** @return number of nodes done, failed or cancelled */
+    public synchronized int getEndedCount() {
+        return this.endedCount;
+    }
+
+    public synchronized boolean isEnded() {
+        return this.ended;
+    }
+
+    private synchronized void ended(Node node, int state) {
+        if (node.state != STATE_RUNNING) {
+            // Cancelled meanwhile
+            return;
+        }
+        this.running--;
+        this.end(node, state);
+        if (state == STATE_FAILED) {
+            this.cancelDependents(node);
+        }
+        this.schedule();
+    }
+
+    private void end(Node node, int state) {
+        node.state = state;
+        node.endTime = System.nanoTime();
+        this.endedCount++;
+        if (this.listener != null) {
+            this.listener.onNodeEnded(node);
+        }
+    }
+
+    private void cancelDependents(Node node) {
+        for (Node dep : node.dependents) {
+            if (dep.state == STATE_WAITING) {
+                this.end(dep, STATE_CANCELLED);
+                this.cancelDependents(dep);
+            }
+        }
+    }
+
+    /** Start ready nodes while there is room */
+    private void schedule() {
+        if (this.scheduling) {
+            // Called from a node ending in start(), scan again after it
+            this.rescheduled = true;
+            return;
+        }
+        this.scheduling = true;
+        try {
+            do {
+                this.rescheduled = false;
+                for (Node n : this.nodes) {
+                    if (this.running >= this.maxRunning) {
+                        break;
+                    }
+                    if (n.state == STATE_WAITING && n.isReady()) {
+                        this.run(n);
+                    }
+                }
+            } while (this.rescheduled);
+        } finally {
+            this.scheduling = false;
+        }
+        this.checkEnded();
+    }
+
+    private void run(Node n) {
+        n.state = STATE_RUNNING;
+        n.startTime = System.nanoTime();
+        this.running++;
+        try {
+            n.start();
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Step " + n.name + " failed to start", e);
+            this.ended(n, STATE_FAILED);
+        }
+    }
+
+    private void checkEnded() {
+        if (!this.ended && this.started && !this.scheduling
+                && this.endedCount == this.nodes.size()) {
+            this.ended = true;
+            if (this.listener != null) {
+                this.listener.onGraphEnded(this);
+            }
+        }
+    }
+}
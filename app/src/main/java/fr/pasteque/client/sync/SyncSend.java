@@ -22,9 +22,11 @@ import android.os.Message;
 import android.os.Handler;
 import android.util.Log;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
+import fr.pasteque.client.data.ArchiveFile;
 import fr.pasteque.client.data.Data;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -35,11 +37,22 @@ import fr.pasteque.client.models.Cash;
 import fr.pasteque.client.models.Receipt;
 import fr.pasteque.client.utils.URLTextGetter;
 
+/**
+ * Send an archive: the cash, its receipts and close inventory.
+ * Receipts are sent chunk by chunk, the archive records how far chunks
+ * were saved to resume from there after an interruption. A chunk whose
+ * response was lost is sent again and saved twice by the server.
+ */
 public class SyncSend {
 
     private static final String LOG_TAG = "Pasteque/SyncSend";
+    /**
+     * Maximum number of chunks sent without waiting for their response.
+     * The server cannot tell a chunk sent again, resuming would send
+     * every chunk in flight twice.
+     */
+    private static final int MAX_CHUNKS_IN_FLIGHT = 1;
 
-    public static final int TICKETS_BUFFER = 10;
     // Note: SyncUpdate uses positive values, SyncSend negative ones
     public static final int SYNC_DONE = -1;
     public static final int CONNECTION_FAILED = -2;
@@ -58,26 +71,33 @@ public class SyncSend {
     private Context ctx;
     private Handler listener;
 
-    /** The tickets to send */
-    private List<Receipt> receipts;
-    /** Index of first ticket to send in a call */
-    private int ticketOffset;
-    private int currentChunkSize;
+    /** The archive holding the tickets to send */
+    private ArchiveFile archive;
+    private ChunkPipeline pipeline;
     private Cash cash;
     private boolean receiptsDone;
     private boolean cashDone;
     private boolean closeInvDone;
     private boolean killed;
+    /** True once a failure is notified, later responses are ignored */
+    private boolean failed;
 
-    public SyncSend(Context ctx, Handler listener,
-                    List<Receipt> receipts, Cash cash) {
+    public SyncSend(Context ctx, Handler listener, ArchiveFile archive) {
         this.listener = listener;
         this.ctx = ctx;
-        this.receipts = receipts;
-        this.cash = cash;
+        this.archive = archive;
+        this.pipeline = new ChunkPipeline(archive, MAX_CHUNKS_IN_FLIGHT,
+                new ChunkPipeline.Sender() {
+                    @Override
+                    public boolean send(int chunk) {
+                        return sendChunk(chunk);
+                    }
+                });
+        this.cash = archive.getCash();
         if (this.cash.getCloseInventory() == null) {
             this.closeInvDone = true;
         }
+        Data.awaitLoaded(Data.Customer);
     }
 
     public void synchronize() {
@@ -85,19 +105,35 @@ public class SyncSend {
      }
 
     private void fail(Exception e) {
-        SyncUtils.notifyListener(this.listener, CASH_SYNC_FAILED, e);
+        this.fail(CASH_SYNC_FAILED, e);
+    }
+
+    /** Notify the first failure only, responses of chunks in flight follow */
+    private void fail(int what, Object obj) {
+        if (!this.failed) {
+            this.failed = true;
+            this.pipeline.stop();
+            SyncUtils.notifyListener(this.listener, what, obj);
+        }
     }
 
     private void runReceiptsSync() {
-        if (this.receipts.size() == 0) {
+        if (this.archive.getUnsentReceiptCount() == 0) {
             // No receipts, skip and notify
-            this.receiptsDone = true;
-            SyncUtils.notifyListener(this.listener, RECEIPTS_SYNC_DONE, true);
-            this.checkFinished();
+            this.receiptsEnded();
         } else {
-            if (!this.nextTicketRush()) {
-                this.finish();
-            }
+            this.pipeline.fill();
+        }
+    }
+
+    /** Notify receipts are sent and continue with close inventory */
+    private void receiptsEnded() {
+        this.receiptsDone = true;
+        SyncUtils.notifyListener(this.listener, RECEIPTS_SYNC_DONE);
+        if (this.cash.getCloseInventory() != null) {
+            this.runCloseInventorySync();
+        } else {
+            this.finish();
         }
     }
 
@@ -130,19 +166,19 @@ public class SyncSend {
                 new DataHandler(DataHandler.TYPE_CLOSEINVENTORY));
     }
 
-    private boolean nextTicketRush() {
-        if (this.ticketOffset >= this.receipts.size()) {
+    /** Send a chunk of the archive, read only now */
+    private boolean sendChunk(int chunk) {
+        List<Receipt> receipts;
+        try {
+            receipts = this.archive.readChunk(chunk);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Unable to read archive chunk " + chunk, e);
+            this.fail(RECEIPTS_SYNC_FAILED, e);
             return false;
         }
         JSONArray rcptsJSON = new JSONArray();
-        for (int i = this.ticketOffset; i < this.receipts.size()
-                && i < this.ticketOffset + TICKETS_BUFFER; i++) {
-            Receipt r = this.receipts.get(i);
-            if (Data.Customer.resolvedIds.size() > 0
-                    && r.getTicket() != null && r.getTicket().getCustomer() != null) {
-                String sId = Data.Customer.resolvedIds.get(r.getTicket().getCustomer().getId());
-                if (sId != null) r.getTicket().getCustomer().setId(sId);
-            }
+        for (Receipt r : receipts) {
+            resolveCustomer(r);
             try {
                 JSONObject o = r.toJSON(this.ctx);
                 rcptsJSON.put(o);
@@ -152,44 +188,47 @@ public class SyncSend {
                 return false;
             }
         }
-        this.currentChunkSize = rcptsJSON.length();
         Map<String, String> postBody = SyncUtils.initParams(this.ctx,
                 "TicketsAPI", "save");
         postBody.put("tickets", rcptsJSON.toString());
         postBody.put("cashId", this.cash.getId());
         URLTextGetter.getText(SyncUtils.apiUrl(this.ctx), null,
-                postBody, new DataHandler(DataHandler.TYPE_RECEIPTS));
+                postBody, new DataHandler(DataHandler.TYPE_RECEIPTS, chunk,
+                        rcptsJSON.length()));
         return true;
     }
 
-    private void parseReceiptsResult(JSONObject resp) {
+    /** Give the customer of the receipt its server id if it was created */
+    static void resolveCustomer(Receipt r) {
+        Map<String, String> resolvedIds = Data.Customer.getResolvedIds();
+        if (resolvedIds.size() > 0
+                && r.getTicket() != null && r.getTicket().getCustomer() != null) {
+            String sId = resolvedIds.get(r.getTicket().getCustomer().getId());
+            if (sId != null) r.getTicket().getCustomer().setId(sId);
+        }
+    }
+
+    private void parseReceiptsResult(JSONObject resp, int chunk, int size) {
         try {
             JSONObject o = resp.getJSONObject("content");
             int saved = o.getInt("saved");
-            if (saved == this.currentChunkSize) {
-                this.ticketOffset += this.currentChunkSize;
-                if (!this.nextTicketRush()) {
-                    SyncUtils.notifyListener(this.listener, RECEIPTS_SYNC_DONE);
-                    if (this.cash.getCloseInventory() != null) {
-                        // Continue with close inventory
-                        this.runCloseInventorySync();
-                    } else {
-                        // Done
-                        this.finish();
-                    }
-                } else {
-                    SyncUtils.notifyListener(this.listener,
-                            RECEIPTS_SYNC_PROGRESSED);
-                }
+            if (saved == size) {
+                this.chunkSaved(chunk);
             } else {
-                SyncUtils.notifyListener(this.listener,
-                        RECEIPTS_SYNC_FAILED,
-                        saved + " tickets saved, expecting "
-                        + this.currentChunkSize);
+                this.fail(RECEIPTS_SYNC_FAILED,
+                        saved + " tickets saved, expecting " + size);
             }
         } catch (JSONException e) {
             Log.e(LOG_TAG, "Error while parsing receipts result", e);
-            SyncUtils.notifyListener(this.listener, RECEIPTS_SYNC_FAILED, resp);
+            this.fail(RECEIPTS_SYNC_FAILED, resp);
+        }
+    }
+
+    private void chunkSaved(int chunk) {
+        boolean done = this.pipeline.saved(chunk);
+        SyncUtils.notifyListener(this.listener, RECEIPTS_SYNC_PROGRESSED);
+        if (done) {
+            this.receiptsEnded();
         }
     }
 
@@ -241,11 +280,19 @@ public class SyncSend {
         private static final int TYPE_CLOSEINVENTORY = 3;
 
         private int type;
+        private int chunk;
+        private int chunkSize;
         
         public DataHandler(int type) {
             this.type = type;
         }
 
+        public DataHandler(int type, int chunk, int chunkSize) {
+            this.type = type;
+            this.chunk = chunk;
+            this.chunkSize = chunkSize;
+        }
+
         private String getError(String response) {
             try {
                 JSONObject o = new JSONObject(response);
@@ -259,10 +306,10 @@ public class SyncSend {
 
         @Override
         public void handleMessage(Message msg) {
+            if (failed) {
+                return;
+            }
             switch (this.type) {
-            case TYPE_RECEIPTS:
-                SyncSend.this.receiptsDone = true;
-                break;
             case TYPE_CASH:
                 SyncSend.this.cashDone = true;
                 break;
@@ -280,12 +327,13 @@ public class SyncSend {
                     if (!status.equals("ok")) {
                         JSONObject err = result.getJSONObject("content");
                         String error = err.getString("code");
-                        SyncUtils.notifyListener(listener, SYNC_ERROR, error);
+                        fail(SYNC_ERROR, error);
                         finish();
                     } else {
                         switch (type) {
                         case TYPE_RECEIPTS:
-                            parseReceiptsResult(result);
+                            parseReceiptsResult(result, this.chunk,
+                                    this.chunkSize);
                             break;
                         case TYPE_CASH:
                             parseCashResult(result);
@@ -296,14 +344,14 @@ public class SyncSend {
                         }
                     }
                 } catch (JSONException e) {
-                    SyncUtils.notifyListener(listener, SYNC_ERROR, content);
+                    fail(SYNC_ERROR, content);
                     finish();
                 }
                 break;
             case URLTextGetter.ERROR:
                 Log.e(LOG_TAG, "URLTextGetter error", (Exception)msg.obj);
             case URLTextGetter.STATUS_NOK:
-                SyncUtils.notifyListener(listener, CONNECTION_FAILED, msg.obj);
+                fail(CONNECTION_FAILED, msg.obj);
                 finish();
                 return;
             }
@@ -22,13 +22,16 @@ import android.os.Message;
 import android.os.Handler;
 import android.util.Log;
 
+import com.google.gson.stream.JsonReader;
 import java.io.IOError;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.io.IOException;
 
 import fr.pasteque.client.data.Data;
@@ -41,27 +44,34 @@ import org.json.JSONObject;
 import fr.pasteque.client.Configure;
 import fr.pasteque.client.data.ImagesData;
 import fr.pasteque.client.data.DataSavable.StockData;
+import fr.pasteque.client.data.DataSavable.SyncMarkData;
+import fr.pasteque.client.utils.RequestExecutor;
 import fr.pasteque.client.utils.URLTextGetter;
 
 import java.text.ParseException;
 
 /**
- * Some request need an order. Parsers call the next request We think that this
- * implementation can be improved..
+ * Some request need an order. Each request is a node of a SyncGraph
+ * which declares the ones it depends on. Nodes run as soon as their
+ * dependencies are done, and a failed one cancels only its dependents.
  *
- * Here is the request life cycle Version
- * '-> CashRegister
- * '-> TAX -> CATEGORY -> PRODUCT -> COMPOSITION
+ * Here is the request graph Version
+ * '-> CashRegister -> CASH
+ * '               '-> LOCATION -> STOCK
+ * '-> TAX -----------> PRODUCT -> COMPOSITION
+ * '-> CATEGORY ----'
  * '-> ROLE -> USER
  * '-> CUSTOMER
- * '-> CASH
  * '-> TARIFF
  * '-> PAYMENTMODE
  * '-> RESSOURCES
  * '-> PLACES
- * '-> LOCATION -> STOCK
  * '-> DISCOUNT
  *
+ * Categories, products, customers and stocks are requested with the
+ * high-water mark of their last sync. Servers that support it send back
+ * only what changed since then, which is applied to the local data.
+ *
  * @author nsvir
  */
 public class SyncUpdate {
@@ -110,34 +120,18 @@ public class SyncUpdate {
     public static final int DISCOUNT_SYNC_DONE = 39;
     public static final int DISCOUNT_SYNC_ERROR = 40;
     public static final int SYNC_ERROR_NOT_LOGGED = 41;
+    /** A node of the graph ended, obj is the SyncGraph.Node */
+    public static final int STEP_DONE = 42;
+
+    /** Maximum number of requests sent at the same time */
+    private static final int MAX_RUNNING_STEPS = 6;
 
     private static final String[] resToLoad = new String[]{"MobilePrinter.Header", "MobilePrinter.Footer", "MobilePrinter.Logo"};
 
     private Context ctx;
     private Handler listener;
-    private boolean versionDone;
-    private boolean discountDone;
-    private boolean cashRegDone;
-    private boolean taxesDone;
-    private boolean categoriesDone;
-    private boolean productsDone;
-    private boolean rolesDone;
-    private boolean usersDone;
-    private boolean customersDone;
-    private boolean cashDone;
-    private boolean placesDone;
-    private boolean locationsDone;
-    private boolean stocksDone;
-    private boolean compositionsDone;
-    private boolean tariffAreasDone;
-    private boolean paymentModesDone;
-    private int resLoaded;
     private boolean isANewUserAccount;
-    public static final int STEPS = 16 + resToLoad.length;
-    /**
-     * Stop parallel messages in case of error
-     */
-    private boolean stop;
+    private SyncGraph graph;
 
     /**
      * The catalog to build with multiple syncs
@@ -159,7 +153,16 @@ public class SyncUpdate {
      * Tax ids by tax cat id
      */
     private Map<String, String> taxIds;
-    private int cashRegId;
+    /**
+     * Marks sent with delta requests by entity, 0 when all was requested
+     */
+    private Map<String, Long> requestedMarks;
+    /**
+     * The catalog before this sync, base of catalog deltas
+     */
+    private Catalog localCatalog;
+    private CashRegister cashRegister;
+    private String locationId;
 
     public SyncUpdate(Context ctx, Handler listener) {
         this.listener = listener;
@@ -170,6 +173,7 @@ public class SyncUpdate {
         this.permissions = new HashMap<String, String>();
         this.taxRates = new HashMap<String, Double>();
         this.taxIds = new HashMap<String, String>();
+        this.requestedMarks = new HashMap<String, Long>();
     }
 
     /**
@@ -180,12 +184,130 @@ public class SyncUpdate {
     }
 
     public void synchronize() {
-        URLTextGetter.getText(SyncUtils.apiUrl(this.ctx),
-                SyncUtils.initParams(this.ctx, "VersionAPI", "get"),
-                new DataHandler(DataHandler.TYPE_VERSION));
+        this.graph = this.buildGraph();
+        this.graph.start();
+    }
+
+    /** @return the number of steps of the sync, for progress */
+    public int getStepCount() {
+        return this.graph == null ? this.buildGraph().size() : this.graph.size();
+    }
+
+    private SyncGraph buildGraph() {
+        SyncGraph g = new SyncGraph(MAX_RUNNING_STEPS, new GraphListener());
+        SyncGraph.Node version = g.add(new RequestNode("version",
+                DataHandler.TYPE_VERSION, null));
+        SyncGraph.Node cashReg = g.add(new RequestNode("cashRegister",
+                DataHandler.TYPE_CASHREGISTER, null, version));
+        SyncGraph.Node taxes = g.add(new RequestNode("taxes",
+                DataHandler.TYPE_TAX, null, version));
+        SyncGraph.Node categories = g.add(new RequestNode("categories",
+                DataHandler.TYPE_CATEGORY, null, version));
+        SyncGraph.Node products = g.add(new RequestNode("products",
+                DataHandler.TYPE_PRODUCT, null, taxes, categories));
+        g.add(new RequestNode("compositions", DataHandler.TYPE_COMPOSITION,
+                null, products));
+        SyncGraph.Node roles = g.add(new RequestNode("roles",
+                DataHandler.TYPE_ROLE, null, version));
+        g.add(new RequestNode("users", DataHandler.TYPE_USER, null, roles));
+        g.add(new RequestNode("customers", DataHandler.TYPE_CUSTOMERS, null,
+                version));
+        g.add(new RequestNode("cash", DataHandler.TYPE_CASH, null, cashReg));
+        g.add(new RequestNode("tariffAreas", DataHandler.TYPE_TARIFF, null,
+                version));
+        g.add(new RequestNode("paymentModes", DataHandler.TYPE_PAYMENTMODE,
+                null, version));
+        for (String res : resToLoad) {
+            g.add(new RequestNode(res, DataHandler.TYPE_RESOURCE, res, version));
+        }
+        if (Configure.getTicketsMode(this.ctx) == Configure.RESTAURANT_MODE) {
+            // Restaurant mode: get places
+            g.add(new RequestNode("places", DataHandler.TYPE_PLACES, null,
+                    version));
+        }
+        SyncGraph.Node location = g.add(new RequestNode("location",
+                DataHandler.TYPE_LOCATION, null, cashReg));
+        g.add(new RequestNode("stocks", DataHandler.TYPE_STOCK, null, location));
+        g.add(new RequestNode("discounts", DataHandler.TYPE_DISCOUNT, null,
+                version));
+        return g;
+    }
+
+    /** Send the request of a node, answered to its DataHandler */
+    private URLTextGetter.Request request(RequestNode node) {
+        String baseUrl = SyncUtils.apiUrl(this.ctx);
+        DataHandler h = new DataHandler(node);
+        int priority = RequestExecutor.PRIORITY_DEFAULT;
+        Map<String, String> params;
+        switch (node.type) {
+            case DataHandler.TYPE_VERSION:
+                return URLTextGetter.getText(baseUrl,
+                        SyncUtils.initParams(this.ctx, "VersionAPI", "get"), h);
+            case DataHandler.TYPE_CASHREGISTER:
+                params = SyncUtils.initParams(this.ctx, "CashRegistersAPI", "get");
+                params.put("label", Configure.getMachineName(this.ctx));
+                return URLTextGetter.getText(baseUrl, params, h);
+            case DataHandler.TYPE_TAX:
+                return URLTextGetter.getText(baseUrl,
+                        SyncUtils.initParams(this.ctx, "TaxesAPI", "getAll"), h);
+            case DataHandler.TYPE_CATEGORY:
+                return URLTextGetter.getParsed(baseUrl,
+                        this.deltaParams("CategoriesAPI", SyncMarkData.CATEGORIES), null,
+                        new StreamedResponse<>(CATEGORY_READER), h, 0, priority);
+            case DataHandler.TYPE_PRODUCT:
+                return URLTextGetter.getParsed(baseUrl,
+                        this.deltaParams("ProductsAPI", SyncMarkData.PRODUCTS), null,
+                        new StreamedResponse<>(new ProductReader(this.taxIds, this.taxRates)),
+                        h, 0, priority);
+            case DataHandler.TYPE_COMPOSITION:
+                return URLTextGetter.getText(baseUrl,
+                        SyncUtils.initParams(this.ctx, "CompositionsAPI", "getAll"), h);
+            case DataHandler.TYPE_ROLE:
+                return URLTextGetter.getText(baseUrl,
+                        SyncUtils.initParams(this.ctx, "RolesAPI", "getAll"), h);
+            case DataHandler.TYPE_USER:
+                return URLTextGetter.getText(baseUrl,
+                        SyncUtils.initParams(this.ctx, "UsersAPI", "getAll"), h);
+            case DataHandler.TYPE_CUSTOMERS:
+                return URLTextGetter.getParsed(baseUrl,
+                        this.deltaParams("CustomersAPI", SyncMarkData.CUSTOMERS), null,
+                        new StreamedResponse<>(CUSTOMER_READER), h, 0, priority);
+            case DataHandler.TYPE_CASH:
+                params = SyncUtils.initParams(this.ctx, "CashesAPI", "get");
+                params.put("cashRegisterId", String.valueOf(this.cashRegister.getId()));
+                return URLTextGetter.getText(baseUrl, params, h);
+            case DataHandler.TYPE_TARIFF:
+                return URLTextGetter.getText(baseUrl,
+                        SyncUtils.initParams(this.ctx, "TariffAreasAPI", "getAll"), h);
+            case DataHandler.TYPE_PAYMENTMODE:
+                return URLTextGetter.getText(baseUrl,
+                        SyncUtils.initParams(this.ctx, "PaymentModesAPI", "getAll"), h);
+            case DataHandler.TYPE_RESOURCE:
+                params = SyncUtils.initParams(this.ctx, "ResourcesAPI", "get");
+                params.put("label", node.arg);
+                return URLTextGetter.getText(baseUrl, params, h);
+            case DataHandler.TYPE_PLACES:
+                return URLTextGetter.getText(baseUrl,
+                        SyncUtils.initParams(this.ctx, "PlacesAPI", "getAll"), h);
+            case DataHandler.TYPE_LOCATION:
+                params = SyncUtils.initParams(this.ctx, "LocationsAPI", "get");
+                params.put("id", this.cashRegister.getLocationId());
+                return URLTextGetter.getText(baseUrl, params, h);
+            case DataHandler.TYPE_STOCK:
+                params = this.deltaParams("StocksAPI", SyncMarkData.STOCKS);
+                params.put("locationId", this.locationId);
+                return URLTextGetter.getParsed(baseUrl, params, null,
+                        new StreamedResponse<>(STOCK_READER), h, 0, priority);
+            case DataHandler.TYPE_DISCOUNT:
+                //TODO change API to 6
+                return URLTextGetter.getText(baseUrl,
+                        SyncUtils.initParams(this.ctx, "DiscountsAPI", "getAll"), h);
+            default:
+                throw new IllegalArgumentException("Unknown request type " + node.type);
+        }
     }
 
-    private void parseVersion(JSONObject resp) {
+    private boolean parseVersion(JSONObject resp) {
         try {
             JSONObject o = resp.getJSONObject("content");
             String version = o.getString("version");
@@ -193,100 +315,44 @@ public class SyncUpdate {
             Version.setVersion(version, level);
             if (!Version.isValid(this.ctx)) {
                 SyncUtils.notifyListener(this.listener, INCOMPATIBLE_VERSION);
-            } else {
-                SyncUtils.notifyListener(this.listener, VERSION_DONE);
-                String baseUrl = SyncUtils.apiUrl(this.ctx);
-                Map<String, String> cashParams = SyncUtils.initParams(this.ctx,
-                        "CashRegistersAPI", "get");
-                cashParams.put("label", Configure.getMachineName(this.ctx));
-                URLTextGetter.getText(baseUrl, cashParams,
-                        new DataHandler(DataHandler.TYPE_CASHREGISTER));
+                return false;
             }
         } catch (JSONException e) {
             Log.e(LOG_TAG, "Unable to parse response: " + resp.toString(), e);
             SyncUtils.notifyListener(this.listener, SYNC_ERROR, e);
+            return false;
         }
+        SyncUtils.notifyListener(this.listener, VERSION_DONE);
+        return true;
     }
 
-    private void parseCashRegister(JSONObject resp) {
+    private boolean parseCashRegister(JSONObject resp) {
         CashRegister cashReg = null;
         try {
             if (resp.isNull("content")) {
                 SyncUtils.notifyListener(this.listener, CASHREG_SYNC_NOTFOUND);
-                return;
+                // Nothing to sync for an unknown machine
+                this.graph.cancel();
+                return false;
             }
             JSONObject o = resp.getJSONObject("content");
             cashReg = CashRegister.fromJSON(o);
-            this.cashRegId = cashReg.getId();
+            this.cashRegister = cashReg;
             Data.TicketId.updateTicketId(cashReg, this.isANewUserAccount);
             Data.TicketId.save(this.ctx);
         } catch (JSONException e) {
             Log.e(LOG_TAG, "Unable to parse response: " + resp.toString(),
                     e);
             SyncUtils.notifyListener(this.listener, CASHREG_SYNC_ERROR, e);
-            return;
+            return false;
         } catch (IOError e) {
             Log.d(LOG_TAG, "Could not save ticketId");
         }
         SyncUtils.notifyListener(this.listener, CASHREG_SYNC_DONE, cashReg);
-
-        // Continue sync
-        String baseUrl = SyncUtils.apiUrl(this.ctx);
-        Map<String, String> cashParams = SyncUtils.initParams(this.ctx,
-                "CashesAPI", "get");
-        cashParams.put("cashRegisterId", String.valueOf(cashReg.getId()));
-        URLTextGetter.getText(baseUrl,
-                SyncUtils.initParams(this.ctx, "TaxesAPI", "getAll"),
-                new DataHandler(DataHandler.TYPE_TAX));
-        URLTextGetter.getText(baseUrl,
-                SyncUtils.initParams(this.ctx, "RolesAPI", "getAll"),
-                new DataHandler(DataHandler.TYPE_ROLE));
-        URLTextGetter.getText(baseUrl,
-                SyncUtils.initParams(this.ctx,
-                        "CustomersAPI", "getAll"),
-                new DataHandler(DataHandler.TYPE_CUSTOMERS));
-        URLTextGetter.getText(baseUrl, cashParams,
-                new DataHandler(DataHandler.TYPE_CASH));
-        URLTextGetter.getText(baseUrl,
-                SyncUtils.initParams(this.ctx,
-                        "TariffAreasAPI", "getAll"),
-                new DataHandler(DataHandler.TYPE_TARIFF));
-        URLTextGetter.getText(baseUrl,
-                SyncUtils.initParams(this.ctx, "PaymentModesAPI", "getAll"),
-                new DataHandler(DataHandler.TYPE_PAYMENTMODE));
-        for (String res : resToLoad) {
-            Map<String, String> resParams = SyncUtils.initParams(this.ctx,
-                    "ResourcesAPI", "get");
-            resParams.put("label", res);
-            URLTextGetter.getText(baseUrl, resParams,
-                    new DataHandler(DataHandler.TYPE_RESOURCE));
-        }
-        if (Configure.getTicketsMode(this.ctx) == Configure.RESTAURANT_MODE) {
-            // Restaurant mode: get places
-            URLTextGetter.getText(baseUrl,
-                    SyncUtils.initParams(this.ctx,
-                            "PlacesAPI", "getAll"),
-                    new DataHandler(DataHandler.TYPE_PLACES));
-        } else {
-            // Other mode: skip places
-            placesDone = true;
-            SyncUtils.notifyListener(this.listener, PLACES_SKIPPED);
-        }
-        // Stock management: get stocks
-        Map<String, String> locParams = SyncUtils.initParams(this.ctx,
-                "LocationsAPI", "get");
-        locParams.put("id", cashReg.getLocationId());
-        URLTextGetter.getText(baseUrl, locParams,
-                new DataHandler(DataHandler.TYPE_LOCATION));
-
-        Map<String, String> discountParams = SyncUtils.initParams(this.ctx,
-                "DiscountsAPI", "getAll");
-        URLTextGetter.getText(baseUrl, discountParams,
-                new DataHandler(DataHandler.TYPE_DISCOUNT)); //TODO change API to 6
-
+        return true;
     }
 
-    private void parseTaxes(JSONObject resp) {
+    private boolean parseTaxes(JSONObject resp) {
         try {
             JSONArray array = resp.getJSONArray("content");
             for (int i = 0; i < array.length(); i++) {
@@ -313,59 +379,48 @@ public class SyncUpdate {
         } catch (JSONException e) {
             Log.e(LOG_TAG, "Unable to parse response: " + resp.toString(), e);
             SyncUtils.notifyListener(this.listener, TAXES_SYNC_ERROR, e);
-            this.taxesDone = true;
-            this.productsDone = true;
-            this.compositionsDone = true;
-            return;
+            return false;
         }
         SyncUtils.notifyListener(this.listener, TAXES_SYNC_DONE, this.taxRates);
-        // Start synchronizing catalog
-        URLTextGetter.getText(SyncUtils.apiUrl(this.ctx),
-                SyncUtils.initParams(this.ctx, "CategoriesAPI", "getAll"),
-                new DataHandler(DataHandler.TYPE_CATEGORY));
+        return true;
     }
 
     /**
      * Parse categories and start products sync to create catalog
      */
-    private void parseCategories(JSONObject resp) {
+    private boolean parseCategories(StreamedResponse<ParsedCategory> resp) {
+        if (resp.getError() != null) {
+            Log.e(LOG_TAG, "Unable to parse categories", resp.getError());
+            SyncUtils.notifyListener(this.listener, CATEGORIES_SYNC_ERROR,
+                    resp.getError());
+            return false;
+        }
+        List<ParsedCategory> parsed = resp.getItems();
+        if (this.readMark(resp, SyncMarkData.CATEGORIES)) {
+            parsed = patch(this.localCategories(), parsed, resp.getDeletedIds());
+        }
         Map<String, List<Category>> children = new HashMap<String, List<Category>>();
-        try {
-            JSONArray array = resp.getJSONArray("content");
-            // First pass: read all and register parents
-            for (int i = 0; i < array.length(); i++) {
-                JSONObject o = array.getJSONObject(i);
-                Category c = Category.fromJSON(o);
-                String parent = null;
-                if (!o.isNull("parent_id")) {
-                    parent = o.getString("parent_id");
-                }
-                if (!children.containsKey(parent)) {
-                    children.put(parent, new ArrayList<Category>());
-                }
-                children.get(parent).add(c);
-                this.categories.put(c.getId(), c);
+        // First pass: register parents
+        for (ParsedCategory pc : parsed) {
+            Category c = pc.category;
+            if (!children.containsKey(pc.parentId)) {
+                children.put(pc.parentId, new ArrayList<Category>());
             }
-            // Second pass: build subcategories
+            children.get(pc.parentId).add(c);
+            this.categories.put(c.getId(), c);
+        }
+        // Second pass: build subcategories
+        if (children.containsKey(null)) {
             for (Category root : children.get(null)) {
                 // Build subcategories
                 this.parseSubcats(root, children);
                 // This branch is ready, add to catalog
                 this.catalog.addRootCategory(root);
             }
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, "Unable to parse response: " + resp.toString(), e);
-            SyncUtils.notifyListener(this.listener, CATEGORIES_SYNC_ERROR, e);
-            this.productsDone = true;
-            this.compositionsDone = true;
-            return;
         }
         SyncUtils.notifyListener(this.listener, CATEGORIES_SYNC_DONE,
                 children.get(null));
-        // Start synchronizing products
-        URLTextGetter.getText(SyncUtils.apiUrl(this.ctx),
-                SyncUtils.initParams(this.ctx, "ProductsAPI", "getAll"),
-                new DataHandler(DataHandler.TYPE_PRODUCT));
+        return true;
     }
 
     // recursive subroutine of parseCategories
@@ -379,59 +434,38 @@ public class SyncUpdate {
         }
     }
 
-    private void parseProducts(JSONObject resp) {
-        try {
-            JSONArray array = resp.getJSONArray("content");
-            try {
-                ImagesData.clearProducts(this.ctx);
-            } catch (IOException e) {
-                Log.w(LOG_TAG, "Unable to clear product images", e);
+    private boolean parseProducts(StreamedResponse<ParsedProduct> resp) {
+        if (resp.getError() != null) {
+            Log.e(LOG_TAG, "Unable to parse products", resp.getError());
+            SyncUtils.notifyListener(this.listener, CATALOG_SYNC_ERROR,
+                    resp.getError());
+            return false;
+        }
+        List<ParsedProduct> parsed = resp.getItems();
+        if (this.readMark(resp, SyncMarkData.PRODUCTS)) {
+            for (String id : resp.getDeletedIds()) {
+                ImagesData.deleteProductImage(id);
             }
-            for (int i = 0; i < array.length(); i++) {
-                JSONObject o = array.getJSONObject(i);
-                String taxCatId = o.getString("taxCatId");
-                String taxId = this.taxIds.get(taxCatId);
-                double taxRate = this.taxRates.get(taxCatId);
-                Product p = Product.fromJSON(o, taxId, taxRate);
-                if (o.getBoolean("hasImage")) {
-                    // TODO: call for image
-                    /*String image64 = o.getString("image");
-                     try {
-                     byte[] data = Base64.decode(image64);
-                     ImagesData.storeProductImage(this.ctx, p.getId(), data);
-                     } catch (IOException e) {
-                     Log.w(LOG_TAG, "Unable to read product image for "
-                     + p.getId(), e);
-                     }*/
-                }
-                // Find its category and add it
-                if (o.getBoolean("visible")) {
-                    String catId = o.getString("categoryId");
-                    for (Category c : this.catalog.getAllCategories()) {
-                        if (c.getId().equals(catId)) {
-                            this.catalog.addProduct(c, p);
-                            break;
-                        }
-                    }
-                } else {
-                    this.catalog.addProduct(p);
+            parsed = patch(this.localProducts(), parsed, resp.getDeletedIds());
+        }
+        // Images are checked for changes in the image phase
+        for (ParsedProduct pp : parsed) {
+            // Find its category and add it
+            if (pp.visible) {
+                Category c = this.categories.get(pp.categoryId);
+                if (c != null) {
+                    this.catalog.addProduct(c, pp.product);
                 }
+            } else {
+                this.catalog.addProduct(pp.product);
             }
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, "Unable to parse response: " + resp.toString(), e);
-            SyncUtils.notifyListener(this.listener, CATALOG_SYNC_ERROR, e);
-            this.compositionsDone = true;
-            return;
         }
         SyncUtils.notifyListener(this.listener, CATALOG_SYNC_DONE,
                 this.catalog);
-        // Start synchronizing compositions
-        URLTextGetter.getText(SyncUtils.apiUrl(this.ctx),
-                SyncUtils.initParams(this.ctx, "CompositionsAPI", "getAll"),
-                new DataHandler(DataHandler.TYPE_COMPOSITION));
+        return true;
     }
 
-    private void parseRoles(JSONObject resp) {
+    private boolean parseRoles(JSONObject resp) {
         try {
             JSONArray array = resp.getJSONArray("content");
             for (int i = 0; i < array.length(); i++) {
@@ -443,20 +477,17 @@ public class SyncUpdate {
         } catch (JSONException e) {
             Log.e(LOG_TAG, "Unable to parse response: " + resp.toString(), e);
             SyncUtils.notifyListener(this.listener, ROLES_SYNC_ERROR, e);
-            return;
+            return false;
         }
         SyncUtils.notifyListener(this.listener, ROLES_SYNC_DONE,
                 this.permissions);
-        // Start synchronizing users
-        URLTextGetter.getText(SyncUtils.apiUrl(this.ctx),
-                SyncUtils.initParams(this.ctx, "UsersAPI", "getAll"),
-                new DataHandler(DataHandler.TYPE_USER));
+        return true;
     }
 
     /**
      * Parse users from JSONObject response. Roles must be parsed.
      */
-    private void parseUsers(JSONObject resp) {
+    private boolean parseUsers(JSONObject resp) {
         List<User> users = new ArrayList<User>();
         try {
             JSONArray array = resp.getJSONArray("content");
@@ -470,33 +501,33 @@ public class SyncUpdate {
         } catch (JSONException e) {
             Log.e(LOG_TAG, "Unable to parse response: " + resp.toString(), e);
             SyncUtils.notifyListener(this.listener, USERS_SYNC_ERROR, e);
-            return;
+            return false;
         }
         SyncUtils.notifyListener(this.listener, USERS_SYNC_DONE, users);
+        return true;
     }
 
-    private void parseCustomers(JSONObject resp) {
-        List<Customer> customers = new ArrayList<Customer>();
-        try {
-            JSONArray array = resp.getJSONArray("content");
-            for (int i = 0; i < array.length(); i++) {
-                JSONObject o = array.getJSONObject(i);
-                Customer c = Customer.fromJSON(o);
-                customers.add(c);
-            }
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, "Unable to parse response: " + resp.toString(), e);
-            SyncUtils.notifyListener(this.listener, CUSTOMERS_SYNC_ERROR, e);
-            return;
+    private boolean parseCustomers(StreamedResponse<Customer> resp) {
+        if (resp.getError() != null) {
+            Log.e(LOG_TAG, "Unable to parse customers", resp.getError());
+            SyncUtils.notifyListener(this.listener, CUSTOMERS_SYNC_ERROR,
+                    resp.getError());
+            return false;
+        }
+        List<Customer> customers = resp.getItems();
+        if (this.readMark(resp, SyncMarkData.CUSTOMERS)) {
+            Data.Customer.patchCustomers(customers, resp.getDeletedIds());
+            customers = Data.Customer.getCustomers();
         }
         SyncUtils.notifyListener(this.listener, CUSTOMERS_SYNC_DONE, customers);
+        return true;
     }
 
-    private void parseCash(JSONObject resp) {
+    private boolean parseCash(JSONObject resp) {
         Cash cash = null;
         try {
             if (resp.isNull("content")) {
-                cash = new Cash(this.cashRegId);
+                cash = new Cash(this.cashRegister.getId());
             } else {
                 JSONObject o = resp.getJSONObject("content");
                 cash = Cash.fromJSON(o);
@@ -505,12 +536,13 @@ public class SyncUpdate {
             Log.e(LOG_TAG, "Unable to parse response: " + resp.toString(),
                     e);
             SyncUtils.notifyListener(this.listener, CASH_SYNC_ERROR, e);
-            return;
+            return false;
         }
         SyncUtils.notifyListener(this.listener, CASH_SYNC_DONE, cash);
+        return true;
     }
 
-    private void parsePlaces(JSONObject resp) {
+    private boolean parsePlaces(JSONObject resp) {
         List<Floor> floors = new ArrayList<Floor>();
         try {
             JSONArray a = resp.getJSONArray("content");
@@ -522,12 +554,13 @@ public class SyncUpdate {
         } catch (JSONException e) {
             e.printStackTrace();
             SyncUtils.notifyListener(this.listener, PLACES_SYNC_ERROR, e);
-            return;
+            return false;
         }
         SyncUtils.notifyListener(this.listener, PLACES_SYNC_DONE, floors);
+        return true;
     }
 
-    private void parseLocation(JSONObject resp) {
+    private boolean parseLocation(JSONObject resp) {
         String locationId = null;
         String location = null;
         try {
@@ -537,8 +570,15 @@ public class SyncUpdate {
         } catch (JSONException e) {
             e.printStackTrace();
             SyncUtils.notifyListener(this.listener, LOCATIONS_SYNC_ERROR, e);
-            this.stocksDone = true;
-            return;
+            return false;
+        }
+        // Stocks of another location can't be patched
+        try {
+            if (!locationId.equals(StockData.getLocationId(this.ctx, location))) {
+                Data.SyncMark.resetMark(SyncMarkData.STOCKS);
+            }
+        } catch (IOException e) {
+            Data.SyncMark.resetMark(SyncMarkData.STOCKS);
         }
         // Save id
         try {
@@ -547,37 +587,35 @@ public class SyncUpdate {
             // Should not happen but it will screw up stocks. Make it fail
             SyncUtils.notifyListener(this.listener,
                     LOCATIONS_SYNC_ERROR, e);
-            this.stocksDone = true;
-            return;
+            return false;
         }
+        this.locationId = locationId;
         // Notify success
         SyncUtils.notifyListener(this.listener, LOCATIONS_SYNC_DONE,
                 locationId);
-        // Start synchronizing stocks
-        Map<String, String> stockParams = SyncUtils.initParams(this.ctx,
-                "StocksAPI", "getAll");
-        stockParams.put("locationId", locationId);
-        URLTextGetter.getText(SyncUtils.apiUrl(this.ctx), stockParams,
-                new DataHandler(DataHandler.TYPE_STOCK));
+        return true;
     }
 
-    private void parseStocks(JSONObject resp) {
+    private boolean parseStocks(StreamedResponse<Stock> resp) {
+        if (resp.getError() != null) {
+            Log.e(LOG_TAG, "Unable to parse stocks", resp.getError());
+            SyncUtils.notifyListener(this.listener, STOCK_SYNC_ERROR,
+                    resp.getError());
+            return false;
+        }
         Map<String, Stock> stocks = new HashMap<String, Stock>();
-        try {
-            JSONArray a = resp.getJSONArray("content");
-            for (int i = 0; i < a.length(); i++) {
-                JSONObject o = a.getJSONObject(i);
-                Stock s = Stock.fromJSON(o);
-                stocks.put(s.getProductId(), s);
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
-            SyncUtils.notifyListener(this.listener, STOCK_SYNC_ERROR, e);
+        for (Stock s : resp.getItems()) {
+            stocks.put(s.getProductId(), s);
+        }
+        if (this.readMark(resp, SyncMarkData.STOCKS)) {
+            Data.Stock.patchStocks(stocks, resp.getDeletedIds());
+            stocks = Data.Stock.getStocks();
         }
         SyncUtils.notifyListener(this.listener, STOCK_SYNC_DONE, stocks);
+        return true;
     }
 
-    private void parseCompositions(JSONObject resp) {
+    private boolean parseCompositions(JSONObject resp) {
         Map<String, Composition> compos = new HashMap<String, Composition>();
         try {
             JSONArray a = resp.getJSONArray("content");
@@ -589,12 +627,13 @@ public class SyncUpdate {
         } catch (JSONException e) {
             e.printStackTrace();
             SyncUtils.notifyListener(this.listener, COMPOSITIONS_SYNC_ERROR, e);
-            return;
+            return false;
         }
         SyncUtils.notifyListener(this.listener, COMPOSITIONS_SYNC_DONE, compos);
+        return true;
     }
 
-    private void parseTariffAreas(JSONObject resp) {
+    private boolean parseTariffAreas(JSONObject resp) {
         List<TariffArea> areas = new ArrayList<TariffArea>();
         try {
             JSONArray a = resp.getJSONArray("content");
@@ -606,12 +645,13 @@ public class SyncUpdate {
         } catch (JSONException e) {
             e.printStackTrace();
             SyncUtils.notifyListener(this.listener, TARIFF_AREA_SYNC_ERROR, e);
-            return;
+            return false;
         }
         SyncUtils.notifyListener(this.listener, TARIFF_AREAS_SYNC_DONE, areas);
+        return true;
     }
 
-    private void parsePaymentModes(JSONObject resp) {
+    private boolean parsePaymentModes(JSONObject resp) {
         List<PaymentMode> modes = new ArrayList<PaymentMode>();
         try {
             JSONArray a = resp.getJSONArray("content");
@@ -629,18 +669,18 @@ public class SyncUpdate {
         } catch (JSONException e) {
             e.printStackTrace();
             SyncUtils.notifyListener(this.listener, PAYMENTMODE_SYNC_ERROR, e);
-            return;
+            return false;
         }
         SyncUtils.notifyListener(this.listener, PAYMENTMODE_SYNC_DONE, modes);
-
+        return true;
     }
 
-    private void parseResource(JSONObject resp) {
+    private boolean parseResource(JSONObject resp) {
         try {
             if (resp.isNull("content")) {
                 SyncUtils.notifyListener(this.listener, RESOURCE_SYNC_DONE,
                         null);
-                return;
+                return true;
             }
             JSONObject res = resp.getJSONObject("content");
             String resContent = res.getString("content");
@@ -650,10 +690,12 @@ public class SyncUpdate {
         } catch (JSONException e) {
             e.printStackTrace();
             SyncUtils.notifyListener(this.listener, RESOURCE_SYNC_ERROR, e);
+            return false;
         }
+        return true;
     }
 
-    private void parseDiscount(JSONObject resp) {
+    private boolean parseDiscount(JSONObject resp) {
         ArrayList<Discount> discounts = new ArrayList<>();
         try {
             JSONArray a = resp.getJSONArray("content");
@@ -665,24 +707,287 @@ public class SyncUpdate {
 
         } catch (JSONException | ParseException e) {
             SyncUtils.notifyListener(this.listener, DISCOUNT_SYNC_ERROR, e);
-            return;
+            return false;
         }
         SyncUtils.notifyListener(this.listener, DISCOUNT_SYNC_DONE, discounts);
+        return true;
+    }
+
+    /**
+     * Get the parameters of a getAll call asking only for what changed
+     * since the last sync of the entity. The mark is 0 to get everything.
+     */
+    private Map<String, String> deltaParams(String api, String entity) {
+        Map<String, String> params = SyncUtils.initParams(this.ctx, api, "getAll");
+        deltaParams(params, Data.SyncMark, entity,
+                !this.isANewUserAccount && this.hasLocalData(entity),
+                this.requestedMarks);
+        return params;
+    }
+
+    /**
+     * Add the mark to request the changes from and record it.
+     * @param delta false to request every item
+     */
+    static void deltaParams(Map<String, String> params, SyncMarkData marks,
+            String entity, boolean delta, Map<String, Long> requestedMarks) {
+        long mark = delta ? marks.getMark(entity) : 0;
+        requestedMarks.put(entity, mark);
+        params.put("since", String.valueOf(mark));
+    }
+
+    /** @return true if there is local data to apply a delta to */
+    private boolean hasLocalData(String entity) {
+        if (entity.equals(SyncMarkData.CUSTOMERS)) {
+            return Data.Customer.getCustomers() != null;
+        } else if (entity.equals(SyncMarkData.STOCKS)) {
+            return Data.Stock.getStocks() != null;
+        } else {
+            Catalog local = this.localCatalog();
+            return local != null && local.getProductCount() > 0;
+        }
+    }
+
+    /**
+     * Record the mark to request the next changes of the entity from.
+     * @return true if the response is a delta to apply to local data,
+     * false if it holds every item
+     */
+    private boolean readMark(StreamedResponse<?> resp, String entity) {
+        return readMark(resp, Data.SyncMark, entity, this.requestedMarks);
+    }
+
+    /**
+     * Record the mark of a response. It is left as is when the response
+     * failed, its changes are not applied.
+     * @return true if the response is a delta to apply to local data
+     */
+    static boolean readMark(StreamedResponse<?> resp, SyncMarkData marks,
+            String entity, Map<String, Long> requestedMarks) {
+        if (!resp.isOk() || resp.getError() != null) {
+            return false;
+        }
+        Long requested = requestedMarks.get(entity);
+        if (resp.getTime() > 0) {
+            marks.setMark(entity, resp.getTime());
+        } else {
+            // The server doesn't support delta sync
+            marks.resetMark(entity);
+        }
+        return resp.isDelta() && requested != null && requested > 0;
+    }
+
+    private Catalog localCatalog() {
+        if (this.localCatalog == null) {
+            this.localCatalog = Data.Catalog.catalog(this.ctx);
+        }
+        return this.localCatalog;
+    }
+
+    /** @return categories of the local catalog, parents first */
+    private List<ParsedCategory> localCategories() {
+        List<ParsedCategory> result = new ArrayList<ParsedCategory>();
+        for (Category root : this.localCatalog().getRootCategories()) {
+            this.addLocalCategory(result, root, null);
+        }
+        return result;
+    }
+
+    // recursive subroutine of localCategories
+    private void addLocalCategory(List<ParsedCategory> list, Category c,
+            String parentId) {
+        // Copy it, subcategories are added again when building the tree
+        list.add(new ParsedCategory(new Category(c.getId(), c.getLabel(),
+                c.hasImage()), parentId));
+        for (Category sub : c.getSubcategories()) {
+            this.addLocalCategory(list, sub, c.getId());
+        }
+    }
+
+    /** @return products of the local catalog, with their category */
+    private List<ParsedProduct> localProducts() {
+        Catalog local = this.localCatalog();
+        List<ParsedProduct> result = new ArrayList<ParsedProduct>();
+        Set<String> visible = new HashSet<String>();
+        for (Category c : local.getAllCategories()) {
+            for (Product p : local.getProducts(c)) {
+                result.add(new ParsedProduct(p, c.getId(), true));
+                visible.add(p.getId());
+            }
+        }
+        for (Product p : local.getAllProducts()) {
+            if (!visible.contains(p.getId())) {
+                result.add(new ParsedProduct(p, null, false));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Apply a delta to local items: replace the updated ones where they
+     * are, append the new ones and drop the deleted ones.
+     */
+    static <T extends ParsedItem> List<T> patch(List<T> local,
+            List<T> updated, List<String> deletedIds) {
+        Map<String, T> updates = new HashMap<String, T>();
+        for (T item : updated) {
+            updates.put(item.getId(), item);
+        }
+        Set<String> deleted = new HashSet<String>(deletedIds);
+        List<T> result = new ArrayList<T>(local.size() + updated.size());
+        for (T item : local) {
+            if (deleted.contains(item.getId())) {
+                continue;
+            }
+            T update = updates.remove(item.getId());
+            result.add(update != null ? update : item);
+        }
+        for (T item : updated) {
+            if (updates.remove(item.getId()) != null) {
+                result.add(item);
+            }
+        }
+        return result;
+    }
+
+    /** Item of the catalog read off the UI thread */
+    abstract static class ParsedItem {
+        abstract String getId();
+    }
+
+    /** Category read off the UI thread, with its parent to build the tree */
+    private static class ParsedCategory extends ParsedItem {
+        private final Category category;
+        private final String parentId;
+
+        private ParsedCategory(Category category, String parentId) {
+            this.category = category;
+            this.parentId = parentId;
+        }
+
+        @Override
+        String getId() {
+            return this.category.getId();
+        }
     }
 
+    private static final StreamedResponse.ItemReader<ParsedCategory> CATEGORY_READER
+            = new StreamedResponse.ItemReader<ParsedCategory>() {
+        @Override
+        public ParsedCategory read(JsonReader in) throws IOException, JSONException {
+            JSONObject o = StreamedResponse.readObject(in);
+            String parent = null;
+            if (!o.isNull("parent_id")) {
+                parent = o.getString("parent_id");
+            }
+            return new ParsedCategory(Category.fromJSON(o), parent);
+        }
+    };
+
+    /** Product read off the UI thread, with where to put it in the catalog */
+    private static class ParsedProduct extends ParsedItem {
+        private final Product product;
+        private final String categoryId;
+        private final boolean visible;
+
+        private ParsedProduct(Product product, String categoryId, boolean visible) {
+            this.product = product;
+            this.categoryId = categoryId;
+            this.visible = visible;
+        }
+
+        @Override
+        String getId() {
+            return this.product.getId();
+        }
+    }
+
+    /** Read products with the taxes, which are parsed before them */
+    private static class ProductReader
+            implements StreamedResponse.ItemReader<ParsedProduct> {
+        private final Map<String, String> taxIds;
+        private final Map<String, Double> taxRates;
+
+        private ProductReader(Map<String, String> taxIds,
+                Map<String, Double> taxRates) {
+            this.taxIds = new HashMap<String, String>(taxIds);
+            this.taxRates = new HashMap<String, Double>(taxRates);
+        }
+
+        @Override
+        public ParsedProduct read(JsonReader in) throws IOException, JSONException {
+            JSONObject o = StreamedResponse.readObject(in);
+            String taxCatId = o.getString("taxCatId");
+            Double taxRate = this.taxRates.get(taxCatId);
+            if (taxRate == null) {
+                throw new JSONException("Unknown tax category " + taxCatId);
+            }
+            Product p = Product.fromJSON(o, this.taxIds.get(taxCatId), taxRate);
+            boolean visible = o.getBoolean("visible");
+            String catId = visible ? o.getString("categoryId") : null;
+            return new ParsedProduct(p, catId, visible);
+        }
+    }
+
+    private static final StreamedResponse.ItemReader<Customer> CUSTOMER_READER
+            = new StreamedResponse.ItemReader<Customer>() {
+        @Override
+        public Customer read(JsonReader in) throws IOException, JSONException {
+            return Customer.fromJSON(StreamedResponse.readObject(in));
+        }
+    };
+
+    private static final StreamedResponse.ItemReader<Stock> STOCK_READER
+            = new StreamedResponse.ItemReader<Stock>() {
+        @Override
+        public Stock read(JsonReader in) throws IOException, JSONException {
+            return Stock.fromJSON(StreamedResponse.readObject(in));
+        }
+    };
+
     private void finish() {
         SyncUtils.notifyListener(this.listener, SYNC_DONE);
     }
 
-    private void checkFinished() {
-        if (this.categoriesDone && this.productsDone && this.rolesDone
-                && this.usersDone && this.cashDone && this.placesDone
-                && this.stocksDone && this.compositionsDone && this.taxesDone
-                && this.tariffAreasDone && this.versionDone
-                && this.customersDone && this.locationsDone
-                && this.cashRegDone && this.paymentModesDone
-                && this.resLoaded == resToLoad.length) {
-            this.finish();
+    /** Report the progress of the graph and finish when it ends */
+    private class GraphListener implements SyncGraph.Listener {
+
+        @Override
+        public void onNodeEnded(SyncGraph.Node node) {
+            SyncUtils.notifyListener(listener, STEP_DONE, node);
+        }
+
+        @Override
+        public void onGraphEnded(SyncGraph graph) {
+            finish();
+        }
+    }
+
+    /** A step of the sync, sending one request */
+    private class RequestNode extends SyncGraph.Node {
+
+        private final int type;
+        /** Extra parameter of the request, like the resource label */
+        private final String arg;
+        private URLTextGetter.Request request;
+
+        public RequestNode(String name, int type, String arg,
+                SyncGraph.Node... dependencies) {
+            super(name, dependencies);
+            this.type = type;
+            this.arg = arg;
+        }
+
+        @Override
+        protected void start() {
+            this.request = request(this);
+        }
+
+        @Override
+        protected void onCancel() {
+            if (this.request != null) {
+                this.request.cancel();
+            }
         }
     }
 
@@ -706,173 +1011,127 @@ public class SyncUpdate {
         private static final int TYPE_PAYMENTMODE = 16;
         private static final int TYPE_DISCOUNT = 17;
 
-        private int type;
+        private final RequestNode node;
+        private final int type;
 
-        public DataHandler(int type) {
-            this.type = type;
+        public DataHandler(RequestNode node) {
+            this.node = node;
+            this.type = node.type;
+        }
+
+        /**
+         * The server refused the request for every entity,
+         * like when not logged: stop the whole sync.
+         */
+        private void serverError(String error) {
+            Log.e(LOG_TAG, "Server error " + error + " on " + this.node.getName());
+            SyncUtils.notifyListener(listener, SYNC_ERROR, error);
+            graph.cancel();
+        }
+
+        /** Dispatch a response already parsed by the request thread */
+        @SuppressWarnings("unchecked")
+        private boolean handleStreamed(StreamedResponse<?> resp) {
+            if (!resp.isOk()) {
+                if (resp.getErrorCode() != null) {
+                    this.serverError(resp.getErrorCode());
+                } else {
+                    Log.e(LOG_TAG, "Unable to parse response", resp.getError());
+                    SyncUtils.notifyListener(listener, SYNC_ERROR,
+                            resp.getError());
+                }
+                return false;
+            }
+            switch (type) {
+                case TYPE_PRODUCT:
+                    return parseProducts((StreamedResponse<ParsedProduct>) resp);
+                case TYPE_CATEGORY:
+                    return parseCategories((StreamedResponse<ParsedCategory>) resp);
+                case TYPE_CUSTOMERS:
+                    return parseCustomers((StreamedResponse<Customer>) resp);
+                case TYPE_STOCK:
+                    return parseStocks((StreamedResponse<Stock>) resp);
+                default:
+                    return false;
+            }
         }
 
-        private String getError(String response) {
+        private boolean handleText(String content) {
             try {
-                JSONObject o = new JSONObject(response);
-                if (o.has("error")) {
-                    return o.getString("error");
+                JSONObject result = new JSONObject(content);
+                String status = result.getString("status");
+                if (!status.equals("ok")) {
+                    JSONObject err = result.getJSONObject("content");
+                    this.serverError(err.getString("code"));
+                    return false;
+                }
+                switch (type) {
+                    case TYPE_VERSION:
+                        return parseVersion(result);
+                    case TYPE_CASHREGISTER:
+                        return parseCashRegister(result);
+                    case TYPE_ROLE:
+                        return parseRoles(result);
+                    case TYPE_USER:
+                        return parseUsers(result);
+                    case TYPE_TAX:
+                        return parseTaxes(result);
+                    case TYPE_CASH:
+                        return parseCash(result);
+                    case TYPE_PLACES:
+                        return parsePlaces(result);
+                    case TYPE_LOCATION:
+                        return parseLocation(result);
+                    case TYPE_COMPOSITION:
+                        return parseCompositions(result);
+                    case TYPE_TARIFF:
+                        return parseTariffAreas(result);
+                    case TYPE_PAYMENTMODE:
+                        return parsePaymentModes(result);
+                    case TYPE_DISCOUNT:
+                        return parseDiscount(result);
+                    case TYPE_RESOURCE:
+                        return parseResource(result);
+                    default:
+                        return false;
                 }
-            } catch (JSONException ignored) {
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, "Unable to parse response " + content);
+                SyncUtils.notifyListener(listener, SYNC_ERROR, e);
+                return false;
             }
-            return null;
         }
 
         @Override
         public void handleMessage(Message msg) {
-            switch (this.type) {
-                case TYPE_VERSION:
-                    SyncUpdate.this.versionDone = true;
-                    break;
-                case TYPE_CASHREGISTER:
-                    SyncUpdate.this.cashRegDone = true;
-                    break;
-                case TYPE_USER:
-                    SyncUpdate.this.usersDone = true;
-                    break;
-                case TYPE_TAX:
-                    SyncUpdate.this.taxesDone = true;
-                    break;
-                case TYPE_PRODUCT:
-                    SyncUpdate.this.productsDone = true;
-                    break;
-                case TYPE_CATEGORY:
-                    SyncUpdate.this.categoriesDone = true;
-                    break;
-                case TYPE_CASH:
-                    SyncUpdate.this.cashDone = true;
-                    break;
-                case TYPE_PLACES:
-                    SyncUpdate.this.placesDone = true;
-                    break;
-                case TYPE_ROLE:
-                    SyncUpdate.this.rolesDone = true;
-                    break;
-                case TYPE_CUSTOMERS:
-                    SyncUpdate.this.customersDone = true;
-                    break;
-                case TYPE_LOCATION:
-                    SyncUpdate.this.locationsDone = true;
-                    break;
-                case TYPE_STOCK:
-                    SyncUpdate.this.stocksDone = true;
-                    break;
-                case TYPE_COMPOSITION:
-                    SyncUpdate.this.compositionsDone = true;
-                    break;
-                case TYPE_TARIFF:
-                    SyncUpdate.this.tariffAreasDone = true;
-                    break;
-                case TYPE_PAYMENTMODE:
-                    SyncUpdate.this.paymentModesDone = true;
-                    break;
-                case TYPE_DISCOUNT:
-                    SyncUpdate.this.discountDone = true;
-                    break;
-                case TYPE_RESOURCE:
-                    SyncUpdate.this.resLoaded++;
-                    break;
+            if (this.node.getState() != SyncGraph.STATE_RUNNING) {
+                // Cancelled meanwhile
+                return;
             }
+            boolean success;
             switch (msg.what) {
                 case URLTextGetter.SUCCESS:
-                    // Parse content
-                    String content = (String) msg.obj;
-                    try {
-                        JSONObject result = new JSONObject(content);
-                        String status = result.getString("status");
-                        if (!status.equals("ok")) {
-                            JSONObject err = result.getJSONObject("content");
-                            String error = err.getString("code");
-                            if (listener != null && !stop) {
-                                Log.e(LOG_TAG, "Unable to parse response "
-                                        + content);
-                                SyncUtils.notifyListener(listener, SYNC_ERROR,
-                                        error);
-                            }
-                            stop = true;
-                            finish();
-                        } else if (!stop) {
-                            switch (type) {
-                                case TYPE_VERSION:
-                                    parseVersion(result);
-                                    break;
-                                case TYPE_CASHREGISTER:
-                                    parseCashRegister(result);
-                                    break;
-                                case TYPE_ROLE:
-                                    parseRoles(result);
-                                    break;
-                                case TYPE_USER:
-                                    parseUsers(result);
-                                    break;
-                                case TYPE_TAX:
-                                    parseTaxes(result);
-                                    break;
-                                case TYPE_PRODUCT:
-                                    parseProducts(result);
-                                    break;
-                                case TYPE_CATEGORY:
-                                    parseCategories(result);
-                                    break;
-                                case TYPE_CASH:
-                                    parseCash(result);
-                                    break;
-                                case TYPE_PLACES:
-                                    parsePlaces(result);
-                                    break;
-                                case TYPE_CUSTOMERS:
-                                    parseCustomers(result);
-                                    break;
-                                case TYPE_LOCATION:
-                                    parseLocation(result);
-                                    break;
-                                case TYPE_STOCK:
-                                    parseStocks(result);
-                                    break;
-                                case TYPE_COMPOSITION:
-                                    parseCompositions(result);
-                                    break;
-                                case TYPE_TARIFF:
-                                    parseTariffAreas(result);
-                                    break;
-                                case TYPE_PAYMENTMODE:
-                                    parsePaymentModes(result);
-                                    break;
-                                case TYPE_DISCOUNT:
-                                    parseDiscount(result);
-                                    break;
-                                case TYPE_RESOURCE:
-                                    parseResource(result);
-                            }
-                        }
-                    } catch (JSONException e) {
-                        Log.e(LOG_TAG, "Unable to parse response "
-                                + content);
-                        if (!stop) {
-                            SyncUtils.notifyListener(listener, SYNC_ERROR, e);
-                        }
-                        stop = true;
-                        finish();
+                    if (msg.obj instanceof StreamedResponse) {
+                        success = this.handleStreamed((StreamedResponse<?>) msg.obj);
+                    } else {
+                        success = this.handleText((String) msg.obj);
                     }
                     break;
                 case URLTextGetter.ERROR:
-
                     ((Exception) msg.obj).printStackTrace();
                 case URLTextGetter.STATUS_NOK:
-                    if (!stop) {
-                        SyncUtils.notifyListener(listener, CONNECTION_FAILED,
-                                msg.obj);
-                    }
-                    stop = true;
-                    finish();
+                    SyncUtils.notifyListener(listener, CONNECTION_FAILED,
+                            msg.obj);
+                    success = false;
+                    break;
+                default:
                     return;
             }
-            checkFinished();
+            if (success) {
+                this.node.done();
+            } else {
+                this.node.fail();
+            }
         }
     }
 
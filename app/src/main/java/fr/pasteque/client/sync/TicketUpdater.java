@@ -14,6 +14,7 @@ import org.json.JSONObject;
 import fr.pasteque.client.data.DataSavable.SessionData;
 import fr.pasteque.client.models.Session;
 import fr.pasteque.client.models.Ticket;
+import fr.pasteque.client.utils.RequestExecutor;
 import fr.pasteque.client.utils.URLTextGetter;
 import android.content.Context;
 import android.os.Handler;
@@ -41,8 +42,9 @@ public class TicketUpdater {
         Map<String, String> ticketsParams = SyncUtils.initParams(context,
                 "TicketsAPI", "getShared");
         ticketsParams.put("id", id);
-        URLTextGetter.getText(baseUrl, ticketsParams, new DataHandler(
-                TICKETSERVICE_UPDATE | TICKETSERVICE_ONE));
+        URLTextGetter.getText(baseUrl, ticketsParams, null, new DataHandler(
+                TICKETSERVICE_UPDATE | TICKETSERVICE_ONE), 0,
+                RequestExecutor.PRIORITY_INTERACTIVE);
     }
 
     private void removeSharedTicket(String id) {
@@ -51,8 +53,9 @@ public class TicketUpdater {
         Map<String, String> ticketsParams = SyncUtils.initParams(context,
                 "TicketsAPI", "delShared");
         ticketsParams.put("id", id);
-        URLTextGetter.getText(baseUrl, ticketsParams, new DataHandler(
-                TICKETSERVICE_REMOVE | TICKETSERVICE_ONE));
+        URLTextGetter.getText(baseUrl, ticketsParams, null, new DataHandler(
+                TICKETSERVICE_REMOVE | TICKETSERVICE_ONE), 0,
+                RequestExecutor.PRIORITY_INTERACTIVE);
     }
 
     private void sendSharedTicket(Context context, Ticket t) {
@@ -61,7 +64,8 @@ public class TicketUpdater {
                     "TicketsAPI", "share");
             postBody.put("ticket", t.toJSON(true).toString());
             URLTextGetter.getText(SyncUtils.apiUrl(context), null, postBody,
-                    new DataHandler(TICKETSERVICE_SEND | TICKETSERVICE_ONE));
+                    new DataHandler(TICKETSERVICE_SEND | TICKETSERVICE_ONE), 0,
+                    RequestExecutor.PRIORITY_INTERACTIVE);
         } catch (JSONException e) {
             Log.e(TAG, "Unable to send ticket");
             e.printStackTrace();
@@ -72,8 +76,9 @@ public class TicketUpdater {
         String baseUrl = SyncUtils.apiUrl(context);
         Map<String, String> ticketsParams = SyncUtils.initParams(context,
                 "TicketsAPI", "getAllShared");
-        URLTextGetter.getText(baseUrl, ticketsParams,
-                new DataHandler(TICKETSERVICE_UPDATE | TICKETSERVICE_ALL));
+        URLTextGetter.getText(baseUrl, ticketsParams, null,
+                new DataHandler(TICKETSERVICE_UPDATE | TICKETSERVICE_ALL), 0,
+                RequestExecutor.PRIORITY_INTERACTIVE);
     }
 
     public void execute(Context context, Handler datahandler, int serviteType,
@@ -21,6 +21,7 @@ import fr.pasteque.client.Configure;
 import fr.pasteque.client.R;
 import fr.pasteque.client.data.*;
 import fr.pasteque.client.data.Data;
+import fr.pasteque.client.data.DataSavable.SyncMarkData;
 import fr.pasteque.client.models.*;
 import fr.pasteque.client.utils.Error;
 import fr.pasteque.client.activities.TrackedActivity;
@@ -56,6 +57,8 @@ public class UpdateProcess implements Handler.Callback {
     private TrackedActivity caller;
     private Handler listener;
     private int progress;
+    /** Number of steps of the data phase */
+    private int steps;
     private int phase;
     // States for img phase
     private int openCtxCount;
@@ -88,6 +91,7 @@ public class UpdateProcess implements Handler.Callback {
             SyncUpdate syncUpdate = new SyncUpdate(instance.ctx,
                     new Handler(instance));
             syncUpdate.startSyncUpdate();
+            instance.steps = syncUpdate.getStepCount();
             return true;
         } else {
             // Already started
@@ -117,6 +121,7 @@ public class UpdateProcess implements Handler.Callback {
     }
 
     private void runImgPhase() {
+        this.phase = PHASE_IMG;
         this.progress = 0;
         this.productsToLoad = new ArrayList<Product>();
         this.categoriesToLoad = new ArrayList<Category>();
@@ -143,13 +148,44 @@ public class UpdateProcess implements Handler.Callback {
         if (this.feedback != null) {
             this.feedback.setProgress(0);
             this.feedback.setMax(this.productsToLoad.size()
-                    + this.categoriesToLoad.size());
+                    + this.categoriesToLoad.size()
+                    + this.paymentModesToLoad.size());
             this.feedback.setTitle(instance.ctx.getString(R.string.sync_img_title));
             this.feedback.setMessage(instance.ctx.getString(R.string.sync_img_message));
         }
         this.pool();
     }
 
+    /**
+     * Save the images manifest. When every image was checked, forget the
+     * ones of removed items and delete the files no one uses anymore.
+     */
+    private void storeImages() {
+        if (!this.failed) {
+            List<String> keys = new ArrayList<String>();
+            for (Product p : this.productsToLoad) {
+                keys.add(ImagesData.productKey(p.getId()));
+            }
+            for (Category c : this.categoriesToLoad) {
+                keys.add(ImagesData.categoryKey(c.getId()));
+            }
+            for (PaymentMode pm : this.paymentModesToLoad) {
+                keys.add(ImagesData.paymentModeKey(pm.getId()));
+            }
+            ImagesData.retainImages(keys);
+        }
+        try {
+            Data.ImageCache.save(this.ctx);
+        } catch (IOError e) {
+            Log.e(LOG_TAG, "Unable to save images manifest", e);
+            return;
+        }
+        if (!this.failed) {
+            // Only once the manifest on disk does not reference them
+            ImagesData.pruneImages();
+        }
+    }
+
     public static boolean isStarted() {
         return instance != null;
     }
@@ -159,11 +195,22 @@ public class UpdateProcess implements Handler.Callback {
             this.storeAccount();
         } else {
             this.invalidateAccount();
+            // Local data may miss some changes, get everything next time
+            Data.SyncMark.clear();
+        }
+        try {
+            Data.SyncMark.save(this.ctx);
+        } catch (IOError e) {
+            Log.e(LOG_TAG, "Unable to save sync marks", e);
+        }
+        if (this.phase == PHASE_IMG) {
+            this.storeImages();
         }
         Log.i(LOG_TAG, "Update sync finished.");
         SyncUtils.notifyListener(this.listener, SyncUpdate.SYNC_DONE);
         unbind();
         instance = null;
+        Outbox.wake();
     }
 
     /**
@@ -181,11 +228,13 @@ public class UpdateProcess implements Handler.Callback {
         instance.listener = listener;
         // Update from current state
         if (instance.phase == PHASE_DATA) {
-            feedback.setMax(SyncUpdate.STEPS);
+            feedback.setMax(instance.steps);
             feedback.setTitle(instance.ctx.getString(R.string.sync_title));
             feedback.setMessage(instance.ctx.getString(R.string.sync_message));
         } else {
-            feedback.setMax(instance.productsToLoad.size());
+            feedback.setMax(instance.productsToLoad.size()
+                    + instance.categoriesToLoad.size()
+                    + instance.paymentModesToLoad.size());
             feedback.setTitle(instance.ctx.getString(R.string.sync_img_title));
             feedback.setMessage(instance.ctx.getString(R.string.sync_img_message));
         }
@@ -240,16 +289,25 @@ public class UpdateProcess implements Handler.Callback {
         int catEnd = this.productsToLoad.size() + this.categoriesToLoad.size();
         while (openCtxCount < CTX_POOL_SIZE
                 && this.nextCtxIdx < maxSize) {
+            // Each ctx is a batch of images of the same kind
             if (this.nextCtxIdx < prdEnd) {
-                this.imgUpdate.loadImage(this.productsToLoad.get(this.nextCtxIdx));
+                int end = Math.min(prdEnd, this.nextCtxIdx + ImgUpdate.BATCH_SIZE);
+                this.imgUpdate.loadProductImages(
+                        this.productsToLoad.subList(this.nextCtxIdx, end));
+                this.nextCtxIdx = end;
             } else if (this.nextCtxIdx < catEnd) {
                 int idx = this.nextCtxIdx - prdEnd;
-                this.imgUpdate.loadImage(this.categoriesToLoad.get(idx));
+                int end = Math.min(catEnd - prdEnd, idx + ImgUpdate.BATCH_SIZE);
+                this.imgUpdate.loadCategoryImages(
+                        this.categoriesToLoad.subList(idx, end));
+                this.nextCtxIdx = prdEnd + end;
             } else {
                 int idx = this.nextCtxIdx - catEnd;
-                this.imgUpdate.loadImage(this.paymentModesToLoad.get(idx));
+                int end = Math.min(maxSize - catEnd, idx + ImgUpdate.BATCH_SIZE);
+                this.imgUpdate.loadPaymentModeImages(
+                        this.paymentModesToLoad.subList(idx, end));
+                this.nextCtxIdx = catEnd + end;
             }
-            this.nextCtxIdx++;
             this.openCtxCount++;
         }
         if (this.nextCtxIdx == maxSize && this.openCtxCount == 0) {
@@ -261,8 +319,8 @@ public class UpdateProcess implements Handler.Callback {
     /**
      * A pool ctx has finished, release it and refill pool.
      */
-    private synchronized void poolDown() {
-        this.progress();
+    private synchronized void poolDown(int loaded) {
+        this.progress(loaded);
         this.openCtxCount--;
         this.pool();
     }
@@ -287,9 +345,14 @@ public class UpdateProcess implements Handler.Callback {
                         Error.showError(R.string.err_server_error, this.caller);
                     }
                 }
-                this.finish();
+                // Finished on SYNC_DONE, once the other steps are cancelled
                 break;
             case SyncUpdate.CONNECTION_FAILED:
+                if (this.failed) {
+                    // Already told, the other steps fail the same way
+                    Log.i(LOG_TAG, "Connection error " + m.obj);
+                    break;
+                }
                 this.failed = true;
                 if (m.obj instanceof Exception) {
                     Log.i(LOG_TAG, "Connection error", ((Exception) m.obj));
@@ -298,20 +361,25 @@ public class UpdateProcess implements Handler.Callback {
                     Log.i(LOG_TAG, "Server error " + m.obj);
                     Error.showError(R.string.err_server_error, this.caller);
                 }
-                this.finish();
                 break;
 
             case SyncUpdate.INCOMPATIBLE_VERSION:
                 this.failed = true;
                 Error.showError(R.string.err_version_error, instance.caller);
-                this.finish();
                 break;
-            case SyncUpdate.VERSION_DONE:
+            case SyncUpdate.STEP_DONE:
                 this.progress();
+                SyncGraph.Node node = (SyncGraph.Node) m.obj;
+                Log.d(LOG_TAG, "Step " + node.getName() + " ended with state "
+                        + node.getState() + " in " + node.getMillis() + "ms");
+                if (node.getState() == SyncGraph.STATE_FAILED
+                        || node.getState() == SyncGraph.STATE_CANCELLED) {
+                    // Keep the account and marks as they were to sync it again
+                    this.failed = true;
+                }
                 break;
 
             case SyncUpdate.CASHREG_SYNC_DONE:
-                this.progress();
                 // Get received cash register
                 CashRegister cashReg = (CashRegister) m.obj;
                 Data.CashRegister.set(cashReg);
@@ -324,7 +392,6 @@ public class UpdateProcess implements Handler.Callback {
                 }
                 break;
             case SyncUpdate.CASH_SYNC_DONE:
-                this.progress();
                 // Get received cash
                 Cash cash = (Cash) m.obj;
                 Cash current = Data.Cash.currentCash(this.ctx);
@@ -360,11 +427,7 @@ public class UpdateProcess implements Handler.Callback {
                 Data.Tax.setTaxes((HashMap<String, Double>) m.obj);
                 Data.Tax.save(this.ctx);
                 break;
-            case SyncUpdate.CATEGORIES_SYNC_DONE:
-                this.progress();
-                break;
             case SyncUpdate.CATALOG_SYNC_DONE:
-                this.progress();
                 System.out.println("Catalog done");
                 Catalog catalog = (Catalog) m.obj;
                 Data.Catalog.setCatalog(catalog);
@@ -372,11 +435,12 @@ public class UpdateProcess implements Handler.Callback {
                     Data.Catalog.save(this.ctx);
                 } catch (IOError e) {
                     Log.e(LOG_TAG, "Unable to save catalog", e);
+                    Data.SyncMark.resetMark(SyncMarkData.CATEGORIES);
+                    Data.SyncMark.resetMark(SyncMarkData.PRODUCTS);
                     Error.showError(R.string.err_save_catalog, this.caller);
                 }
                 break;
             case SyncUpdate.COMPOSITIONS_SYNC_DONE:
-                this.progress();
                 //noinspection unchecked
                 Data.Composition.compositions = (Map<String, Composition>) m.obj;
                 try {
@@ -387,11 +451,7 @@ public class UpdateProcess implements Handler.Callback {
                 }
                 break;
 
-            case SyncUpdate.ROLES_SYNC_DONE:
-                this.progress();
-                break;
             case SyncUpdate.USERS_SYNC_DONE:
-                this.progress();
                 //noinspection unchecked
                 List<User> users = (List<User>) m.obj;
                 Data.User.setUsers(users);
@@ -404,20 +464,19 @@ public class UpdateProcess implements Handler.Callback {
                 break;
 
             case SyncUpdate.CUSTOMERS_SYNC_DONE:
-                this.progress();
                 //noinspection unchecked
                 List<Customer> customers = (List) m.obj;
-                Data.Customer.customers = customers;
+                Data.Customer.setCustomers(customers);
                 try {
                     Data.Customer.save(this.ctx);
                 } catch (IOError e) {
                     Log.e(LOG_TAG, "Unable to save customers", e);
+                    Data.SyncMark.resetMark(SyncMarkData.CUSTOMERS);
                     Error.showError(R.string.err_save_customers, this.caller);
                 }
                 break;
 
             case SyncUpdate.TARIFF_AREAS_SYNC_DONE:
-                this.progress();
                 //noinspection unchecked
                 List<TariffArea> areas = (List<TariffArea>) m.obj;
                 Data.TariffArea.areas = areas;
@@ -429,7 +488,6 @@ public class UpdateProcess implements Handler.Callback {
                 }
                 break;
             case SyncUpdate.PAYMENTMODE_SYNC_DONE:
-                this.progress();
                 //noinspection unchecked
                 List<PaymentMode> modes = (List<PaymentMode>) m.obj;
                 Data.PaymentMode.setPaymentModes(modes);
@@ -442,7 +500,6 @@ public class UpdateProcess implements Handler.Callback {
                 break;
 
             case SyncUpdate.RESOURCE_SYNC_DONE:
-                this.progress();
                 try {
                     if (m.obj != null) {
                         String[] resData = (String[]) m.obj;
@@ -456,14 +513,10 @@ public class UpdateProcess implements Handler.Callback {
                     Error.showError(R.string.err_save_resource, this.caller);
                 }
                 break;
-            case SyncUpdate.PLACES_SKIPPED:
-                this.progress();
-                break;
             case SyncUpdate.PLACES_SYNC_DONE:
-                this.progress();
                 //noinspection unchecked
                 List<Floor> floors = (List<Floor>) m.obj;
-                Data.Place.floors = floors;
+                Data.Place.setFloors(floors);
                 try {
                     Data.Place.save(this.ctx);
                 } catch (IOError e) {
@@ -472,9 +525,6 @@ public class UpdateProcess implements Handler.Callback {
                 }
                 break;
 
-            case SyncUpdate.STOCKS_SKIPPED:
-                this.progress(2);
-                break;
             case SyncUpdate.LOCATIONS_SYNC_ERROR:
                 this.failed = true;
                 if (m.obj instanceof Exception) {
@@ -485,23 +535,19 @@ public class UpdateProcess implements Handler.Callback {
                     Error.showError(R.string.err_unknown_location, this.caller);
                 }
                 break;
-            case SyncUpdate.LOCATIONS_SYNC_DONE:
-                this.progress();
-                break;
             case SyncUpdate.STOCK_SYNC_DONE:
-                this.progress();
                 //noinspection unchecked
                 Map<String, Stock> stocks = (Map<String, Stock>) m.obj;
-                Data.Stock.stocks = stocks;
+                Data.Stock.setStocks(stocks);
                 try {
                     Data.Stock.save(this.ctx);
                 } catch (IOError e) {
                     Log.e(LOG_TAG, "Unable to save stocks", e);
+                    Data.SyncMark.resetMark(SyncMarkData.STOCKS);
                     Error.showError(R.string.err_save_stocks, this.caller);
                 }
                 break;
             case SyncUpdate.DISCOUNT_SYNC_DONE:
-                this.progress();
                 //noinspection unchecked
                 ArrayList<Discount> discounts = (ArrayList< Discount>) m.obj;
                 Data.Discount.setCollection(discounts);
@@ -521,7 +567,6 @@ public class UpdateProcess implements Handler.Callback {
             case SyncUpdate.CASHREG_SYNC_NOTFOUND:
                 this.failed = true;
                 SyncUtils.notifyListener(this.listener, SyncUpdate.CASHREG_SYNC_NOTFOUND);
-                this.finish();
                 break;
 
             case SyncUpdate.PAYMENTMODE_SYNC_ERROR:
@@ -536,6 +581,8 @@ public class UpdateProcess implements Handler.Callback {
             case SyncUpdate.PLACES_SYNC_ERROR:
             case SyncUpdate.COMPOSITIONS_SYNC_ERROR:
             case SyncUpdate.TARIFF_AREA_SYNC_ERROR:
+            case SyncUpdate.ROLES_SYNC_ERROR:
+            case SyncUpdate.RESOURCE_SYNC_ERROR:
                 this.failed = true;
                 Error.showError(((Exception) m.obj).getMessage(), this.caller);
                 break;
@@ -550,7 +597,8 @@ public class UpdateProcess implements Handler.Callback {
                 break;
 
             case ImgUpdate.LOAD_DONE:
-                this.poolDown();
+                // Batches send the number of images they loaded
+                this.poolDown(m.obj instanceof Integer ? (Integer) m.obj : 1);
                 break;
             case ImgUpdate.CONNECTION_FAILED:
                 this.failed = true;
@@ -6,18 +6,53 @@ package fr.pasteque.client.utils;
  */
 public class BarcodeCheck {
 
-    private static final int[] ean13_weighting = new int[]{1, 3, 1, 3, 1, 3, 1, 3, 1, 3, 1, 3};
-
-    private static int getCheckDigit(byte[] barcode) {
+    /**
+     * Compute the check digit of the digits of barcode before its last one,
+     * weighted 3 and 1 from the right.
+     * @return the check digit, -1 if barcode is not made of digits
+     */
+    private static int getCheckDigit(String barcode) {
         int result = 0;
-        for (int i = 0; i < 12; i++) {
-            result += Character.getNumericValue(barcode[i]) * ean13_weighting[i];
+        int weight = 3;
+        for (int i = barcode.length() - 2; i >= 0; i--) {
+            char c = barcode.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            result += (c - '0') * weight;
+            weight = 4 - weight;
         }
         return (10 - (result % 10)) % 10;
     }
 
+    private static boolean checked(String barcode, int length) {
+        if (barcode.length() != length) {
+            return false;
+        }
+        int check = getCheckDigit(barcode);
+        return check != -1 && check == barcode.charAt(length - 1) - '0';
+    }
+
     public static boolean ean13(String barcode) {
-        return barcode.length() == 13
-                && BarcodeCheck.getCheckDigit(barcode.getBytes()) == Character.getNumericValue(barcode.getBytes()[12]);
+        return checked(barcode, 13);
+    }
+
+    public static boolean upcA(String barcode) {
+        return checked(barcode, 12);
+    }
+
+    /**
+     * Get the other form of a complete code. An UPC-A code is the
+     * EAN-13 code starting with 0 without it, with the same check digit.
+     * @return the code in the other form, null if there is none
+     */
+    public static String otherForm(String barcode) {
+        if (upcA(barcode)) {
+            return "0" + barcode;
+        }
+        if (barcode.startsWith("0") && ean13(barcode)) {
+            return barcode.substring(1);
+        }
+        return null;
     }
 }
@@ -0,0 +1,224 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of threads for network requests.
+ * Tasks run by priority then in submission order, and no more than
+ * maxPerHost tasks run at the same time for a given host; the others
+ * wait for a task of the same host to end.
+ */
+public class RequestExecutor {
+
+    /** User is waiting for it, like shared tickets */
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_DEFAULT = 1;
+    /** Bulk sync, like images */
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final long KEEP_ALIVE = 30;
+
+    /** A request to run, that can be cancelled */
+    public abstract static class Task implements Runnable, Comparable<Task> {
+
+        private final String host;
+        private final int priority;
+        private RequestExecutor executor;
+        private long sequence;
+        // Guarded by executor
+        private boolean running;
+        private boolean done;
+        private volatile boolean cancelled;
+
+        protected Task(String host, int priority) {
+            this.host = host;
+            this.priority = priority;
+        }
+
+        /** Run the request, called at most once from a pool thread */
+        protected abstract void execute();
+
+        /**
+         * Called when cancelled while running,
+         * to interrupt what execute is waiting for.
+         */
+        protected void onCancel() {
+        }
+
+        @Override
+        public final void run() {
+            try {
+                if (this.executor.start(this)) {
+                    this.execute();
+                }
+            } finally {
+                this.executor.done(this);
+            }
+        }
+
+        /**
+         * Cancel the task. It is not run if not started yet.
+         * @return false if the task already ended or was cancelled.
+         */
+        public boolean cancel() {
+            return this.executor != null && this.executor.cancel(this);
+        }
+
+        public boolean isCancelled() {
+            return this.cancelled;
+        }
+
+        public String getHost() {
+            return this.host;
+        }
+
+        public int getPriority() {
+            return this.priority;
+        }
+
+        @Override
+        public int compareTo(Task another) {
+            if (this.priority != another.priority) {
+                return this.priority < another.priority ? -1 : 1;
+            }
+            return this.sequence < another.sequence ? -1
+                    : (this.sequence == another.sequence ? 0 : 1);
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final int maxPerHost;
+    private final Map<String, Integer> running = new HashMap<>();
+    private final Map<String, PriorityQueue<Task>> waiting = new HashMap<>();
+    private long sequence;
+
+    /**
+     * @param threads maximum number of tasks running at the same time
+     * @param maxPerHost maximum number of them for a single host
+     * @param name prefix of the name of the threads
+     */
+    public RequestExecutor(int threads, int maxPerHost, final String name) {
+        this.maxPerHost = maxPerHost;
+        this.pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int count;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, name + "-" + (++this.count));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /** Queue the task, it is run as soon as its priority and host allow it */
+    public synchronized void execute(Task task) {
+        if (task.executor != null) {
+            throw new IllegalStateException("Task already submitted");
+        }
+        task.executor = this;
+        task.sequence = this.sequence++;
+        Integer count = this.running.get(task.host);
+        int n = count == null ? 0 : count;
+        if (n < this.maxPerHost) {
+            this.running.put(task.host, n + 1);
+            this.pool.execute(task);
+        } else {
+            PriorityQueue<Task> queue = this.waiting.get(task.host);
+            if (queue == null) {
+                queue = new PriorityQueue<>();
+                this.waiting.put(task.host, queue);
+            }
+            queue.add(task);
+        }
+    }
+
+    /** @return number of tasks submitted and not ended */
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (int n : this.running.values()) {
+            count += n;
+        }
+        for (PriorityQueue<Task> queue : this.waiting.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    private synchronized boolean start(Task task) {
+        if (task.cancelled) {
+            return false;
+        }
+        task.running = true;
+        return true;
+    }
+
+    private synchronized boolean cancel(Task task) {
+        if (task.done || task.cancelled) {
+            return false;
+        }
+        task.cancelled = true;
+        PriorityQueue<Task> queue = this.waiting.get(task.host);
+        if (queue != null && queue.remove(task)) {
+            task.done = true;
+            if (queue.isEmpty()) {
+                this.waiting.remove(task.host);
+            }
+        } else if (this.pool.remove(task)) {
+            this.done(task);
+        } else if (task.running) {
+            task.onCancel();
+        }
+        // Otherwise it is about to start and will see it is cancelled
+        return true;
+    }
+
+    /** Release the slot of the task's host to the next waiting task */
+    private synchronized void done(Task task) {
+        if (task.done) {
+            return;
+        }
+        task.done = true;
+        task.running = false;
+        PriorityQueue<Task> queue = this.waiting.get(task.host);
+        if (queue != null) {
+            Task next = queue.poll();
+            if (queue.isEmpty()) {
+                this.waiting.remove(task.host);
+            }
+            this.pool.execute(next);
+            return;
+        }
+        int n = this.running.get(task.host) - 1;
+        if (n == 0) {
+            this.running.remove(task.host);
+        } else {
+            this.running.put(task.host, n);
+        }
+    }
+}
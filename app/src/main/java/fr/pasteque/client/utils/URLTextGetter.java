@@ -20,206 +20,488 @@ package fr.pasteque.client.utils;
 import android.os.Message;
 import android.os.Handler;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpStatus;
-import org.apache.http.client.HttpClient;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.NameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
 
+/**
+ * Asynchronous HTTP requests, answered to a Handler.
+ * Requests share a pooled client so that connections are kept alive
+ * between calls, and responses are gzipped when the server can.
+ * They are run by a bounded RequestExecutor, by priority.
+ * A cancelled request sends no message.
+ */
 public class URLTextGetter {
 
     public static final int SUCCESS = 0;
     public static final int STATUS_NOK = 1;
     public static final int ERROR = 2;
+    /** Answer of a conditional request when the content did not change */
+    public static final int NOT_MODIFIED = 3;
 
-    public static void getText(final String url, Map<String, String> params,
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final int DEFAULT_READ_TIMEOUT = 30000;
+    private static final int MAX_CONNECTIONS = 8;
+    private static final int MAX_CONNECTIONS_PER_HOST = 4;
+    private static final int MAX_REQUESTS = 6;
+    private static final int BUFFER_SIZE = 10240;
+
+    /** Notified of every request, for timing */
+    public interface RequestListener {
+        /**
+         * Called from the request thread once the response is read.
+         * @param url the requested url, with GET parameters
+         * @param status the HTTP status, -1 on network error
+         * @param bytes the size of the read content once uncompressed
+         * @param millis time from sending the request to the end of the content
+         */
+        void onRequestDone(String url, int status, long bytes, long millis);
+    }
+
+    /** Read the content of a response while it is downloaded */
+    public interface ResponseParser {
+        /**
+         * Called from the request thread with the uncompressed content.
+         * @return the object sent to the handler on success
+         */
+        Object parse(InputStream in) throws IOException;
+    }
+
+    /** Binary content with the validators to request it again */
+    public static class CachedContent {
+        private final byte[] content;
+        private final String etag;
+        private final String lastModified;
+
+        private CachedContent(byte[] content, String etag, String lastModified) {
+            this.content = content;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        public byte[] getContent() {
+            return this.content;
+        }
+
+        /** @return the ETag header, null if not sent */
+        public String getEtag() {
+            return this.etag;
+        }
+
+        /** @return the Last-Modified header, null if not sent */
+        public String getLastModified() {
+            return this.lastModified;
+        }
+    }
+
+    private static final RequestExecutor executor = new RequestExecutor(MAX_REQUESTS,
+            MAX_CONNECTIONS_PER_HOST, "URLTextGetter");
+    private static DefaultHttpClient client;
+    private static RequestListener listener;
+
+    public static Request getText(final String url, Map<String, String> params,
             final Handler h) {
-        getText(url, params, null, h);
+        return getText(url, params, null, h);
     }
 
-    public static void getText(final String url,
+    public static Request getText(final String url,
                                final Map<String, String> getParams,
                                final Map<String, String> postParams,
                                final Handler h,
                                final int messageArg) {
-        new TextGetterThread(url, getParams, postParams, h, messageArg).start();
+        return getText(url, getParams, postParams, h, messageArg,
+                RequestExecutor.PRIORITY_DEFAULT);
     }
 
-    public static void getText(final String url,
+    public static Request getText(final String url,
             final Map<String, String> getParams,
             final Map<String, String> postParams,
             final Handler h) {
-        new TextGetterThread(url, getParams, postParams, h, 0).start();
+        return getText(url, getParams, postParams, h, 0);
+    }
+
+    /** @param priority one of RequestExecutor.PRIORITY_* */
+    public static Request getText(final String url,
+                                  final Map<String, String> getParams,
+                                  final Map<String, String> postParams,
+                                  final Handler h,
+                                  final int messageArg,
+                                  final int priority) {
+        return submit(new Request(url, getParams, postParams, h, messageArg, false, null,
+                priority));
     }
 
-    public static void getBinary(final String url,
+    /**
+     * Like getText but the content is given to the parser as it is
+     * downloaded, off the UI thread. The handler receives the parsed
+     * object on success.
+     * @param priority one of RequestExecutor.PRIORITY_*
+     */
+    public static Request getParsed(final String url,
+                                    final Map<String, String> getParams,
+                                    final Map<String, String> postParams,
+                                    final ResponseParser parser,
+                                    final Handler h,
+                                    final int messageArg,
+                                    final int priority) {
+        return submit(new Request(url, getParams, postParams, h, messageArg, false, parser,
+                priority));
+    }
+
+    public static Request getBinary(final String url,
             final Map<String, String> getParams,
             final Handler h) {
-        new Thread() {
-            @Override
-			public void run() {
-                try {
-                    String fullUrl = url;
-                    if (getParams != null && getParams.size() > 0) {
-                        fullUrl += "?";
-                        for (String param : getParams.keySet()) {
-                            fullUrl += URLEncoder.encode(param, "utf-8") + "="
-                                    + URLEncoder.encode(getParams.get(param), "utf-8") + "&";
-                        }
+        return getBinary(url, getParams, h, RequestExecutor.PRIORITY_DEFAULT);
+    }
+
+    /** @param priority one of RequestExecutor.PRIORITY_* */
+    public static Request getBinary(final String url,
+                                    final Map<String, String> getParams,
+                                    final Handler h,
+                                    final int priority) {
+        return submit(new Request(url, getParams, null, h, 0, true, null, priority));
+    }
+
+    /**
+     * Request binary content only if it changed since it was stored.
+     * The handler gets NOT_MODIFIED when it did not change,
+     * otherwise SUCCESS with a CachedContent.
+     * @param etag the ETag of the stored content, may be null
+     * @param lastModified the Last-Modified of the stored content, may be null
+     * @param priority one of RequestExecutor.PRIORITY_*
+     */
+    public static Request getBinaryIfModified(final String url,
+                                              final Map<String, String> getParams,
+                                              final String etag,
+                                              final String lastModified,
+                                              final Handler h,
+                                              final int priority) {
+        Request r = new Request(url, getParams, null, h, 0, true, null, priority);
+        r.mConditional = true;
+        r.mEtag = etag;
+        r.mLastModified = lastModified;
+        return submit(r);
+    }
+
+    private static Request submit(Request r) {
+        executor.execute(r);
+        return r;
+    }
+
+    public static void setRequestListener(RequestListener l) {
+        listener = l;
+    }
+
+    /** Set the timeouts of the shared client, in milliseconds */
+    public static synchronized void setTimeouts(int connectTimeout, int readTimeout) {
+        HttpParams params = getClient().getParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, readTimeout);
+    }
+
+    /** Get the client shared by every request, create it on first call */
+    private static synchronized DefaultHttpClient getClient() {
+        if (client == null) {
+            HttpParams params = new BasicHttpParams();
+            HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+            HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
+            HttpConnectionParams.setConnectionTimeout(params, DEFAULT_CONNECT_TIMEOUT);
+            HttpConnectionParams.setSoTimeout(params, DEFAULT_READ_TIMEOUT);
+            HttpConnectionParams.setSocketBufferSize(params, BUFFER_SIZE);
+            ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+            ConnManagerParams.setMaxConnectionsPerRoute(params,
+                    new ConnPerRouteBean(MAX_CONNECTIONS_PER_HOST));
+            SchemeRegistry schemes = new SchemeRegistry();
+            schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+            schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+            client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, schemes),
+                    params);
+            client.addRequestInterceptor(new HttpRequestInterceptor() {
+                @Override
+                public void process(HttpRequest request, HttpContext context)
+                        throws HttpException, IOException {
+                    if (!request.containsHeader("Accept-Encoding")) {
+                        request.addHeader("Accept-Encoding", "gzip");
                     }
-                    if (fullUrl.endsWith("&")) {
-                        fullUrl = fullUrl.substring(0, fullUrl.length() - 1);
+                }
+            });
+            client.addResponseInterceptor(new HttpResponseInterceptor() {
+                @Override
+                public void process(HttpResponse response, HttpContext context)
+                        throws HttpException, IOException {
+                    HttpEntity entity = response.getEntity();
+                    Header encoding = entity == null ? null : entity.getContentEncoding();
+                    if (encoding == null) {
+                        return;
                     }
-                    HttpClient client = new DefaultHttpClient();
-                    HttpResponse response = null;
-                    HttpGet req = new HttpGet(fullUrl);
-                    response = client.execute(req);
-                    int status = response.getStatusLine().getStatusCode();
-                    if(status == HttpStatus.SC_OK) {
-                        // Get http response
-                        byte[] content = null;
-                        try {
-                            final int size = 10240;
-                            ByteArrayOutputStream bos = new ByteArrayOutputStream(size);
-                            byte[] buffer = new byte[size];
-                            BufferedInputStream bis = new BufferedInputStream(response.getEntity().getContent(), size);
-                            int read = bis.read(buffer, 0, size);
-                            while (read != -1) {
-                                bos.write(buffer, 0, read);
-                                read = bis.read(buffer, 0, size);
-                            }
-                            content = bos.toByteArray();
-                        } catch (IOException ioe) {
-                            ioe.printStackTrace();
-                        }
-                        if (h != null) {
-                            Message m = h.obtainMessage();
-                            m.what = SUCCESS;
-                            m.obj = content;
-                            m.sendToTarget();
-                        }
-                    } else {
-                        if (h != null) {
-                            Message m = h.obtainMessage();
-                            m.what = STATUS_NOK;
-                            m.obj = new Integer(status);
-                            m.sendToTarget();
+                    for (HeaderElement e : encoding.getElements()) {
+                        if (e.getName().equalsIgnoreCase("gzip")) {
+                            response.setEntity(new GzipEntity(entity));
+                            return;
                         }
                     }
-                } catch( IOException e ) {
-                    if (h != null) {
-                        Message m = h.obtainMessage();
-                        m.what = ERROR;
-                        m.obj = e;
-                        m.sendToTarget();
-                    }
                 }
+            });
+        }
+        return client;
+    }
+
+    private static String buildUrl(String url, Map<String, String> getParams)
+            throws IOException {
+        String fullUrl = url;
+        if (getParams != null && getParams.size() > 0) {
+            fullUrl += "?";
+            for (String param : getParams.keySet()) {
+                fullUrl += URLEncoder.encode(param, "utf-8") + "="
+                        + URLEncoder.encode(getParams.get(param), "utf-8") + "&";
+            }
+        }
+        if (fullUrl.endsWith("&")) {
+            fullUrl = fullUrl.substring(0, fullUrl.length() - 1);
+        }
+        return fullUrl;
+    }
+
+    /** Read the whole content, which releases the connection to the pool */
+    private static byte[] readContent(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return new byte[0];
+        }
+        InputStream in = entity.getContent();
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            BufferedInputStream bis = new BufferedInputStream(in, BUFFER_SIZE);
+            int read = bis.read(buffer, 0, BUFFER_SIZE);
+            while (read != -1) {
+                bos.write(buffer, 0, read);
+                read = bis.read(buffer, 0, BUFFER_SIZE);
             }
-        }.start();
+            return bos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void notifyListener(String url, int status, long bytes, long start) {
+        RequestListener l = listener;
+        if (l != null) {
+            l.onRequestDone(url, status, bytes, (System.nanoTime() - start) / 1000000);
+        }
     }
 
-    private static class TextGetterThread extends Thread {
+    /** Uncompress a gzipped entity on the fly */
+    private static class GzipEntity extends HttpEntityWrapper {
+
+        public GzipEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new GZIPInputStream(this.wrappedEntity.getContent());
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header h = response.getFirstHeader(name);
+        return h == null ? null : h.getValue();
+    }
+
+    private static String hostOf(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    /** A queued request, use cancel() to drop it */
+    public static class Request extends RequestExecutor.Task {
 
         private final String mUrl;
         private final Map<String, String> mGetParams;
         private final Map<String, String> mPostParams;
         private final Handler mH;
         private final int mMessageArg;
-        public TextGetterThread(final String url,
-                                final Map<String, String> getParams,
-                                final Map<String, String> postParams,
-                                final Handler h,
-                                final int messageArg) {
+        private final boolean mBinary;
+        private final ResponseParser mParser;
+        private volatile HttpUriRequest mRequest;
+        private long mParsedBytes;
+        private boolean mConditional;
+        private String mEtag;
+        private String mLastModified;
+        private Request(final String url,
+                        final Map<String, String> getParams,
+                        final Map<String, String> postParams,
+                        final Handler h,
+                        final int messageArg,
+                        final boolean binary,
+                        final ResponseParser parser,
+                        final int priority) {
+            super(hostOf(url), priority);
             mUrl = url;
             mGetParams = getParams;
             mPostParams = postParams;
             mH = h;
             mMessageArg = messageArg;
+            mBinary = binary;
+            mParser = parser;
         }
 
         @Override
-        public void run() {
+        protected void onCancel() {
+            HttpUriRequest req = mRequest;
+            if (req != null) {
+                req.abort();
+            }
+        }
+
+        private void send(int what, Object obj) {
+            if (mH != null && !this.isCancelled()) {
+                Message m = mH.obtainMessage();
+                m.what = what;
+                m.obj = obj;
+                m.arg1 = mMessageArg;
+                m.sendToTarget();
+            }
+        }
+
+        /** Parse the content as it comes, then release the connection */
+        private Object parse(HttpEntity entity) throws IOException {
+            if (entity == null) {
+                return mParser.parse(new ByteArrayInputStream(new byte[0]));
+            }
+            CountingInputStream in = new CountingInputStream(
+                    new BufferedInputStream(entity.getContent(), BUFFER_SIZE));
             try {
-                String fullUrl = mUrl;
-                if (mGetParams != null && mGetParams.size() > 0) {
-                    fullUrl += "?";
-                    for (String param : mGetParams.keySet()) {
-                        fullUrl += URLEncoder.encode(param, "utf-8") + "="
-                                + URLEncoder.encode(mGetParams.get(param), "utf-8") + "&";
-                    }
-                }
-                if (fullUrl.endsWith("&")) {
-                    fullUrl = fullUrl.substring(0, fullUrl.length() - 1);
-                }
-                HttpClient client = new DefaultHttpClient();
-                HttpResponse response;
+                return mParser.parse(in);
+            } finally {
+                mParsedBytes = in.getByteCount();
+                // Skip what the parser left and close
+                entity.consumeContent();
+            }
+        }
+
+        @Override
+        protected void execute() {
+            long start = System.nanoTime();
+            String fullUrl = mUrl;
+            try {
+                fullUrl = buildUrl(mUrl, mGetParams);
+                HttpUriRequest req;
                 if (mPostParams == null) {
-                    HttpGet req = new HttpGet(fullUrl);
-                    response = client.execute(req);
+                    req = new HttpGet(fullUrl);
                 } else {
-                    HttpPost req = new HttpPost(fullUrl);
+                    HttpPost post = new HttpPost(fullUrl);
                     List<NameValuePair> args = new ArrayList<NameValuePair>();
                     for(String key : mPostParams.keySet()) {
                         String value = mPostParams.get(key);
                         args.add(new BasicNameValuePair(key, value));
                     }
                     UrlEncodedFormEntity entity = new UrlEncodedFormEntity(args,HTTP.UTF_8);
-                    req.setEntity(entity);
-                    response = client.execute(req);
+                    post.setEntity(entity);
+                    req = post;
+                }
+                if (mEtag != null) {
+                    req.addHeader("If-None-Match", mEtag);
                 }
+                if (mLastModified != null) {
+                    req.addHeader("If-Modified-Since", mLastModified);
+                }
+                mRequest = req;
+                if (this.isCancelled()) {
+                    return;
+                }
+                HttpResponse response = getClient().execute(req);
                 int status = response.getStatusLine().getStatusCode();
-                if(status == HttpStatus.SC_OK) {
+                if (status == HttpStatus.SC_OK && mParser != null) {
+                    Object parsed = this.parse(response.getEntity());
+                    notifyListener(fullUrl, status, mParsedBytes, start);
+                    this.send(SUCCESS, parsed);
+                } else if(status == HttpStatus.SC_OK) {
                     // Get http response
-                    String content = "";
+                    byte[] content = null;
                     try {
-                        final int size = 10240;
-                        ByteArrayOutputStream bos = new ByteArrayOutputStream(size);
-                        byte[] buffer = new byte[size];
-                        BufferedInputStream bis = new BufferedInputStream(response.getEntity().getContent(), size);
-                        int read = bis.read(buffer, 0, size);
-                        while (read != -1) {
-                            bos.write(buffer, 0, read);
-                            read = bis.read(buffer, 0, size);
-                        }
-                        content = new String(bos.toByteArray());
+                        content = readContent(response.getEntity());
                     } catch (IOException ioe) {
                         ioe.printStackTrace();
                     }
-                    if (mH != null) {
-                        Message m = mH.obtainMessage();
-                        m.what = SUCCESS;
-                        m.obj = content;
-                        m.arg1 = mMessageArg;
-                        m.sendToTarget();
+                    notifyListener(fullUrl, status, content == null ? 0 : content.length, start);
+                    if (mConditional) {
+                        this.send(SUCCESS, new CachedContent(content,
+                                headerValue(response, "ETag"),
+                                headerValue(response, "Last-Modified")));
+                    } else if (mBinary) {
+                        this.send(SUCCESS, content);
+                    } else {
+                        this.send(SUCCESS, content == null ? "" : new String(content));
                     }
+                } else if (status == HttpStatus.SC_NOT_MODIFIED && mConditional) {
+                    notifyListener(fullUrl, status, 0, start);
+                    this.send(NOT_MODIFIED, null);
                 } else {
-                    if (mH != null) {
-                        Message m = mH.obtainMessage();
-                        m.what = STATUS_NOK;
-                        m.obj = status;
-                        m.arg1 = mMessageArg;
-                        m.sendToTarget();
+                    // Consume the error page to reuse the connection
+                    HttpEntity entity = response.getEntity();
+                    if (entity != null) {
+                        entity.consumeContent();
                     }
+                    notifyListener(fullUrl, status, 0, start);
+                    this.send(STATUS_NOK, status);
                 }
             } catch( IOException e ) {
-                if (mH != null) {
-                    Message m = mH.obtainMessage();
-                    m.what = ERROR;
-                    m.obj = e;
-                    m.arg1 = mMessageArg;
-                    m.sendToTarget();
-                }
+                notifyListener(fullUrl, -1, 0, start);
+                this.send(ERROR, e);
             }
         }
     }
@@ -1,12 +1,13 @@
 package fr.pasteque.client.utils.exception;
 
-import java.io.FileNotFoundException;
+import java.io.IOException;
 
 /**
  * Created by nsvir on 19/10/15.
  * n.svirchevsky@gmail.com
  */
 public class SaveArchiveException extends Throwable {
-    public SaveArchiveException(FileNotFoundException e) {
+    public SaveArchiveException(IOException e) {
+        super(e);
     }
 }
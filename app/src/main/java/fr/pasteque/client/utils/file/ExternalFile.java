@@ -41,4 +41,14 @@ public class ExternalFile extends File {
     protected FileOutputStream openWrite() throws FileNotFoundException {
         return new FileOutputStream(this);
     }
+
+    /**
+     * Exported files are plain copies meant to be read by people
+     *
+     * @return false
+     */
+    @Override
+    protected boolean hasGenerations() {
+        return false;
+    }
 }
\ No newline at end of file
@@ -1,16 +1,36 @@
 package fr.pasteque.client.utils.file;
 
 import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import fr.pasteque.client.Pasteque;
+import fr.pasteque.client.utils.Compat;
 import org.apache.commons.io.Charsets;
 import org.apache.commons.io.IOUtils;
 
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StreamCorruptedException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * Created by nsvir on 05/10/15.
@@ -19,6 +39,26 @@ import java.nio.charset.Charset;
 public abstract class File extends java.io.File {
 
     public static final int DIRECTORY = 0;
+
+    private static final String LOG_TAG = "Pasteque/File";
+    private static final String BACKUP_SUFFIX = ".bak";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    /** Starts every generation, files without it were written before */
+    private static final String HEADER = "#pasteque-generation:1\n";
+    private static final String FOOTER_PREFIX = "\n#crc32:";
+    private static final String FOOTER_SUFFIX = "\n";
+    private static final int FOOTER_LENGTH = FOOTER_PREFIX.length() + 8 + FOOTER_SUFFIX.length();
+    private static final Charset FOOTER_CHARSET = Charsets.UTF_8;
+    private static final byte[] HEADER_BYTES = HEADER.getBytes(FOOTER_CHARSET);
+
+    /** Filter out backup and temporary generations from directory listings */
+    public static final FilenameFilter CURRENT_GENERATIONS = new FilenameFilter() {
+        @Override
+        public boolean accept(java.io.File dir, String filename) {
+            return !filename.endsWith(BACKUP_SUFFIX) && !filename.endsWith(TEMPORARY_SUFFIX);
+        }
+    };
+
     private Charset charset = Charsets.UTF_8;
 
     public File(java.io.File dir, String name) {
@@ -42,46 +82,263 @@ public abstract class File extends java.io.File {
         super(uri);
     }
 
-    public void write(String string) throws FileNotFoundException {
-        FileOutputStream outputStream = null;
+    /**
+     * Replace the content of the file.
+     * The content is written to a temporary sibling between a header and
+     * a checksum footer, synced, then renamed over the file. The previous
+     * content is kept as the backup generation.
+     */
+    public void write(String string) throws IOException {
+        Writer writer = openWriter();
         try {
-            outputStream = openWrite();
-            writeString(string, outputStream);
-            outputStream.flush();
-        } catch (FileNotFoundException e) {
-            throw e;
-        } catch (IOException e) {
-            e.printStackTrace();
+            writer.write(string);
+            commit(writer);
+            writer = null;
         } finally {
-            IOUtils.closeQuietly(outputStream);
+            if (writer != null) {
+                abort(writer);
+            }
         }
     }
 
-    public String read() throws FileNotFoundException {
-        FileInputStream fis = null;
-        String result = "";
+    public String read() throws IOException {
+        Reader reader = openReader();
         try {
-            fis = openRead();
-            result = readString(fis);
+            StringWriter result = new StringWriter();
+            IOUtils.copy(reader, result);
+            return result.toString();
         } finally {
-            IOUtils.closeQuietly(fis);
+            IOUtils.closeQuietly(reader);
         }
-        return result;
     }
 
-    private void writeString(String string, FileOutputStream outputStream) throws IOException {
-        IOUtils.write(string.getBytes(this.charset), outputStream);
+    /**
+     * Open a buffered character stream on the file.
+     * The file is read once and checked against its checksum before
+     * anything is returned: if it is missing or damaged, the backup
+     * generation is read instead. The caller is responsible for closing it.
+     * @throws StreamCorruptedException if no generation is intact
+     */
+    public Reader openReader() throws IOException {
+        InputStream is;
+        if (!hasGenerations()) {
+            is = openRead();
+        } else {
+            is = readGeneration();
+        }
+        return new BufferedReader(new InputStreamReader(is, this.charset));
     }
 
-    protected String readString(FileInputStream fis) {
-        String result = null;
+    /**
+     * Open a buffered character stream for streaming writes.
+     * Nothing is visible in the file until the writer is given to
+     * {@link #commit(Writer)}, use {@link #abort(Writer)} to drop it.
+     */
+    public Writer openWriter() throws FileNotFoundException {
+        if (!hasGenerations()) {
+            return new BufferedWriter(new OutputStreamWriter(openWrite(), this.charset));
+        }
+        FileOutputStream out = new FileOutputStream(getTemporaryFile());
         try {
-            byte[] bytes = IOUtils.toByteArray(fis);
-            result = new String(bytes, this.charset);
+            out.write(HEADER_BYTES);
         } catch (IOException e) {
-            e.printStackTrace();
+            IOUtils.closeQuietly(out);
+            throw new FileNotFoundException(e.getMessage());
+        }
+        return new GenerationWriter(out, this.charset);
+    }
+
+    /**
+     * Flush and close a writer from {@link #openWriter()}, then make its
+     * content the current generation of the file.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public void commit(Writer writer) throws IOException {
+        if (!(writer instanceof GenerationWriter)) {
+            writer.flush();
+            writer.close();
+            return;
+        }
+        GenerationWriter gw = (GenerationWriter) writer;
+        gw.flush();
+        gw.output.write(footer(gw.checksum.getValue()).getBytes(FOOTER_CHARSET));
+        gw.output.flush();
+        gw.output.getFD().sync();
+        gw.close();
+        if (this.exists()) {
+            java.io.File backup = getBackupFile();
+            backup.delete();
+            // Linked, the file is never missing while renaming
+            if (!link(this, backup) && !this.renameTo(backup)) {
+                throw new IOException("Could not rotate " + getName());
+            }
+        }
+        if (!getTemporaryFile().renameTo(this)) {
+            throw new IOException("Could not rename to " + getName());
+        }
+        syncDirectory(getParentFile());
+    }
+
+    /** @return false if the link could not be made, or before API 21 */
+    private static boolean link(java.io.File from, java.io.File to) {
+        if (Compat.getAPILevel() < 21) {
+            return false;
+        }
+        try {
+            Os.link(from.getPath(), to.getPath());
+            return true;
+        } catch (ErrnoException e) {
+            Log.w(LOG_TAG, "Could not link " + to.getName(), e);
+            return false;
+        }
+    }
+
+    /** Sync the directory entries for a rename to survive a power loss */
+    private static void syncDirectory(java.io.File dir) {
+        if (dir == null || Compat.getAPILevel() < 21) {
+            return;
+        }
+        try {
+            FileDescriptor fd = Os.open(dir.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(fd);
+            } finally {
+                Os.close(fd);
+            }
+        } catch (ErrnoException e) {
+            // The file is renamed anyway
+            Log.w(LOG_TAG, "Could not sync " + dir.getName(), e);
+        }
+    }
+
+    /** Close a writer from {@link #openWriter()} and drop what was written */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public void abort(Writer writer) {
+        IOUtils.closeQuietly(writer);
+        if (writer instanceof GenerationWriter) {
+            getTemporaryFile().delete();
+        }
+    }
+
+    /** Delete the file along with its backup and temporary generations */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Override
+    public boolean delete() {
+        if (hasGenerations()) {
+            getBackupFile().delete();
+            getTemporaryFile().delete();
+        }
+        return super.delete();
+    }
+
+    /**
+     * Whether the file is written atomically with a checksum footer
+     * and a backup generation.
+     */
+    protected boolean hasGenerations() {
+        return true;
+    }
+
+    /**
+     * @return a stream on the content of the first generation that
+     * passes its checksum, header and footer excluded.
+     */
+    private InputStream readGeneration() throws IOException {
+        java.io.File[] generations = new java.io.File[]{this, getBackupFile()};
+        for (java.io.File generation : generations) {
+            InputStream in;
+            try {
+                in = (generation == this) ? openRead() : new FileInputStream(generation);
+            } catch (FileNotFoundException e) {
+                continue;
+            }
+            byte[] bytes;
+            try {
+                bytes = IOUtils.toByteArray(in);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            InputStream content = content(bytes);
+            if (content != null) {
+                if (generation != this) {
+                    Log.w(LOG_TAG, "Reading backup generation of " + getName());
+                }
+                return content;
+            }
+            Log.w(LOG_TAG, "Checksum mismatch for " + generation.getName());
+        }
+        if (!this.exists()) {
+            throw new FileNotFoundException(getAbsolutePath());
+        }
+        throw new StreamCorruptedException("No intact generation of " + getName());
+    }
+
+    /**
+     * @return the content of a generation, null if it does not match its
+     * checksum. Files written before generations, without header nor
+     * footer, are trusted as is.
+     */
+    private static InputStream content(byte[] bytes) {
+        boolean header = startsWith(bytes, HEADER_BYTES, 0);
+        boolean footer = bytes.length >= FOOTER_LENGTH
+                && startsWith(bytes, FOOTER_PREFIX.getBytes(FOOTER_CHARSET),
+                bytes.length - FOOTER_LENGTH);
+        if (!header && !footer) {
+            return new ByteArrayInputStream(bytes);
+        }
+        int length = bytes.length - HEADER_BYTES.length - FOOTER_LENGTH;
+        if (!header || !footer || length < 0) {
+            // One of them is damaged
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, HEADER_BYTES.length, length);
+        String expected = new String(bytes, bytes.length - FOOTER_LENGTH, FOOTER_LENGTH,
+                FOOTER_CHARSET);
+        if (!expected.equals(footer(crc.getValue()))) {
+            return null;
+        }
+        return new ByteArrayInputStream(bytes, HEADER_BYTES.length, length);
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix, int offset) {
+        if (offset < 0 || bytes.length - offset < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String footer(long crc) {
+        return FOOTER_PREFIX + String.format("%08x", crc) + FOOTER_SUFFIX;
+    }
+
+    private java.io.File getBackupFile() {
+        return new java.io.File(getParentFile(), getName() + BACKUP_SUFFIX);
+    }
+
+    private java.io.File getTemporaryFile() {
+        return new java.io.File(getParentFile(), getName() + TEMPORARY_SUFFIX);
+    }
+
+    /** Writer to the temporary generation that checksums what goes through */
+    private static class GenerationWriter extends BufferedWriter {
+        private final FileOutputStream output;
+        private final CRC32 checksum;
+
+        private GenerationWriter(FileOutputStream output, Charset charset) {
+            this(output, new CheckedOutputStream(output, new CRC32()), charset);
+        }
+
+        private GenerationWriter(FileOutputStream output, CheckedOutputStream checked, Charset charset) {
+            super(new OutputStreamWriter(checked, charset));
+            this.output = output;
+            this.checksum = (CRC32) checked.getChecksum();
         }
-        return result;
     }
 
     protected abstract FileInputStream openRead() throws FileNotFoundException;
@@ -0,0 +1,152 @@
+/*
+    Pasteque Android client
+    Copyright (C) Pasteque contributors, see the COPYRIGHT file
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package fr.pasteque.client.utils.file;
+
+import org.apache.commons.io.Charsets;
+import org.apache.commons.io.IOUtils;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only file of newline-delimited records.
+ * Each record is written as "crc32 record\n" and synced to disk on append.
+ * A record that is incomplete or does not match its checksum marks a torn
+ * tail: it is dropped with everything after it on replay.
+ */
+public class Journal {
+
+    private static final char SEPARATOR = ' ';
+    private static final char END_OF_RECORD = '\n';
+    private static final int CRC_LENGTH = 8;
+
+    private final java.io.File file;
+
+    public Journal(java.io.File file) {
+        this.file = file;
+    }
+
+    public java.io.File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Append a record and wait for it to reach the disk.
+     * @param record the record content, must not contain a newline
+     */
+    public synchronized void append(String record) throws IOException {
+        if (record.indexOf(END_OF_RECORD) != -1) {
+            throw new IllegalArgumentException("Journal records cannot contain newlines");
+        }
+        byte[] content = record.getBytes(Charsets.UTF_8);
+        String line = checksum(content) + SEPARATOR + record + END_OF_RECORD;
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(this.file, true);
+            fos.write(line.getBytes(Charsets.UTF_8));
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Read back all the complete records in order.
+     * A torn tail record is truncated from the file.
+     * @return the records, empty if the journal does not exist
+     */
+    public synchronized List<String> replay() throws IOException {
+        List<String> records = new ArrayList<>();
+        byte[] bytes;
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(this.file);
+            bytes = IOUtils.toByteArray(fis);
+        } catch (FileNotFoundException e) {
+            return records;
+        } finally {
+            IOUtils.closeQuietly(fis);
+        }
+        int start = 0;
+        while (start < bytes.length) {
+            int end = indexOf(bytes, (byte) END_OF_RECORD, start);
+            String record = (end == -1) ? null : parse(bytes, start, end);
+            if (record == null) {
+                truncate(start);
+                break;
+            }
+            records.add(record);
+            start = end + 1;
+        }
+        return records;
+    }
+
+    /** Drop every record */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    public synchronized void clear() {
+        this.file.delete();
+    }
+
+    /** @return the record between start and end, null if it is corrupted */
+    private static String parse(byte[] bytes, int start, int end) {
+        int contentStart = start + CRC_LENGTH + 1;
+        if (contentStart > end || bytes[start + CRC_LENGTH] != SEPARATOR) {
+            return null;
+        }
+        String crc = new String(bytes, start, CRC_LENGTH, Charsets.UTF_8);
+        byte[] content = new byte[end - contentStart];
+        System.arraycopy(bytes, contentStart, content, 0, content.length);
+        if (!crc.equals(checksum(content))) {
+            return null;
+        }
+        return new String(content, Charsets.UTF_8);
+    }
+
+    private static String checksum(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return String.format("%08x", crc.getValue());
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(this.file, "rw");
+            raf.setLength(length);
+            raf.getFD().sync();
+        } finally {
+            IOUtils.closeQuietly(raf);
+        }
+    }
+}
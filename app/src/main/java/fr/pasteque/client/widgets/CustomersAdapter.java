@@ -18,6 +18,7 @@
 package fr.pasteque.client.widgets;
 
 import fr.pasteque.client.R;
+import fr.pasteque.client.data.Data;
 import fr.pasteque.client.models.Customer;
 
 import android.content.Context;
@@ -100,15 +101,14 @@ public class CustomersAdapter extends BaseAdapter implements Filterable {
         protected FilterResults performFiltering(CharSequence constraintSequence) {
             FilterResults results = new FilterResults();
             if (constraintSequence != null && constraintSequence.length() > 0) {
-                String constraint = constraintSequence.toString().toLowerCase();
                 ArrayList<Customer> filterList = new ArrayList<>();
-
-                for (Customer cus : CustomersAdapter.this.customers) {
-                    if (cus == null || cus.getFirstName().toLowerCase().contains(constraint)
-                            || cus.getLastName().contains(constraint)) {
-                        filterList.add(cus);
-                    }
+                List<Customer> all = CustomersAdapter.this.customers;
+                if (!all.isEmpty() && all.get(0) == null) {
+                    // Keep the no customer entry
+                    filterList.add(null);
                 }
+                // Customers are the loaded ones, look them up in their index
+                filterList.addAll(Data.Customer.search(constraintSequence.toString()));
                 results.count = filterList.size();
                 results.values = filterList;
                 return results;
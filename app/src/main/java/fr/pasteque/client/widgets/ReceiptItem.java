@@ -18,8 +18,7 @@
 package fr.pasteque.client.widgets;
 
 import fr.pasteque.client.R;
-import fr.pasteque.client.models.Receipt;
-import fr.pasteque.client.models.TicketLine;
+import fr.pasteque.client.models.ReceiptSummary;
 
 import android.content.Context;
 import android.view.LayoutInflater;
@@ -28,12 +27,12 @@ import android.widget.RelativeLayout;
 
 public class ReceiptItem extends RelativeLayout {
 
-    private Receipt receipt;
+    private ReceiptSummary receipt;
 
     private TextView label;
     private TextView content;
 
-    public ReceiptItem(Context context, Receipt r) {
+    public ReceiptItem(Context context, ReceiptSummary r) {
         super(context);
         LayoutInflater.from(context).inflate(R.layout.receipt_item,
                 this, true);
@@ -42,22 +41,15 @@ public class ReceiptItem extends RelativeLayout {
         this.reuse(r);
     }
 
-    public void reuse(Receipt r) {
+    public void reuse(ReceiptSummary r) {
         this.receipt = r;
         String label = this.getContext().getString(R.string.ticket_label,
-                this.receipt.getTicket().getTicketId());
+                this.receipt.getTicketNumber());
         this.label.setText(label);
-        String content = "";
-        for (TicketLine l : r.getTicket().getLines()) {
-            content += l.getProduct().getLabel() + " x " + l.getQuantity() + ", ";
-        }
-        if (content != "") {
-            content = content.substring(0, content.length() - 2);
-        }
-        this.content.setText(content);
+        this.content.setText(r.getContent());
     }
 
-    public Receipt getReceipt() {
+    public ReceiptSummary getReceipt() {
         return this.receipt;
     }
 
@@ -17,18 +17,19 @@
 */
 package fr.pasteque.client.widgets;
 
-import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.data.DataSavable.ReceiptData;
+import fr.pasteque.client.models.ReceiptSummary;
 import android.content.Context;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
-import java.util.List;
 
+/** Show receipt summaries, read page by page from ReceiptData */
 public class ReceiptsAdapter extends BaseAdapter {
 
-    private List<Receipt> receipts;
+    private ReceiptData receipts;
 
-    public ReceiptsAdapter(List<Receipt> receipts) {
+    public ReceiptsAdapter(ReceiptData receipts) {
         super();
         this.receipts = receipts;
     }
@@ -45,17 +46,17 @@ public class ReceiptsAdapter extends BaseAdapter {
 
     @Override
     public Object getItem(int position) {
-        return this.receipts.get(position);
+        return this.receipts.getSummary(position);
     }
 
     @Override
     public int getCount() {
-        return this.receipts.size();
+        return this.receipts.getSummaryCount();
     }
     
     @Override
     public View getView(int position, View convertView, ViewGroup parent) {
-        Receipt r = this.receipts.get(position);
+        ReceiptSummary r = this.receipts.getSummary(position);
         if (convertView != null && convertView instanceof ReceiptItem) {
             // Reuse the view
             ReceiptItem item = (ReceiptItem) convertView;
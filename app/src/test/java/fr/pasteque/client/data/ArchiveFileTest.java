@@ -0,0 +1,112 @@
+package fr.pasteque.client.data;
+
+import fr.pasteque.client.Constant;
+import fr.pasteque.client.models.Cash;
+import fr.pasteque.client.models.Payment;
+import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.models.Ticket;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ArchiveFileTest {
+
+    private static final String FILENAME = Constant.BUILD_FOLDER + "archive.data";
+
+    private File file;
+    private List<Receipt> receipts;
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Before
+    public void setup() {
+        this.file = new File(FILENAME);
+        this.file.getParentFile().mkdirs();
+        this.file.delete();
+        this.receipts = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            Ticket t = new Ticket("t" + i, String.valueOf(i));
+            this.receipts.add(new Receipt(t, new ArrayList<Payment>(), null));
+        }
+    }
+
+    @Test
+    public void chunksTest() throws IOException {
+        ArchiveFile.write(this.file, new Cash("c1", 1, 3, 100, 200), this.receipts, 10);
+        assertTrue(ArchiveFile.isArchive(this.file));
+        ArchiveFile archive = ArchiveFile.open(this.file);
+        assertEquals("c1", archive.getCash().getId());
+        assertEquals(3, archive.getChunkCount());
+        assertEquals(25, archive.getUnsentReceiptCount());
+        assertEquals(10, archive.readChunk(0).size());
+        List<Receipt> last = archive.readChunk(2);
+        assertEquals(5, last.size());
+        assertEquals("24", last.get(4).getTicket().getTicketId());
+    }
+
+    @Test
+    public void markSentTest() throws IOException {
+        ArchiveFile.write(this.file, new Cash("c1", 1, 3, 100, 200), this.receipts, 10);
+        ArchiveFile.open(this.file).markSent(0);
+        ArchiveFile archive = ArchiveFile.open(this.file);
+        assertEquals(1, archive.getFirstUnsentChunk());
+        assertEquals(15, archive.getUnsentReceiptCount());
+    }
+
+    @Test
+    public void corruptedChunkTest() throws IOException {
+        ArchiveFile.write(this.file, new Cash("c1", 1, 3, 100, 200), this.receipts, 10);
+        RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+        raf.seek(this.file.length() - 10);
+        int b = raf.read();
+        raf.seek(this.file.length() - 10);
+        raf.write(b ^ 0xff);
+        raf.close();
+        ArchiveFile archive = ArchiveFile.open(this.file);
+        assertEquals(10, archive.readChunk(0).size());
+        try {
+            archive.readChunk(2);
+            fail("Corrupted chunk read");
+        } catch (StreamCorruptedException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void updateCashTest() throws IOException {
+        ArchiveFile.write(this.file, new Cash(1), this.receipts, 10);
+        ArchiveFile archive = ArchiveFile.open(this.file);
+        archive.markSent(0);
+        archive.updateCash(new Cash("server-id", 1, 4, 100, 200));
+        assertEquals("10", archive.readChunk(1).get(0).getTicket().getTicketId());
+        archive = ArchiveFile.open(this.file);
+        assertEquals("server-id", archive.getCash().getId());
+        assertEquals(1, archive.getFirstUnsentChunk());
+        assertEquals("20", archive.readChunk(2).get(0).getTicket().getTicketId());
+        assertFalse(new File(FILENAME + ".tmp").exists());
+    }
+
+    @Test
+    public void exportTest() throws IOException {
+        ArchiveFile.write(this.file, new Cash("c1", 1, 3, 100, 200), this.receipts, 10);
+        ArchiveFile archive = ArchiveFile.open(this.file);
+        archive.markSent(1);
+        StringWriter out = new StringWriter();
+        archive.exportJson(out);
+        String json = out.toString();
+        assertTrue(json.startsWith("[{"));
+        assertFalse(json.contains("\"ticketId\":\"19\""));
+        assertTrue(json.contains("\"ticketId\":\"20\""));
+    }
+}
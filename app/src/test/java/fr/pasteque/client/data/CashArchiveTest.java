@@ -0,0 +1,52 @@
+package fr.pasteque.client.data;
+
+import fr.pasteque.client.Constant;
+import fr.pasteque.client.data.DataSavable.AbstractDataTest;
+import fr.pasteque.client.data.DataSavable.CashData;
+import fr.pasteque.client.data.DataSavable.OutboxData;
+import fr.pasteque.client.data.DataSavable.ReceiptData;
+import fr.pasteque.client.models.Cash;
+import fr.pasteque.client.models.Payment;
+import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.models.Ticket;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CashArchiveTest extends AbstractDataTest {
+
+    /** Name of the archive of the cash below */
+    private static final String ARCHIVE = "1-100-200";
+
+    @Override
+    public String getTmpFilename() {
+        return "cash.json";
+    }
+
+    @Test
+    public void archiveUnsentTest() throws IOException {
+        replayContext();
+        File file = new File(Constant.BUILD_FOLDER, ARCHIVE);
+        file.delete();
+        Cash cash = new Cash("c1", 1, 3, 100, 200);
+        Data.Cash = new CashData();
+        Data.Cash.setCash(cash);
+        Data.Receipt = new ReceiptData();
+        for (int i = 0; i < 25; i++) {
+            Ticket t = new Ticket("t" + i, String.valueOf(i));
+            Data.Receipt.addReceipt(new Receipt(t, new ArrayList<Payment>(), null));
+        }
+        Data.Outbox = new OutboxData();
+        Data.Outbox.setSentReceipts(cash, 3);
+        assertTrue(CashArchive.archiveCurrent());
+        ArchiveFile archive = ArchiveFile.open(file);
+        // The outbox sent the first ones already
+        assertEquals(22, archive.getUnsentReceiptCount());
+        assertEquals("3", archive.readChunk(0).get(0).getTicket().getTicketId());
+    }
+}
@@ -0,0 +1,81 @@
+package fr.pasteque.client.data;
+
+import fr.pasteque.client.models.Customer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CustomerIndexTest {
+
+    private Customer jean;
+    private Customer helene;
+    private Customer jeanne;
+    private CustomerIndex index;
+
+    private static Customer customer(String id, String card, String firstName,
+            String lastName, String phone) {
+        return new Customer(id, firstName + " " + lastName, card, firstName, lastName,
+                null, null, null, null, null, null, null, phone, null, null,
+                0, 0, 0, null, null);
+    }
+
+    @Before
+    public void setup() {
+        this.jean = customer("c1", "1001", "Jean", "Dupont", "06 12 34 56 78");
+        this.helene = customer("c2", "1002", "Hélène", "DURAND", null);
+        this.jeanne = customer("c3", "1001", "Jeanne", "Martin", "01.23.45.67.89");
+        this.index = new CustomerIndex(Arrays.asList(this.jean, this.helene, this.jeanne));
+    }
+
+    @Test
+    public void findByCard() {
+        // The first one with the card
+        assertSame(this.jean, this.index.findByCard("1001"));
+        assertSame(this.helene, this.index.findByCard("1002"));
+        assertNull(this.index.findByCard("1003"));
+        assertNull(this.index.findByCard(null));
+    }
+
+    @Test
+    public void filterNames() {
+        assertEquals(Arrays.asList(this.jean, this.jeanne), this.index.filter("JEAN"));
+        assertEquals(Arrays.asList(this.helene), this.index.filter("durand"));
+        assertEquals(Arrays.asList(this.helene), this.index.filter("helene"));
+        assertEquals(Arrays.asList(this.jean), this.index.filter("jean dup"));
+        assertEquals(Arrays.asList(this.jean, this.helene), this.index.filter("du"));
+        assertTrue(this.index.filter("xyz").isEmpty());
+    }
+
+    @Test
+    public void filterPhone() {
+        assertEquals(Arrays.asList(this.jean), this.index.filter("0612"));
+        assertEquals(Arrays.asList(this.jeanne), this.index.filter("6789"));
+    }
+
+    @Test
+    public void filterPhoneSeparators() {
+        assertEquals(Arrays.asList(this.jean), this.index.filter("06 12"));
+        assertEquals(Arrays.asList(this.jean), this.index.filter(" 06.12.34 "));
+        assertEquals(Arrays.asList(this.jeanne), this.index.filter("67-89"));
+        assertNull(CustomerIndex.phoneDigits("jean 06"));
+        assertNull(CustomerIndex.phoneDigits(" - "));
+    }
+
+    @Test
+    public void addAfterBuild() {
+        Customer created = customer("c4", "1004", "Jean-Marc", "Petit", null);
+        this.index.add(created);
+        assertSame(created, this.index.findByCard("1004"));
+        List<Customer> found = this.index.filter("jean");
+        assertEquals(3, found.size());
+        assertSame(created, found.get(2));
+        assertEquals(4, this.index.size());
+    }
+}
@@ -0,0 +1,103 @@
+package fr.pasteque.client.data;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import fr.pasteque.client.models.Catalog;
+import fr.pasteque.client.models.Category;
+import fr.pasteque.client.models.Customer;
+import fr.pasteque.client.models.Payment;
+import fr.pasteque.client.models.PaymentMode;
+import fr.pasteque.client.models.Product;
+import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.models.Ticket;
+import fr.pasteque.client.models.TicketLine;
+import fr.pasteque.client.models.UnshareableTicket;
+import fr.pasteque.client.models.User;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class DataGsonTest {
+
+    /** Gson as configured before the hand-written adapters */
+    private final Gson reflective = new GsonBuilder()
+            .serializeNulls()
+            .disableHtmlEscaping()
+            .enableComplexMapKeySerialization()
+            .create();
+
+    private Receipt createReceipt() {
+        // No sync call on setCustomer
+        Ticket t = new UnshareableTicket("t1", "Table <1>");
+        Product p = new Product("p1", "Café", "3017620425035", 1.2, "t1", 0.1, false, true, 0.2, true);
+        Customer c = new Customer("c1", "Dupont", "card", "Jean", "Dupont", null, null, "75001",
+                "Paris", null, "FR", null, "0102030405", null, null, 10, 50, 2.5, "0", "note");
+        List<TicketLine> lines = t.getLines();
+        lines.add(new TicketLine(p, 2, null));
+        lines.add(new TicketLine(new Product("p2", "Eau", null, 1.5, "t1", 0.055, true, false, 0, false),
+                0.5, null, 1, 2, 0));
+        t.setCustomer(c);
+        List<Payment> payments = new ArrayList<>();
+        payments.add(new Payment(new PaymentMode(1, "cash", "Espèces", "Rendu", 0, false, null, true, 1),
+                5, 10));
+        return new Receipt(t, payments, new User("u1", "Caissier", null, "0"));
+    }
+
+    @Test
+    public void sameLayoutAsReflection() {
+        Receipt r = createReceipt();
+        assertEquals(this.reflective.toJson(r), DataGson.get().toJson(r));
+    }
+
+    @Test
+    public void roundTrip() {
+        Receipt r = createReceipt();
+        String json = DataGson.get().toJson(r);
+        Receipt read = DataGson.get().fromJson(json, Receipt.class);
+        assertNotSame(r, read);
+        assertEquals(this.reflective.toJson(r), this.reflective.toJson(read));
+        // Read what reflection wrote
+        read = DataGson.get().fromJson(this.reflective.toJson(r), Receipt.class);
+        assertEquals(json, DataGson.get().toJson(read));
+    }
+
+    @Test
+    public void productSerialVersionUnchanged() {
+        // Legacy catalogs hold Java serialized products, the adapter must not break them
+        assertEquals(-905664139777495404L,
+                ObjectStreamClass.lookup(Product.class).getSerialVersionUID());
+    }
+
+    @Test
+    public void mappedProductRoundTrip() throws Exception {
+        Catalog catalog = new Catalog();
+        Category root = new Category("1", "Boissons", false);
+        catalog.addRootCategory(root);
+        Product p = new Product("p1", "Café", "3017620425035", 1.2, "t1", 0.1, false, true, 0.2, true);
+        catalog.addProduct(root, p);
+        File file = File.createTempFile("catalog", ".bin");
+        try {
+            CatalogFile.write(catalog, file);
+            Product mapped = CatalogFile.open(file).getProduct("p1");
+            assertNotSame(Product.class, mapped.getClass());
+            String json = DataGson.get().toJson(new TicketLine(mapped, 2, null));
+            assertEquals(DataGson.get().toJson(new TicketLine(p, 2, null)), json);
+            TicketLine read = DataGson.get().fromJson(json, TicketLine.class);
+            assertEquals(Product.class, read.getProduct().getClass());
+            assertEquals("p1", read.getProduct().getId());
+            assertEquals("Café", read.getProduct().getLabel());
+            assertEquals(1.2, read.getProduct().getPrice(null), 0);
+            assertEquals("t1", read.getProduct().getTaxId());
+            assertEquals(0.2, read.getProduct().getDiscountRate(), 0);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package fr.pasteque.client.data;
+
+import android.content.Context;
+import fr.pasteque.client.data.DataSavable.interfaces.DataSavable;
+import fr.pasteque.client.utils.exception.DataCorruptedException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOError;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DataLoaderTest {
+
+    private DataLoader loader;
+    private List<String> loaded;
+
+    /** Store recording its load, failing if asked */
+    private class TestData implements DataSavable {
+        final String name;
+        boolean fail;
+        Thread loadedBy;
+
+        TestData(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void save(Context ctx) throws IOError {
+            // Waits for the store, as stores do
+            loader.await(this);
+        }
+
+        @Override
+        public void load(Context ctx) throws DataCorruptedException, IOError {
+            this.loadedBy = Thread.currentThread();
+            if (this.fail) {
+                throw new IOError(null);
+            }
+            loaded.add(this.name);
+        }
+
+        @Override
+        public void export(String dir) {
+        }
+
+        @Override
+        public boolean onLoadingFailed(DataCorruptedException e) {
+            return true;
+        }
+
+        @Override
+        public boolean onLoadingError(IOError e) {
+            return true;
+        }
+    }
+
+    @Before
+    public void setup() {
+        this.loader = new DataLoader(null);
+        this.loaded = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @Test(timeout = 5000)
+    public void startTest() {
+        TestData user = new TestData("user");
+        TestData catalog = new TestData("catalog");
+        this.loader.add(user, false);
+        this.loader.add(catalog, false, user);
+        assertTrue(this.loader.start());
+        assertEquals(2, this.loaded.size());
+        // Dependencies first
+        assertEquals("user", this.loaded.get(0));
+        assertEquals(2, this.loader.getTimings().size());
+    }
+
+    @Test(timeout = 5000)
+    public void lazyAwaitTest() {
+        TestData customers = new TestData("customers");
+        this.loader.add(customers, true);
+        // Not started, loaded right away by the waiting thread
+        this.loader.await(customers);
+        assertSame(Thread.currentThread(), customers.loadedBy);
+        this.loader.await(customers);
+        assertEquals(1, this.loaded.size());
+    }
+
+    @Test(timeout = 5000)
+    public void saveWhileLoadingTest() {
+        final TestData customers = new TestData("customers");
+        TestData session = new TestData("session") {
+            @Override
+            public void load(Context ctx) throws DataCorruptedException {
+                super.load(ctx);
+                // Saving itself does not wait for its own load
+                this.save(ctx);
+                // Waiting for another store still loads it
+                loader.await(customers);
+                this.save(ctx);
+            }
+        };
+        this.loader.add(customers, true);
+        this.loader.add(session, true);
+        this.loader.await(session);
+        assertEquals(2, this.loaded.size());
+        assertEquals("customers", this.loaded.get(1));
+    }
+
+    @Test(timeout = 5000)
+    public void failureTest() {
+        TestData eager = new TestData("eager");
+        eager.fail = true;
+        TestData lazy = new TestData("lazy");
+        lazy.fail = true;
+        this.loader.add(eager, false);
+        this.loader.add(lazy, true);
+        assertFalse(this.loader.start());
+        this.loader.awaitAll();
+        assertFalse(this.loader.lazyLoadingSuccessfull());
+    }
+}
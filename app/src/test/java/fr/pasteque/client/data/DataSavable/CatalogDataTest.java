@@ -1,13 +1,24 @@
 package fr.pasteque.client.data.DataSavable;
 
-import fr.pasteque.client.Constant;
+import fr.pasteque.client.data.MappedCatalog;
 import fr.pasteque.client.models.Catalog;
+import fr.pasteque.client.models.Category;
+import fr.pasteque.client.models.Product;
 import fr.pasteque.client.utils.exception.DataCorruptedException;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * Created by nsvir on 12/10/15.
@@ -17,15 +28,91 @@ public class CatalogDataTest extends AbstractDataTest {
 
     @Override
     public String getTmpFilename() {
-        return "catalog.json";
+        return "catalog.bin";
+    }
+
+    private Catalog createCatalog() {
+        Catalog catalog = new Catalog();
+        Category root = new Category("1", "Boissons", false);
+        Category sub = new Category("2", "Cafés", true);
+        root.addSubcategory(sub);
+        catalog.addRootCategory(root);
+        catalog.addProduct(root, new Product("p1", "Eau", "3017620422003", 1.5, "t1", 0.055, false, false, 0, false));
+        catalog.addProduct(sub, new Product("p2", "Expresso", "3017620425035", 1.2, "t1", 0.1, false, true, 0.2, true));
+        catalog.addProduct(new Product("p3", "Hors catalogue", null, 3, "t2", 0.2, true, false, 0, false));
+        catalog.addProduct(root, new Product("p4", "Soda", "036000291452", 2, "t1", 0.055, false, false, 0, false));
+        return catalog;
     }
 
     @Test
     public void save() throws FileNotFoundException, DataCorruptedException {
         replayContext();
         CatalogData catalogData = new CatalogData();
-        catalogData.setFile(createCustomFile(Constant.JSON_FOLDER + "catalog.json"));
+        catalogData.setFile(createDefaultTmpFile());
+        catalogData.setCatalog(createCatalog());
+        catalogData.save(fakeContext);
+        catalogData.load(fakeContext);
+        Catalog catalog = catalogData.catalog(fakeContext);
+        assertTrue(catalog instanceof MappedCatalog);
+        assertEquals(4, catalog.getProductCount());
+        assertEquals(1, catalog.getRootCategories().size());
+        Category root = catalog.getRootCategories().get(0);
+        assertEquals("Boissons", root.getLabel());
+        assertEquals(1, root.getSubcategories().size());
+        assertEquals("p1", catalog.getProducts(root).get(0).getId());
+        Category sub = root.getSubcategories().get(0);
+        Product expresso = catalog.getProducts(sub).get(0);
+        assertEquals("Expresso", expresso.getLabel());
+        assertEquals(1.2, expresso.getPrice(null));
+        assertTrue(expresso.hasImage());
+        assertTrue(expresso.isDiscountRateEnabled());
+        assertEquals(expresso, catalog.getProduct("p2"));
+        assertEquals(expresso, catalog.getProductByBarcode("3017620425035"));
+        assertEquals(2, catalog.getProductLikeBarcode("301762042").size());
+        assertTrue(catalog.getProduct("p3").isScaled());
+        assertNull(catalog.getProduct("p5"));
+        assertNull(catalog.getProductByBarcode("42"));
+        // UPC-A scanned as EAN-13
+        Product soda = catalog.getProduct("p4");
+        assertEquals(soda, catalog.getProductByBarcode("0036000291452"));
+        assertNull(catalog.getProductByBarcode("0036000291453"));
+        Iterator<Product> like = catalog.productsLikeBarcode("30176", 1);
+        assertTrue(like.hasNext());
+        assertEquals("p1", like.next().getId());
+        assertFalse(like.hasNext());
+        assertEquals(1, catalog.searchProducts("expr", 5).size());
+        assertEquals(expresso, catalog.searchProducts("EXPRÉSSO", 5).get(0));
+        // Not in a category
+        assertTrue(catalog.searchProducts("hors", 5).isEmpty());
+    }
+
+    @Test
+    public void serializeMappedProduct() throws Exception {
+        replayContext();
+        CatalogData catalogData = new CatalogData();
+        catalogData.setFile(createDefaultTmpFile());
+        catalogData.setCatalog(createCatalog());
+        catalogData.save(fakeContext);
         catalogData.load(fakeContext);
+        Catalog catalog = catalogData.catalog(fakeContext);
+        Product expresso = catalog.getProduct("p2");
+        assertSame(expresso, catalog.getProductByBarcode("3017620425035"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(expresso);
+        out.close();
+        Product copy = (Product) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(Product.class, copy.getClass());
+        assertEquals(expresso, copy);
+        assertEquals("Expresso", copy.getLabel());
+        assertEquals("3017620425035", copy.getBarcode());
+        assertEquals(1.2, copy.getPrice(null));
+        assertEquals("t1", copy.getTaxId());
+        assertEquals(0.1, copy.getTaxRate());
+        assertEquals(0.2, copy.getDiscountRate());
+        assertTrue(copy.hasImage());
+        assertTrue(copy.isDiscountRateEnabled());
     }
 
     @Test
@@ -42,11 +129,13 @@ public class CatalogDataTest extends AbstractDataTest {
         replayContext();
         CatalogData catalogData = new CatalogData();
         catalogData.setFile(createDefaultTmpFile());
+        catalogData.setCatalog(new Catalog());
+        catalogData.save(fakeContext);
         try {
             catalogData.load(fakeContext);
         } catch (DataCorruptedException e) {
             throw e.Exception;
         }
-        System.out.println(catalogData.toString());
+        assertEquals(0, catalogData.catalog(fakeContext).getProductCount());
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,95 @@
+package fr.pasteque.client.data.DataSavable;
+
+import fr.pasteque.client.models.Customer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CustomerDataTest extends AbstractDataTest {
+
+    @Override
+    public String getTmpFilename() {
+        return "customers.json";
+    }
+
+    private static Customer customer(String id, String lastName) {
+        return new Customer(id, lastName, null, "Jean", lastName, null, null, null,
+                null, null, null, null, null, null, null, 0, 0, 0, "0", null);
+    }
+
+    private static List<String> ids(List<Customer> customers) {
+        List<String> ids = new ArrayList<>();
+        for (Customer c : customers) {
+            ids.add(c.getId());
+        }
+        return ids;
+    }
+
+    @Test
+    public void patchCustomersTest() {
+        replayContext();
+        CustomerData data = new CustomerData();
+        data.setCustomers(new ArrayList<>(Arrays.asList(customer("c1", "Dupont"),
+                customer("c2", "Durand"))));
+        Customer created = customer("local", "Martin");
+        data.addCreatedCustomer(created);
+        Customer c2 = customer("c2", "Leroy");
+        data.patchCustomers(Arrays.asList(c2, customer("c3", "Petit")),
+                Arrays.asList("c1", "unknown"));
+        assertEquals(Arrays.asList("c2", "local", "c3"), ids(data.getCustomers()));
+        assertSame(c2, data.getCustomers().get(0));
+        // Created ones are kept and the index follows
+        assertEquals(Arrays.asList(created), data.getCreatedCustomers());
+        assertEquals(Arrays.asList("c2"), ids(data.search("leroy")));
+        assertEquals(0, data.search("dupont").size());
+    }
+
+    @Test
+    public void changedIdsTest() {
+        replayContext();
+        CustomerData data = new CustomerData();
+        data.setCustomers(new ArrayList<>(Arrays.asList(customer("c1", "Dupont"),
+                customer("c2", "Durand"))));
+        assertEquals(new HashSet<>(Arrays.asList("c1", "c2")), data.getChangedIds());
+        data.save(fakeContext);
+        assertTrue(data.getChangedIds().isEmpty());
+        data.patchCustomers(Arrays.asList(customer("c3", "Petit")), Arrays.asList("c1"));
+        data.markChanged(data.getCustomers().get(0));
+        assertEquals(new HashSet<>(Arrays.asList("c1", "c2", "c3")), data.getChangedIds());
+    }
+
+    @Test
+    public void resolveCreatedCustomersTest() {
+        replayContext();
+        CustomerData data = new CustomerData();
+        data.setCustomers(new ArrayList<>(Arrays.asList(customer("c1", "Dupont"))));
+        data.addCreatedCustomer(customer("local1", "Martin"));
+        data.addCreatedCustomer(customer("local2", "Petit"));
+        Map<String, String> resolved = new HashMap<>();
+        resolved.put("local1", "15");
+        data.resolveCreatedCustomers(resolved);
+        assertEquals(Arrays.asList("c1", "15", "local2"), ids(data.getCustomers()));
+        assertEquals(Arrays.asList("local2"), ids(data.getCreatedCustomers()));
+        assertEquals("15", data.getResolvedIds().get("local1"));
+        // The row of the local id is removed, the one of the server id added
+        assertTrue(data.getChangedIds().containsAll(Arrays.asList("local1", "15")));
+    }
+
+    @Test
+    public void emptyPatchTest() {
+        replayContext();
+        CustomerData data = new CustomerData();
+        data.setCustomers(new ArrayList<>(Arrays.asList(customer("c1", "Dupont"))));
+        data.patchCustomers(new ArrayList<Customer>(), new ArrayList<String>());
+        assertEquals(Arrays.asList("c1"), ids(data.getCustomers()));
+    }
+}
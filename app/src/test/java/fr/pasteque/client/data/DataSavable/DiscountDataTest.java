@@ -19,6 +19,7 @@
 package fr.pasteque.client.data.DataSavable;
 
 import fr.pasteque.client.models.Discount;
+import fr.pasteque.client.utils.exception.NotFoundException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -76,6 +77,53 @@ public class DiscountDataTest extends AbstractDataTest {
 
 
 
+    @Test
+    public void findFromBarcodeTest() throws Exception {
+        Discount d1 = new Discount("d1", 0.10, "2015-06-01", "2015-06-30", "D001", 2);
+        Discount d2 = new Discount("d2", 0.20, "2015-07-01", "2015-07-31", "D002", 2);
+        ArrayList<Discount> collection = new ArrayList<Discount>();
+        collection.add(d1);
+        collection.add(d2);
+        discountData.setCollection(collection);
+        assertSame(d2, discountData.findFromBarcode("D002"));
+        Discount d3 = new Discount("d3", 0.30, "2015-07-01", "2015-07-31", "D003", 2);
+        discountData.addDiscount(d3);
+        assertSame(d3, discountData.findFromBarcode("D003"));
+        try {
+            discountData.findFromBarcode("D004");
+            fail("D004 found");
+        } catch (NotFoundException expected) {
+        }
+    }
+
+    @Test
+    public void getADiscountTest() throws Exception {
+        Discount june = new Discount("d1", 0.10, "2015-06-01", "2015-06-30", "", 2);
+        Discount summer = new Discount("d2", 0.20, "2015-06-15", "2015-08-31", "", 2);
+        Discount july = new Discount("d3", 0.30, "2015-07-01", "2015-07-31", "", 2);
+        ArrayList<Discount> collection = new ArrayList<Discount>();
+        collection.add(june);
+        collection.add(summer);
+        collection.add(july);
+        discountData.setCollection(collection);
+        assertNull(discountData.getADiscount(time("2015-05-31")));
+        // Not valid on the start and end dates themselves
+        assertNull(discountData.getADiscount(time("2015-06-01")));
+        assertSame(june, discountData.getADiscount(time("2015-06-01") + 1));
+        assertSame(june, discountData.getADiscount(time("2015-06-20")));
+        assertSame(summer, discountData.getADiscount(time("2015-06-30")));
+        // The first listed among valid ones
+        assertSame(summer, discountData.getADiscount(time("2015-07-10")));
+        assertSame(summer, discountData.getADiscount(time("2015-08-10")));
+        assertNull(discountData.getADiscount(time("2015-09-01")));
+        discountData.setCollection(null);
+        assertNull(discountData.getADiscount(time("2015-06-20")));
+    }
+
+    private static long time(String date) throws ParseException {
+        return Discount.convertDateFromString(date).getTime();
+    }
+
     @Test
     public void saveTest() throws Exception {
         discountData.setFile(createDefaultTmpFile());
@@ -0,0 +1,56 @@
+package fr.pasteque.client.data.DataSavable;
+
+import fr.pasteque.client.utils.exception.DataCorruptedException;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ImageCacheDataTest extends AbstractDataTest {
+
+    @Override
+    public String getTmpFilename() {
+        return "images.json";
+    }
+
+    @Test
+    public void saveTest() throws DataCorruptedException {
+        replayContext();
+        ImageCacheData cache = new ImageCacheData();
+        cache.setFile(createDefaultTmpFile());
+        cache.put("prd_1", new ImageCacheData.Entry("abc", "\"v1\"", null));
+        cache.put("cat_2", new ImageCacheData.Entry("def", null,
+                "Wed, 21 Oct 2015 07:28:00 GMT"));
+        cache.save(fakeContext);
+        cache.remove("prd_1");
+        cache.load(fakeContext);
+        assertEquals(2, cache.size());
+        ImageCacheData.Entry e = cache.get("prd_1");
+        assertEquals("abc", e.getHash());
+        assertEquals("\"v1\"", e.getEtag());
+        assertNull(e.getLastModified());
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT",
+                cache.get("cat_2").getLastModified());
+    }
+
+    @Test
+    public void retainTest() {
+        replayContext();
+        ImageCacheData cache = new ImageCacheData();
+        cache.put("prd_1", new ImageCacheData.Entry("abc", null, null));
+        cache.put("prd_2", new ImageCacheData.Entry("abc", null, null));
+        cache.put("cat_1", new ImageCacheData.Entry("def", null, null));
+        cache.put("pm_1", new ImageCacheData.Entry("ghi", null, null));
+        cache.retain(Arrays.asList("prd_1", "cat_1", "pm_1"));
+        assertNull(cache.get("prd_2"));
+        // Same content is stored once
+        assertEquals(3, cache.getHashes().size());
+        cache.removeAll("prd_");
+        assertNull(cache.get("prd_1"));
+        assertEquals(2, cache.size());
+        assertTrue(cache.getHashes().contains("def"));
+    }
+}
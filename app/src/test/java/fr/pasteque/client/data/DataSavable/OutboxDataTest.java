@@ -0,0 +1,42 @@
+package fr.pasteque.client.data.DataSavable;
+
+import fr.pasteque.client.models.Cash;
+import fr.pasteque.client.utils.exception.DataCorruptedException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class OutboxDataTest extends AbstractDataTest {
+
+    @Override
+    public String getTmpFilename() {
+        return "outbox.json";
+    }
+
+    @Test
+    public void saveTest() throws DataCorruptedException {
+        replayContext();
+        Cash cash = new Cash(null, 1, 0, 1450000000L, -1);
+        OutboxData outbox = new OutboxData();
+        outbox.setFile(createDefaultTmpFile());
+        outbox.setSentReceipts(cash, 12);
+        outbox.save(fakeContext);
+        outbox.clear();
+        assertEquals(0, outbox.getSentReceipts(cash));
+        outbox.load(fakeContext);
+        assertEquals(12, outbox.getSentReceipts(cash));
+    }
+
+    @Test
+    public void otherCashTest() {
+        replayContext();
+        Cash cash = new Cash(null, 1, 0, 1450000000L, -1);
+        OutboxData outbox = new OutboxData();
+        outbox.setSentReceipts(cash, 3);
+        // Same cash once registered
+        assertEquals(3, outbox.getSentReceipts(new Cash("5", 1, 1, 1450000000L, -1)));
+        // Next cash
+        assertEquals(0, outbox.getSentReceipts(new Cash(null, 1, 0, 1450090000L, -1)));
+        assertEquals(0, outbox.getSentReceipts(null));
+    }
+}
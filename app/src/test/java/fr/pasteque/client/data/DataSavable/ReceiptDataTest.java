@@ -0,0 +1,51 @@
+package fr.pasteque.client.data.DataSavable;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import fr.pasteque.client.Constant;
+import fr.pasteque.client.models.Payment;
+import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.models.Ticket;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ReceiptDataTest extends AbstractDataTest {
+
+    @Override
+    public String getTmpFilename() {
+        return "tickets.json";
+    }
+
+    private static Receipt receipt(String id) {
+        return new Receipt(new Ticket("t" + id, id), new ArrayList<Payment>(), null);
+    }
+
+    private JsonArray readReceipts() throws IOException {
+        String content = createDefaultTmpFile().read();
+        return new JsonParser().parse(content).getAsJsonArray().get(0).getAsJsonArray();
+    }
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Test
+    public void snapshotBeforeCompactionTest() throws IOException {
+        replayContext();
+        File journal = new File(Constant.BUILD_FOLDER, "tickets.journal");
+        journal.delete();
+        ReceiptData data = new ReceiptData();
+        data.setFile(createDefaultTmpFile());
+        data.appendReceipt(this.fakeContext, receipt("1"));
+        Object snapshot = data.takeSnapshot();
+        data.appendReceipt(this.fakeContext, receipt("2"));
+        data.save(this.fakeContext);
+        assertFalse(journal.exists());
+        // Taken before the compaction, the journal does not have "2" anymore
+        data.saveSnapshot(this.fakeContext, snapshot);
+        assertEquals(2, readReceipts().size());
+    }
+}
@@ -0,0 +1,48 @@
+package fr.pasteque.client.data.DataSavable;
+
+import fr.pasteque.client.models.Stock;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class StockDataTest extends AbstractDataTest {
+
+    @Override
+    public String getTmpFilename() {
+        return "stock.data";
+    }
+
+    @Test
+    public void patchStocksTest() {
+        replayContext();
+        StockData data = new StockData();
+        Map<String, Stock> stocks = new HashMap<>();
+        stocks.put("p1", new Stock("p1", 1.0, null, null));
+        stocks.put("p2", new Stock("p2", 2.0, null, null));
+        data.setStocks(stocks);
+        Map<String, Stock> updated = new HashMap<>();
+        Stock p2 = new Stock("p2", 5.0, null, null);
+        updated.put("p2", p2);
+        updated.put("p3", new Stock("p3", 3.0, null, null));
+        data.patchStocks(updated, Arrays.asList("p1"));
+        assertEquals(2, data.getStocks().size());
+        assertFalse(data.getStocks().containsKey("p1"));
+        assertSame(p2, data.getStocks().get("p2"));
+    }
+
+    @Test
+    public void emptyPatchTest() {
+        replayContext();
+        StockData data = new StockData();
+        // Not loaded, the delta starts a new map
+        data.patchStocks(new HashMap<String, Stock>(), new ArrayList<String>());
+        assertEquals(0, data.getStocks().size());
+    }
+}
@@ -0,0 +1,39 @@
+package fr.pasteque.client.data.DataSavable;
+
+import fr.pasteque.client.utils.exception.DataCorruptedException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SyncMarkDataTest extends AbstractDataTest {
+
+    @Override
+    public String getTmpFilename() {
+        return "syncmarks.json";
+    }
+
+    @Test
+    public void saveTest() throws DataCorruptedException {
+        replayContext();
+        SyncMarkData marks = new SyncMarkData();
+        marks.setFile(createDefaultTmpFile());
+        marks.setMark(SyncMarkData.PRODUCTS, 1450000000L);
+        marks.setMark(SyncMarkData.STOCKS, 12L);
+        marks.save(fakeContext);
+        marks.clear();
+        assertEquals(0, marks.getMark(SyncMarkData.PRODUCTS));
+        marks.load(fakeContext);
+        assertEquals(1450000000L, marks.getMark(SyncMarkData.PRODUCTS));
+        assertEquals(12L, marks.getMark(SyncMarkData.STOCKS));
+        assertEquals(0, marks.getMark(SyncMarkData.CUSTOMERS));
+    }
+
+    @Test
+    public void resetTest() {
+        replayContext();
+        SyncMarkData marks = new SyncMarkData();
+        marks.setMark(SyncMarkData.CUSTOMERS, 5L);
+        marks.resetMark(SyncMarkData.CUSTOMERS);
+        assertEquals(0, marks.getMark(SyncMarkData.CUSTOMERS));
+    }
+}
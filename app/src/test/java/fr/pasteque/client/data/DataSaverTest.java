@@ -0,0 +1,158 @@
+package fr.pasteque.client.data;
+
+import android.content.Context;
+import fr.pasteque.client.data.DataSavable.interfaces.DataSavable;
+import fr.pasteque.client.utils.exception.DataCorruptedException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOError;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DataSaverTest {
+
+    private DataSaver saver;
+    private CountingData data;
+
+    private static class CountingData implements DataSavable {
+        int saves;
+        boolean fail;
+
+        @Override
+        public synchronized void save(Context ctx) throws IOError {
+            if (this.fail) {
+                throw new IOError(null);
+            }
+            this.saves++;
+        }
+
+        @Override
+        public void load(Context ctx) throws DataCorruptedException, IOError {
+        }
+
+        @Override
+        public void export(String dir) {
+        }
+
+        @Override
+        public boolean onLoadingFailed(DataCorruptedException e) {
+            return false;
+        }
+
+        @Override
+        public boolean onLoadingError(IOError e) {
+            return false;
+        }
+    }
+
+    /** Store whose state is a counter, written as snapshots */
+    private static class SnapshotData extends CountingData
+            implements DataSaver.SnapshotSavable {
+        int state;
+        int snapshots;
+        final List<Object> written = new ArrayList<>();
+
+        @Override
+        public synchronized Object takeSnapshot() {
+            this.snapshots++;
+            return this.state;
+        }
+
+        @Override
+        public synchronized void saveSnapshot(Context ctx, Object snapshot) throws IOError {
+            if (this.fail) {
+                throw new IOError(null);
+            }
+            this.written.add(snapshot);
+        }
+    }
+
+    @Before
+    public void setup() {
+        this.saver = new DataSaver();
+        this.data = new CountingData();
+    }
+
+    @Test
+    public void coalesceTest() throws InterruptedException {
+        this.saver.setDelay(100);
+        for (int i = 0; i < 50; i++) {
+            this.saver.saveLater(null, this.data);
+        }
+        Thread.sleep(500);
+        assertEquals(1, this.data.saves);
+        assertFalse(this.saver.isDirty(this.data));
+    }
+
+    @Test
+    public void flushTest() {
+        this.saver.setDelay(60000);
+        this.saver.saveLater(null, this.data);
+        this.saver.saveLater(null, this.data);
+        assertTrue(this.saver.isDirty(this.data));
+        this.saver.flush();
+        assertEquals(1, this.data.saves);
+        assertFalse(this.saver.isDirty(this.data));
+        this.saver.flush();
+        assertEquals(1, this.saver.getWriteCount());
+    }
+
+    @Test
+    public void failedSaveTest() {
+        this.saver.setDelay(60000);
+        this.data.fail = true;
+        this.saver.saveLater(null, this.data);
+        this.saver.flush();
+        assertTrue(this.saver.isDirty(this.data));
+        this.data.fail = false;
+        this.saver.flush();
+        assertEquals(1, this.data.saves);
+    }
+
+    @Test
+    public void snapshotTest() {
+        this.saver.setDelay(60000);
+        SnapshotData data = new SnapshotData();
+        data.state = 1;
+        this.saver.saveLater(null, data);
+        data.state = 2;
+        this.saver.saveLater(null, data);
+        // Nothing is serialized before the write
+        assertEquals(0, data.snapshots);
+        data.state = 3;
+        this.saver.flush();
+        assertEquals(1, data.snapshots);
+        assertEquals(1, data.written.size());
+        assertEquals(3, data.written.get(0));
+        assertEquals(0, data.saves);
+    }
+
+    @Test
+    public void errorListenerTest() {
+        this.saver.setDelay(60000);
+        final List<DataSavable> failed = new ArrayList<>();
+        this.saver.setErrorListener(new DataSaver.ErrorListener() {
+            @Override
+            public void onSaveFailed(DataSavable data, IOError e) {
+                failed.add(data);
+            }
+        });
+        SnapshotData data = new SnapshotData();
+        data.fail = true;
+        data.state = 1;
+        this.saver.saveLater(null, data);
+        this.saver.flush();
+        assertEquals(1, failed.size());
+        assertTrue(this.saver.isDirty(data));
+        // Written on next flush, with the state of then
+        data.fail = false;
+        data.state = 2;
+        this.saver.flush();
+        assertEquals(2, data.written.get(0));
+    }
+}
@@ -0,0 +1,76 @@
+package fr.pasteque.client.data;
+
+import fr.pasteque.client.models.Customer;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocalDatabaseTest {
+
+    private static Customer customer(String id, String lastName) {
+        return new Customer(id, lastName, null, "Jean", lastName, null, null, null,
+                null, null, null, null, null, null, null, 0, 0, 0, "0", null);
+    }
+
+    private static Map<String, String> map(String... entries) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < entries.length; i += 2) {
+            map.put(entries[i], entries[i + 1]);
+        }
+        return map;
+    }
+
+    @Test
+    public void allRowsTest() {
+        Customer listed = customer("c1", "Dupont");
+        Customer both = customer("local1", "Martin");
+        Customer createdOnly = customer("local2", "Petit");
+        Map<String, LocalDatabase.CustomerRow> rows = LocalDatabase.customerRows(
+                Arrays.asList(listed, both), Arrays.asList(both, createdOnly), null);
+        // Listed ones first
+        assertEquals(Arrays.asList("c1", "local1", "local2"), new ArrayList<>(rows.keySet()));
+        assertTrue(rows.get("c1").listed);
+        assertFalse(rows.get("c1").created);
+        assertTrue(rows.get("local1").listed);
+        assertTrue(rows.get("local1").created);
+        assertFalse(rows.get("local2").listed);
+        assertTrue(rows.get("local2").created);
+        assertTrue(rows.get("c1").json.contains("Dupont"));
+    }
+
+    @Test
+    public void changedRowsTest() {
+        List<Customer> customers = Arrays.asList(customer("c1", "Dupont"),
+                customer("c2", "Durand"), customer("local1", "Martin"));
+        List<Customer> created = Arrays.asList(customers.get(2));
+        // c3 was removed, it has no row to write
+        Map<String, LocalDatabase.CustomerRow> rows = LocalDatabase.customerRows(
+                customers, created, new HashSet<>(Arrays.asList("c2", "local1", "c3")));
+        assertEquals(Arrays.asList("c2", "local1"), new ArrayList<>(rows.keySet()));
+        assertTrue(rows.get("local1").created);
+        assertTrue(LocalDatabase.customerRows(customers, created,
+                Collections.<String>emptySet()).isEmpty());
+    }
+
+    @Test
+    public void resolvedIdsTest() {
+        Map<String, String> stored = map("local1", "15", "local2", "16");
+        Map<String, String> resolved = map("local2", "17", "local3", "18");
+        assertEquals(map("local2", "17", "local3", "18"),
+                LocalDatabase.changedResolvedIds(stored, resolved));
+        assertEquals(new HashSet<>(Arrays.asList("local1")),
+                LocalDatabase.removedResolvedIds(stored, resolved));
+        assertTrue(LocalDatabase.changedResolvedIds(stored, stored).isEmpty());
+        assertTrue(LocalDatabase.removedResolvedIds(stored, stored).isEmpty());
+    }
+}
@@ -0,0 +1,127 @@
+package fr.pasteque.client.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProductIndexTest {
+
+    private ProductIndex index;
+
+    @Before
+    public void setup() {
+        this.index = new ProductIndex();
+        this.index.add("p1", "Café crème");
+        this.index.add("p2", "Crêpe au chocolat");
+        this.index.add("p3", "Chocolat chaud");
+        this.index.add("p4", "Bœuf bourguignon");
+        this.index.add("p5", "Eau gazeuse 50cl");
+    }
+
+    @Test
+    public void tokenize() {
+        assertEquals(Arrays.asList("creme", "brulee", "a", "l", "orange"),
+                ProductIndex.tokenize("Crème BRÛLÉE à l'orange"));
+        assertEquals(Arrays.asList("boeuf", "50cl"),
+                ProductIndex.tokenize("  Bœuf - 50cl "));
+        assertTrue(ProductIndex.tokenize(null).isEmpty());
+    }
+
+    @Test
+    public void searchPrefix() {
+        assertEquals(Arrays.asList("p1"), this.index.search("caf", 10));
+        assertEquals(Arrays.asList("p1"), this.index.search("CAFE", 10));
+        assertEquals(Arrays.asList("p4"), this.index.search("boeuf", 10));
+        assertEquals(Arrays.asList("p5"), this.index.search("gaz 50", 10));
+        assertTrue(this.index.search("the", 10).isEmpty());
+        assertTrue(this.index.search(" - ", 10).isEmpty());
+    }
+
+    @Test
+    public void everyTokenMustMatch() {
+        assertEquals(Arrays.asList("p3"), this.index.search("chaud choc", 10));
+        assertTrue(this.index.search("chaud creme", 10).isEmpty());
+    }
+
+    @Test
+    public void rankByMatchThenSales() {
+        // Label starting with the query first
+        assertEquals(Arrays.asList("p3", "p2"), this.index.search("choc", 10));
+        this.index.add("p6", "Gâteau chocolat");
+        this.index.setSales("p6", 12);
+        assertEquals(Arrays.asList("p3", "p6", "p2"), this.index.search("choc", 10));
+        Map<String, Integer> sales = new HashMap<>();
+        sales.put("p2", 3);
+        this.index.setSales(sales);
+        assertEquals(Arrays.asList("p3", "p2", "p6"), this.index.search("choc", 10));
+        assertEquals(Arrays.asList("p3"), this.index.search("choc", 1));
+    }
+
+    @Test
+    public void bestTokenOfLabel() {
+        this.index.add("p6", "Pain chaud");
+        // "chaud" sorts before "chocolat" but the label starts with the latter
+        assertEquals(Arrays.asList("p3", "p2", "p6"), this.index.search("ch", 10));
+    }
+
+    @Test
+    public void exactBeforePrefix() {
+        this.index.add("p7", "Thé noir");
+        this.index.add("p8", "Théière");
+        assertEquals(Arrays.asList("p7", "p8"), this.index.search("the", 10));
+    }
+
+    @Test
+    public void addAfterSearch() {
+        assertTrue(this.index.search("tarte", 10).isEmpty());
+        this.index.add("p9", "Tarte aux pommes");
+        this.index.add("p1", "Tarte ignored");
+        assertEquals(Arrays.asList("p9"), this.index.search("tarte", 10));
+        assertEquals(6, this.index.size());
+    }
+
+    @Test
+    public void writeRead() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        this.index.write(new DataOutputStream(bytes));
+        ProductIndex read = ProductIndex.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(5, read.size());
+        assertEquals(Arrays.asList("p3", "p2"), read.search("choc", 10));
+        read.add("p6", "Chocolat blanc");
+        assertEquals(3, read.search("chocolat", 10).size());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void readInvalid() throws IOException {
+        ProductIndex.read(new DataInputStream(
+                new ByteArrayInputStream(new byte[]{1, 2, 3, 4})));
+    }
+
+    @Test(timeout = 10000)
+    public void searchLargeCatalog() {
+        ProductIndex large = new ProductIndex();
+        for (int i = 0; i < 20000; i++) {
+            large.add("p" + i, "Produit " + i + " taille " + (i % 7));
+        }
+        assertEquals(20, large.search("prod", 20).size());
+        List<String> result = large.search("produit 12", 20);
+        assertEquals("p12", result.get(0));
+        // Only the tokens starting with the query: 1234 and 12340 to 12349
+        assertEquals(Arrays.asList("p1234"), large.search("1234 taille", 1));
+        assertTrue(large.getScannedTokens() < 100);
+    }
+}
@@ -0,0 +1,38 @@
+package fr.pasteque.client.models;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReceiptSummaryTest {
+
+    private Receipt createReceipt(String number) {
+        Ticket t = new UnshareableTicket("t" + number, number);
+        t.getLines().add(new TicketLine(new Product("p1", "Café", null, 1.2, "t1", 0,
+                false, false, 0, false), 2, null));
+        t.getLines().add(new TicketLine(new Product("p2", "Eau", null, 1.5, "t1", 0,
+                false, false, 0, false), 1, null));
+        return new Receipt(t, new ArrayList<Payment>(), new User("u1", "Caissier", null, "0"));
+    }
+
+    @Test
+    public void summaryTest() {
+        Receipt r = createReceipt("4");
+        ReceiptSummary s = new ReceiptSummary(r);
+        assertEquals("4", s.getTicketNumber());
+        assertEquals("Caissier", s.getCashier());
+        assertEquals(r.getTicket().getTicketPrice(), s.getTotal(), 0.001);
+        assertEquals("Café x 2.0, Eau x 1.0", s.getContent());
+    }
+
+    @Test
+    public void isOfTest() {
+        Receipt r = createReceipt("4");
+        assertTrue(new ReceiptSummary(r).isOf(r));
+        assertFalse(new ReceiptSummary(createReceipt("5")).isOf(r));
+    }
+}
@@ -0,0 +1,99 @@
+package fr.pasteque.client.models;
+
+import fr.pasteque.client.data.DataGson;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTest {
+
+    private Session session;
+
+    @Before
+    public void setup() {
+        this.session = new Session();
+        this.session.updateSharedTickets(Arrays.asList(
+                new Ticket("a", "1"), new Ticket("b", "2"), new Ticket("c", "3")));
+    }
+
+    private static List<String> noIds() {
+        return Collections.emptyList();
+    }
+
+    private List<String> labels() {
+        List<String> labels = new ArrayList<>();
+        for (Ticket t : this.session.getTickets()) {
+            labels.add(t.getLabel());
+        }
+        return labels;
+    }
+
+    /** @return the session saved and read again */
+    private static Session reload(Session s) {
+        return DataGson.get().fromJson(DataGson.get().toJson(s, Session.class),
+                Session.class);
+    }
+
+    @Test
+    public void updateSharedTicketsTest() {
+        Ticket b = new Ticket("b", "2");
+        this.session.updateSharedTickets(Arrays.asList(b, new Ticket("d", "4")));
+        // Closed ones are dropped, the others replaced where they are
+        assertEquals(Arrays.asList("2", "4"), this.labels());
+        assertSame(b, this.session.getTicket("b"));
+    }
+
+    @Test
+    public void updateByIdTest() {
+        Ticket b = new Ticket("b", "2");
+        assertTrue(this.session.applySharedChanges(Arrays.asList(b), noIds()));
+        assertEquals(Arrays.asList("1", "2", "3"), this.labels());
+        assertSame(b, this.session.getTickets().get(1));
+        // A new one is added
+        this.session.applySharedChanges(Arrays.asList(new Ticket("d", "4")), noIds());
+        assertEquals(Arrays.asList("1", "2", "3", "4"), this.labels());
+    }
+
+    @Test
+    public void deleteTest() {
+        assertTrue(this.session.applySharedChanges(new ArrayList<Ticket>(),
+                Arrays.asList("a", "unknown")));
+        assertEquals(Arrays.asList("2", "3"), this.labels());
+        assertNull(this.session.getTicket("a"));
+        assertFalse(this.session.applySharedChanges(new ArrayList<Ticket>(),
+                Arrays.asList("a")));
+    }
+
+    @Test
+    public void renamedTest() {
+        Ticket b = new Ticket("b", "Terrasse");
+        this.session.applySharedChanges(Arrays.asList(b), noIds());
+        // Replaced in place, not added next to the old label
+        assertEquals(Arrays.asList("1", "Terrasse", "3"), this.labels());
+        this.session.updateSharedTickets(Arrays.asList(new Ticket("a", "1"),
+                new Ticket("b", "2"), new Ticket("c", "3")));
+        assertEquals(Arrays.asList("1", "3", "2"), this.labels());
+    }
+
+    @Test
+    public void reloadedTest() {
+        this.session = reload(this.session);
+        Ticket b = new Ticket("b", "Terrasse");
+        this.session.applySharedChanges(Arrays.asList(b), Arrays.asList("a"));
+        assertEquals(Arrays.asList("Terrasse", "3"), this.labels());
+        assertSame(b, this.session.getTicket("b"));
+        this.session = reload(this.session);
+        this.session.updateSharedTickets(Arrays.asList(new Ticket("d", "4")));
+        assertEquals(Arrays.asList("4"), this.labels());
+    }
+}
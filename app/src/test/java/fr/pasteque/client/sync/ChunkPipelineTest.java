@@ -0,0 +1,131 @@
+package fr.pasteque.client.sync;
+
+import fr.pasteque.client.Constant;
+import fr.pasteque.client.data.ArchiveFile;
+import fr.pasteque.client.models.Cash;
+import fr.pasteque.client.models.Payment;
+import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.models.Ticket;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkPipelineTest {
+
+    private static final String FILENAME = Constant.BUILD_FOLDER + "pipeline.data";
+
+    private File file;
+    private List<Integer> sent;
+    private ChunkPipeline.Sender sender;
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Before
+    public void setup() throws IOException {
+        this.file = new File(FILENAME);
+        this.file.getParentFile().mkdirs();
+        this.file.delete();
+        List<Receipt> receipts = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            Ticket t = new Ticket("t" + i, String.valueOf(i));
+            receipts.add(new Receipt(t, new ArrayList<Payment>(), null));
+        }
+        // 5 chunks
+        ArchiveFile.write(this.file, new Cash("c1", 1, 3, 100, 200), receipts, 10);
+        this.sent = new ArrayList<>();
+        this.sender = new ChunkPipeline.Sender() {
+            @Override
+            public boolean send(int chunk) {
+                sent.add(chunk);
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void fillTest() throws IOException {
+        ChunkPipeline pipeline = new ChunkPipeline(ArchiveFile.open(this.file), 3,
+                this.sender);
+        pipeline.fill();
+        assertEquals(Arrays.asList(0, 1, 2), this.sent);
+        assertEquals(3, pipeline.getInFlight());
+        assertFalse(pipeline.saved(0));
+        assertEquals(Arrays.asList(0, 1, 2, 3), this.sent);
+        assertFalse(pipeline.saved(1));
+        assertFalse(pipeline.saved(2));
+        assertFalse(pipeline.saved(3));
+        assertTrue(pipeline.saved(4));
+        assertEquals(5, ArchiveFile.open(this.file).getFirstUnsentChunk());
+    }
+
+    @Test
+    public void outOfOrderTest() throws IOException {
+        ArchiveFile archive = ArchiveFile.open(this.file);
+        ChunkPipeline pipeline = new ChunkPipeline(archive, 3, this.sender);
+        pipeline.fill();
+        // The second chunk is saved first, the resume point stays
+        pipeline.saved(1);
+        assertEquals(0, archive.getFirstUnsentChunk());
+        assertEquals(0, ArchiveFile.open(this.file).getFirstUnsentChunk());
+        // A chunk is sent in place of the answered one
+        assertEquals(Arrays.asList(0, 1, 2, 3), this.sent);
+        pipeline.saved(0);
+        assertEquals(2, ArchiveFile.open(this.file).getFirstUnsentChunk());
+    }
+
+    @Test
+    public void stopTest() throws IOException {
+        ChunkPipeline pipeline = new ChunkPipeline(ArchiveFile.open(this.file), 3,
+                this.sender);
+        pipeline.fill();
+        // Failed while chunks are in flight
+        pipeline.stop();
+        assertFalse(pipeline.saved(0));
+        assertEquals(Arrays.asList(0, 1, 2), this.sent);
+        assertEquals(1, ArchiveFile.open(this.file).getFirstUnsentChunk());
+        pipeline.fill();
+        assertEquals(3, this.sent.size());
+    }
+
+    @Test
+    public void sendFailureTest() throws IOException {
+        ChunkPipeline pipeline = new ChunkPipeline(ArchiveFile.open(this.file), 3,
+                new ChunkPipeline.Sender() {
+                    @Override
+                    public boolean send(int chunk) {
+                        sent.add(chunk);
+                        return chunk != 1;
+                    }
+                });
+        pipeline.fill();
+        assertEquals(Arrays.asList(0, 1), this.sent);
+        assertEquals(1, pipeline.getInFlight());
+    }
+
+    @Test
+    public void restartTest() throws IOException {
+        ChunkPipeline pipeline = new ChunkPipeline(ArchiveFile.open(this.file), 3,
+                this.sender);
+        pipeline.fill();
+        pipeline.saved(0);
+        pipeline.saved(2);
+        // Interrupted, sent again from the first chunk not saved
+        this.sent.clear();
+        pipeline = new ChunkPipeline(ArchiveFile.open(this.file), 3, this.sender);
+        pipeline.fill();
+        assertEquals(Arrays.asList(1, 2, 3), this.sent);
+        pipeline.saved(1);
+        pipeline.saved(2);
+        pipeline.saved(3);
+        assertTrue(pipeline.saved(4));
+        assertEquals(5, ArchiveFile.open(this.file).getFirstUnsentChunk());
+    }
+}
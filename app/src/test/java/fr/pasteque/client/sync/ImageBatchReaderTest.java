@@ -0,0 +1,104 @@
+package fr.pasteque.client.sync;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ImageBatchReaderTest {
+
+    private Map<String, byte[]> stored;
+    private List<String> removed;
+    private ImageBatchReader reader;
+
+    @Before
+    public void setup() {
+        this.stored = new HashMap<>();
+        this.removed = new ArrayList<>();
+        this.reader = new ImageBatchReader(new ImageBatchReader.ImageStore() {
+            @Override
+            public void store(String id, byte[] image) {
+                stored.put(id, image);
+            }
+
+            @Override
+            public void remove(String id) {
+                removed.add(id);
+            }
+        });
+    }
+
+    private static byte[] batch(Object... records) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeBytes("PIMG");
+        for (int i = 0; i < records.length; i += 2) {
+            out.writeUTF((String) records[i]);
+            if (records[i + 1] instanceof byte[]) {
+                byte[] img = (byte[]) records[i + 1];
+                out.writeInt(img.length);
+                out.write(img);
+            } else {
+                out.writeInt((Integer) records[i + 1]);
+            }
+        }
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void batchTest() throws IOException {
+        byte[] img = {1, 2, 3};
+        this.reader.parse(new ByteArrayInputStream(batch(
+                "p1", img,
+                "p2", ImageBatchReader.UNCHANGED,
+                "p3", ImageBatchReader.NO_IMAGE,
+                "p4", new byte[0])));
+        assertTrue(this.reader.isSupported());
+        assertEquals(Arrays.asList("p1", "p2", "p3", "p4"), this.reader.getReadIds());
+        assertEquals(2, this.reader.getStoredCount());
+        assertTrue(Arrays.equals(img, this.stored.get("p1")));
+        assertFalse(this.stored.containsKey("p2"));
+        // Only the item without image is forgotten
+        assertEquals(Arrays.asList("p3"), this.removed);
+    }
+
+    @Test
+    public void unsupportedTest() throws IOException {
+        byte[] json = "{\"status\":\"rej\",\"content\":\"Unknown action\"}".getBytes("UTF-8");
+        this.reader.parse(new ByteArrayInputStream(json));
+        assertFalse(this.reader.isSupported());
+        assertTrue(this.reader.getReadIds().isEmpty());
+    }
+
+    @Test
+    public void emptyTest() throws IOException {
+        this.reader.parse(new ByteArrayInputStream(new byte[0]));
+        assertFalse(this.reader.isSupported());
+        this.reader.parse(new ByteArrayInputStream(batch()));
+        assertTrue(this.reader.isSupported());
+        assertTrue(this.reader.getReadIds().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedTest() throws IOException {
+        byte[] data = batch("p1", new byte[10]);
+        this.reader.parse(new ByteArrayInputStream(Arrays.copyOf(data, data.length - 4)));
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidLengthTest() throws IOException {
+        this.reader.parse(new ByteArrayInputStream(batch("p1", -5)));
+    }
+}
@@ -0,0 +1,209 @@
+package fr.pasteque.client.sync;
+
+import android.content.Context;
+import android.os.Message;
+import fr.pasteque.client.data.Data;
+import fr.pasteque.client.data.DataSavable.AbstractDataTest;
+import fr.pasteque.client.data.DataSavable.CashData;
+import fr.pasteque.client.data.DataSavable.CustomerData;
+import fr.pasteque.client.data.DataSavable.OutboxData;
+import fr.pasteque.client.data.DataSavable.ReceiptData;
+import fr.pasteque.client.data.DataSavable.SessionData;
+import fr.pasteque.client.models.Cash;
+import fr.pasteque.client.models.Customer;
+import fr.pasteque.client.models.Payment;
+import fr.pasteque.client.models.Receipt;
+import fr.pasteque.client.models.Ticket;
+import fr.pasteque.client.models.User;
+import fr.pasteque.client.utils.URLTextGetter;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class OutboxTest extends AbstractDataTest {
+
+    /** Records the requests instead of posting them */
+    private static class RecordingOutbox extends Outbox {
+        private List<String> services = new ArrayList<>();
+        private Map<String, String> params;
+        private DataHandler handler;
+
+        RecordingOutbox(Context ctx) {
+            super(ctx);
+        }
+
+        @Override
+        boolean canSend() {
+            return true;
+        }
+
+        @Override
+        void post(String service, String action, Map<String, String> params,
+                DataHandler h) {
+            this.services.add(service);
+            this.params = params;
+            this.handler = h;
+        }
+
+        /** Answer the request in flight */
+        void respond(String content) {
+            Message m = new Message();
+            m.what = URLTextGetter.SUCCESS;
+            m.obj = "{\"status\":\"ok\",\"content\":" + content + "}";
+            DataHandler h = this.handler;
+            this.handler = null;
+            h.handleMessage(m);
+        }
+
+        void retry() {
+            Message m = new Message();
+            m.what = RETRY;
+            this.handleMessage(m);
+        }
+    }
+
+    private RecordingOutbox outbox;
+
+    @Override
+    public String getTmpFilename() {
+        return "outbox.json";
+    }
+
+    @Before
+    public void setupData() {
+        replayContext();
+        Data.Cash = new CashData();
+        Data.Cash.setCash(new Cash("c1", 1, 3, 1450000000L, -1));
+        Data.Customer = new CustomerData();
+        Data.Outbox = new OutboxData();
+        Data.Receipt = new ReceiptData();
+        Data.Session = new SessionData();
+        Data.Session.newSessionIfEmpty();
+        this.outbox = new RecordingOutbox(this.fakeContext);
+    }
+
+    private static Customer customer(String id) {
+        return new Customer(id, "Client " + id, null, "Jean", "Client " + id, null, null,
+                null, null, null, null, null, null, null, null, 0, 0, 0, "0", null);
+    }
+
+    private static void addReceipts(int from, int to) {
+        for (int i = from; i <= to; i++) {
+            Data.Receipt.addReceipt(new Receipt(new Ticket("t" + i, String.valueOf(i)),
+                    new ArrayList<Payment>(), new User("u1", "Caissier", null, "0")));
+        }
+    }
+
+    private Cash currentCash() {
+        return Data.Cash.currentCash(this.fakeContext);
+    }
+
+    @Test
+    public void retryDelayTest() {
+        assertEquals(5000, Outbox.retryDelay(1));
+        assertEquals(10000, Outbox.retryDelay(2));
+        assertEquals(40000, Outbox.retryDelay(4));
+        // Capped, also once the shift would overflow
+        assertEquals(10 * 60 * 1000, Outbox.retryDelay(9));
+        assertEquals(10 * 60 * 1000, Outbox.retryDelay(100));
+    }
+
+    @Test
+    public void drainOrderTest() throws JSONException {
+        Data.Cash.setCash(new Cash(null, 1, 0, 1450000000L, -1));
+        Data.Customer.addCreatedCustomer(customer("-1"));
+        addReceipts(1, 2);
+        this.outbox.drain();
+        assertEquals("CustomersAPI", this.outbox.services.get(0));
+        this.outbox.respond("{\"saved\":[\"15\"]}");
+        assertEquals("CashesAPI", this.outbox.services.get(1));
+        this.outbox.respond("{\"id\":\"c1\",\"cashRegisterId\":1,\"sequence\":3,"
+                + "\"openDate\":1450000000}");
+        assertEquals("TicketsAPI", this.outbox.services.get(2));
+        assertEquals("c1", this.outbox.params.get("cashId"));
+        assertEquals(2, new JSONArray(this.outbox.params.get("tickets")).length());
+        this.outbox.respond("{\"saved\":2}");
+        assertEquals(3, this.outbox.services.size());
+        assertEquals(0, Outbox.getPendingReceipts(this.fakeContext));
+    }
+
+    @Test
+    public void partialSavedTest() throws JSONException {
+        addReceipts(1, 5);
+        this.outbox.drain();
+        this.outbox.respond("{\"saved\":3}");
+        assertEquals(3, Data.Outbox.getSentReceipts(currentCash()));
+        assertEquals(2, Outbox.getPendingReceipts(this.fakeContext));
+        // Waiting for the retry delay
+        this.outbox.drain();
+        assertEquals(1, this.outbox.services.size());
+        this.outbox.retry();
+        JSONArray tickets = new JSONArray(this.outbox.params.get("tickets"));
+        assertEquals(2, tickets.length());
+        assertEquals("4", tickets.getJSONObject(0).getString("label"));
+        this.outbox.respond("{\"saved\":2}");
+        assertEquals(5, Data.Outbox.getSentReceipts(currentCash()));
+    }
+
+    @Test
+    public void closeRaceTest() {
+        final int[] sentWhenIdle = {-1};
+        Runnable archive = new Runnable() {
+            @Override
+            public void run() {
+                sentWhenIdle[0] = Data.Outbox.getSentReceipts(currentCash());
+            }
+        };
+        addReceipts(1, 2);
+        this.outbox.drain();
+        currentCash().closeNow();
+        this.outbox.runWhenIdle(archive);
+        assertEquals(-1, sentWhenIdle[0]);
+        this.outbox.respond("{\"saved\":2}");
+        // Counted as sent before archiving, and nothing sent once closed
+        assertEquals(2, sentWhenIdle[0]);
+        assertEquals(1, this.outbox.services.size());
+        sentWhenIdle[0] = -1;
+        this.outbox.runWhenIdle(archive);
+        assertEquals(2, sentWhenIdle[0]);
+    }
+
+    @Test
+    public void customerCreatedMeanwhileTest() throws JSONException {
+        addReceipts(1, 1);
+        Data.Customer.addCreatedCustomer(customer("-1"));
+        this.outbox.drain();
+        Data.Customer.addCreatedCustomer(customer("-2"));
+        this.outbox.respond("{\"saved\":[\"15\"]}");
+        assertEquals("15", Data.Customer.getResolvedIds().get("-1"));
+        assertEquals("15", Data.Customer.getCustomers().get(0).getId());
+        assertEquals(1, Data.Customer.getCreatedCustomers().size());
+        assertEquals("-2", Data.Customer.getCreatedCustomers().get(0).getId());
+        // Only the new one is sent next
+        assertEquals("CustomersAPI", this.outbox.services.get(1));
+        assertEquals(1, new JSONArray(this.outbox.params.get("customers")).length());
+    }
+
+    @Test
+    public void customerSentMeanwhileTest() throws JSONException {
+        addReceipts(1, 1);
+        Data.Customer.addCreatedCustomer(customer("-1"));
+        this.outbox.drain();
+        // Sent by SendProcess while waiting for the response
+        SendProcess.resolveCreatedCustomers(this.fakeContext, new JSONArray("[\"15\"]"));
+        this.outbox.respond("{\"saved\":[\"16\"]}");
+        assertEquals("15", Data.Customer.getResolvedIds().get("-1"));
+        assertEquals("15", Data.Customer.getCustomers().get(0).getId());
+        assertNull(Data.Customer.getResolvedIds().get("15"));
+        assertEquals(0, Data.Customer.getCreatedCustomers().size());
+        assertEquals("TicketsAPI", this.outbox.services.get(1));
+    }
+}
@@ -0,0 +1,164 @@
+package fr.pasteque.client.sync;
+
+import com.google.gson.stream.JsonReader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StreamedResponseTest {
+
+    /** Read {"id": "..."} items, fail on a missing id */
+    private static final StreamedResponse.ItemReader<String> ID_READER
+            = new StreamedResponse.ItemReader<String>() {
+        @Override
+        public String read(JsonReader in) throws IOException, JSONException {
+            String id = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("id")) {
+                    id = in.nextString();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            if (id == null) {
+                throw new JSONException("No id");
+            }
+            return id;
+        }
+    };
+
+    private static InputStream stream(String json) throws IOException {
+        return new ByteArrayInputStream(json.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void itemsTest() throws IOException {
+        StreamedResponse<String> resp = new StreamedResponse<>(ID_READER);
+        assertSame(resp, resp.parse(stream("{\"status\": \"ok\", \"content\": "
+                + "[{\"id\": \"a\", \"label\": \"A\"}, {\"id\": \"b\", \"sub\": [1, {}]}]}")));
+        assertTrue(resp.isOk());
+        assertNull(resp.getError());
+        assertEquals(Arrays.asList("a", "b"), resp.getItems());
+    }
+
+    @Test
+    public void statusAfterContentTest() throws IOException {
+        StreamedResponse<String> resp = new StreamedResponse<>(ID_READER);
+        resp.parse(stream("{\"content\": [{\"id\": \"a\"}], \"status\": \"ok\"}"));
+        assertTrue(resp.isOk());
+        assertEquals(Arrays.asList("a"), resp.getItems());
+    }
+
+    @Test
+    public void itemErrorTest() throws IOException {
+        StreamedResponse<String> resp = new StreamedResponse<>(ID_READER);
+        resp.parse(stream("{\"status\": \"ok\", \"content\": "
+                + "[{\"id\": \"a\"}, {\"label\": \"B\"}, {\"id\": \"c\"}]}"));
+        assertTrue(resp.isOk());
+        assertNotNull(resp.getError());
+        // Items after the error are skipped
+        assertEquals(Arrays.asList("a"), resp.getItems());
+    }
+
+    @Test
+    public void statusNokTest() throws IOException {
+        StreamedResponse<String> resp = new StreamedResponse<>(ID_READER);
+        resp.parse(stream("{\"status\": \"rej\", \"content\": null}"));
+        assertFalse(resp.isOk());
+        assertNull(resp.getErrorCode());
+        assertTrue(resp.getItems().isEmpty());
+    }
+
+    @Test
+    public void deltaTest() throws IOException {
+        StreamedResponse<String> resp = new StreamedResponse<>(ID_READER);
+        resp.parse(stream("{\"status\": \"ok\", \"content\": {\"time\": 1450000000, "
+                + "\"updated\": [{\"id\": \"a\"}], \"deleted\": [\"b\", 12]}}"));
+        assertTrue(resp.isOk());
+        assertTrue(resp.isDelta());
+        assertEquals(1450000000L, resp.getTime());
+        assertEquals(Arrays.asList("a"), resp.getItems());
+        assertEquals(Arrays.asList("b", "12"), resp.getDeletedIds());
+    }
+
+    @Test
+    public void fullTest() throws IOException {
+        StreamedResponse<String> resp = new StreamedResponse<>(ID_READER);
+        resp.parse(stream("{\"status\": \"ok\", \"content\": [{\"id\": \"a\"}]}"));
+        assertFalse(resp.isDelta());
+        assertEquals(0, resp.getTime());
+        assertTrue(resp.getDeletedIds().isEmpty());
+    }
+
+    /** Read a delta from a fake server answering only changes since the mark */
+    @Test
+    public void deltaServerTest() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api.php", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String query = exchange.getRequestURI().getQuery();
+                String content;
+                if (query != null && query.contains("since=100")) {
+                    content = "{\"time\": 200, \"updated\": [{\"id\": \"c\"}],"
+                            + " \"deleted\": [\"a\"]}";
+                } else {
+                    content = "[{\"id\": \"a\"}, {\"id\": \"b\"}]";
+                }
+                byte[] body = ("{\"status\": \"ok\", \"content\": " + content + "}")
+                        .getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/api.php";
+            StreamedResponse<String> full = new StreamedResponse<>(ID_READER);
+            this.get(url + "?p=ProductsAPI", full);
+            assertFalse(full.isDelta());
+            assertEquals(Arrays.asList("a", "b"), full.getItems());
+            StreamedResponse<String> delta = new StreamedResponse<>(ID_READER);
+            this.get(url + "?p=ProductsAPI&since=100", delta);
+            assertTrue(delta.isDelta());
+            assertEquals(200, delta.getTime());
+            assertEquals(Arrays.asList("c"), delta.getItems());
+            assertEquals(Arrays.asList("a"), delta.getDeletedIds());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private void get(String url, StreamedResponse<?> resp) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        InputStream in = conn.getInputStream();
+        try {
+            resp.parse(in);
+        } finally {
+            in.close();
+            conn.disconnect();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package fr.pasteque.client.sync;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SyncGraphTest {
+
+    private List<String> started;
+    private List<String> ended;
+    private int graphEnded;
+    private SyncGraph.Listener listener;
+
+    /** Node ended by the test, or right away when sync */
+    private class TestNode extends SyncGraph.Node {
+        private final boolean sync;
+        private boolean cancelled;
+
+        TestNode(String name, boolean sync, SyncGraph.Node... dependencies) {
+            super(name, dependencies);
+            this.sync = sync;
+        }
+
+        TestNode(String name, SyncGraph.Node... dependencies) {
+            this(name, false, dependencies);
+        }
+
+        @Override
+        protected void start() {
+            started.add(this.getName());
+            if (this.sync) {
+                this.done();
+            }
+        }
+
+        @Override
+        protected void onCancel() {
+            this.cancelled = true;
+        }
+    }
+
+    @Before
+    public void setup() {
+        this.started = new ArrayList<>();
+        this.ended = new ArrayList<>();
+        this.graphEnded = 0;
+        this.listener = new SyncGraph.Listener() {
+            @Override
+            public void onNodeEnded(SyncGraph.Node node) {
+                ended.add(node.getName());
+            }
+
+            @Override
+            public void onGraphEnded(SyncGraph graph) {
+                graphEnded++;
+            }
+        };
+    }
+
+    @Test
+    public void dependenciesTest() {
+        SyncGraph g = new SyncGraph(10, this.listener);
+        TestNode version = g.add(new TestNode("version"));
+        TestNode taxes = g.add(new TestNode("taxes", version));
+        TestNode categories = g.add(new TestNode("categories", version));
+        TestNode products = g.add(new TestNode("products", taxes, categories));
+        g.start();
+        assertEquals(1, this.started.size());
+        version.done();
+        // Independent nodes run together
+        assertEquals(3, this.started.size());
+        taxes.done();
+        assertEquals(3, this.started.size());
+        categories.done();
+        assertEquals("products", this.started.get(3));
+        assertEquals(0, this.graphEnded);
+        products.done();
+        assertEquals(1, this.graphEnded);
+        assertEquals(4, g.getEndedCount());
+        assertEquals(SyncGraph.STATE_DONE, products.getState());
+    }
+
+    @Test
+    public void maxRunningTest() {
+        SyncGraph g = new SyncGraph(2, this.listener);
+        TestNode a = g.add(new TestNode("a"));
+        g.add(new TestNode("b"));
+        g.add(new TestNode("c"));
+        g.start();
+        assertEquals(2, this.started.size());
+        a.done();
+        assertEquals(3, this.started.size());
+        assertEquals("c", this.started.get(2));
+    }
+
+    @Test
+    public void failTest() {
+        SyncGraph g = new SyncGraph(10, this.listener);
+        TestNode version = g.add(new TestNode("version", true));
+        TestNode roles = g.add(new TestNode("roles", version));
+        TestNode users = g.add(new TestNode("users", roles));
+        TestNode customers = g.add(new TestNode("customers", version));
+        g.start();
+        roles.fail();
+        // Only dependents are cancelled
+        assertEquals(SyncGraph.STATE_FAILED, roles.getState());
+        assertEquals(SyncGraph.STATE_CANCELLED, users.getState());
+        assertEquals(SyncGraph.STATE_RUNNING, customers.getState());
+        assertFalse(this.started.contains("users"));
+        assertEquals(0, this.graphEnded);
+        customers.done();
+        assertEquals(1, this.graphEnded);
+        assertEquals(4, this.ended.size());
+    }
+
+    @Test
+    public void syncNodesTest() {
+        SyncGraph g = new SyncGraph(1, this.listener);
+        TestNode a = g.add(new TestNode("a", true));
+        TestNode b = g.add(new TestNode("b", true, a));
+        g.add(new TestNode("c", true, b));
+        g.start();
+        assertEquals(3, this.started.size());
+        assertEquals(1, this.graphEnded);
+    }
+
+    @Test
+    public void cancelTest() {
+        SyncGraph g = new SyncGraph(10, this.listener);
+        TestNode a = g.add(new TestNode("a"));
+        TestNode b = g.add(new TestNode("b", a));
+        g.start();
+        g.cancel();
+        assertTrue(a.cancelled);
+        assertEquals(SyncGraph.STATE_CANCELLED, b.getState());
+        assertEquals(1, this.graphEnded);
+        // Late response is ignored
+        a.done();
+        assertEquals(SyncGraph.STATE_CANCELLED, a.getState());
+        assertEquals(1, this.graphEnded);
+    }
+
+    @Test
+    public void startErrorTest() {
+        SyncGraph g = new SyncGraph(10, this.listener);
+        SyncGraph.Node broken = g.add(new SyncGraph.Node("broken") {
+            @Override
+            protected void start() {
+                throw new IllegalStateException("No data");
+            }
+        });
+        TestNode products = g.add(new TestNode("products", broken));
+        TestNode users = g.add(new TestNode("users", true));
+        g.start();
+        assertEquals(SyncGraph.STATE_FAILED, broken.getState());
+        assertEquals(SyncGraph.STATE_CANCELLED, products.getState());
+        assertEquals(SyncGraph.STATE_DONE, users.getState());
+        assertEquals(1, this.graphEnded);
+    }
+}
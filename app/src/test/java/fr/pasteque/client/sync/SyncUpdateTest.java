@@ -0,0 +1,168 @@
+package fr.pasteque.client.sync;
+
+import com.google.gson.stream.JsonReader;
+import fr.pasteque.client.data.DataSavable.AbstractDataTest;
+import fr.pasteque.client.data.DataSavable.SyncMarkData;
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SyncUpdateTest extends AbstractDataTest {
+
+    private static class Item extends SyncUpdate.ParsedItem {
+        private final String id;
+        private final String label;
+
+        Item(String id, String label) {
+            this.id = id;
+            this.label = label;
+        }
+
+        @Override
+        String getId() {
+            return this.id;
+        }
+    }
+
+    /** Read {"id": "..."} items, fail on a missing id */
+    private static final StreamedResponse.ItemReader<String> ID_READER
+            = new StreamedResponse.ItemReader<String>() {
+        @Override
+        public String read(JsonReader in) throws IOException, JSONException {
+            String id = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("id")) {
+                    id = in.nextString();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            if (id == null) {
+                throw new JSONException("No id");
+            }
+            return id;
+        }
+    };
+
+    @Override
+    public String getTmpFilename() {
+        return "syncmarks.json";
+    }
+
+    private static StreamedResponse<String> response(String content) throws IOException {
+        StreamedResponse<String> resp = new StreamedResponse<>(ID_READER);
+        resp.parse(new ByteArrayInputStream(("{\"status\": \"ok\", \"content\": "
+                + content + "}").getBytes("UTF-8")));
+        return resp;
+    }
+
+    private static List<String> labels(List<Item> items) {
+        List<String> labels = new ArrayList<>();
+        for (Item i : items) {
+            labels.add(i.label);
+        }
+        return labels;
+    }
+
+    @Test
+    public void patchTest() {
+        List<Item> local = Arrays.asList(new Item("a", "A"), new Item("b", "B"),
+                new Item("c", "C"));
+        List<Item> patched = SyncUpdate.patch(local,
+                Arrays.asList(new Item("b", "B2"), new Item("d", "D")),
+                Arrays.asList("c", "unknown"));
+        // Updated where they are, new ones last
+        assertEquals(Arrays.asList("A", "B2", "D"), labels(patched));
+    }
+
+    @Test
+    public void emptyPatchTest() {
+        List<Item> local = Arrays.asList(new Item("a", "A"), new Item("b", "B"));
+        List<Item> patched = SyncUpdate.patch(local, new ArrayList<Item>(),
+                new ArrayList<String>());
+        assertEquals(Arrays.asList("A", "B"), labels(patched));
+        assertSame(local.get(0), patched.get(0));
+    }
+
+    @Test
+    public void deltaParamsTest() {
+        replayContext();
+        SyncMarkData marks = new SyncMarkData();
+        marks.setMark(SyncMarkData.PRODUCTS, 100);
+        Map<String, Long> requested = new HashMap<>();
+        Map<String, String> params = new HashMap<>();
+        SyncUpdate.deltaParams(params, marks, SyncMarkData.PRODUCTS, true, requested);
+        assertEquals("100", params.get("since"));
+        assertEquals(100L, (long) requested.get(SyncMarkData.PRODUCTS));
+        // Nothing to apply a delta to, everything is requested
+        SyncUpdate.deltaParams(params, marks, SyncMarkData.PRODUCTS, false, requested);
+        assertEquals("0", params.get("since"));
+        assertEquals(0L, (long) requested.get(SyncMarkData.PRODUCTS));
+        SyncUpdate.deltaParams(params, marks, SyncMarkData.STOCKS, true, requested);
+        assertEquals("0", params.get("since"));
+    }
+
+    @Test
+    public void readMarkTest() throws IOException {
+        replayContext();
+        SyncMarkData marks = new SyncMarkData();
+        Map<String, Long> requested = new HashMap<>();
+        requested.put(SyncMarkData.PRODUCTS, 100L);
+        assertTrue(SyncUpdate.readMark(response("{\"time\": 200, "
+                + "\"updated\": [{\"id\": \"a\"}], \"deleted\": [\"b\"]}"),
+                marks, SyncMarkData.PRODUCTS, requested));
+        assertEquals(200, marks.getMark(SyncMarkData.PRODUCTS));
+        // Every item was requested, the delta is the full list
+        requested.put(SyncMarkData.PRODUCTS, 0L);
+        assertFalse(SyncUpdate.readMark(response("{\"time\": 300, "
+                + "\"updated\": [{\"id\": \"a\"}], \"deleted\": []}"),
+                marks, SyncMarkData.PRODUCTS, requested));
+        assertEquals(300, marks.getMark(SyncMarkData.PRODUCTS));
+        // Server without delta sync
+        assertFalse(SyncUpdate.readMark(response("[{\"id\": \"a\"}]"),
+                marks, SyncMarkData.PRODUCTS, requested));
+        assertEquals(0, marks.getMark(SyncMarkData.PRODUCTS));
+    }
+
+    @Test
+    public void emptyDeltaMarkTest() throws IOException {
+        replayContext();
+        SyncMarkData marks = new SyncMarkData();
+        marks.setMark(SyncMarkData.CUSTOMERS, 100);
+        Map<String, Long> requested = new HashMap<>();
+        requested.put(SyncMarkData.CUSTOMERS, 100L);
+        StreamedResponse<String> resp = response("{\"time\": 150, "
+                + "\"updated\": [], \"deleted\": []}");
+        assertTrue(SyncUpdate.readMark(resp, marks, SyncMarkData.CUSTOMERS, requested));
+        assertTrue(resp.getItems().isEmpty());
+        assertEquals(150, marks.getMark(SyncMarkData.CUSTOMERS));
+    }
+
+    @Test
+    public void failedMarkTest() throws IOException {
+        replayContext();
+        SyncMarkData marks = new SyncMarkData();
+        marks.setMark(SyncMarkData.CUSTOMERS, 100);
+        Map<String, Long> requested = new HashMap<>();
+        requested.put(SyncMarkData.CUSTOMERS, 100L);
+        // The second item can't be read, the changes are not applied
+        assertFalse(SyncUpdate.readMark(response("{\"time\": 200, "
+                + "\"updated\": [{\"id\": \"a\"}, {\"label\": \"B\"}], \"deleted\": []}"),
+                marks, SyncMarkData.CUSTOMERS, requested));
+        assertEquals(100, marks.getMark(SyncMarkData.CUSTOMERS));
+    }
+}
@@ -0,0 +1,35 @@
+package fr.pasteque.client.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BarcodeCheckTest {
+
+    @Test
+    public void ean13Test() {
+        assertTrue(BarcodeCheck.ean13("3017620425035"));
+        assertFalse(BarcodeCheck.ean13("3017620425036"));
+        assertFalse(BarcodeCheck.ean13("301762042503"));
+        assertFalse(BarcodeCheck.ean13("30176204250a5"));
+    }
+
+    @Test
+    public void upcATest() {
+        assertTrue(BarcodeCheck.upcA("036000291452"));
+        assertFalse(BarcodeCheck.upcA("036000291453"));
+        assertFalse(BarcodeCheck.upcA("3017620425035"));
+    }
+
+    @Test
+    public void otherFormTest() {
+        assertEquals("0036000291452", BarcodeCheck.otherForm("036000291452"));
+        assertEquals("036000291452", BarcodeCheck.otherForm("0036000291452"));
+        assertNull(BarcodeCheck.otherForm("3017620425035"));
+        assertNull(BarcodeCheck.otherForm("0036000291453"));
+        assertNull(BarcodeCheck.otherForm("42"));
+    }
+}
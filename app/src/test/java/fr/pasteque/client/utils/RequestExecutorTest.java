@@ -0,0 +1,110 @@
+package fr.pasteque.client.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestExecutorTest {
+
+    private static class Recorder extends RequestExecutor.Task {
+        final List<String> log;
+        final String name;
+        final CountDownLatch release;
+        final CountDownLatch done;
+
+        Recorder(String host, int priority, String name, List<String> log,
+                 CountDownLatch release, CountDownLatch done) {
+            super(host, priority);
+            this.name = name;
+            this.log = log;
+            this.release = release;
+            this.done = done;
+        }
+
+        @Override
+        protected void execute() {
+            this.log.add(this.name);
+            try {
+                if (this.release != null) {
+                    this.release.await(5, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.done.countDown();
+        }
+    }
+
+    @Test
+    public void priorityTest() throws InterruptedException {
+        RequestExecutor executor = new RequestExecutor(1, 1, "test");
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(4);
+        executor.execute(new Recorder("h", RequestExecutor.PRIORITY_DEFAULT, "first", log, release, done));
+        executor.execute(new Recorder("h", RequestExecutor.PRIORITY_BACKGROUND, "image", log, null, done));
+        executor.execute(new Recorder("h", RequestExecutor.PRIORITY_DEFAULT, "sync", log, null, done));
+        executor.execute(new Recorder("h", RequestExecutor.PRIORITY_INTERACTIVE, "ticket", log, null, done));
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[first, ticket, sync, image]", log.toString());
+    }
+
+    @Test
+    public void hostLimitTest() throws InterruptedException {
+        RequestExecutor executor = new RequestExecutor(4, 2, "test");
+        final AtomicInteger current = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            executor.execute(new RequestExecutor.Task("server", RequestExecutor.PRIORITY_DEFAULT) {
+                @Override
+                protected void execute() {
+                    int n = current.incrementAndGet();
+                    synchronized (max) {
+                        max.set(Math.max(max.get(), n));
+                    }
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    current.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, max.get());
+        Thread.sleep(50);
+        assertEquals(0, executor.getPendingCount());
+    }
+
+    @Test
+    public void cancelTest() throws InterruptedException {
+        RequestExecutor executor = new RequestExecutor(1, 1, "test");
+        List<String> log = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        Recorder running = new Recorder("h", RequestExecutor.PRIORITY_DEFAULT, "running", log, release, done);
+        Recorder waiting = new Recorder("h", RequestExecutor.PRIORITY_DEFAULT, "waiting", log, null, done);
+        Recorder next = new Recorder("h", RequestExecutor.PRIORITY_DEFAULT, "next", log, null, done);
+        executor.execute(running);
+        executor.execute(waiting);
+        executor.execute(next);
+        assertTrue(waiting.cancel());
+        assertFalse(waiting.cancel());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[running, next]", log.toString());
+    }
+}
@@ -0,0 +1,141 @@
+package fr.pasteque.client.utils.file;
+
+import fr.pasteque.client.Constant;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.io.Writer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileTest {
+
+    private static final String FILENAME = Constant.BUILD_FOLDER + "generations.json";
+
+    private File file;
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Before
+    public void setup() {
+        this.file = new TestFile(FILENAME);
+        this.file.getParentFile().mkdirs();
+        this.file.delete();
+    }
+
+    private static byte[] readBytes(java.io.File f) throws IOException {
+        FileInputStream in = new FileInputStream(f);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private java.io.File sibling(String suffix) {
+        return new java.io.File(FILENAME + suffix);
+    }
+
+    @Test
+    public void writeReadTest() throws IOException {
+        file.write("[\"première\"]");
+        assertEquals("[\"première\"]", file.read());
+        assertTrue(file.length() > "[\"première\"]".getBytes("UTF-8").length);
+        assertFalse(sibling(".tmp").exists());
+    }
+
+    @Test
+    public void backupGenerationTest() throws IOException {
+        file.write("[1]");
+        file.write("[2]");
+        assertEquals("[2]", file.read());
+        assertTrue(sibling(".bak").exists());
+    }
+
+    @Test
+    public void backupCopyTest() throws IOException {
+        file.write("[1]");
+        byte[] first = readBytes(file);
+        file.write("[2]");
+        assertArrayEquals(first, readBytes(sibling(".bak")));
+        file.write("[3]");
+        assertEquals("[3]", file.read());
+        assertTrue(new java.io.File(FILENAME).delete());
+        assertEquals("[2]", file.read());
+        assertFalse(sibling(".tmp").exists());
+    }
+
+    @Test
+    public void corruptedFallbackTest() throws IOException {
+        file.write("[1]");
+        file.write("[2]");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(1);
+        raf.write('9');
+        raf.close();
+        assertEquals("[1]", file.read());
+    }
+
+    @Test
+    public void damagedFooterTest() throws IOException {
+        file.write("[1]");
+        file.write("[2]");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+        assertEquals("[1]", file.read());
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void corruptedWithoutBackupTest() throws IOException {
+        file.write("[1]");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        file.read();
+    }
+
+    @Test
+    public void missingFallbackTest() throws IOException {
+        file.write("[1]");
+        file.write("[2]");
+        assertTrue(new java.io.File(FILENAME).delete());
+        assertEquals("[1]", file.read());
+    }
+
+    @Test
+    public void legacyFileTest() throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write("[\"legacy\"]".getBytes("UTF-8"));
+        fos.close();
+        assertEquals("[\"legacy\"]", file.read());
+    }
+
+    @Test
+    public void abortTest() throws IOException {
+        file.write("[1]");
+        Writer writer = file.openWriter();
+        writer.write("[2");
+        file.abort(writer);
+        assertEquals("[1]", file.read());
+        assertFalse(sibling(".tmp").exists());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void deleteTest() throws IOException {
+        file.write("[1]");
+        file.write("[2]");
+        assertTrue(file.delete());
+        assertFalse(sibling(".bak").exists());
+        file.read();
+    }
+}
@@ -0,0 +1,72 @@
+package fr.pasteque.client.utils.file;
+
+import fr.pasteque.client.Constant;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class JournalTest {
+
+    private static final String FILENAME = Constant.BUILD_FOLDER + "test.journal";
+
+    private Journal journal;
+
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    @Before
+    public void setup() {
+        java.io.File file = new java.io.File(FILENAME);
+        file.getParentFile().mkdirs();
+        file.delete();
+        this.journal = new Journal(file);
+    }
+
+    @Test
+    public void replayMissingTest() throws IOException {
+        assertEquals(0, journal.replay().size());
+    }
+
+    @Test
+    public void appendReplayTest() throws IOException {
+        journal.append("{\"a\":1}");
+        journal.append("{\"b\":\"é\"}");
+        List<String> records = journal.replay();
+        assertEquals(2, records.size());
+        assertEquals("{\"a\":1}", records.get(0));
+        assertEquals("{\"b\":\"é\"}", records.get(1));
+    }
+
+    @Test
+    public void tornTailTest() throws IOException {
+        journal.append("{\"a\":1}");
+        long goodLength = journal.getFile().length();
+        FileOutputStream fos = new FileOutputStream(journal.getFile(), true);
+        fos.write("0badc0de {\"b\":".getBytes("UTF-8"));
+        fos.close();
+        List<String> records = journal.replay();
+        assertEquals(1, records.size());
+        assertEquals(goodLength, journal.getFile().length());
+        journal.append("{\"c\":3}");
+        assertEquals(2, journal.replay().size());
+    }
+
+    @Test
+    public void checksumMismatchTest() throws IOException {
+        journal.append("{\"a\":1}");
+        FileOutputStream fos = new FileOutputStream(journal.getFile(), true);
+        fos.write("00000000 {\"b\":2}\n".getBytes("UTF-8"));
+        fos.close();
+        assertEquals(1, journal.replay().size());
+    }
+
+    @Test
+    public void clearTest() throws IOException {
+        journal.append("{\"a\":1}");
+        journal.clear();
+        assertEquals(0, journal.replay().size());
+    }
+}